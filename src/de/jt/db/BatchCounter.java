@@ -0,0 +1,96 @@
+package de.jt.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.bson.BSONCallback;
+import org.bson.BSONObject;
+
+import com.mongodb.DBCallback;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+
+/**
+ * Decoder factory counting the documents decoded by a cursor.
+ * 
+ * The driver decodes a whole batch when it is received, within the hasNext() of the cursor which executes the initial
+ * query or a getMore. The difference of the count before and after such a call is the size of the received batch,
+ * whatever limited it: the batch size, the server's default or the maximum message size. The decoding itself is
+ * delegated to the previous decoder factory of the cursor.
+ * 
+ * An instance is confined to the thread iterating the cursor.
+ * 
+ * @author Hendrik Stein
+ */
+final class BatchCounter implements DBDecoderFactory {
+
+    /** The factory of the counted decoders. */
+    private final DBDecoderFactory delegate;
+
+    /** Number of decoded documents. */
+    private int decoded;
+
+    /**
+     * Creates an instance.
+     * 
+     * @param delegate the previous decoder factory of the cursor or <tt>null</tt> for the default
+     */
+    BatchCounter(DBDecoderFactory delegate) {
+        this.delegate = delegate == null ? DefaultDBDecoder.FACTORY : delegate;
+    }
+
+    /**
+     * Get the number of decoded documents.
+     * 
+     * @return the number of documents
+     */
+    int getDecoded() {
+        return decoded;
+    }
+
+    @Override
+    public DBDecoder create() {
+        final DBDecoder decoder = delegate.create();
+        return new DBDecoder() {
+            @Override
+            public DBCallback getDBCallback(DBCollection collection) {
+                return decoder.getDBCallback(collection);
+            }
+
+            @Override
+            public DBObject decode(byte[] b, DBCollection collection) {
+                decoded++;
+                return decoder.decode(b, collection);
+            }
+
+            @Override
+            public DBObject decode(InputStream in, DBCollection collection) throws IOException {
+                decoded++;
+                return decoder.decode(in, collection);
+            }
+
+            @Override
+            public BSONObject readObject(byte[] b) {
+                return decoder.readObject(b);
+            }
+
+            @Override
+            public BSONObject readObject(InputStream in) throws IOException {
+                return decoder.readObject(in);
+            }
+
+            @Override
+            public int decode(byte[] b, BSONCallback callback) {
+                return decoder.decode(b, callback);
+            }
+
+            @Override
+            public int decode(InputStream in, BSONCallback callback) throws IOException {
+                return decoder.decode(in, callback);
+            }
+        };
+    }
+}
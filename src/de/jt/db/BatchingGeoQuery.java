@@ -0,0 +1,353 @@
+package de.jt.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+
+/**
+ * Micro-batching of concurrent bounding box queries.
+ * 
+ * Requests arriving within a short window are combined into one query with an $or of their $box clauses, so a burst of
+ * small viewport queries costs one round trip and one cursor instead of one each. Every returned document is decoded
+ * once and handed to each request whose box contains it, using primitive comparisons of the box edges. Boxes over the
+ * antimeridian contribute a clause per side, identical clauses are sent once.
+ * 
+ * A batch is dispatched when the window after its first request has passed or it reached its maximum size. Several
+ * dispatcher threads gather and execute batches concurrently. A failing batch query fails all of its requests.
+ * 
+ * An instance is thread-safe and is meant to be shared; call {@link #close()} to stop the dispatcher threads.
+ * 
+ * @author Hendrik Stein
+ */
+public class BatchingGeoQuery {
+
+    /** Default time a batch waits for more requests. */
+    public static final long DEFAULT_WINDOW_MICROS = 300L;
+
+    /** Default maximum number of requests per batch. */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 32;
+
+    /** Default number of dispatcher threads. */
+    public static final int DEFAULT_DISPATCHERS = 2;
+
+    /** The queried collection. */
+    private final DBCollection dbCol;
+
+    /** The read preference and batch size of the combined queries. */
+    private final QueryOptions options;
+
+    /** Time a batch waits for more requests in nanoseconds. */
+    private final long windowNanos;
+
+    /** Maximum number of requests per batch. */
+    private final int maxBatchSize;
+
+    /** The waiting requests. */
+    private final BlockingQueue<Request> pending = new LinkedBlockingQueue<>();
+
+    /** The dispatcher threads. */
+    private final List<Thread> dispatchers;
+
+    /** Whether the instance has been closed. */
+    private volatile boolean closed;
+
+    /** Number of requests. */
+    private final AtomicLong requests = new AtomicLong();
+
+    /** Number of executed batches. */
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * Creates an instance with {@link #DEFAULT_WINDOW_MICROS}, {@link #DEFAULT_MAX_BATCH_SIZE} and
+     * {@link #DEFAULT_DISPATCHERS}.
+     * 
+     * @param dbCol the collection to query
+     */
+    public BatchingGeoQuery(DBCollection dbCol) {
+        this(dbCol, DEFAULT_WINDOW_MICROS, DEFAULT_MAX_BATCH_SIZE, DEFAULT_DISPATCHERS, QueryOptions.DEFAULT);
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param dbCol the collection to query
+     * @param windowMicros the time a batch waits for more requests in microseconds
+     * @param maxBatchSize the maximum number of requests per batch
+     * @param dispatchers the number of dispatcher threads
+     * @param options the read preference and batch size of the combined queries, {@link QueryType#LOCATIONS}
+     * 
+     * @throws IllegalArgumentException if a parameter is out of bounds
+     */
+    public BatchingGeoQuery(DBCollection dbCol, long windowMicros, int maxBatchSize, int dispatchers,
+            QueryOptions options) throws IllegalArgumentException {
+        if (dbCol == null || options == null || windowMicros < 0L || maxBatchSize <= 0 || dispatchers <= 0) {
+            throw new IllegalArgumentException("BatchingGeoQuery: parameter out of bounds");
+        }
+        this.dbCol = dbCol;
+        this.options = options;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatchSize = maxBatchSize;
+        List<Thread> threads = new ArrayList<>(dispatchers);
+        for (int i = 0; i < dispatchers; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            }, "geo-batch-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        this.dispatchers = threads;
+    }
+
+    /**
+     * Get the number of requests.
+     * 
+     * @return the number of requests
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of executed batch queries.
+     * 
+     * @return the number of batches
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Find the geographical locations of a bounding box within the next batch.
+     * 
+     * @param bbox the bounding box
+     * @return the list of geo locations
+     * 
+     * @throws MongoException if the batch query fails or the waiting thread is interrupted
+     * @throws IllegalStateException if the instance is closed
+     */
+    public List<GeoLocation> query(GeoBoundingBox bbox) throws MongoException, IllegalStateException {
+        if (closed) {
+            throw new IllegalStateException("BatchingGeoQuery: closed");
+        }
+        requests.incrementAndGet();
+        Request request = new Request(bbox);
+        pending.add(request);
+        if (closed) {
+            failPending();
+        }
+        try {
+            request.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MongoException("BatchingGeoQuery: interrupted");
+        }
+        if (request.failure != null) {
+            throw new MongoException("BatchingGeoQuery: batch query failed: " + request.failure, request.failure);
+        }
+        return request.locations;
+    }
+
+    /**
+     * Stop the dispatcher threads. Waiting requests fail.
+     */
+    public void close() {
+        closed = true;
+        for (Thread thread : dispatchers) {
+            thread.interrupt();
+        }
+        failPending();
+    }
+
+    /**
+     * Gather and execute batches until the instance is closed.
+     */
+    private void dispatch() {
+        List<Request> batch = new ArrayList<>(maxBatchSize);
+        while (!closed) {
+            try {
+                batch.add(pending.take());
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Request request = remaining > 0L ? pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+                    if (request == null) {
+                        break;
+                    }
+                    batch.add(request);
+                }
+            } catch (InterruptedException e) {
+                // closed, the gathered requests are failed below
+            }
+            if (!batch.isEmpty()) {
+                execute(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Execute a batch and complete its requests.
+     * 
+     * @param batch the requests
+     */
+    private void execute(List<Request> batch) {
+        if (closed) {
+            fail(batch, new IllegalStateException("BatchingGeoQuery: closed"));
+            return;
+        }
+        batches.incrementAndGet();
+        DBCursor cursor = null;
+        try {
+            cursor = options.apply(QueryType.LOCATIONS, dbCol.find(buildQuery(batch)));
+            while (cursor.hasNext()) {
+                GeoLocation location = new GeoLocation((BasicDBObject) cursor.next());
+                GeoPoint point = location.getGeoPoint();
+                double latitude = point.getLatitude();
+                double longitude = point.getLongitude();
+                for (int i = 0, n = batch.size(); i < n; i++) {
+                    Request request = batch.get(i);
+                    if (request.contains(latitude, longitude)) {
+                        request.locations.add(location);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            fail(batch, e);
+            return;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        for (Request request : batch) {
+            request.done.countDown();
+        }
+    }
+
+    /**
+     * Build the $or query of the boxes of a batch.
+     * 
+     * @param batch the requests
+     * @return the query
+     */
+    private static DBObject buildQuery(List<Request> batch) {
+        Set<List<Double>> seen = new HashSet<>();
+        BasicDBList clauses = new BasicDBList();
+        for (Request request : batch) {
+            for (GeoBoundingBox box : request.bbox.splitByAntimeridian()) {
+                GeoPoint lowerLeft = box.getLowerLeft();
+                GeoPoint upperRight = box.getUpperRight();
+                if (seen.add(Arrays.asList(lowerLeft.getLatitude(), lowerLeft.getLongitude(),
+                        upperRight.getLatitude(), upperRight.getLongitude()))) {
+                    clauses.add(new MongoQueryBuilder().put(GeoLocation.MONGO_GEOPOINT).geoWithinBox(box).build());
+                }
+            }
+        }
+        return clauses.size() == 1 ? (DBObject) clauses.get(0) : new BasicDBObject("$or", clauses);
+    }
+
+    /**
+     * Fail all requests which have not been dispatched.
+     */
+    private void failPending() {
+        List<Request> remaining = new ArrayList<>();
+        pending.drainTo(remaining);
+        fail(remaining, new IllegalStateException("BatchingGeoQuery: closed"));
+    }
+
+    /**
+     * Fail requests.
+     * 
+     * @param batch the requests
+     * @param failure the failure
+     */
+    private static void fail(List<Request> batch, RuntimeException failure) {
+        for (Request request : batch) {
+            request.failure = failure;
+            request.done.countDown();
+        }
+    }
+
+    /**
+     * A waiting query with the edges of its box as primitives.
+     */
+    private static final class Request {
+
+        /** The bounding box. */
+        private final GeoBoundingBox bbox;
+
+        /** The west edge. */
+        private final double west;
+
+        /** The south edge. */
+        private final double south;
+
+        /** The east edge. */
+        private final double east;
+
+        /** The north edge. */
+        private final double north;
+
+        /** Whether the box overlaps the antimeridian. */
+        private final boolean overAntimeridian;
+
+        /** The found locations, written by the dispatcher before {@link #done} is counted down. */
+        private final List<GeoLocation> locations = new ArrayList<>();
+
+        /** Released when the request is complete. */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /** The failure or <tt>null</tt>, written before {@link #done} is counted down. */
+        private RuntimeException failure;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param bbox the bounding box
+         */
+        private Request(GeoBoundingBox bbox) {
+            this.bbox = bbox;
+            this.west = bbox.getLowerLeft().getLongitude();
+            this.south = bbox.getLowerLeft().getLatitude();
+            this.east = bbox.getUpperRight().getLongitude();
+            this.north = bbox.getUpperRight().getLatitude();
+            this.overAntimeridian = bbox.isOverAntimeridian();
+        }
+
+        /**
+         * Check whether a point lies within the box, edges included.
+         * 
+         * @param latitude the latitude
+         * @param longitude the longitude
+         * @return <tt>true</tt> if the box contains the point
+         */
+        private boolean contains(double latitude, double longitude) {
+            if (latitude < south || latitude > north) {
+                return false;
+            }
+            return overAntimeridian ? longitude >= west || longitude <= east : longitude >= west && longitude <= east;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package de.jt.db;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a GPX import.
+ * 
+ * @author Hendrik Stein
+ */
+public class GPXImportResult {
+
+    /** Number of inserted locations. */
+    private final long imported;
+
+    /** Number of skipped malformed points. */
+    private final long malformed;
+
+    /** Descriptions of the first malformed points. */
+    private final List<String> malformedPoints;
+
+    /**
+     * Creates an instance.
+     * 
+     * @param imported the number of inserted locations
+     * @param malformed the number of skipped malformed points
+     * @param malformedPoints the descriptions of the first malformed points
+     */
+    GPXImportResult(long imported, long malformed, List<String> malformedPoints) {
+        this.imported = imported;
+        this.malformed = malformed;
+        this.malformedPoints = Collections.unmodifiableList(malformedPoints);
+    }
+
+    /**
+     * Get the number of inserted locations.
+     * 
+     * @return the number of inserted locations
+     */
+    public long getImported() {
+        return imported;
+    }
+
+    /**
+     * Get the number of skipped malformed points.
+     * 
+     * @return the number of skipped malformed points
+     */
+    public long getMalformed() {
+        return malformed;
+    }
+
+    /**
+     * Get the descriptions of the first malformed points, at most {@link GPXImporter#MAX_REPORTED_MALFORMED_POINTS}.
+     * 
+     * @return the list of descriptions with line, column and reason
+     */
+    public List<String> getMalformedPoints() {
+        return malformedPoints;
+    }
+
+    @Override
+    public String toString() {
+        return "GPXImportResult [imported=" + imported + ", malformed=" + malformed + "]";
+    }
+}
@@ -0,0 +1,197 @@
+package de.jt.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+import de.jt.utils.GPXReader;
+
+/**
+ * Bulk loader of GPX documents into a geo collection.
+ * 
+ * The document is parsed by a {@link GPXReader} on the calling thread while a separate thread inserts the parsed
+ * locations in batches, so parsing and inserting overlap. A small bounded queue between both threads keeps the memory
+ * constant. Malformed points are skipped and reported in the result.
+ * 
+ * An instance is thread-safe; each import uses its own insert thread.
+ * 
+ * @author Hendrik Stein
+ */
+public class GPXImporter {
+
+    /** Default number of locations inserted at once. */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** Maximum number of malformed points described in the result. */
+    public static final int MAX_REPORTED_MALFORMED_POINTS = 100;
+
+    /** Maximum number of parsed batches waiting for the insert thread. */
+    private static final int MAX_PENDING_BATCHES = 4;
+
+    /** Marker for the end of the document. */
+    private static final List<DBObject> END = Collections.emptyList();
+
+    /** The target collection. */
+    private final DBCollection dbCol;
+
+    /** Number of locations inserted at once. */
+    private final int batchSize;
+
+    /** The aggregator of inserted locations or <tt>null</tt>. */
+    private volatile TileAggregator tileAggregator;
+
+    /**
+     * Creates an instance with {@link #DEFAULT_BATCH_SIZE}.
+     * 
+     * @param dbCol the target collection
+     */
+    public GPXImporter(DBCollection dbCol) {
+        this(dbCol, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param dbCol the target collection
+     * @param batchSize the number of locations inserted at once
+     * 
+     * @throws IllegalArgumentException if the batch size is not positive
+     */
+    public GPXImporter(DBCollection dbCol, int batchSize) throws IllegalArgumentException {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("GPXImporter: batch size must be positive");
+        }
+        this.dbCol = dbCol;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set the aggregator to add every inserted batch to.
+     * 
+     * @param tileAggregator the aggregator or <tt>null</tt>
+     */
+    public void setTileAggregator(TileAggregator tileAggregator) {
+        this.tileAggregator = tileAggregator;
+    }
+
+    /**
+     * Import the waypoints, route points and track points of a GPX document. The input stream is closed.
+     * 
+     * Batches inserted before a failure remain in the collection.
+     * 
+     * @param in the GPX document
+     * @return the import result
+     * 
+     * @throws IOException if reading fails or the thread is interrupted
+     * @throws IllegalStateException if the document is not well-formed XML
+     * @throws com.mongodb.MongoException if an insert fails
+     */
+    public GPXImportResult importGPX(InputStream in) throws IOException {
+        final List<String> malformedPoints = new ArrayList<>();
+        final long[] malformed = new long[1];
+        GPXReader reader = new GPXReader(in, new GPXReader.MalformedPointHandler() {
+            @Override
+            public void malformedPoint(int line, int column, String reason) {
+                if (malformed[0]++ < MAX_REPORTED_MALFORMED_POINTS) {
+                    malformedPoints.add(line + ":" + column + " " + reason);
+                }
+            }
+        });
+
+        Inserter inserter = new Inserter();
+        Thread thread = new Thread(inserter, "geo-gpx-insert");
+        thread.setDaemon(true);
+        thread.start();
+        boolean interrupted = false;
+        try {
+            List<DBObject> batch = new ArrayList<>(batchSize);
+            while (reader.hasNext() && inserter.failure == null) {
+                batch.add(reader.next().toMongo());
+                if (batch.size() == batchSize) {
+                    inserter.queue.put(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                inserter.queue.put(batch);
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            // the inserter discards batches after a failure, so this does not block for long
+            boolean endQueued = false;
+            while (thread.isAlive()) {
+                try {
+                    if (!endQueued) {
+                        inserter.queue.put(END);
+                        endQueued = true;
+                    }
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            reader.close();
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("GPXImporter: interrupted after " + inserter.inserted + " locations");
+        }
+        if (inserter.failure != null) {
+            throw inserter.failure;
+        }
+        return new GPXImportResult(inserter.inserted, malformed[0], malformedPoints);
+    }
+
+    /**
+     * The insert thread.
+     */
+    private final class Inserter implements Runnable {
+
+        /** The parsed batches. */
+        private final BlockingQueue<List<DBObject>> queue = new ArrayBlockingQueue<>(MAX_PENDING_BATCHES);
+
+        /** The first insert failure. */
+        private volatile RuntimeException failure;
+
+        /** Number of inserted locations, read after the thread has been joined. */
+        private long inserted;
+
+        @Override
+        public void run() {
+            while (true) {
+                List<DBObject> batch;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException e) {
+                    // daemon thread, only the importer knows it
+                    continue;
+                }
+                if (batch == END) {
+                    return;
+                }
+                if (failure == null) {
+                    try {
+                        dbCol.insert(batch);
+                        inserted += batch.size();
+                        TileAggregator aggregator = tileAggregator;
+                        if (aggregator != null) {
+                            aggregator.added(batch);
+                        }
+                    } catch (RuntimeException e) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package de.jt.db;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+import de.jt.model.GeoLocation;
+
+/**
+ * A stream of {@link GeoLocation}s returned by a query. The cursor must be closed if it is not iterated to the end.
+ * 
+ * @author Hendrik Stein
+ */
+public interface GeoLocationCursor extends Iterator<GeoLocation>, Closeable {
+
+    /**
+     * Close the cursor and release the underlying database cursors.
+     */
+    @Override
+    void close();
+}
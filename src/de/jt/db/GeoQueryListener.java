@@ -0,0 +1,62 @@
+package de.jt.db;
+
+import java.util.List;
+
+import de.jt.model.GeoBoundingBox;
+
+/**
+ * Callback for the lifecycle of a {@link MongoGeoService} query, e.g. to emit profiling events.
+ * 
+ * The callbacks are invoked on the query thread and must return quickly. Without a registered listener, or while it
+ * is disabled, the service does not take any of the timings reported here, so a listener may stay registered and be
+ * enabled only while recording.
+ * 
+ * @author Hendrik Stein
+ */
+public interface GeoQueryListener {
+
+    /**
+     * Check whether the listener records. Called once when a query starts; a disabled listener is not notified about
+     * the query.
+     * 
+     * @return <tt>true</tt> if the query should be traced
+     */
+    boolean isEnabled();
+
+    /**
+     * Called after the query of a (sub) bounding box was built.
+     * 
+     * @param bbox the bounding box
+     * @param nanos the build time in nanoseconds
+     */
+    void queryBuilt(GeoBoundingBox bbox, long nanos);
+
+    /**
+     * Called after a bounding box was split by the antimeridian.
+     * 
+     * @param bbox the queried bounding box
+     * @param boxes the resulting sub boxes
+     * @param nanos the split time in nanoseconds
+     */
+    void antimeridianSplit(GeoBoundingBox bbox, List<GeoBoundingBox> boxes, long nanos);
+
+    /**
+     * Called after a cursor round trip, the initial query or a getMore, returned a batch. An empty batch is only
+     * reported for the initial query.
+     * 
+     * @param bbox the (sub) bounding box of the cursor
+     * @param batch the number of the batch, starting with 0
+     * @param documents the number of documents in the batch
+     * @param nanos the round trip time including the decoding of the batch in nanoseconds
+     */
+    void batchFetched(GeoBoundingBox bbox, int batch, int documents, long nanos);
+
+    /**
+     * Called after all documents of a (sub) bounding box were decoded to {@link de.jt.model.GeoLocation}s.
+     * 
+     * @param bbox the (sub) bounding box
+     * @param documents the number of decoded documents
+     * @param nanos the accumulated decode time in nanoseconds
+     */
+    void documentsDecoded(GeoBoundingBox bbox, int documents, long nanos);
+}
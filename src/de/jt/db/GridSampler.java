@@ -0,0 +1,348 @@
+package de.jt.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoConstants;
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+
+/**
+ * Stratified sampling of a bounding box.
+ * 
+ * The box is divided into a grid of cells and the locations of every cell are counted on the geo index, one count per
+ * cell. The sample is allocated to the cells by these counts: each cell gets an equal share and the share a sparse cell
+ * cannot fill goes to the denser cells. A cell is then sampled by a few $near probes from random points of the cell,
+ * each limited to its part of the share, so the sample is spread over the cell, the index only walks the neighbourhood
+ * of each probe instead of skipping to an offset, and hardly more than the sampled documents are transferred. A cell
+ * whose share is all of its locations is read with a single query. Points on an inner cell edge belong to the cell
+ * east or north of it, so no location is returned twice.
+ * 
+ * @author Hendrik Stein
+ */
+final class GridSampler {
+
+    /** Full circle in degrees. */
+    private static final double FULL_CIRCLE = GeoConstants.LONG_MAX - GeoConstants.LONG_MIN;
+
+    /** Key of the longitude within the geo point array. */
+    private static final String LONGITUDE_KEY = GeoLocation.MONGO_GEOPOINT + "." + GeoConstants.MONGO_LONG;
+
+    /** Key of the latitude within the geo point array. */
+    private static final String LATITUDE_KEY = GeoLocation.MONGO_GEOPOINT + "." + GeoConstants.MONGO_LAT;
+
+    /** Maximum number of random probes per cell. */
+    private static final int MAX_PROBES_PER_CELL = 8;
+
+    /** The queried collection. */
+    private final DBCollection dbCol;
+
+    /** Number of grid cells per axis. */
+    private final int gridSize;
+
+    /** The query options. */
+    private final QueryOptions options;
+
+    /**
+     * Creates an instance.
+     * 
+     * @param dbCol the queried collection
+     * @param gridSize the number of grid cells per axis
+     * @param options the query options
+     */
+    GridSampler(DBCollection dbCol, int gridSize, QueryOptions options) {
+        this.dbCol = dbCol;
+        this.gridSize = gridSize;
+        this.options = options;
+    }
+
+    /**
+     * Count the locations within a bounding box on the geo index.
+     * 
+     * @param bbox the bounding box
+     * @param stats the statistics of the running query
+     * @return the count
+     */
+    long count(GeoBoundingBox bbox, QueryStats stats) {
+        long count = 0L;
+        for (GeoBoundingBox box : bbox.splitByAntimeridian()) {
+            count += countBox(box, stats);
+        }
+        return count;
+    }
+
+    /**
+     * Count the locations within a box which does not overlap the antimeridian.
+     * 
+     * @param box the box
+     * @param stats the statistics of the running query
+     * @return the count
+     */
+    private long countBox(GeoBoundingBox box, QueryStats stats) {
+        stats.subQueryStarted();
+        ReadPreference readPreference = options.getReadPreference(QueryType.SAMPLED);
+        if (readPreference == null) {
+            return dbCol.count(boxQuery(box));
+        }
+        return dbCol.getCount(boxQuery(box), null, 0L, 0L, readPreference);
+    }
+
+    /**
+     * Sample a bounding box.
+     * 
+     * @param bbox the bounding box
+     * @param maxLocations the maximum number of sampled locations
+     * @param stats the statistics of the running query
+     * @return the sampled locations
+     */
+    List<GeoLocation> sample(GeoBoundingBox bbox, int maxLocations, QueryStats stats) {
+        double west = bbox.getLowerLeft().getLongitude();
+        double south = bbox.getLowerLeft().getLatitude();
+        double cellWidth = bbox.getLongitudeSpan() / gridSize;
+        double cellHeight = bbox.getLatitudeSpan() / gridSize;
+
+        List<Cell> cells = new ArrayList<>(gridSize * gridSize);
+        for (int row = 0; row < gridSize; row++) {
+            double cellSouth = south + row * cellHeight;
+            double cellNorth = row == gridSize - 1 ? bbox.getUpperRight().getLatitude() : cellSouth + cellHeight;
+            for (int col = 0; col < gridSize; col++) {
+                double cellWest = normalize(west + col * cellWidth, true);
+                double cellEast = col == gridSize - 1 ? bbox.getUpperRight().getLongitude() : normalize(west
+                        + (col + 1) * cellWidth, false);
+                GeoBoundingBox box = new GeoBoundingBox(new GeoPoint(cellSouth, cellWest), new GeoPoint(cellNorth,
+                        cellEast));
+                Cell cell = new Cell(box, col == gridSize - 1, row == gridSize - 1);
+                for (int i = 0; i < cell.halfCounts.length; i++) {
+                    cell.halfCounts[i] = countBox(cell.halves.get(i), stats);
+                    cell.count += cell.halfCounts[i];
+                }
+                cells.add(cell);
+            }
+        }
+        allocate(cells, maxLocations);
+
+        List<GeoLocation> sample = new ArrayList<>(maxLocations);
+        for (Cell cell : cells) {
+            if (cell.quota > 0) {
+                sampleCell(cell, sample, stats);
+            }
+        }
+        return sample;
+    }
+
+    /**
+     * Allocate the sample to the cells. Every cell gets an equal share, the share a cell cannot fill is redistributed
+     * to the cells which still hold more locations. A remainder smaller than the number of these cells goes to randomly
+     * chosen cells.
+     * 
+     * @param cells the counted cells
+     * @param maxLocations the maximum number of sampled locations
+     */
+    private static void allocate(List<Cell> cells, int maxLocations) {
+        List<Cell> open = new ArrayList<>();
+        for (Cell cell : cells) {
+            if (cell.count > 0) {
+                open.add(cell);
+            }
+        }
+        Collections.shuffle(open, ThreadLocalRandom.current());
+        int remaining = maxLocations;
+        while (remaining > 0 && !open.isEmpty()) {
+            int share = Math.max(1, remaining / open.size());
+            for (Iterator<Cell> it = open.iterator(); it.hasNext() && remaining > 0;) {
+                Cell cell = it.next();
+                int take = (int) Math.min(share, cell.count - cell.quota);
+                cell.quota += take;
+                remaining -= take;
+                if (cell.quota == cell.count) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sample a grid cell. The share of a cell over the antimeridian is divided between its halves by their counts.
+     * 
+     * @param cell the cell
+     * @param sample the sample to add the locations to
+     * @param stats the statistics of the running query
+     */
+    private void sampleCell(Cell cell, List<GeoLocation> sample, QueryStats stats) {
+        int remaining = cell.quota;
+        long remainingCount = cell.count;
+        for (int i = 0; i < cell.halves.size() && remaining > 0; i++) {
+            long halfCount = cell.halfCounts[i];
+            int quota = (int) Math.min(halfCount, i == cell.halves.size() - 1 ? remaining : Math.round(
+                    (double) remaining * halfCount / remainingCount));
+            remainingCount -= halfCount;
+            if (quota <= 0) {
+                continue;
+            }
+            Map<Object, GeoLocation> sampled = new LinkedHashMap<>();
+            GeoBoundingBox box = cell.halves.get(i);
+            if (quota < halfCount) {
+                // overlapping probes return some locations twice, up to as many probes again make up for them
+                int probes = Math.min(quota, MAX_PROBES_PER_CELL);
+                for (int probe = 0; probe < 2 * probes && sampled.size() < quota; probe++) {
+                    int wanted = Math.min(quota - sampled.size(), (quota + probes - 1) / probes);
+                    read(cell, nearQuery(box, randomPoint(box)), wanted + 1, sampled.size() + wanted, sampled, stats);
+                }
+            }
+            // the whole half, or the rest the probes could not fill, in index order
+            read(cell, boxQuery(box), quota + 1, quota, sampled, stats);
+            sample.addAll(sampled.values());
+            remaining -= sampled.size();
+        }
+    }
+
+    /**
+     * Read the locations of a cell query until a number of distinct locations has been sampled. The limit includes one
+     * more location than needed, which compensates a point on a foreign edge.
+     * 
+     * @param cell the cell
+     * @param query the query
+     * @param limit the maximum number of read locations
+     * @param target the number of distinct sampled locations to reach
+     * @param sampled the sampled locations by document id
+     * @param stats the statistics of the running query
+     */
+    private void read(Cell cell, DBObject query, int limit, int target, Map<Object, GeoLocation> sampled,
+            QueryStats stats) {
+        if (sampled.size() >= target) {
+            return;
+        }
+        stats.subQueryStarted();
+        DBCursor cursor = options.apply(QueryType.SAMPLED, dbCol.find(query)).limit(limit);
+        try {
+            while (cursor.hasNext() && sampled.size() < target) {
+                boolean decodeSampled = stats.documentReceived();
+                long decodeStart = decodeSampled ? System.nanoTime() : 0L;
+                BasicDBObject document = (BasicDBObject) cursor.next();
+                GeoLocation location = new GeoLocation(document);
+                if (decodeSampled) {
+                    stats.decodeSampled(System.nanoTime() - decodeStart);
+                }
+                GeoPoint point = location.getGeoPoint();
+                if ((cell.ownsEast || point.getLongitude() != cell.box.getUpperRight().getLongitude())
+                        && (cell.ownsNorth || point.getLatitude() != cell.box.getUpperRight().getLatitude())
+                        && !sampled.containsKey(document.get(PositionWriter.MONGO_ID))) {
+                    sampled.put(document.get(PositionWriter.MONGO_ID), location);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Get a random point within a box.
+     * 
+     * @param box the box, which does not overlap the antimeridian
+     * @return the point
+     */
+    private static GeoPoint randomPoint(GeoBoundingBox box) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new GeoPoint(box.getLowerLeft().getLatitude() + random.nextDouble() * box.getLatitudeSpan(),
+                box.getLowerLeft().getLongitude() + random.nextDouble() * box.getLongitudeSpan());
+    }
+
+    /**
+     * Normalize an unwrapped cell edge longitude to -180 to 180 degrees.
+     * 
+     * @param longitude the longitude
+     * @param westEdge whether the longitude is a west edge, which starts at -180 on the antimeridian
+     * @return the normalized longitude
+     */
+    private static double normalize(double longitude, boolean westEdge) {
+        if (longitude > GeoConstants.LONG_MAX || (westEdge && longitude == GeoConstants.LONG_MAX)) {
+            return longitude - FULL_CIRCLE;
+        }
+        return longitude;
+    }
+
+    /**
+     * Build the $geoWithin $box query of a box which does not overlap the antimeridian.
+     * 
+     * @param box the box
+     * @return the query
+     */
+    private static DBObject boxQuery(GeoBoundingBox box) {
+        MongoQueryBuilder builder = new MongoQueryBuilder();
+        builder.put(GeoLocation.MONGO_GEOPOINT).geoWithinBox(box);
+        return builder.build();
+    }
+
+    /**
+     * Build the $near query of the locations of a box closest to a point. $near cannot be combined with $geoWithin, so
+     * the box is a range on the coordinates.
+     * 
+     * @param box the box, which does not overlap the antimeridian
+     * @param point the point within the box
+     * @return the query
+     */
+    private static DBObject nearQuery(GeoBoundingBox box, GeoPoint point) {
+        MongoQueryBuilder builder = new MongoQueryBuilder();
+        builder.put(GeoLocation.MONGO_GEOPOINT).nearInDegrees(point, Math.hypot(box.getLongitudeSpan(),
+                box.getLatitudeSpan()));
+        builder.and(LONGITUDE_KEY).greaterThanEquals(box.getLowerLeft().getLongitude())
+                .lessThanEquals(box.getUpperRight().getLongitude());
+        builder.and(LATITUDE_KEY).greaterThanEquals(box.getLowerLeft().getLatitude())
+                .lessThanEquals(box.getUpperRight().getLatitude());
+        return builder.build();
+    }
+
+    /**
+     * A grid cell with its count and its share of the sample.
+     */
+    private static final class Cell {
+
+        /** The bounding box of the cell. */
+        private final GeoBoundingBox box;
+
+        /** Whether points on the east edge belong to the cell. */
+        private final boolean ownsEast;
+
+        /** Whether points on the north edge belong to the cell. */
+        private final boolean ownsNorth;
+
+        /** The halves of the cell split by the antimeridian, a single box for most cells. */
+        private final List<GeoBoundingBox> halves;
+
+        /** The number of locations within each half. */
+        private final long[] halfCounts;
+
+        /** The number of locations within the cell. */
+        private long count;
+
+        /** The number of sampled locations of the cell. */
+        private int quota;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param box the bounding box of the cell
+         * @param ownsEast whether points on the east edge belong to the cell
+         * @param ownsNorth whether points on the north edge belong to the cell
+         */
+        private Cell(GeoBoundingBox box, boolean ownsEast, boolean ownsNorth) {
+            this.box = box;
+            this.ownsEast = ownsEast;
+            this.ownsNorth = ownsNorth;
+            this.halves = box.splitByAntimeridian();
+            this.halfCounts = new long[halves.size()];
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package de.jt.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import de.jt.model.GeoLocation;
+
+/**
+ * Hedged bounding box queries across the members of a replica set.
+ * 
+ * A query is sent to one member. If it has not completed within the configured latency quantile of earlier queries,
+ * the same query is sent to another member and the first complete answer wins; the cursor of the other attempt is
+ * closed, which stops it. Both attempts are timed from the start of the query, so the recorded latency of a hedged
+ * query is the latency seen by the caller. A budget caps the hedged queries to a fraction of all queries, so a slow
+ * replica set does not receive twice the load. Hedging starts once {@value #MIN_SAMPLES} queries have been measured.
+ * 
+ * The members are given as one collection per member, typically from a direct connection to each member with a read
+ * preference allowing secondaries. An instance is thread-safe; call {@link #close()} to stop its thread pool. The
+ * member connections are not closed.
+ * 
+ * @author Hendrik Stein
+ */
+public class HedgedReads {
+
+    /** Default latency quantile after which a query is hedged. */
+    public static final double DEFAULT_DELAY_QUANTILE = 0.95d;
+
+    /** Default maximum fraction of hedged queries. */
+    public static final double DEFAULT_BUDGET = 0.05d;
+
+    /** Number of measured queries before hedging starts. */
+    public static final int MIN_SAMPLES = 100;
+
+    /** Number of hedges allowed beyond the budget, so short bursts are hedged as well. */
+    private static final int BUDGET_BURST = 10;
+
+    /** Number of measured queries after which the hedge delay is recomputed. */
+    private static final int DELAY_REFRESH_INTERVAL = 64;
+
+    /** Maximum number of attempt threads. */
+    private static final int MAX_THREADS = 256;
+
+    /** The collections of the replica set members. */
+    private final List<DBCollection> members;
+
+    /** Latency quantile after which a query is hedged. */
+    private final double delayQuantile;
+
+    /** Maximum fraction of hedged queries. */
+    private final double budget;
+
+    /** Minimum hedge delay in nanoseconds. */
+    private final long minDelayNanos;
+
+    /** The attempt thread pool. */
+    private final ThreadPoolExecutor pool;
+
+    /** Latencies of completed attempts. */
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /** The current hedge delay in nanoseconds. */
+    private volatile long delayNanos = Long.MAX_VALUE;
+
+    /** Member of the next query, round robin. */
+    private final AtomicInteger nextMember = new AtomicInteger();
+
+    /** Number of queries. */
+    private final AtomicLong queries = new AtomicLong();
+
+    /** Number of hedged queries. */
+    private final AtomicLong hedges = new AtomicLong();
+
+    /** Number of hedged queries won by the hedge. */
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /** Number of attempts cancelled before they completed. */
+    private final AtomicLong cancelledAttempts = new AtomicLong();
+
+    /**
+     * Creates an instance with {@link #DEFAULT_DELAY_QUANTILE}, {@link #DEFAULT_BUDGET} and no minimum delay.
+     * 
+     * @param members the collections of at least two replica set members
+     */
+    public HedgedReads(List<DBCollection> members) {
+        this(members, DEFAULT_DELAY_QUANTILE, DEFAULT_BUDGET, 0L);
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param members the collections of at least two replica set members
+     * @param delayQuantile the latency quantile after which a query is hedged, between 0 and 1
+     * @param budget the maximum fraction of hedged queries, between 0 and 1
+     * @param minDelayMillis the minimum hedge delay in milliseconds
+     * 
+     * @throws IllegalArgumentException if a parameter is out of bounds
+     */
+    public HedgedReads(List<DBCollection> members, double delayQuantile, double budget, long minDelayMillis)
+            throws IllegalArgumentException {
+        if (members == null || members.size() < 2) {
+            throw new IllegalArgumentException("HedgedReads: at least two members required");
+        }
+        if (delayQuantile <= 0d || delayQuantile >= 1d || budget < 0d || budget > 1d || minDelayMillis < 0L) {
+            throw new IllegalArgumentException("HedgedReads: parameter out of bounds");
+        }
+        this.members = Collections.unmodifiableList(new ArrayList<>(members));
+        this.delayQuantile = delayQuantile;
+        this.budget = budget;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        this.pool = new ThreadPoolExecutor(0, MAX_THREADS, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "geo-hedge-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Get the number of queries.
+     * 
+     * @return the number of queries
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * Get the number of hedged queries.
+     * 
+     * @return the number of hedged queries
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * Get the number of hedged queries which were answered first by the hedge.
+     * 
+     * @return the number of hedge wins
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Get the number of attempts which were cancelled before they completed, typically the loser of a hedged query.
+     * 
+     * @return the number of cancelled attempts
+     */
+    public long getCancelledAttempts() {
+        return cancelledAttempts.get();
+    }
+
+    /**
+     * Get the current hedge delay.
+     * 
+     * @return the delay in milliseconds or {@link Long#MAX_VALUE} while too few queries have been measured
+     */
+    public long getDelayMillis() {
+        long delay = delayNanos;
+        return delay == Long.MAX_VALUE ? delay : TimeUnit.NANOSECONDS.toMillis(delay);
+    }
+
+    /**
+     * Stop the thread pool. Running queries fail, later queries run on one member without hedging.
+     */
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Execute the sub queries of a plan with hedging.
+     * 
+     * @param plan the plan
+     * @param options the query options
+     * @return the winning attempt
+     * 
+     * @throws MongoException if all attempts fail
+     */
+    Attempt execute(QueryPlan plan, QueryOptions options) throws MongoException {
+        long startNanos = System.nanoTime();
+        queries.incrementAndGet();
+        int first = (nextMember.getAndIncrement() & Integer.MAX_VALUE) % members.size();
+        Attempt primary = new Attempt(members.get(first), plan, options, startNanos);
+
+        CompletionService<Attempt> completion = new ExecutorCompletionService<>(pool);
+        List<Future<Attempt>> pending = new ArrayList<>(2);
+        try {
+            pending.add(completion.submit(primary));
+        } catch (RejectedExecutionException e) {
+            // saturated or closed pool, run without hedging
+            return finished(primary.call());
+        }
+
+        Attempt hedge = null;
+        boolean interrupted = false;
+        try {
+            Future<Attempt> done = completion.poll(delayNanos, TimeUnit.NANOSECONDS);
+            if (done == null && tryAcquireBudget()) {
+                hedge = new Attempt(members.get((first + 1) % members.size()), plan, options, startNanos);
+                try {
+                    pending.add(completion.submit(hedge));
+                    hedges.incrementAndGet();
+                } catch (RejectedExecutionException e) {
+                    hedge = null;
+                }
+            }
+
+            MongoException failure = null;
+            for (int i = 0; i < pending.size(); i++) {
+                if (done == null) {
+                    done = completion.take();
+                }
+                try {
+                    Attempt winner = done.get();
+                    if (winner == hedge) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    return finished(winner);
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof MongoException ? (MongoException) e.getCause()
+                            : new MongoException("HedgedReads: " + e.getCause(), e.getCause());
+                }
+                done = null;
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            interrupted = true;
+            throw new MongoException("HedgedReads: interrupted");
+        } finally {
+            if (primary.cancel()) {
+                cancelledAttempts.incrementAndGet();
+            }
+            if (hedge != null && hedge.cancel()) {
+                cancelledAttempts.incrementAndGet();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Measure a completed attempt and refresh the hedge delay from time to time.
+     * 
+     * @param attempt the attempt
+     * @return the attempt
+     */
+    private Attempt finished(Attempt attempt) {
+        latencies.record(attempt.stats.getTotalNanos());
+        long count = latencies.getCount();
+        if (count >= MIN_SAMPLES && (count % DELAY_REFRESH_INTERVAL == 0 || delayNanos == Long.MAX_VALUE)) {
+            delayNanos = Math.max(minDelayNanos, latencies.getQuantileNanos(delayQuantile));
+        }
+        return attempt;
+    }
+
+    /**
+     * Check whether another hedge fits into the budget.
+     * 
+     * @return <tt>true</tt> if the query may be hedged
+     */
+    private boolean tryAcquireBudget() {
+        return hedges.get() < budget * queries.get() + BUDGET_BURST;
+    }
+
+    /**
+     * One execution of the sub queries of a plan on one member.
+     */
+    static final class Attempt implements Callable<Attempt> {
+
+        /** The member collection. */
+        private final DBCollection dbCol;
+
+        /** The executed plan. */
+        private final QueryPlan plan;
+
+        /** The query options. */
+        private final QueryOptions options;
+
+        /** The statistics, started with the query. */
+        private final QueryStats stats;
+
+        /** The found locations. */
+        private final List<GeoLocation> locations = new ArrayList<>();
+
+        /** Whether the attempt should stop. */
+        private volatile boolean cancelled;
+
+        /** Whether the attempt has completed or failed. */
+        private volatile boolean completed;
+
+        /** The open cursor or <tt>null</tt>. */
+        private volatile DBCursor cursor;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param dbCol the member collection
+         * @param plan the plan to execute
+         * @param options the query options
+         * @param startNanos the start time of the query in nanoseconds
+         */
+        private Attempt(DBCollection dbCol, QueryPlan plan, QueryOptions options, long startNanos) {
+            this.dbCol = dbCol;
+            this.plan = plan;
+            this.options = options;
+            this.stats = new QueryStats(plan.getStrategy(), startNanos);
+        }
+
+        /**
+         * Get the statistics of the attempt.
+         * 
+         * @return the finished statistics
+         */
+        QueryStats getStats() {
+            return stats;
+        }
+
+        /**
+         * Get the found locations.
+         * 
+         * @return the list of locations
+         */
+        List<GeoLocation> getLocations() {
+            return locations;
+        }
+
+        @Override
+        public Attempt call() throws MongoException {
+            try {
+                for (DBObject query : plan.getQueries()) {
+                    stats.subQueryStarted();
+                    cursor = options.apply(QueryType.LOCATIONS, dbCol.find(query));
+                    try {
+                        // checked after publishing the cursor, so a concurrent cancel either sees or stops it
+                        while (!cancelled && cursor.hasNext()) {
+                            DBObject document = cursor.next();
+                            if (stats.documentReceived()) {
+                                long decodeStart = System.nanoTime();
+                                locations.add(new GeoLocation((BasicDBObject) document));
+                                stats.decodeSampled(System.nanoTime() - decodeStart);
+                            } else {
+                                locations.add(new GeoLocation((BasicDBObject) document));
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        if (!cancelled) {
+                            throw e;
+                        }
+                    } finally {
+                        cursor.close();
+                        cursor = null;
+                    }
+                    if (cancelled) {
+                        throw new MongoException("HedgedReads: attempt cancelled");
+                    }
+                }
+                stats.finish();
+                return this;
+            } finally {
+                completed = true;
+            }
+        }
+
+        /**
+         * Stop the attempt and close its cursor, which ends a blocked read of the next batch.
+         * 
+         * @return <tt>true</tt> if the attempt had not completed yet
+         */
+        private boolean cancel() {
+            cancelled = true;
+            DBCursor open = cursor;
+            if (open != null) {
+                open.close();
+            }
+            return !completed;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package de.jt.db;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with logarithmic buckets.
+ * 
+ * Each power of two is divided into {@value #SUB_BUCKETS} linear sub buckets, so a recorded value is reported with a
+ * relative error of at most 12.5%. Recording a value costs a handful of atomic operations and never allocates.
+ * 
+ * @author Hendrik Stein
+ */
+public class LatencyHistogram {
+
+    /** Number of bits used for the linear sub buckets. */
+    private static final int SUB_BITS = 3;
+
+    /** Linear sub buckets per power of two. */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /** Number of buckets needed to cover all positive long values. */
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BITS + 1) * SUB_BUCKETS;
+
+    /** Bucket counters. */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    /** Number of recorded values. */
+    private final AtomicLong count = new AtomicLong();
+
+    /** Sum of all recorded values. */
+    private final AtomicLong sum = new AtomicLong();
+
+    /** Maximum recorded value. */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value in nanoseconds. Negative values are recorded as 0.
+     * 
+     * @param nanos the value in nanoseconds
+     */
+    public void record(long nanos) {
+        long value = Math.max(0L, nanos);
+        buckets.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Get the number of recorded values.
+     * 
+     * @return the count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the value at a quantile. Concurrent recordings may or may not be taken into account.
+     * 
+     * @param quantile the quantile between 0 and 1
+     * @return the value in nanoseconds, 0 if nothing has been recorded
+     */
+    public long getQuantileNanos(double quantile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        return valueAt(counts, total, quantile, max.get());
+    }
+
+    /**
+     * Reset all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0L);
+        }
+        count.set(0L);
+        sum.set(0L);
+        max.set(0L);
+    }
+
+    /**
+     * Create a point-in-time snapshot of this histogram.
+     * 
+     * Concurrent recordings may or may not be visible in the snapshot.
+     * 
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        long maxValue = max.get();
+        long sumValue = sum.get();
+        double mean = total == 0 ? 0d : (double) sumValue / total;
+
+        return new Snapshot(total, toMicros(mean), toMicros(valueAt(counts, total, 0.5d, maxValue)), toMicros(valueAt(
+                counts, total, 0.9d, maxValue)), toMicros(valueAt(counts, total, 0.99d, maxValue)), toMicros(valueAt(
+                counts, total, 0.999d, maxValue)), toMicros(maxValue));
+    }
+
+    /**
+     * Get the bucket index of a value.
+     * 
+     * @param value the non negative value
+     * @return the bucket index
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = (Long.SIZE - 1) - Long.numberOfLeadingZeros(value);
+        int sub = (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Get the highest value which falls into a bucket.
+     * 
+     * @param index the bucket index
+     * @return the upper bound of the bucket
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Get the value at a given quantile.
+     * 
+     * @param counts the bucket counts
+     * @param total the total count
+     * @param quantile the quantile between 0 and 1
+     * @param maxValue the maximum recorded value
+     * @return the value at the quantile
+     */
+    private static long valueAt(long[] counts, long total, double quantile, long maxValue) {
+        if (total == 0) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    /**
+     * Convert nanoseconds to microseconds.
+     * 
+     * @param nanos the nanoseconds
+     * @return the microseconds
+     */
+    private static long toMicros(double nanos) {
+        return TimeUnit.NANOSECONDS.toMicros((long) nanos);
+    }
+
+    /**
+     * An immutable snapshot of a {@link LatencyHistogram}. All values are in microseconds.
+     */
+    public static class Snapshot {
+
+        /** Number of recorded values. */
+        private final long count;
+
+        /** The mean value. */
+        private final long mean;
+
+        /** The median. */
+        private final long p50;
+
+        /** The 90th percentile. */
+        private final long p90;
+
+        /** The 99th percentile. */
+        private final long p99;
+
+        /** The 99.9th percentile. */
+        private final long p999;
+
+        /** The maximum. */
+        private final long max;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param count the number of values
+         * @param mean the mean
+         * @param p50 the median
+         * @param p90 the 90th percentile
+         * @param p99 the 99th percentile
+         * @param p999 the 99.9th percentile
+         * @param max the maximum
+         */
+        Snapshot(long count, long mean, long p50, long p90, long p99, long p999, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        /**
+         * Get the number of recorded values.
+         * 
+         * @return the count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Get the mean in microseconds.
+         * 
+         * @return the mean
+         */
+        public long getMeanMicros() {
+            return mean;
+        }
+
+        /**
+         * Get the median in microseconds.
+         * 
+         * @return the median
+         */
+        public long getP50Micros() {
+            return p50;
+        }
+
+        /**
+         * Get the 90th percentile in microseconds.
+         * 
+         * @return the 90th percentile
+         */
+        public long getP90Micros() {
+            return p90;
+        }
+
+        /**
+         * Get the 99th percentile in microseconds.
+         * 
+         * @return the 99th percentile
+         */
+        public long getP99Micros() {
+            return p99;
+        }
+
+        /**
+         * Get the 99.9th percentile in microseconds.
+         * 
+         * @return the 99.9th percentile
+         */
+        public long getP999Micros() {
+            return p999;
+        }
+
+        /**
+         * Get the maximum in microseconds.
+         * 
+         * @return the maximum
+         */
+        public long getMaxMicros() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "LatencyHistogram.Snapshot [count=" + count + ", mean=" + mean + ", p50=" + p50 + ", p90=" + p90
+                    + ", p99=" + p99 + ", p999=" + p999 + ", max=" + max + "]";
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package de.jt.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.MongoException;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+import de.jt.utils.GeofenceRegistry;
+
+/**
+ * Live bounding box subscriptions on the positions of moving entities, e.g. vehicles.
+ * 
+ * The collection holds one document per entity whose id is the entity id, as written by {@link PositionWriter}. A
+ * subscriber receives a snapshot of the entities within its bounding box followed by an event for every entity which
+ * enters, moves within or leaves the box. Changes are published by the write path, see
+ * {@link PositionWriter#setLiveLocationHub(LiveLocationHub)}, so one stream of changes replaces the periodic polling
+ * queries of all subscribers. The bounding boxes are indexed in a {@link GeofenceRegistry}, a change is matched against
+ * the subscriptions at its previous and its new position only.
+ * 
+ * The hub remembers the last position of every published entity and of every entity of a snapshot. A snapshot is
+ * overlaid with these positions, so positions published but not yet written, e.g. still buffered by the
+ * {@link PositionWriter}, are part of it. Changes written without publishing them are not seen. An instance is
+ * thread-safe; changes of the same entity must not be published concurrently.
+ * 
+ * A remembered position is forgotten once it is written, see {@link #written(String, GeoLocation)}, and no
+ * subscription contains it, or when the last subscription containing it is cancelled. The memory therefore grows with
+ * the entities within the subscribed boxes plus the positions not yet written, one map entry holding the
+ * {@link GeoLocation} each, not with all entities ever published. A subscribe scans the remembered positions for the
+ * overlay and a cancel scans them for the ones to forget, both in time linear in their number.
+ * 
+ * Every subscribe and cancel rebuilds the subscription index, which takes time linear in the number of subscriptions,
+ * so the hub suits subscriptions which live for many changes, e.g. the viewport of a map.
+ * 
+ * @author Hendrik Stein
+ */
+public class LiveLocationHub {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(LiveLocationHub.class.getName());
+
+    /** The collection of the entity positions. */
+    private final DBCollection dbCol;
+
+    /** The spatial index of the subscriptions by id. */
+    private final GeofenceRegistry index = new GeofenceRegistry();
+
+    /** The subscriptions by id. */
+    private final ConcurrentMap<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    /** The last known position per entity id. */
+    private final ConcurrentMap<String, Position> positions = new ConcurrentHashMap<>();
+
+    /** Sequence of the subscription ids. */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** Number of published changes. */
+    private final AtomicLong published = new AtomicLong();
+
+    /** Number of delivered events. */
+    private final AtomicLong events = new AtomicLong();
+
+    /**
+     * Creates an instance.
+     * 
+     * @param dbCol the collection of the entity positions
+     * 
+     * @throws IllegalArgumentException if the collection is <tt>null</tt>
+     */
+    public LiveLocationHub(DBCollection dbCol) throws IllegalArgumentException {
+        if (dbCol == null) {
+            throw new IllegalArgumentException("LiveLocationHub: null collection");
+        }
+        this.dbCol = dbCol;
+    }
+
+    /**
+     * Get the number of active subscriptions.
+     * 
+     * @return the number of subscriptions
+     */
+    public int getSubscriptions() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Get the number of remembered entity positions.
+     * 
+     * @return the number of positions
+     */
+    public int getPositions() {
+        return positions.size();
+    }
+
+    /**
+     * Get the number of published changes.
+     * 
+     * @return the number of changes
+     */
+    public long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * Get the number of events delivered to subscribers, snapshots not included.
+     * 
+     * @return the number of events
+     */
+    public long getEvents() {
+        return events.get();
+    }
+
+    /**
+     * Subscribe to a bounding box. The snapshot is queried, overlaid with the known positions and delivered before this
+     * method returns; changes published meanwhile are delivered after it. Rebuilds the subscription index.
+     * 
+     * @param bbox the bounding box
+     * @param listener the listener
+     * @return the subscription
+     * 
+     * @throws IllegalArgumentException if a parameter is <tt>null</tt>
+     * @throws MongoException if the snapshot query fails
+     */
+    public Subscription subscribe(GeoBoundingBox bbox, LiveLocationListener listener) throws IllegalArgumentException,
+            MongoException {
+        if (bbox == null || listener == null) {
+            throw new IllegalArgumentException("LiveLocationHub: null parameter");
+        }
+        Subscription subscription = new Subscription("subscription-" + sequence.incrementAndGet(), bbox, listener);
+        // register first, so no change is lost between the snapshot query and the first event
+        subscriptions.put(subscription.id, subscription);
+        index.register(subscription.id, bbox);
+        Map<String, GeoLocation> snapshot;
+        try {
+            snapshot = querySnapshot(bbox);
+        } catch (RuntimeException e) {
+            subscription.cancel();
+            throw e;
+        }
+        overlay(snapshot, bbox);
+        subscription.start(snapshot);
+        return subscription;
+    }
+
+    /**
+     * Overlay a snapshot with the known positions, which may be newer than the queried ones.
+     * 
+     * @param snapshot the queried locations by entity id
+     * @param bbox the bounding box of the snapshot
+     */
+    private void overlay(Map<String, GeoLocation> snapshot, GeoBoundingBox bbox) {
+        for (Iterator<Map.Entry<String, GeoLocation>> it = snapshot.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, GeoLocation> entry = it.next();
+            // the queried position is written already
+            Position known = positions.putIfAbsent(entry.getKey(), new Position(entry.getValue(), true));
+            if (known != null) {
+                if (bbox.contains(known.location.getGeoPoint())) {
+                    entry.setValue(known.location);
+                } else {
+                    it.remove();
+                }
+            }
+        }
+        for (Map.Entry<String, Position> entry : positions.entrySet()) {
+            GeoLocation known = entry.getValue().location;
+            if (!snapshot.containsKey(entry.getKey()) && bbox.contains(known.getGeoPoint())) {
+                snapshot.put(entry.getKey(), known);
+            }
+        }
+    }
+
+    /**
+     * Publish the new position of an entity to the subscriptions of its previous and its new position. The position is
+     * remembered until {@link #written(String, GeoLocation)} is called for it, so a publisher other than the
+     * {@link PositionWriter} has to call it as well.
+     * 
+     * @param entityId the entity id
+     * @param location the new position
+     * 
+     * @throws IllegalArgumentException if a parameter is <tt>null</tt>
+     */
+    public void publish(String entityId, GeoLocation location) throws IllegalArgumentException {
+        if (entityId == null || location == null) {
+            throw new IllegalArgumentException("LiveLocationHub: null parameter");
+        }
+        published.incrementAndGet();
+        Position previous = positions.put(entityId, new Position(location, false));
+        List<String> before = match(previous == null ? null : previous.location);
+        for (String id : match(location)) {
+            Subscription subscription = subscriptions.get(id);
+            if (subscription != null) {
+                subscription.deliver(before.contains(id) ? Event.MOVED : Event.ADDED, entityId, location);
+            }
+        }
+        notifyRemoved(entityId, before, location);
+    }
+
+    /**
+     * Publish the removal of an entity to the subscriptions of its last position.
+     * 
+     * @param entityId the entity id
+     * 
+     * @throws IllegalArgumentException if the entity id is <tt>null</tt>
+     */
+    public void remove(String entityId) throws IllegalArgumentException {
+        if (entityId == null) {
+            throw new IllegalArgumentException("LiveLocationHub: null entity id");
+        }
+        published.incrementAndGet();
+        Position previous = positions.remove(entityId);
+        notifyRemoved(entityId, match(previous == null ? null : previous.location), null);
+    }
+
+    /**
+     * Report that a published position has been written, or that writing it failed. The position is forgotten unless
+     * a subscription contains it, a newer position of the entity is kept.
+     * 
+     * @param entityId the entity id
+     * @param location the written position, as published
+     * 
+     * @throws IllegalArgumentException if a parameter is <tt>null</tt>
+     */
+    public void written(String entityId, GeoLocation location) throws IllegalArgumentException {
+        if (entityId == null || location == null) {
+            throw new IllegalArgumentException("LiveLocationHub: null parameter");
+        }
+        Position known = positions.get(entityId);
+        if (known != null && known.location == location) {
+            known.written = true;
+            forget(entityId, known);
+        }
+    }
+
+    /**
+     * Forget a written position which no subscription contains. A subscription registered later finds the position in
+     * its snapshot query.
+     * 
+     * @param entityId the entity id
+     * @param known the remembered position
+     */
+    private void forget(String entityId, Position known) {
+        if (known.written && match(known.location).isEmpty()) {
+            positions.remove(entityId, known);
+        }
+    }
+
+    /**
+     * Notify the subscriptions which no longer contain an entity.
+     * 
+     * @param entityId the entity id
+     * @param before the ids of the subscriptions of the previous position
+     * @param location the new position or <tt>null</tt> if the entity was removed
+     */
+    private void notifyRemoved(String entityId, List<String> before, GeoLocation location) {
+        for (String id : before) {
+            Subscription subscription = subscriptions.get(id);
+            if (subscription != null && (location == null || !subscription.bbox.contains(location.getGeoPoint()))) {
+                subscription.deliver(Event.REMOVED, entityId, null);
+            }
+        }
+    }
+
+    /**
+     * Find the subscriptions containing a position.
+     * 
+     * @param location the position or <tt>null</tt>
+     * @return the list of subscription ids
+     */
+    private List<String> match(GeoLocation location) {
+        if (location == null) {
+            return Collections.emptyList();
+        }
+        GeoPoint point = location.getGeoPoint();
+        return index.match(point.getLatitude(), point.getLongitude());
+    }
+
+    /**
+     * Query the entities within a bounding box.
+     * 
+     * @param bbox the bounding box
+     * @return the locations by entity id
+     */
+    private Map<String, GeoLocation> querySnapshot(GeoBoundingBox bbox) {
+        Map<String, GeoLocation> snapshot = new LinkedHashMap<>();
+        for (GeoBoundingBox box : bbox.splitByAntimeridian()) {
+            DBCursor cursor = dbCol.find(new MongoQueryBuilder().put(GeoLocation.MONGO_GEOPOINT).geoWithinBox(box)
+                    .build());
+            try {
+                while (cursor.hasNext()) {
+                    BasicDBObject document = (BasicDBObject) cursor.next();
+                    snapshot.put(String.valueOf(document.get(PositionWriter.MONGO_ID)), new GeoLocation(document));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * The kind of a change event.
+     */
+    private enum Event {
+
+        /** The entity entered the bounding box. */
+        ADDED,
+
+        /** The entity moved within the bounding box. */
+        MOVED,
+
+        /** The entity left the bounding box or was removed. */
+        REMOVED
+    }
+
+    /**
+     * A remembered position of an entity.
+     */
+    private static final class Position {
+
+        /** The position. */
+        private final GeoLocation location;
+
+        /** Whether the position has been written. */
+        private volatile boolean written;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param location the position
+         * @param written whether the position has been written
+         */
+        private Position(GeoLocation location, boolean written) {
+            this.location = location;
+            this.written = written;
+        }
+    }
+
+    /**
+     * A change kept until the snapshot of its subscription was delivered.
+     */
+    private static final class Change {
+
+        /** The kind of event. */
+        private final Event event;
+
+        /** The entity id. */
+        private final String entityId;
+
+        /** The new position or <tt>null</tt> if removed. */
+        private final GeoLocation location;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param event the kind of event
+         * @param entityId the entity id
+         * @param location the new position or <tt>null</tt> if removed
+         */
+        private Change(Event event, String entityId, GeoLocation location) {
+            this.event = event;
+            this.entityId = entityId;
+            this.location = location;
+        }
+    }
+
+    /**
+     * A live bounding box subscription.
+     */
+    public final class Subscription {
+
+        /** The subscription id. */
+        private final String id;
+
+        /** The bounding box. */
+        private final GeoBoundingBox bbox;
+
+        /** The listener. */
+        private final LiveLocationListener listener;
+
+        /** The events published before the snapshot was delivered, <tt>null</tt> afterwards; guarded by this. */
+        private List<Change> backlog = new ArrayList<>();
+
+        /** Whether the subscription has been cancelled. */
+        private volatile boolean cancelled;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param id the subscription id
+         * @param bbox the bounding box
+         * @param listener the listener
+         */
+        private Subscription(String id, GeoBoundingBox bbox, LiveLocationListener listener) {
+            this.id = id;
+            this.bbox = bbox;
+            this.listener = listener;
+        }
+
+        /**
+         * Get the bounding box.
+         * 
+         * @return the bounding box
+         */
+        public GeoBoundingBox getBoundingBox() {
+            return bbox;
+        }
+
+        /**
+         * Check whether the subscription has been cancelled.
+         * 
+         * @return <tt>true</tt> if no more events are delivered
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Cancel the subscription. Events being delivered concurrently may still arrive. Rebuilds the subscription
+         * index and forgets the written positions no other subscription contains.
+         */
+        public void cancel() {
+            cancelled = true;
+            if (subscriptions.remove(id, this)) {
+                index.unregister(id);
+                for (Map.Entry<String, Position> entry : positions.entrySet()) {
+                    if (bbox.contains(entry.getValue().location.getGeoPoint())) {
+                        forget(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Deliver the snapshot followed by the events published meanwhile.
+         * 
+         * @param snapshot the locations by entity id
+         */
+        private synchronized void start(Map<String, GeoLocation> snapshot) {
+            if (!cancelled) {
+                try {
+                    listener.snapshot(Collections.unmodifiableMap(snapshot));
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "Listener of " + bbox + " failed on the snapshot", e);
+                }
+            }
+            List<Change> pending = backlog;
+            backlog = null;
+            for (Change change : pending) {
+                deliver(change.event, change.entityId, change.location);
+            }
+        }
+
+        /**
+         * Deliver an event or keep it until the snapshot was delivered.
+         * 
+         * @param event the kind of event
+         * @param entityId the entity id
+         * @param location the new position or <tt>null</tt> if removed
+         */
+        private synchronized void deliver(Event event, String entityId, GeoLocation location) {
+            if (cancelled) {
+                return;
+            }
+            if (backlog != null) {
+                backlog.add(new Change(event, entityId, location));
+                return;
+            }
+            events.incrementAndGet();
+            try {
+                switch (event) {
+                case ADDED:
+                    listener.added(entityId, location);
+                    break;
+                case MOVED:
+                    listener.moved(entityId, location);
+                    break;
+                default:
+                    listener.removed(entityId);
+                    break;
+                }
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Listener of " + bbox + " failed on " + event + " of " + entityId, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package de.jt.db;
+
+import java.util.Map;
+
+import de.jt.model.GeoLocation;
+
+/**
+ * Callback of a live bounding box subscription, see {@link LiveLocationHub}.
+ * 
+ * The snapshot is delivered first, followed by the changes in the order of their publication. A change may repeat an
+ * entity of the snapshot, so an added entity which is already known should be treated as moved. The callbacks are
+ * invoked on the publishing thread and must return quickly.
+ * 
+ * @author Hendrik Stein
+ */
+public interface LiveLocationListener {
+
+    /**
+     * Called once with the entities within the bounding box when subscribing.
+     * 
+     * @param locations the locations by entity id
+     */
+    void snapshot(Map<String, GeoLocation> locations);
+
+    /**
+     * Called when an entity entered the bounding box.
+     * 
+     * @param entityId the entity id
+     * @param location the new location
+     */
+    void added(String entityId, GeoLocation location);
+
+    /**
+     * Called when an entity moved within the bounding box.
+     * 
+     * @param entityId the entity id
+     * @param location the new location
+     */
+    void moved(String entityId, GeoLocation location);
+
+    /**
+     * Called when an entity left the bounding box or was removed.
+     * 
+     * @param entityId the entity id
+     */
+    void removed(String entityId);
+}
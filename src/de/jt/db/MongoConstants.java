@@ -16,4 +16,10 @@ public final class MongoConstants {
 
     /** Geographic (2d) index. */
     public static final String INDEX_GEO = "2d";
+
+    /** Spherical geographic (2dsphere) index. */
+    public static final String INDEX_GEO_SPHERE = "2dsphere";
+
+    /** Index option of the TTL in seconds. */
+    public static final String EXPIRE_AFTER_SECONDS = "expireAfterSeconds";
 }
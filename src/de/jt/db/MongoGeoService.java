@@ -1,7 +1,12 @@
 package de.jt.db;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
@@ -14,21 +19,230 @@ import de.jt.model.GeoLocation;
 /**
  * Mongo database service for geo queries.
  * 
+ * An instance is thread-safe and is meant to be shared by all threads querying a collection, see
+ * {@link MongoGeoServiceFactory}. The optional components may be replaced at any time; a running query keeps the
+ * components it started with. Cursors returned by the service must be used by one thread at a time.
+ * 
  * @author Hendrik Stein
  * 
  */
 public class MongoGeoService {
 
+    /** Default number of grid cells per axis of a sampled query. */
+    public static final int DEFAULT_SAMPLE_GRID_SIZE = 8;
+
     /** Mongo DB collection. */
     private final DBCollection dbCol;
 
+    /** The query metrics registry. */
+    private final QueryMetrics metrics;
+
+    /** The query planner. */
+    private final QueryPlanner planner;
+
+    /** The optional slow query log. */
+    private volatile SlowQueryLog slowQueryLog;
+
+    /** The optional query lifecycle listener. */
+    private volatile GeoQueryListener listener;
+
+    /** The optional parallel tile query. */
+    private volatile TiledGeoQuery tiledQuery;
+
+    /** The optional micro-batching of concurrent queries. */
+    private volatile BatchingGeoQuery batchingQuery;
+
+    /** The optional hedged reads across replica set members. */
+    private volatile HedgedReads hedgedReads;
+
+    /** The optional single flight execution of identical concurrent queries. */
+    private volatile QueryCoalescer coalescer;
+
+    /** Read preference and batch size per query type. */
+    private volatile QueryOptions queryOptions = QueryOptions.DEFAULT;
+
+    /** Number of grid cells per axis of a sampled query. */
+    private volatile int sampleGridSize = DEFAULT_SAMPLE_GRID_SIZE;
+
     /**
-     * Creates an instance.
+     * Creates an instance with its own {@link QueryMetrics}.
      * 
      * @param dbCol the database collection
      */
     public MongoGeoService(DBCollection dbCol) {
+        this(dbCol, new QueryMetrics());
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param dbCol the database collection
+     * @param metrics the query metrics registry, may be shared between services
+     */
+    public MongoGeoService(DBCollection dbCol, QueryMetrics metrics) {
         this.dbCol = dbCol;
+        this.metrics = metrics;
+        this.planner = new QueryPlanner(dbCol);
+    }
+
+    /**
+     * Get the query metrics registry.
+     * 
+     * @return the query metrics
+     */
+    public QueryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the query planner.
+     * 
+     * @return the query planner
+     */
+    public QueryPlanner getPlanner() {
+        return planner;
+    }
+
+    /**
+     * Set the slow query log.
+     * 
+     * @param slowQueryLog the slow query log or <tt>null</tt> to disable it
+     */
+    public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    /**
+     * Set the query lifecycle listener. A query is traced if the listener is enabled when the query starts.
+     * 
+     * @param listener the listener or <tt>null</tt> to disable it
+     */
+    public void setListener(GeoQueryListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set the hedged reads used by {@link #getLocations(GeoBoundingBox)} and
+     * {@link #getLocations(GeoBoundingBox, Date, Date)}. With hedged reads the queries run on the replica set members
+     * of the hedged reads instead of the collection of this service, and the query listener is not notified.
+     * 
+     * @param hedgedReads the hedged reads or <tt>null</tt> to disable hedging
+     */
+    public void setHedgedReads(HedgedReads hedgedReads) {
+        this.hedgedReads = hedgedReads;
+    }
+
+    /**
+     * Set the single flight execution of identical concurrent queries used by {@link #getLocations(GeoBoundingBox)}
+     * and {@link #getLocations(GeoBoundingBox, Date, Date)}.
+     * 
+     * @param coalescer the coalescer or <tt>null</tt> to run every query on its own
+     */
+    public void setQueryCoalescer(QueryCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * Get the read preference and batch size per query type.
+     * 
+     * @return the query options
+     */
+    public QueryOptions getQueryOptions() {
+        return queryOptions;
+    }
+
+    /**
+     * Set the read preference and batch size per query type. Running queries keep their options.
+     * 
+     * @param queryOptions the query options
+     * 
+     * @throws IllegalArgumentException if the options are <tt>null</tt>
+     */
+    public void setQueryOptions(QueryOptions queryOptions) throws IllegalArgumentException {
+        if (queryOptions == null) {
+            throw new IllegalArgumentException("MongoGeoService: null query options");
+        }
+        this.queryOptions = queryOptions;
+    }
+
+    /**
+     * Set the number of grid cells per axis used by {@link #getLocationsSampled(GeoBoundingBox, int)}. More cells give
+     * a more even sample at the cost of a count and a few probe queries per cell.
+     * 
+     * @param sampleGridSize the number of grid cells per axis
+     * 
+     * @throws IllegalArgumentException if the grid size is not positive
+     */
+    public void setSampleGridSize(int sampleGridSize) throws IllegalArgumentException {
+        if (sampleGridSize <= 0) {
+            throw new IllegalArgumentException("MongoGeoService: sample grid size must be positive");
+        }
+        this.sampleGridSize = sampleGridSize;
+    }
+
+    /**
+     * Set the parallel tile query used by {@link #getLocationsTiled(GeoBoundingBox)}.
+     * 
+     * @param tiledQuery the tiled query or <tt>null</tt> to disable tiled queries
+     */
+    public void setTiledQuery(TiledGeoQuery tiledQuery) {
+        this.tiledQuery = tiledQuery;
+    }
+
+    /**
+     * Find geographical locations for a huge bounding box by querying density based tiles in parallel. The locations
+     * are streamed in no particular order as the tiles return them.
+     * 
+     * @param bbox the bounding box
+     * @return the cursor of geo locations, which must be closed if not iterated to the end
+     * 
+     * @throws IllegalStateException if no tiled query is set
+     */
+    public GeoLocationCursor getLocationsTiled(GeoBoundingBox bbox) throws IllegalStateException {
+        TiledGeoQuery query = tiledQuery;
+        if (query == null) {
+            throw new IllegalStateException("MongoGeoService: no tiled query set");
+        }
+        return query.query(bbox, queryOptions);
+    }
+
+    /**
+     * Set the micro-batching used by {@link #getLocationsBatched(GeoBoundingBox)}.
+     * 
+     * @param batchingQuery the batching query or <tt>null</tt> to disable batched queries
+     */
+    public void setBatchingQuery(BatchingGeoQuery batchingQuery) {
+        this.batchingQuery = batchingQuery;
+    }
+
+    /**
+     * Find geographical locations for a bounding box in a batch with other concurrent queries. The caller waits up to
+     * the batch window before the combined query starts.
+     * 
+     * @param bbox the bounding box
+     * @return the list of geo locations
+     * 
+     * @throws IllegalStateException if no batching query is set
+     */
+    public List<GeoLocation> getLocationsBatched(GeoBoundingBox bbox) throws IllegalStateException {
+        BatchingGeoQuery query = batchingQuery;
+        if (query == null) {
+            throw new IllegalStateException("MongoGeoService: no batching query set");
+        }
+        return query.query(bbox);
+    }
+
+    /**
+     * Get the listener to trace a query with.
+     * 
+     * @return the listener or <tt>null</tt> if there is none, it is disabled or hedged reads are used
+     */
+    private GeoQueryListener tracingListener() {
+        GeoQueryListener queryListener = listener;
+        if (queryListener == null || hedgedReads != null || !queryListener.isEnabled()) {
+            return null;
+        }
+        return queryListener;
     }
 
     /**
@@ -38,38 +252,360 @@ public class MongoGeoService {
      * @return the list of geo locations
      */
     public List<GeoLocation> getLocations(GeoBoundingBox bbox) {
-        List<GeoLocation> resultGeoList = new ArrayList<>();
-        if (bbox.isOverAntimeridian()) {
-            List<GeoBoundingBox> boxes = bbox.splitByAntimeridian();
-            resultGeoList.addAll(findByBBox(boxes.get(0)));
-            resultGeoList.addAll(findByBBox(boxes.get(1)));
-        } else {
-            resultGeoList = findByBBox(bbox);
+        GeoQueryListener queryListener = tracingListener();
+        return execute(planner.plan(bbox, queryListener), queryListener);
+    }
+
+    /**
+     * Find the geographical locations of a bounding box with a timestamp within a time range. Locations without a
+     * timestamp never match. The query is answered from the compound index created by
+     * {@link #createTimeIndexes(long, TimeUnit)}.
+     * 
+     * @param bbox the bounding box
+     * @param from the start of the range, inclusive, or <tt>null</tt> for no lower bound
+     * @param to the end of the range, exclusive, or <tt>null</tt> for no upper bound
+     * @return the list of geo locations
+     * 
+     * @throws IllegalArgumentException if the range ends before it starts
+     */
+    public List<GeoLocation> getLocations(GeoBoundingBox bbox, Date from, Date to) throws IllegalArgumentException {
+        if (from != null && to != null && to.before(from)) {
+            throw new IllegalArgumentException("MongoGeoService: time range ends before it starts");
+        }
+        BasicDBObject range = new BasicDBObject("$exists", true);
+        if (from != null) {
+            range.append("$gte", from);
+        }
+        if (to != null) {
+            range.append("$lt", to);
         }
+        GeoQueryListener queryListener = tracingListener();
+        QueryPlan plan = planner.plan(bbox, queryListener);
+        return execute(plan.withFilter(new BasicDBObject(GeoLocation.MONGO_TIMESTAMP, range)), queryListener);
+    }
 
-        return resultGeoList;
+    /**
+     * Query the locations of a map tile of the z/x/y tiling scheme and encode them as Mapbox Vector Tile. Locations on
+     * the edge of two tiles are part of both.
+     * 
+     * @param zoom the zoom level
+     * @param x the column
+     * @param y the row
+     * @param encoder the encoder
+     * @return the encoded tile
+     * 
+     * @throws IllegalArgumentException if the tile does not exist
+     */
+    public ByteBuffer getVectorTile(int zoom, int x, int y, VectorTileEncoder encoder) throws IllegalArgumentException {
+        return encoder.encode(getLocations(VectorTileEncoder.getBoundingBox(zoom, x, y)), zoom, x, y);
     }
 
     /**
-     * Find geographical locations for a bounding box.
+     * Create the indexes of time range queries: a compound index of the geo point and the timestamp for
+     * {@link #getLocations(GeoBoundingBox, Date, Date)} and optionally a TTL index, which lets the server delete
+     * locations older than the given age. Locations without a timestamp never expire. The TTL of an existing index is
+     * not changed.
      * 
-     * @param bbox the {@link GeoBoundingBox}
-     * @return the list of {@link GeoLocation}
+     * @param expireAfter the age after which locations expire, 0 for no expiry
+     * @param unit the unit of the age
+     * 
+     * @throws IllegalArgumentException if the age is negative or shorter than a second
      */
-    private List<GeoLocation> findByBBox(GeoBoundingBox bbox) {
-        MongoQueryBuilder builder = new MongoQueryBuilder();
-        builder.put(GeoLocation.MONGO_GEOPOINT).geoWithinBox(bbox);
+    public void createTimeIndexes(long expireAfter, TimeUnit unit) throws IllegalArgumentException {
+        long seconds = unit.toSeconds(expireAfter);
+        if (expireAfter < 0L || (expireAfter > 0L && seconds == 0L)) {
+            throw new IllegalArgumentException("MongoGeoService: expiry must be 0 or at least one second");
+        }
+        dbCol.createIndex(new BasicDBObject(GeoLocation.MONGO_GEOPOINT, MongoConstants.INDEX_GEO).append(
+                GeoLocation.MONGO_TIMESTAMP, 1));
+        if (seconds > 0L) {
+            dbCol.createIndex(new BasicDBObject(GeoLocation.MONGO_TIMESTAMP, 1), new BasicDBObject(
+                    MongoConstants.EXPIRE_AFTER_SECONDS, seconds));
+        }
+        planner.refreshIndexes();
+    }
 
+    /**
+     * Execute a plan, shared with identical queries in flight if a coalescer is set.
+     * 
+     * @param plan the plan
+     * @param queryListener the listener to notify or <tt>null</tt>
+     * @return the list of geo locations
+     */
+    private List<GeoLocation> execute(final QueryPlan plan, final GeoQueryListener queryListener) {
+        QueryCoalescer singleFlight = coalescer;
+        if (singleFlight == null) {
+            return executeOnce(plan, queryListener);
+        }
+        return singleFlight.execute(dbCol.getFullName(), plan, new Callable<List<GeoLocation>>() {
+            @Override
+            public List<GeoLocation> call() {
+                return executeOnce(plan, queryListener);
+            }
+        });
+    }
+
+    /**
+     * Execute a plan and record it.
+     * 
+     * @param plan the plan
+     * @param queryListener the listener to notify or <tt>null</tt>
+     * @return the list of geo locations
+     */
+    private List<GeoLocation> executeOnce(QueryPlan plan, GeoQueryListener queryListener) {
+        HedgedReads hedging = hedgedReads;
+        if (hedging != null) {
+            return executeHedged(plan, hedging);
+        }
+        QueryOptions options = queryOptions;
+        QueryStats stats = new QueryStats(plan.getStrategy());
+        boolean success = false;
+        try {
+            List<GeoLocation> resultGeoList = new ArrayList<>();
+            for (int i = 0; i < plan.getQueries().size(); i++) {
+                resultGeoList.addAll(findByBBox(plan.getBoxes().get(i), plan.getQueries().get(i), options, stats,
+                        queryListener));
+            }
+            success = true;
+            return resultGeoList;
+        } finally {
+            stats.finish();
+            if (success) {
+                metrics.record(stats);
+                planner.record(plan, stats);
+                logIfSlow(plan, stats);
+            } else {
+                metrics.recordFailure(plan.getStrategy());
+            }
+        }
+    }
+
+    /**
+     * Execute a plan with hedged reads and record it.
+     * 
+     * @param plan the plan
+     * @param hedging the hedged reads
+     * @return the list of geo locations
+     */
+    private List<GeoLocation> executeHedged(QueryPlan plan, HedgedReads hedging) {
+        boolean success = false;
+        try {
+            HedgedReads.Attempt attempt = hedging.execute(plan, queryOptions);
+            success = true;
+            metrics.record(attempt.getStats());
+            planner.record(plan, attempt.getStats());
+            logIfSlow(plan, attempt.getStats());
+            return attempt.getLocations();
+        } finally {
+            if (!success) {
+                metrics.recordFailure(plan.getStrategy());
+            }
+        }
+    }
+
+    /**
+     * Stream the geographical locations of a bounding box. The sub queries of the plan run one after another and each
+     * document is decoded when the caller asks for it, so the first locations are available before the result has been
+     * received completely. The query is recorded in the metrics when the cursor reaches its end; the query listener is
+     * not notified.
+     * 
+     * @param bbox the bounding box
+     * @return the cursor of geo locations, which must be closed if not iterated to the end
+     */
+    public GeoLocationCursor streamLocations(GeoBoundingBox bbox) {
+        return new PlanCursor(planner.plan(bbox), queryOptions);
+    }
+
+    /**
+     * Find the geographical locations of a bounding box closest to the box center.
+     * 
+     * @param bbox the bounding box
+     * @param limit the maximum number of locations
+     * @return the ranked result, closest first
+     * 
+     * @throws IllegalArgumentException if the limit is not positive
+     */
+    public RankedResult getLocations(GeoBoundingBox bbox, int limit) throws IllegalArgumentException {
+        return getRankedLocations(bbox, limit, null);
+    }
+
+    /**
+     * Find the geographical locations of a bounding box with the highest value of a numeric priority field. Documents
+     * without the field rank last.
+     * 
+     * @param bbox the bounding box
+     * @param limit the maximum number of locations
+     * @param priorityField the document key of the priority field
+     * @return the ranked result, highest priority first
+     * 
+     * @throws IllegalArgumentException if the limit is not positive or the priority field is <tt>null</tt>
+     */
+    public RankedResult getLocations(GeoBoundingBox bbox, int limit, String priorityField)
+            throws IllegalArgumentException {
+        if (priorityField == null) {
+            throw new IllegalArgumentException("MongoGeoService: null priority field");
+        }
+        return getRankedLocations(bbox, limit, priorityField);
+    }
+
+    /**
+     * Find the top ranked geographical locations of a bounding box.
+     * 
+     * @param bbox the bounding box
+     * @param limit the maximum number of locations
+     * @param priorityField the priority field or <tt>null</tt> to rank by distance to the box center
+     * @return the ranked result
+     * 
+     * @throws IllegalArgumentException if the limit is not positive
+     */
+    private RankedResult getRankedLocations(GeoBoundingBox bbox, int limit, String priorityField)
+            throws IllegalArgumentException {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("MongoGeoService: limit must be positive");
+        }
+        QueryStrategy strategy = bbox.isOverAntimeridian() ? QueryStrategy.ANTIMERIDIAN_SPLIT
+                : QueryStrategy.SINGLE_BOX;
+        QueryStats stats = new QueryStats(strategy);
+        boolean success = false;
+        try {
+            TopKQuery query = new TopKQuery(dbCol, queryOptions);
+            RankedResult result = priorityField == null ? query.nearest(bbox, limit, stats) : query.byPriority(bbox,
+                    limit, priorityField, stats);
+            success = true;
+            return result;
+        } finally {
+            stats.finish();
+            if (success) {
+                metrics.record(stats);
+            } else {
+                metrics.recordFailure(strategy);
+            }
+        }
+    }
+
+    /**
+     * Find the geographical locations of a bounding box, or a spatially representative sample if the box holds more
+     * than the given number of locations. The sample is stratified over a grid of cells, so dense and sparse regions of
+     * the box both appear, and only the sampled documents are transferred.
+     * 
+     * @param bbox the bounding box
+     * @param maxLocations the maximum number of returned locations
+     * @return the result with the estimated number of locations within the box
+     * 
+     * @throws IllegalArgumentException if the maximum number of locations is not positive
+     */
+    public SampledResult getLocationsSampled(GeoBoundingBox bbox, int maxLocations) throws IllegalArgumentException {
+        if (maxLocations <= 0) {
+            throw new IllegalArgumentException("MongoGeoService: maximum number of locations must be positive");
+        }
+        GridSampler sampler = new GridSampler(dbCol, sampleGridSize, queryOptions);
+        QueryStrategy strategy = bbox.isOverAntimeridian() ? QueryStrategy.ANTIMERIDIAN_SPLIT
+                : QueryStrategy.SINGLE_BOX;
+        QueryStats stats = new QueryStats(strategy);
+        boolean success = false;
+        long count;
+        List<GeoLocation> sample = null;
+        try {
+            count = sampler.count(bbox, stats);
+            if (count > maxLocations) {
+                sample = sampler.sample(bbox, maxLocations, stats);
+            }
+            success = true;
+        } finally {
+            stats.finish();
+            if (!success) {
+                metrics.recordFailure(strategy);
+            } else if (sample != null) {
+                metrics.record(stats);
+            }
+        }
+        if (sample != null) {
+            return new SampledResult(sample, count, true);
+        }
+        // the query of all locations records its own metrics, so the count is not recorded as a query of its own
+        return new SampledResult(getLocations(bbox), count, false);
+    }
+
+    /**
+     * Pass a finished query to the slow query log if it exceeded the threshold.
+     * 
+     * @param plan the executed plan
+     * @param stats the query statistics
+     */
+    private void logIfSlow(QueryPlan plan, QueryStats stats) {
+        SlowQueryLog log = slowQueryLog;
+        if (log != null && log.isSlow(stats)) {
+            log.record(dbCol, plan.getBoundingBox(), stats, plan.getQueries());
+        }
+    }
+
+    /**
+     * Find geographical locations for a bounding box query, and report the lifecycle to a listener if given.
+     * 
+     * The initial query and every getMore are executed within the cursor's hasNext(), which decodes the received
+     * batch. A traced query counts the decoded documents with a {@link BatchCounter}, so a hasNext() which decoded
+     * documents marks a batch boundary; the batching of the cursor is not changed.
+     * 
+     * @param bbox the {@link GeoBoundingBox} of the query
+     * @param query the bounding box query
+     * @param options the query options
+     * @param stats the statistics of the running query
+     * @param queryListener the listener to notify or <tt>null</tt>
+     * @return the list of {@link GeoLocation}
+     */
+    private List<GeoLocation> findByBBox(GeoBoundingBox bbox, DBObject query, QueryOptions options, QueryStats stats,
+            GeoQueryListener queryListener) {
         DBCursor cursor = null;
         try {
-            cursor = dbCol.find(builder.build());
+            stats.subQueryStarted();
+            cursor = options.apply(QueryType.LOCATIONS, dbCol.find(query));
+            BatchCounter counter = null;
+            if (queryListener != null) {
+                counter = new BatchCounter(cursor.getDecoderFactory());
+                cursor.setDecoderFactory(counter);
+            }
             List<GeoLocation> locationList = new ArrayList<>();
+            long decodeNanos = 0L;
+            int batch = 0;
+
+            while (true) {
+                boolean hasNext;
+                if (counter == null) {
+                    hasNext = cursor.hasNext();
+                } else {
+                    int decoded = counter.getDecoded();
+                    long fetchStart = System.nanoTime();
+                    hasNext = cursor.hasNext();
+                    long fetchNanos = System.nanoTime() - fetchStart;
+                    int documents = counter.getDecoded() - decoded;
+                    // the first call executes the query even if it returns no documents
+                    if (documents > 0 || batch == 0) {
+                        queryListener.batchFetched(bbox, batch++, documents, fetchNanos);
+                    }
+                }
+                if (!hasNext) {
+                    break;
+                }
 
-            while (cursor.hasNext()) {
                 DBObject document = cursor.next();
-                GeoLocation geoLocation = new GeoLocation((BasicDBObject) document);
+                boolean sampled = stats.documentReceived();
+                GeoLocation geoLocation;
+                if (sampled || queryListener != null) {
+                    long decodeStart = System.nanoTime();
+                    geoLocation = new GeoLocation((BasicDBObject) document);
+                    long nanos = System.nanoTime() - decodeStart;
+                    if (sampled) {
+                        stats.decodeSampled(nanos);
+                    }
+                    decodeNanos += nanos;
+                } else {
+                    geoLocation = new GeoLocation((BasicDBObject) document);
+                }
                 locationList.add(geoLocation);
             }
+            if (queryListener != null) {
+                queryListener.documentsDecoded(bbox, locationList.size(), decodeNanos);
+            }
             return locationList;
         } finally {
             if (cursor != null) {
@@ -78,4 +614,113 @@ public class MongoGeoService {
         }
     }
 
+    /**
+     * Cursor iterating over the sub queries of a plan.
+     */
+    private final class PlanCursor implements GeoLocationCursor {
+
+        /** The executed plan. */
+        private final QueryPlan plan;
+
+        /** The statistics of the query. */
+        private final QueryStats stats;
+
+        /** The query options. */
+        private final QueryOptions options;
+
+        /** Index of the next sub query. */
+        private int nextQuery;
+
+        /** The database cursor of the running sub query or <tt>null</tt>. */
+        private DBCursor cursor;
+
+        /** Whether the cursor is exhausted or closed. */
+        private boolean finished;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param plan the plan to execute
+         * @param options the query options
+         */
+        private PlanCursor(QueryPlan plan, QueryOptions options) {
+            this.plan = plan;
+            this.options = options;
+            this.stats = new QueryStats(plan.getStrategy());
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (finished) {
+                return false;
+            }
+            try {
+                while (cursor == null || !cursor.hasNext()) {
+                    if (cursor != null) {
+                        cursor.close();
+                        cursor = null;
+                    }
+                    if (nextQuery == plan.getQueries().size()) {
+                        finished = true;
+                        stats.finish();
+                        metrics.record(stats);
+                        planner.record(plan, stats);
+                        logIfSlow(plan, stats);
+                        return false;
+                    }
+                    stats.subQueryStarted();
+                    cursor = options.apply(QueryType.LOCATIONS, dbCol.find(plan.getQueries().get(nextQuery++)));
+                }
+                return true;
+            } catch (RuntimeException e) {
+                fail();
+                throw e;
+            }
+        }
+
+        @Override
+        public GeoLocation next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                DBObject document = cursor.next();
+                if (stats.documentReceived()) {
+                    long decodeStart = System.nanoTime();
+                    GeoLocation geoLocation = new GeoLocation((BasicDBObject) document);
+                    stats.decodeSampled(System.nanoTime() - decodeStart);
+                    return geoLocation;
+                }
+                return new GeoLocation((BasicDBObject) document);
+            } catch (RuntimeException e) {
+                fail();
+                throw e;
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("MongoGeoService: read only cursor");
+        }
+
+        @Override
+        public void close() {
+            finished = true;
+            if (cursor != null) {
+                cursor.close();
+                cursor = null;
+            }
+        }
+
+        /**
+         * Record the failure of the query and close the cursor.
+         */
+        private void fail() {
+            if (!finished) {
+                metrics.recordFailure(plan.getStrategy());
+            }
+            close();
+        }
+    }
+
 }
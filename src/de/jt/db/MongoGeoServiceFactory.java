@@ -0,0 +1,281 @@
+package de.jt.db;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.mongodb.DB;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+
+/**
+ * Factory of shared {@link MongoGeoService}s.
+ * 
+ * The factory owns one {@link MongoClient} with an explicitly sized connection pool and creates one service per
+ * collection on first use. All services share the {@link QueryMetrics} and {@link QueryOptions} of the factory. An
+ * instance is thread-safe; it should live as long as the application and be closed on shutdown.
+ * 
+ * <pre>
+ * MongoGeoServiceFactory factory = MongoGeoServiceFactory.builder()
+ *         .server("db1", 27017).server("db2", 27017)
+ *         .connectionsPerHost(50)
+ *         .socketTimeout(5000)
+ *         .readPreference(QueryType.SAMPLED, ReadPreference.secondaryPreferred())
+ *         .build();
+ * MongoGeoService service = factory.getService("geo", "locations");
+ * </pre>
+ * 
+ * @author Hendrik Stein
+ */
+public class MongoGeoServiceFactory {
+
+    /** The Mongo client. */
+    private final MongoClient client;
+
+    /** The metrics registry shared by all services. */
+    private final QueryMetrics metrics;
+
+    /** The query options of all services. */
+    private final QueryOptions queryOptions;
+
+    /** The services by database and collection name. */
+    private final ConcurrentMap<String, MongoGeoService> services = new ConcurrentHashMap<>();
+
+    /** Whether the factory has been closed. */
+    private volatile boolean closed;
+
+    /**
+     * Creates an instance.
+     * 
+     * @param builder the builder
+     * 
+     * @throws UnknownHostException if a server cannot be resolved
+     */
+    private MongoGeoServiceFactory(Builder builder) throws UnknownHostException {
+        MongoClientOptions options = builder.clientOptions.build();
+        if (builder.servers.size() == 1) {
+            this.client = new MongoClient(builder.servers.get(0), options);
+        } else {
+            // a seed list connects to a replica set
+            this.client = new MongoClient(builder.servers, options);
+        }
+        this.metrics = new QueryMetrics();
+        this.queryOptions = builder.queryOptions.build();
+    }
+
+    /**
+     * Create a builder.
+     * 
+     * @return the builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Get the shared service of a collection, creating it on first use. The collection needs a 2d index on
+     * {@link de.jt.model.GeoLocation#MONGO_GEOPOINT}.
+     * 
+     * @param database the database name
+     * @param collection the collection name
+     * @return the service
+     * 
+     * @throws IllegalStateException if the factory is closed
+     */
+    public MongoGeoService getService(String database, String collection) throws IllegalStateException {
+        if (closed) {
+            throw new IllegalStateException("MongoGeoServiceFactory: closed");
+        }
+        String key = database + '.' + collection;
+        MongoGeoService service = services.get(key);
+        if (service == null) {
+            DB db = client.getDB(database);
+            MongoGeoService created = new MongoGeoService(db.getCollection(collection), metrics);
+            created.setQueryOptions(queryOptions);
+            service = services.putIfAbsent(key, created);
+            if (service == null) {
+                service = created;
+            }
+        }
+        return service;
+    }
+
+    /**
+     * Get the metrics registry shared by all services.
+     * 
+     * @return the query metrics
+     */
+    public QueryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the Mongo client, for example to maintain indexes.
+     * 
+     * @return the client
+     */
+    public MongoClient getClient() {
+        return client;
+    }
+
+    /**
+     * Close the Mongo client. Services of this factory fail afterwards.
+     */
+    public void close() {
+        closed = true;
+        services.clear();
+        client.close();
+    }
+
+    /**
+     * Builder of {@link MongoGeoServiceFactory}.
+     */
+    public static final class Builder {
+
+        /** The server addresses. */
+        private final List<ServerAddress> servers = new ArrayList<>();
+
+        /** The client options. */
+        private final MongoClientOptions.Builder clientOptions = MongoClientOptions.builder();
+
+        /** The query options. */
+        private final QueryOptions.Builder queryOptions = QueryOptions.builder();
+
+        /**
+         * Utility constructor, use {@link MongoGeoServiceFactory#builder()}.
+         */
+        private Builder() {
+            // use MongoGeoServiceFactory.builder()
+        }
+
+        /**
+         * Add a server. Several servers are treated as the seed list of a replica set.
+         * 
+         * @param host the host name
+         * @param port the port
+         * @return the builder
+         * 
+         * @throws UnknownHostException if the host cannot be resolved
+         */
+        public Builder server(String host, int port) throws UnknownHostException {
+            servers.add(new ServerAddress(host, port));
+            return this;
+        }
+
+        /**
+         * Set the maximum number of connections per server. Threads beyond that wait for a free connection.
+         * 
+         * @param connectionsPerHost the maximum number of connections per server
+         * @return the builder
+         */
+        public Builder connectionsPerHost(int connectionsPerHost) {
+            clientOptions.connectionsPerHost(connectionsPerHost);
+            return this;
+        }
+
+        /**
+         * Set the multiplier of {@link #connectionsPerHost(int)} giving the maximum number of threads waiting for a
+         * connection. Further threads fail immediately, which protects the application from piling up requests.
+         * 
+         * @param multiplier the multiplier
+         * @return the builder
+         */
+        public Builder threadsAllowedToBlockForConnectionMultiplier(int multiplier) {
+            clientOptions.threadsAllowedToBlockForConnectionMultiplier(multiplier);
+            return this;
+        }
+
+        /**
+         * Set the maximum time a thread waits for a connection.
+         * 
+         * @param maxWaitTimeMillis the maximum wait time in milliseconds
+         * @return the builder
+         */
+        public Builder maxWaitTime(int maxWaitTimeMillis) {
+            clientOptions.maxWaitTime(maxWaitTimeMillis);
+            return this;
+        }
+
+        /**
+         * Set the connect timeout.
+         * 
+         * @param connectTimeoutMillis the connect timeout in milliseconds, 0 for none
+         * @return the builder
+         */
+        public Builder connectTimeout(int connectTimeoutMillis) {
+            clientOptions.connectTimeout(connectTimeoutMillis);
+            return this;
+        }
+
+        /**
+         * Set the socket timeout, which bounds the time waiting for a batch of a query.
+         * 
+         * @param socketTimeoutMillis the socket timeout in milliseconds, 0 for none
+         * @return the builder
+         */
+        public Builder socketTimeout(int socketTimeoutMillis) {
+            clientOptions.socketTimeout(socketTimeoutMillis);
+            return this;
+        }
+
+        /**
+         * Set the default read preference of the client.
+         * 
+         * @param readPreference the read preference
+         * @return the builder
+         */
+        public Builder readPreference(ReadPreference readPreference) {
+            clientOptions.readPreference(readPreference);
+            return this;
+        }
+
+        /**
+         * Set the read preference of a query type, for example secondaries for sampled overviews.
+         * 
+         * @param type the query type
+         * @param readPreference the read preference
+         * @return the builder
+         * 
+         * @throws IllegalArgumentException if a parameter is <tt>null</tt>
+         */
+        public Builder readPreference(QueryType type, ReadPreference readPreference) throws IllegalArgumentException {
+            queryOptions.readPreference(type, readPreference);
+            return this;
+        }
+
+        /**
+         * Set the cursor batch size of a query type.
+         * 
+         * @param type the query type
+         * @param batchSize the number of documents per batch
+         * @return the builder
+         * 
+         * @throws IllegalArgumentException if the type is <tt>null</tt> or the batch size is not positive
+         */
+        public Builder batchSize(QueryType type, int batchSize) throws IllegalArgumentException {
+            queryOptions.batchSize(type, batchSize);
+            return this;
+        }
+
+        /**
+         * Build the factory and connect the client.
+         * 
+         * @return the factory
+         * 
+         * @throws UnknownHostException if a server cannot be resolved
+         * @throws IllegalStateException if no server has been added
+         * @throws IllegalArgumentException if a client option is out of bounds
+         */
+        public MongoGeoServiceFactory build() throws UnknownHostException, IllegalStateException,
+                IllegalArgumentException {
+            if (servers.isEmpty()) {
+                throw new IllegalStateException("MongoGeoServiceFactory: no server");
+            }
+            return new MongoGeoServiceFactory(this);
+        }
+    }
+}
@@ -246,6 +246,18 @@ public class MongoQueryBuilder {
         return this;
     }
 
+    /**
+     * Equivalent of the $near operand with a maximum distance in the flat coordinate system of a 2d index.
+     * 
+     * @param point coordinate
+     * @param maxDistanceInDegrees max distance in degrees
+     * @return the current QueryBuilder with a geo near operator
+     */
+    public MongoQueryBuilder nearInDegrees(GeoPoint point, double maxDistanceInDegrees) {
+        internalQueryBuilder.near(point.getLongitude(), point.getLatitude(), maxDistanceInDegrees);
+        return this;
+    }
+
     /**
      * Equivalent of the $nearSphere operand.
      * 
@@ -0,0 +1,467 @@
+package de.jt.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoConstants;
+import de.jt.model.GeoLocation;
+
+/**
+ * Geo service partitioned by longitude bands across several collections, which may live on different servers.
+ * 
+ * Each location is stored in the collection of the band containing its longitude. The bands are half open,
+ * <tt>[west, east)</tt>, only the easternmost band includes 180 degrees. A bounding box query is sent in parallel to
+ * the bands it overlaps and the results are concatenated. A band is rebalanced by splitting it and moving its eastern
+ * part to a new collection with {@link #split(double, DBCollection)}.
+ * 
+ * Each collection needs a 2d index on {@link GeoLocation#MONGO_GEOPOINT}. An instance is thread-safe; queries never
+ * block, inserts wait while a band is being split. Call {@link #close()} to stop the thread pool.
+ * 
+ * @author Hendrik Stein
+ */
+public class PartitionedGeoService {
+
+    /** The partitions ordered by their west bound, replaced as a whole on a split. */
+    private volatile Partition[] partitions;
+
+    /** The metrics registry shared by all partitions. */
+    private final QueryMetrics metrics = new QueryMetrics();
+
+    /** Inserts hold the read lock, a split holds the write lock. */
+    private final ReadWriteLock splitLock = new ReentrantReadWriteLock();
+
+    /** The query thread pool. */
+    private final ExecutorService pool;
+
+    /** The aggregator of inserted locations or <tt>null</tt>. */
+    private volatile TileAggregator tileAggregator;
+
+    /**
+     * Creates an instance which divides the longitude range into equally wide bands, one per collection from west to
+     * east. The collections must be empty or already partitioned that way.
+     * 
+     * @param collections the collections, west to east
+     * @param parallelism the number of partitions queried in parallel
+     * 
+     * @throws IllegalArgumentException if no collection is given or the parallelism is not positive
+     */
+    public PartitionedGeoService(List<DBCollection> collections, int parallelism) throws IllegalArgumentException {
+        if (collections == null || collections.isEmpty() || parallelism <= 0) {
+            throw new IllegalArgumentException("PartitionedGeoService: parameter out of bounds");
+        }
+        double width = (GeoConstants.LONG_MAX - GeoConstants.LONG_MIN) / collections.size();
+        Partition[] initial = new Partition[collections.size()];
+        for (int i = 0; i < initial.length; i++) {
+            double west = GeoConstants.LONG_MIN + i * width;
+            double east = i == initial.length - 1 ? GeoConstants.LONG_MAX : west + width;
+            DBCollection dbCol = collections.get(i);
+            initial[i] = new Partition(west, east, dbCol, new MongoGeoService(dbCol, metrics));
+        }
+        this.partitions = initial;
+        this.pool = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "geo-partition-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Get the current partitions ordered from west to east.
+     * 
+     * @return the list of partitions
+     */
+    public List<Partition> getPartitions() {
+        return Collections.unmodifiableList(Arrays.asList(partitions));
+    }
+
+    /**
+     * Get the metrics registry shared by all partitions.
+     * 
+     * @return the query metrics
+     */
+    public QueryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Insert a location into its partition.
+     * 
+     * @param location the location
+     */
+    public void insert(GeoLocation location) {
+        DBObject document = location.toMongo();
+        splitLock.readLock().lock();
+        try {
+            Partition partition = partitionOf(partitions, location.getGeoPoint().getLongitude());
+            partition.getCollection().insert(document);
+        } finally {
+            splitLock.readLock().unlock();
+        }
+        TileAggregator aggregator = tileAggregator;
+        if (aggregator != null) {
+            aggregator.added(Collections.singletonList(document));
+        }
+    }
+
+    /**
+     * Set the aggregator to add inserted locations to. Locations moved by a split stay in their tiles.
+     * 
+     * @param tileAggregator the aggregator or <tt>null</tt>
+     */
+    public void setTileAggregator(TileAggregator tileAggregator) {
+        this.tileAggregator = tileAggregator;
+    }
+
+    /**
+     * Insert locations with one batch insert per partition.
+     * 
+     * @param locations the locations
+     */
+    public void insert(List<GeoLocation> locations) {
+        splitLock.readLock().lock();
+        try {
+            Partition[] current = partitions;
+            List<List<DBObject>> batches = new ArrayList<>(current.length);
+            for (int i = 0; i < current.length; i++) {
+                batches.add(new ArrayList<DBObject>());
+            }
+            for (GeoLocation location : locations) {
+                int index = indexOf(current, location.getGeoPoint().getLongitude());
+                batches.get(index).add(location.toMongo());
+            }
+            for (int i = 0; i < current.length; i++) {
+                if (!batches.get(i).isEmpty()) {
+                    current[i].getCollection().insert(batches.get(i));
+                }
+            }
+            TileAggregator aggregator = tileAggregator;
+            if (aggregator != null) {
+                List<DBObject> inserted = new ArrayList<>(locations.size());
+                for (List<DBObject> batch : batches) {
+                    inserted.addAll(batch);
+                }
+                aggregator.added(inserted);
+            }
+        } finally {
+            splitLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the geographical locations of a bounding box in all overlapping partitions. A query which overlapped a split
+     * is repeated on the new partitions.
+     * 
+     * @param bbox the bounding box
+     * @return the list of geo locations
+     * 
+     * @throws MongoException if a partition query fails
+     */
+    public List<GeoLocation> getLocations(GeoBoundingBox bbox) throws MongoException {
+        while (true) {
+            Partition[] current = partitions;
+            List<GeoLocation> locations = getLocations(current, bbox);
+            // a split may have deleted the moved documents before they were read from the old partition
+            if (partitions == current) {
+                return locations;
+            }
+        }
+    }
+
+    /**
+     * Find the geographical locations of a bounding box in the overlapping partitions of a partitioning.
+     * 
+     * @param current the partitions
+     * @param bbox the bounding box
+     * @return the list of geo locations
+     * 
+     * @throws MongoException if a partition query fails
+     */
+    private List<GeoLocation> getLocations(Partition[] current, final GeoBoundingBox bbox) throws MongoException {
+        double west = bbox.getLowerLeft().getLongitude();
+        double east = bbox.getUpperRight().getLongitude();
+        List<Partition> targets = new ArrayList<>();
+        if (bbox.isOverAntimeridian()) {
+            int westIndex = indexOf(current, west);
+            int eastIndex = indexOf(current, east);
+            if (eastIndex >= westIndex) {
+                // both edges in one band or the ranges overlap, each partition is queried once
+                targets.addAll(Arrays.asList(current));
+            } else {
+                targets.addAll(Arrays.asList(current).subList(westIndex, current.length));
+                targets.addAll(Arrays.asList(current).subList(0, eastIndex + 1));
+            }
+        } else {
+            targets.addAll(Arrays.asList(current).subList(indexOf(current, west), indexOf(current, east) + 1));
+        }
+
+        if (targets.size() == 1) {
+            return targets.get(0).find(bbox);
+        }
+        List<Future<List<GeoLocation>>> futures = new ArrayList<>(targets.size());
+        for (final Partition partition : targets) {
+            futures.add(pool.submit(new Callable<List<GeoLocation>>() {
+                @Override
+                public List<GeoLocation> call() {
+                    return partition.find(bbox);
+                }
+            }));
+        }
+        List<GeoLocation> locations = new ArrayList<>();
+        try {
+            for (Future<List<GeoLocation>> future : futures) {
+                locations.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MongoException("PartitionedGeoService: interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new MongoException("PartitionedGeoService: " + e.getCause());
+        } finally {
+            for (Future<List<GeoLocation>> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Split the partition containing a longitude and move its part east of the longitude into a new collection.
+     * 
+     * The documents are copied to the new collection before the new partitions are published and deleted from the old
+     * collection afterwards. Queries filter the results by partition bounds and a query which started on the old
+     * partitions is repeated on the new ones, so they neither miss nor duplicate locations. Inserts wait until the
+     * split is complete.
+     * 
+     * @param longitude the longitude at which to split, becoming the west bound of the new partition
+     * @param target the empty collection of the new partition, with a 2d index
+     * 
+     * @throws IllegalArgumentException if the longitude is already a partition bound or out of bounds
+     */
+    public void split(double longitude, DBCollection target) throws IllegalArgumentException {
+        splitLock.writeLock().lock();
+        try {
+            Partition[] current = partitions;
+            if (longitude <= GeoConstants.LONG_MIN || longitude >= GeoConstants.LONG_MAX) {
+                throw new IllegalArgumentException("PartitionedGeoService: longitude out of bounds");
+            }
+            int index = indexOf(current, longitude);
+            Partition old = current[index];
+            if (old.getWest() == longitude) {
+                throw new IllegalArgumentException("PartitionedGeoService: longitude is already a partition bound");
+            }
+
+            // copy the eastern part
+            DBCollection source = old.getCollection();
+            DBObject moved = eastOf(longitude, old.getEast());
+            DBCursor cursor = source.find(moved);
+            try {
+                List<DBObject> batch = new ArrayList<>();
+                while (cursor.hasNext()) {
+                    DBObject document = cursor.next();
+                    batch.add(document);
+                    if (batch.size() == 1000) {
+                        target.insert(batch);
+                        batch.clear();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    target.insert(batch);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            // publish the new partitions, then delete the copied documents
+            Partition[] next = new Partition[current.length + 1];
+            System.arraycopy(current, 0, next, 0, index);
+            next[index] = new Partition(old.getWest(), longitude, source, old.getService());
+            next[index + 1] = new Partition(longitude, old.getEast(), target, new MongoGeoService(target, metrics));
+            System.arraycopy(current, index + 1, next, index + 2, current.length - index - 1);
+            partitions = next;
+            source.remove(moved);
+        } finally {
+            splitLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stop the thread pool. Running queries fail.
+     */
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Build the query of all documents from a longitude up to an east bound.
+     * 
+     * @param west the west longitude, inclusive
+     * @param east the east longitude
+     * @return the query
+     */
+    private static DBObject eastOf(double west, double east) {
+        return new BasicDBObject(GeoLocation.MONGO_GEOPOINT + "." + GeoConstants.MONGO_LONG, new BasicDBObject("$gte",
+                west).append("$lte", east));
+    }
+
+    /**
+     * Get the partition containing a longitude.
+     * 
+     * @param current the partitions
+     * @param longitude the longitude
+     * @return the partition
+     */
+    private static Partition partitionOf(Partition[] current, double longitude) {
+        return current[indexOf(current, longitude)];
+    }
+
+    /**
+     * Get the index of the partition containing a longitude by binary search of the west bounds.
+     * 
+     * @param current the partitions
+     * @param longitude the longitude
+     * @return the index
+     */
+    private static int indexOf(Partition[] current, double longitude) {
+        int low = 0;
+        int high = current.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (current[mid].getWest() <= longitude) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * A longitude band stored in one collection.
+     */
+    public static final class Partition {
+
+        /** The west bound, inclusive. */
+        private final double west;
+
+        /** The east bound, exclusive unless 180. */
+        private final double east;
+
+        /** The collection. */
+        private final DBCollection dbCol;
+
+        /** The service of the collection. */
+        private final MongoGeoService service;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param west the west bound
+         * @param east the east bound
+         * @param dbCol the collection
+         * @param service the service of the collection
+         */
+        private Partition(double west, double east, DBCollection dbCol, MongoGeoService service) {
+            this.west = west;
+            this.east = east;
+            this.dbCol = dbCol;
+            this.service = service;
+        }
+
+        /**
+         * Get the west bound, inclusive.
+         * 
+         * @return the longitude
+         */
+        public double getWest() {
+            return west;
+        }
+
+        /**
+         * Get the east bound, exclusive unless it is 180 degrees.
+         * 
+         * @return the longitude
+         */
+        public double getEast() {
+            return east;
+        }
+
+        /**
+         * Get the collection of the partition.
+         * 
+         * @return the collection
+         */
+        public DBCollection getCollection() {
+            return dbCol;
+        }
+
+        /**
+         * Get the service of the collection of the partition.
+         * 
+         * @return the service
+         */
+        public MongoGeoService getService() {
+            return service;
+        }
+
+        /**
+         * Check whether a longitude belongs to the partition.
+         * 
+         * @param longitude the longitude
+         * @return <tt>true</tt> if within the bounds
+         */
+        boolean contains(double longitude) {
+            return longitude >= west && (longitude < east || east == GeoConstants.LONG_MAX);
+        }
+
+        /**
+         * Query the partition, dropping locations outside of its bounds which are left over by a split.
+         * 
+         * @param bbox the bounding box
+         * @return the list of locations
+         */
+        private List<GeoLocation> find(GeoBoundingBox bbox) {
+            List<GeoLocation> locations = service.getLocations(bbox);
+            List<GeoLocation> owned = new ArrayList<>(locations.size());
+            for (GeoLocation location : locations) {
+                if (contains(location.getGeoPoint().getLongitude())) {
+                    owned.add(location);
+                }
+            }
+            return owned;
+        }
+
+        @Override
+        public String toString() {
+            return "Partition [west=" + west + ", east=" + east + "]";
+        }
+    }
+}
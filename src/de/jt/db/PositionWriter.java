@@ -0,0 +1,328 @@
+package de.jt.db;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoException;
+
+import de.jt.model.GeoLocation;
+
+/**
+ * Write-behind buffer of the positions of moving entities, e.g. vehicles.
+ * 
+ * Each entity has one document whose id is the entity id. Updates are buffered per entity and only the latest
+ * position of an entity is kept; a position with an older timestamp than the buffered one is ignored. The buffer is
+ * flushed periodically with unordered bulk upserts, so the database sees at most one write per entity per flush
+ * interval, however often the entity reports. The upsert only replaces a stored position which is not newer, so a late
+ * report arriving after a flush, or from another writer, never overwrites a newer position; it is counted as stale.
+ * 
+ * A failed flush is logged and its positions are dropped; the next update of an entity writes it again. An instance is
+ * thread-safe; call {@link #close()} to flush the buffer and stop the flush thread.
+ * 
+ * @author Hendrik Stein
+ */
+public class PositionWriter {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(PositionWriter.class.getName());
+
+    /** Mongo key of the document id. */
+    public static final String MONGO_ID = "_id";
+
+    /** Default flush interval. */
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000L;
+
+    /** Default maximum number of upserts per bulk write. */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+
+    /** Error code of a duplicate key. */
+    private static final int DUPLICATE_KEY = 11000;
+
+    /** The written collection. */
+    private final DBCollection dbCol;
+
+    /** Maximum number of upserts per bulk write. */
+    private final int maxBatchSize;
+
+    /** The latest buffered position per entity id. */
+    private final ConcurrentMap<String, GeoLocation> buffer = new ConcurrentHashMap<>();
+
+    /** The flush thread. */
+    private final ScheduledExecutorService flusher;
+
+    /** Number of updates. */
+    private final AtomicLong updates = new AtomicLong();
+
+    /** Number of written positions. */
+    private final AtomicLong writes = new AtomicLong();
+
+    /** Number of positions lost by failed flushes. */
+    private final AtomicLong failures = new AtomicLong();
+
+    /** Number of positions not written because the stored one is newer. */
+    private final AtomicLong stale = new AtomicLong();
+
+    /** The hub to publish accepted positions to or <tt>null</tt>. */
+    private volatile LiveLocationHub liveHub;
+
+    /** Whether the writer has been closed. */
+    private volatile boolean closed;
+
+    /**
+     * Creates an instance with {@link #DEFAULT_FLUSH_INTERVAL_MILLIS} and {@link #DEFAULT_MAX_BATCH_SIZE}.
+     * 
+     * @param dbCol the written collection
+     */
+    public PositionWriter(DBCollection dbCol) {
+        this(dbCol, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param dbCol the written collection
+     * @param flushIntervalMillis the flush interval in milliseconds
+     * @param maxBatchSize the maximum number of upserts per bulk write
+     * 
+     * @throws IllegalArgumentException if a parameter is out of bounds
+     */
+    public PositionWriter(DBCollection dbCol, long flushIntervalMillis, int maxBatchSize)
+            throws IllegalArgumentException {
+        if (dbCol == null || flushIntervalMillis <= 0L || maxBatchSize <= 0) {
+            throw new IllegalArgumentException("PositionWriter: parameter out of bounds");
+        }
+        this.dbCol = dbCol;
+        this.maxBatchSize = maxBatchSize;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "geo-position-flush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set the hub to publish every accepted position to, when it is buffered, and to report it to once it is written.
+     * 
+     * @param liveHub the hub or <tt>null</tt> to publish nothing
+     */
+    public void setLiveLocationHub(LiveLocationHub liveHub) {
+        this.liveHub = liveHub;
+    }
+
+    /**
+     * Get the number of updates.
+     * 
+     * @return the number of updates
+     */
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    /**
+     * Get the number of written positions.
+     * 
+     * @return the number of writes
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * Get the number of positions lost by failed flushes.
+     * 
+     * @return the number of failed writes
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Get the number of flushed positions which were not written because the stored position is newer.
+     * 
+     * @return the number of stale positions
+     */
+    public long getStale() {
+        return stale.get();
+    }
+
+    /**
+     * Get the number of entities with a buffered position.
+     * 
+     * @return the number of pending writes
+     */
+    public int getPending() {
+        return buffer.size();
+    }
+
+    /**
+     * Buffer the position of an entity, replacing its buffered position unless that one is newer.
+     * 
+     * @param entityId the id of the entity, becomes the document id
+     * @param location the position
+     * 
+     * @throws IllegalArgumentException if a parameter is <tt>null</tt>
+     * @throws IllegalStateException if the writer is closed
+     */
+    public void update(String entityId, GeoLocation location) throws IllegalArgumentException,
+            IllegalStateException {
+        if (entityId == null || location == null) {
+            throw new IllegalArgumentException("PositionWriter: null parameter");
+        }
+        if (closed) {
+            throw new IllegalStateException("PositionWriter: closed");
+        }
+        updates.incrementAndGet();
+        GeoLocation buffered = buffer.putIfAbsent(entityId, location);
+        while (buffered != null) {
+            if (isOlder(location, buffered)) {
+                return;
+            }
+            if (buffer.replace(entityId, buffered, location)) {
+                break;
+            }
+            buffered = buffer.putIfAbsent(entityId, location);
+        }
+        LiveLocationHub hub = liveHub;
+        if (hub != null) {
+            hub.publish(entityId, location);
+        }
+    }
+
+    /**
+     * Write the buffered positions with unordered bulk upserts.
+     */
+    public void flush() {
+        List<Map.Entry<String, GeoLocation>> batch = new ArrayList<>(Math.min(buffer.size(), maxBatchSize));
+        for (Map.Entry<String, GeoLocation> entry : buffer.entrySet()) {
+            // a position replaced meanwhile stays buffered for the next flush
+            if (buffer.remove(entry.getKey(), entry.getValue())) {
+                batch.add(entry);
+                if (batch.size() == maxBatchSize) {
+                    write(batch);
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(batch);
+        }
+    }
+
+    /**
+     * Flush the buffer and stop the flush thread.
+     */
+    public void close() {
+        closed = true;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Upsert a batch of positions.
+     * 
+     * @param batch the entity ids and positions
+     */
+    private void write(List<Map.Entry<String, GeoLocation>> batch) {
+        BulkWriteOperation bulk = dbCol.initializeUnorderedBulkOperation();
+        for (Map.Entry<String, GeoLocation> entry : batch) {
+            BasicDBObject document = entry.getValue().toMongo();
+            document.put(MONGO_ID, entry.getKey());
+            bulk.find(upsertQuery(entry.getKey(), entry.getValue())).upsert().replaceOne(document);
+        }
+        try {
+            bulk.execute();
+            writes.addAndGet(batch.size());
+        } catch (BulkWriteException e) {
+            int rejected = 0;
+            for (BulkWriteError error : e.getWriteErrors()) {
+                // the stored position is newer, so the upsert tried to insert a second document with the id
+                if (error.getCode() == DUPLICATE_KEY) {
+                    rejected++;
+                }
+            }
+            int failed = e.getWriteErrors().size() - rejected;
+            writes.addAndGet(batch.size() - rejected - failed);
+            stale.addAndGet(rejected);
+            failures.addAndGet(failed);
+            if (failed > 0) {
+                LOG.log(Level.WARNING, "Failed to write {0} of {1} positions: {2}", new Object[] { failed,
+                        batch.size(), e.getMessage() });
+            }
+        } catch (MongoException e) {
+            failures.addAndGet(batch.size());
+            LOG.log(Level.WARNING, "Failed to write " + batch.size() + " positions", e);
+        } finally {
+            // the hub no longer has to remember the positions, written or dropped
+            LiveLocationHub hub = liveHub;
+            if (hub != null) {
+                for (Map.Entry<String, GeoLocation> entry : batch) {
+                    hub.written(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Build the query of the upsert of a position. A position with a timestamp only matches a stored position which is
+     * not newer or has no timestamp.
+     * 
+     * @param entityId the entity id
+     * @param location the position
+     * @return the query
+     */
+    private static BasicDBObject upsertQuery(String entityId, GeoLocation location) {
+        BasicDBObject query = new BasicDBObject(MONGO_ID, entityId);
+        Date time = location.getTimestamp();
+        if (time != null) {
+            BasicDBList notNewer = new BasicDBList();
+            notNewer.add(new BasicDBObject(GeoLocation.MONGO_TIMESTAMP, new BasicDBObject("$lte", time)));
+            notNewer.add(new BasicDBObject(GeoLocation.MONGO_TIMESTAMP, new BasicDBObject("$exists", false)));
+            query.put("$or", notNewer);
+        }
+        return query;
+    }
+
+    /**
+     * Check whether a position is older than the buffered one. Positions without timestamp are never older.
+     * 
+     * @param location the new position
+     * @param buffered the buffered position
+     * @return <tt>true</tt> if both have a timestamp and the new one is earlier
+     */
+    private static boolean isOlder(GeoLocation location, GeoLocation buffered) {
+        Date time = location.getTimestamp();
+        Date bufferedTime = buffered.getTimestamp();
+        return time != null && bufferedTime != null && time.before(bufferedTime);
+    }
+}
@@ -0,0 +1,257 @@
+package de.jt.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoLocation;
+
+/**
+ * Single flight execution of identical concurrent bounding box queries.
+ * 
+ * The first query of a collection, strategy, filter and bounding box runs on the database; queries arriving while it is
+ * in flight wait for it and receive a copy of its decoded result instead of opening their own cursor. Bounding boxes
+ * are compared after rounding their corners to {@value #DECIMALS} decimals, about a centimeter; a waiting query drops
+ * the shared locations outside of its own box. If the shared query fails, every waiting query fails with the same
+ * cause. A waiting query gives up after a timeout, the shared query continues.
+ * 
+ * Only the executing query is recorded in the metrics of the service and reported to its listener. An instance is
+ * thread-safe and may be shared by several services.
+ * 
+ * @author Hendrik Stein
+ */
+public class QueryCoalescer {
+
+    /** Default time a query waits for a shared query. */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000L;
+
+    /** Number of decimals of the compared bounding box corners. */
+    public static final int DECIMALS = 7;
+
+    /** Scale of the compared bounding box corners. */
+    private static final double SCALE = 1e7d;
+
+    /** Time a query waits for a shared query in nanoseconds. */
+    private final long timeoutNanos;
+
+    /** The queries in flight. */
+    private final ConcurrentMap<Key, FutureTask<List<GeoLocation>>> inFlight = new ConcurrentHashMap<>();
+
+    /** Number of queries executed on the database. */
+    private final AtomicLong executions = new AtomicLong();
+
+    /** Number of queries answered by a shared query. */
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /** Number of queries which gave up waiting. */
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Creates an instance with {@link #DEFAULT_TIMEOUT_MILLIS}.
+     */
+    public QueryCoalescer() {
+        this(DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param timeoutMillis the time a query waits for a shared query in milliseconds
+     * 
+     * @throws IllegalArgumentException if the timeout is not positive
+     */
+    public QueryCoalescer(long timeoutMillis) throws IllegalArgumentException {
+        if (timeoutMillis <= 0L) {
+            throw new IllegalArgumentException("QueryCoalescer: timeout must be positive");
+        }
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Get the number of queries executed on the database.
+     * 
+     * @return the number of executions
+     */
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    /**
+     * Get the number of queries answered by a shared query.
+     * 
+     * @return the number of coalesced queries
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Get the number of queries which gave up waiting for a shared query.
+     * 
+     * @return the number of timeouts
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Get the number of queries in flight.
+     * 
+     * @return the number of distinct running queries
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * Execute a plan or wait for an identical plan in flight.
+     * 
+     * @param namespace the full name of the queried collection
+     * @param plan the plan
+     * @param query the execution of the plan on the database
+     * @return the locations, a list owned by the caller
+     * 
+     * @throws MongoException if the query fails, is interrupted or times out
+     */
+    List<GeoLocation> execute(String namespace, QueryPlan plan, Callable<List<GeoLocation>> query)
+            throws MongoException {
+        Key key = new Key(namespace, plan);
+        FutureTask<List<GeoLocation>> flight = new FutureTask<>(query);
+        FutureTask<List<GeoLocation>> shared = inFlight.putIfAbsent(key, flight);
+        if (shared == null) {
+            executions.incrementAndGet();
+            try {
+                flight.run();
+            } finally {
+                inFlight.remove(key, flight);
+            }
+            try {
+                // the waiting queries still read the shared list
+                return new ArrayList<>(flight.get());
+            } catch (InterruptedException e) {
+                // not possible, the task has completed
+                Thread.currentThread().interrupt();
+                throw new MongoException("QueryCoalescer: interrupted");
+            } catch (ExecutionException e) {
+                throw rethrow(e.getCause());
+            }
+        }
+
+        try {
+            List<GeoLocation> locations = shared.get(timeoutNanos, TimeUnit.NANOSECONDS);
+            coalesced.incrementAndGet();
+            return copyWithin(locations, plan.getBoundingBox());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MongoException("QueryCoalescer: interrupted");
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+            throw new MongoException("QueryCoalescer: timed out waiting for the shared query of "
+                    + plan.getBoundingBox());
+        } catch (ExecutionException e) {
+            throw new MongoException("QueryCoalescer: shared query failed: " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Copy the shared locations within a bounding box.
+     * 
+     * @param locations the shared locations
+     * @param bbox the bounding box of the waiting query
+     * @return the copied list
+     */
+    private static List<GeoLocation> copyWithin(List<GeoLocation> locations, GeoBoundingBox bbox) {
+        List<GeoLocation> copy = new ArrayList<>(locations.size());
+        for (GeoLocation location : locations) {
+            if (bbox.contains(location.getGeoPoint())) {
+                copy.add(location);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Rethrow the failure of the executing query.
+     * 
+     * @param cause the failure
+     * @return never returns
+     */
+    private static RuntimeException rethrow(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new MongoException("QueryCoalescer: " + cause, cause);
+    }
+
+    /**
+     * The identity of a query: collection, strategy, filter and rounded bounding box.
+     */
+    private static final class Key {
+
+        /** The full name of the collection. */
+        private final String namespace;
+
+        /** The strategy. */
+        private final QueryStrategy strategy;
+
+        /** The filter or <tt>null</tt>. */
+        private final DBObject filter;
+
+        /** The rounded corners: south, west, north, east. */
+        private final long[] corners;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param namespace the full name of the collection
+         * @param plan the plan
+         */
+        private Key(String namespace, QueryPlan plan) {
+            this.namespace = namespace;
+            this.strategy = plan.getStrategy();
+            this.filter = plan.getFilter();
+            GeoBoundingBox bbox = plan.getBoundingBox();
+            this.corners = new long[] { Math.round(bbox.getLowerLeft().getLatitude() * SCALE),
+                    Math.round(bbox.getLowerLeft().getLongitude() * SCALE),
+                    Math.round(bbox.getUpperRight().getLatitude() * SCALE),
+                    Math.round(bbox.getUpperRight().getLongitude() * SCALE) };
+        }
+
+        @Override
+        public int hashCode() {
+            int result = namespace.hashCode();
+            result = 31 * result + strategy.hashCode();
+            result = 31 * result + (filter == null ? 0 : filter.hashCode());
+            return 31 * result + Arrays.hashCode(corners);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return namespace.equals(other.namespace) && strategy == other.strategy
+                    && (filter == null ? other.filter == null : filter.equals(other.filter))
+                    && Arrays.equals(corners, other.corners);
+        }
+    }
+}
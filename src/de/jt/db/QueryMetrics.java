@@ -0,0 +1,151 @@
+package de.jt.db;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of query metrics per {@link QueryStrategy}.
+ * 
+ * All counters and histograms are lock-free, so a single instance can be shared by many {@link MongoGeoService}s and
+ * threads. Recording a query does not allocate.
+ * 
+ * @author Hendrik Stein
+ */
+public class QueryMetrics implements QueryMetricsMXBean {
+
+    /** Default JMX object name prefix. */
+    public static final String JMX_DOMAIN = "de.jt.db";
+
+    /** The recorders indexed by {@link QueryStrategy#ordinal()}. */
+    private final StrategyRecorder[] recorders;
+
+    /**
+     * Creates an instance.
+     */
+    public QueryMetrics() {
+        QueryStrategy[] strategies = QueryStrategy.values();
+        recorders = new StrategyRecorder[strategies.length];
+        for (QueryStrategy strategy : strategies) {
+            recorders[strategy.ordinal()] = new StrategyRecorder();
+        }
+    }
+
+    /**
+     * Record a finished query.
+     * 
+     * @param stats the query statistics
+     */
+    public void record(QueryStats stats) {
+        StrategyRecorder recorder = recorders[stats.getStrategy().ordinal()];
+        recorder.queries.incrementAndGet();
+        recorder.subQueries.addAndGet(stats.getSubQueries());
+        recorder.documents.addAndGet(stats.getDocuments());
+        recorder.totalTime.record(stats.getTotalNanos());
+        recorder.decodeTime.record(stats.getDecodeNanos());
+        long timeToFirstDocument = stats.getTimeToFirstDocumentNanos();
+        if (timeToFirstDocument >= 0) {
+            recorder.timeToFirstDocument.record(timeToFirstDocument);
+        }
+    }
+
+    /**
+     * Record a failed query.
+     * 
+     * @param strategy the strategy of the failed query
+     */
+    public void recordFailure(QueryStrategy strategy) {
+        recorders[strategy.ordinal()].failures.incrementAndGet();
+    }
+
+    @Override
+    public QueryMetricsSnapshot getSnapshot() {
+        List<QueryMetricsSnapshot.StrategyMetrics> strategies = new ArrayList<>(recorders.length);
+        for (QueryStrategy strategy : QueryStrategy.values()) {
+            StrategyRecorder recorder = recorders[strategy.ordinal()];
+            strategies.add(new QueryMetricsSnapshot.StrategyMetrics(strategy, recorder.queries.get(), recorder.failures
+                    .get(), recorder.subQueries.get(), recorder.documents.get(), recorder.totalTime.snapshot(),
+                    recorder.timeToFirstDocument.snapshot(), recorder.decodeTime.snapshot()));
+        }
+        return new QueryMetricsSnapshot(strategies);
+    }
+
+    @Override
+    public void reset() {
+        for (StrategyRecorder recorder : recorders) {
+            recorder.queries.set(0L);
+            recorder.failures.set(0L);
+            recorder.subQueries.set(0L);
+            recorder.documents.set(0L);
+            recorder.totalTime.reset();
+            recorder.timeToFirstDocument.reset();
+            recorder.decodeTime.reset();
+        }
+    }
+
+    /**
+     * Register this registry at the platform MBean server.
+     * 
+     * @param name the name used as <tt>name</tt> key of the object name, e.g. the collection name
+     * @return the object name of the registered MBean
+     * 
+     * @throws IllegalStateException if the registration fails
+     */
+    public ObjectName registerMBean(String name) throws IllegalStateException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=QueryMetrics,name=" + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("QueryMetrics: JMX registration failed", e);
+        }
+    }
+
+    /**
+     * Unregister an MBean from the platform MBean server.
+     * 
+     * @param objectName the object name returned by {@link #registerMBean(String)}
+     * 
+     * @throws IllegalStateException if the unregistration fails
+     */
+    public static void unregisterMBean(ObjectName objectName) throws IllegalStateException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("QueryMetrics: JMX unregistration failed", e);
+        }
+    }
+
+    /**
+     * Counters and histograms of a single strategy.
+     */
+    private static final class StrategyRecorder {
+
+        /** Number of queries. */
+        private final AtomicLong queries = new AtomicLong();
+
+        /** Number of failed queries. */
+        private final AtomicLong failures = new AtomicLong();
+
+        /** Number of sub queries. */
+        private final AtomicLong subQueries = new AtomicLong();
+
+        /** Number of documents. */
+        private final AtomicLong documents = new AtomicLong();
+
+        /** Total query time. */
+        private final LatencyHistogram totalTime = new LatencyHistogram();
+
+        /** Time to first document. */
+        private final LatencyHistogram timeToFirstDocument = new LatencyHistogram();
+
+        /** Decode time. */
+        private final LatencyHistogram decodeTime = new LatencyHistogram();
+    }
+}
@@ -0,0 +1,21 @@
+package de.jt.db;
+
+/**
+ * JMX view of the {@link QueryMetrics}.
+ * 
+ * @author Hendrik Stein
+ */
+public interface QueryMetricsMXBean {
+
+    /**
+     * Get a snapshot of the current metrics.
+     * 
+     * @return the snapshot
+     */
+    QueryMetricsSnapshot getSnapshot();
+
+    /**
+     * Reset all metrics.
+     */
+    void reset();
+}
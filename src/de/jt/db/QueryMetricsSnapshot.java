@@ -0,0 +1,187 @@
+package de.jt.db;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable snapshot of the {@link QueryMetrics}.
+ * 
+ * @author Hendrik Stein
+ */
+public class QueryMetricsSnapshot {
+
+    /** The metrics per strategy. */
+    private final List<StrategyMetrics> strategies;
+
+    /**
+     * Creates an instance.
+     * 
+     * @param strategies the metrics per strategy
+     */
+    QueryMetricsSnapshot(List<StrategyMetrics> strategies) {
+        this.strategies = Collections.unmodifiableList(strategies);
+    }
+
+    /**
+     * Get the metrics of all strategies.
+     * 
+     * @return the list of strategy metrics
+     */
+    public List<StrategyMetrics> getStrategies() {
+        return strategies;
+    }
+
+    /**
+     * Get the metrics of a strategy.
+     * 
+     * @param strategy the strategy
+     * @return the metrics of the strategy
+     */
+    public StrategyMetrics get(QueryStrategy strategy) {
+        for (StrategyMetrics metrics : strategies) {
+            if (metrics.getStrategy().equals(strategy.name())) {
+                return metrics;
+            }
+        }
+        throw new IllegalArgumentException("No metrics for strategy " + strategy);
+    }
+
+    @Override
+    public String toString() {
+        return "QueryMetricsSnapshot " + strategies;
+    }
+
+    /**
+     * The metrics of a single {@link QueryStrategy}.
+     */
+    public static class StrategyMetrics {
+
+        /** The strategy name. */
+        private final String strategy;
+
+        /** Number of queries. */
+        private final long queries;
+
+        /** Number of failed queries. */
+        private final long failures;
+
+        /** Number of sub queries. */
+        private final long subQueries;
+
+        /** Number of returned documents. */
+        private final long documents;
+
+        /** Total query time. */
+        private final LatencyHistogram.Snapshot totalTime;
+
+        /** Time to the first document. */
+        private final LatencyHistogram.Snapshot timeToFirstDocument;
+
+        /** Document decode time. */
+        private final LatencyHistogram.Snapshot decodeTime;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param strategy the strategy
+         * @param queries the number of queries
+         * @param failures the number of failed queries
+         * @param subQueries the number of sub queries
+         * @param documents the number of documents
+         * @param totalTime the total time histogram
+         * @param timeToFirstDocument the time to first document histogram
+         * @param decodeTime the decode time histogram
+         */
+        StrategyMetrics(QueryStrategy strategy, long queries, long failures, long subQueries, long documents,
+                LatencyHistogram.Snapshot totalTime, LatencyHistogram.Snapshot timeToFirstDocument,
+                LatencyHistogram.Snapshot decodeTime) {
+            this.strategy = strategy.name();
+            this.queries = queries;
+            this.failures = failures;
+            this.subQueries = subQueries;
+            this.documents = documents;
+            this.totalTime = totalTime;
+            this.timeToFirstDocument = timeToFirstDocument;
+            this.decodeTime = decodeTime;
+        }
+
+        /**
+         * Get the strategy name.
+         * 
+         * @return the strategy name
+         */
+        public String getStrategy() {
+            return strategy;
+        }
+
+        /**
+         * Get the number of queries.
+         * 
+         * @return the number of queries
+         */
+        public long getQueries() {
+            return queries;
+        }
+
+        /**
+         * Get the number of failed queries.
+         * 
+         * @return the number of failed queries
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * Get the number of sub queries.
+         * 
+         * @return the number of sub queries
+         */
+        public long getSubQueries() {
+            return subQueries;
+        }
+
+        /**
+         * Get the number of returned documents.
+         * 
+         * @return the number of documents
+         */
+        public long getDocuments() {
+            return documents;
+        }
+
+        /**
+         * Get the total query time.
+         * 
+         * @return the histogram snapshot
+         */
+        public LatencyHistogram.Snapshot getTotalTime() {
+            return totalTime;
+        }
+
+        /**
+         * Get the time until the first document was returned.
+         * 
+         * @return the histogram snapshot
+         */
+        public LatencyHistogram.Snapshot getTimeToFirstDocument() {
+            return timeToFirstDocument;
+        }
+
+        /**
+         * Get the document decode time per query.
+         * 
+         * @return the histogram snapshot
+         */
+        public LatencyHistogram.Snapshot getDecodeTime() {
+            return decodeTime;
+        }
+
+        @Override
+        public String toString() {
+            return "StrategyMetrics [strategy=" + strategy + ", queries=" + queries + ", failures=" + failures
+                    + ", subQueries=" + subQueries + ", documents=" + documents + ", totalTime=" + totalTime
+                    + ", timeToFirstDocument=" + timeToFirstDocument + ", decodeTime=" + decodeTime + "]";
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package de.jt.db;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.mongodb.DBCursor;
+import com.mongodb.ReadPreference;
+
+/**
+ * Read preference and cursor batch size per {@link QueryType}. Query types without a setting use the defaults of the
+ * collection and the driver. An instance is immutable and thread-safe.
+ * 
+ * <pre>
+ * QueryOptions options = QueryOptions.builder()
+ *         .readPreference(QueryType.SAMPLED, ReadPreference.secondaryPreferred())
+ *         .batchSize(QueryType.LOCATIONS, 1000)
+ *         .build();
+ * </pre>
+ * 
+ * @author Hendrik Stein
+ */
+public final class QueryOptions {
+
+    /** Options without any setting. */
+    public static final QueryOptions DEFAULT = builder().build();
+
+    /** The read preferences. */
+    private final Map<QueryType, ReadPreference> readPreferences;
+
+    /** The batch sizes. */
+    private final Map<QueryType, Integer> batchSizes;
+
+    /**
+     * Creates an instance.
+     * 
+     * @param builder the builder
+     */
+    private QueryOptions(Builder builder) {
+        this.readPreferences = new EnumMap<>(builder.readPreferences);
+        this.batchSizes = new EnumMap<>(builder.batchSizes);
+    }
+
+    /**
+     * Create a builder.
+     * 
+     * @return the builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Get the read preference of a query type.
+     * 
+     * @param type the query type
+     * @return the read preference or <tt>null</tt> for the default of the collection
+     */
+    public ReadPreference getReadPreference(QueryType type) {
+        return readPreferences.get(type);
+    }
+
+    /**
+     * Get the cursor batch size of a query type.
+     * 
+     * @param type the query type
+     * @return the batch size or 0 for the default of the driver
+     */
+    public int getBatchSize(QueryType type) {
+        Integer batchSize = batchSizes.get(type);
+        return batchSize == null ? 0 : batchSize;
+    }
+
+    /**
+     * Apply the options of a query type to a cursor.
+     * 
+     * @param type the query type
+     * @param cursor the cursor, which has not been iterated yet
+     * @return the cursor
+     */
+    DBCursor apply(QueryType type, DBCursor cursor) {
+        ReadPreference readPreference = readPreferences.get(type);
+        if (readPreference != null) {
+            cursor.setReadPreference(readPreference);
+        }
+        Integer batchSize = batchSizes.get(type);
+        if (batchSize != null) {
+            cursor.batchSize(batchSize);
+        }
+        return cursor;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryOptions [readPreferences=" + readPreferences + ", batchSizes=" + batchSizes + "]";
+    }
+
+    /**
+     * Builder of {@link QueryOptions}.
+     */
+    public static final class Builder {
+
+        /** The read preferences. */
+        private final Map<QueryType, ReadPreference> readPreferences = new EnumMap<>(QueryType.class);
+
+        /** The batch sizes. */
+        private final Map<QueryType, Integer> batchSizes = new EnumMap<>(QueryType.class);
+
+        /**
+         * Utility constructor, use {@link QueryOptions#builder()}.
+         */
+        private Builder() {
+            // use QueryOptions.builder()
+        }
+
+        /**
+         * Set the read preference of a query type.
+         * 
+         * @param type the query type
+         * @param readPreference the read preference
+         * @return the builder
+         * 
+         * @throws IllegalArgumentException if a parameter is <tt>null</tt>
+         */
+        public Builder readPreference(QueryType type, ReadPreference readPreference) throws IllegalArgumentException {
+            if (type == null || readPreference == null) {
+                throw new IllegalArgumentException("QueryOptions: null parameter");
+            }
+            readPreferences.put(type, readPreference);
+            return this;
+        }
+
+        /**
+         * Set the cursor batch size of a query type.
+         * 
+         * @param type the query type
+         * @param batchSize the number of documents per batch
+         * @return the builder
+         * 
+         * @throws IllegalArgumentException if the type is <tt>null</tt> or the batch size is not positive
+         */
+        public Builder batchSize(QueryType type, int batchSize) throws IllegalArgumentException {
+            if (type == null || batchSize <= 0) {
+                throw new IllegalArgumentException("QueryOptions: parameter out of bounds");
+            }
+            batchSizes.put(type, batchSize);
+            return this;
+        }
+
+        /**
+         * Build the options.
+         * 
+         * @return the options
+         */
+        public QueryOptions build() {
+            return new QueryOptions(this);
+        }
+    }
+}
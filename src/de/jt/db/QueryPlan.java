@@ -0,0 +1,247 @@
+package de.jt.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import de.jt.model.GeoBoundingBox;
+
+/**
+ * The execution plan of a bounding box query chosen by the {@link QueryPlanner}.
+ * 
+ * @author Hendrik Stein
+ */
+public class QueryPlan {
+
+    /** The queried bounding box. */
+    private final GeoBoundingBox bbox;
+
+    /** The chosen strategy. */
+    private final QueryStrategy strategy;
+
+    /** The bounding boxes of the sub queries. */
+    private final List<GeoBoundingBox> boxes;
+
+    /** The sub queries. */
+    private final List<DBObject> queries;
+
+    /** All considered candidates, including the rejected ones. */
+    private final List<Candidate> candidates;
+
+    /** Whether a non-optimal strategy was chosen to refresh its runtime statistics. */
+    private final boolean exploration;
+
+    /** The additional non spatial condition of every sub query or <tt>null</tt>. */
+    private final DBObject filter;
+
+    /**
+     * Creates an instance.
+     * 
+     * @param bbox the queried bounding box
+     * @param strategy the chosen strategy
+     * @param boxes the bounding boxes of the sub queries
+     * @param queries the sub queries
+     * @param candidates all considered candidates
+     * @param exploration whether a non-optimal strategy was chosen
+     */
+    QueryPlan(GeoBoundingBox bbox, QueryStrategy strategy, List<GeoBoundingBox> boxes, List<DBObject> queries,
+            List<Candidate> candidates, boolean exploration) {
+        this(bbox, strategy, boxes, queries, candidates, exploration, null);
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param bbox the queried bounding box
+     * @param strategy the chosen strategy
+     * @param boxes the bounding boxes of the sub queries
+     * @param queries the sub queries
+     * @param candidates all considered candidates
+     * @param exploration whether a non-optimal strategy was chosen
+     * @param filter the additional condition of every sub query or <tt>null</tt>
+     */
+    private QueryPlan(GeoBoundingBox bbox, QueryStrategy strategy, List<GeoBoundingBox> boxes,
+            List<DBObject> queries, List<Candidate> candidates, boolean exploration, DBObject filter) {
+        this.bbox = bbox;
+        this.strategy = strategy;
+        this.boxes = Collections.unmodifiableList(boxes);
+        this.queries = Collections.unmodifiableList(queries);
+        this.candidates = Collections.unmodifiableList(candidates);
+        this.exploration = exploration;
+        this.filter = filter;
+    }
+
+    /**
+     * Create a plan whose sub queries additionally match a non spatial condition.
+     * 
+     * @param condition the condition on fields other than the geo point
+     * @return the filtered plan
+     */
+    QueryPlan withFilter(DBObject condition) {
+        List<DBObject> filtered = new ArrayList<>(queries.size());
+        for (DBObject query : queries) {
+            BasicDBObject copy = new BasicDBObject(query.toMap());
+            copy.putAll(condition);
+            filtered.add(copy);
+        }
+        return new QueryPlan(bbox, strategy, boxes, filtered, candidates, exploration, condition);
+    }
+
+    /**
+     * Get the queried bounding box.
+     * 
+     * @return the bounding box
+     */
+    public GeoBoundingBox getBoundingBox() {
+        return bbox;
+    }
+
+    /**
+     * Get the chosen strategy.
+     * 
+     * @return the strategy
+     */
+    public QueryStrategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Get the bounding boxes of the sub queries, in the same order as {@link #getQueries()}.
+     * 
+     * @return the list of bounding boxes
+     */
+    public List<GeoBoundingBox> getBoxes() {
+        return boxes;
+    }
+
+    /**
+     * Get the sub queries.
+     * 
+     * @return the list of queries
+     */
+    public List<DBObject> getQueries() {
+        return queries;
+    }
+
+    /**
+     * Get all considered candidates, including the rejected ones.
+     * 
+     * @return the list of candidates
+     */
+    public List<Candidate> getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * Whether a non-optimal strategy was chosen to refresh its runtime statistics.
+     * 
+     * @return <tt>true</tt> if exploring
+     */
+    public boolean isExploration() {
+        return exploration;
+    }
+
+    /**
+     * Get the additional non spatial condition of every sub query.
+     * 
+     * @return the condition or <tt>null</tt> for a purely spatial query
+     */
+    public DBObject getFilter() {
+        return filter;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryPlan [strategy=" + strategy + ", exploration=" + exploration + ", queries=" + queries
+                + ", candidates=" + candidates + ", bbox=" + bbox + "]";
+    }
+
+    /**
+     * A strategy considered by the {@link QueryPlanner}.
+     */
+    public static class Candidate {
+
+        /** The strategy. */
+        private final QueryStrategy strategy;
+
+        /** The estimated cost, {@link Double#POSITIVE_INFINITY} if rejected. */
+        private final double cost;
+
+        /** Whether the cost is based on runtime statistics. */
+        private final boolean measured;
+
+        /** The reason of the rejection, <tt>null</tt> if not rejected. */
+        private final String rejection;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param strategy the strategy
+         * @param cost the estimated cost
+         * @param measured whether the cost is based on runtime statistics
+         * @param rejection the reason of the rejection or <tt>null</tt>
+         */
+        Candidate(QueryStrategy strategy, double cost, boolean measured, String rejection) {
+            this.strategy = strategy;
+            this.cost = cost;
+            this.measured = measured;
+            this.rejection = rejection;
+        }
+
+        /**
+         * Get the strategy.
+         * 
+         * @return the strategy
+         */
+        public QueryStrategy getStrategy() {
+            return strategy;
+        }
+
+        /**
+         * Get the estimated cost. Measured costs are in nanoseconds, static costs in abstract units.
+         * 
+         * @return the cost or {@link Double#POSITIVE_INFINITY} if rejected
+         */
+        public double getCost() {
+            return cost;
+        }
+
+        /**
+         * Whether the cost is based on runtime statistics.
+         * 
+         * @return <tt>true</tt> if measured
+         */
+        public boolean isMeasured() {
+            return measured;
+        }
+
+        /**
+         * Whether the strategy is rejected because it would return wrong results or is not applicable.
+         * 
+         * @return <tt>true</tt> if rejected
+         */
+        public boolean isRejected() {
+            return rejection != null;
+        }
+
+        /**
+         * Get the reason of the rejection.
+         * 
+         * @return the reason or <tt>null</tt>
+         */
+        public String getRejection() {
+            return rejection;
+        }
+
+        @Override
+        public String toString() {
+            if (rejection != null) {
+                return strategy + " rejected: " + rejection;
+            }
+            return strategy + " cost=" + String.format("%.1f", cost) + (measured ? "ns" : "u");
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package de.jt.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoConstants;
+import de.jt.model.GeoLocation;
+
+/**
+ * Cost based planner choosing the cheapest correct {@link QueryStrategy} for a bounding box query.
+ * 
+ * The planner rejects strategies which would return wrong results for the box, e.g. a single $box over the
+ * antimeridian or a spherical $geometry whose great circle edges deviate too far from the box's parallels. The
+ * remaining candidates are ranked by a static cost model based on the available geo indexes, the number of sub
+ * queries and the box area. Once every candidate has enough runtime samples, the measured time per cost unit replaces
+ * the static model. Every n-th query explores a non-optimal candidate to keep the runtime statistics fresh.
+ * 
+ * The spherical $geometry only approximates the box and is therefore opt-in: it is a candidate only after a spherical
+ * tolerance greater than 0 has been set, and is then explored and measured like the exact strategies.
+ * 
+ * An instance is thread-safe and is meant to be shared by all queries on a collection.
+ * 
+ * @author Hendrik Stein
+ */
+public class QueryPlanner {
+
+    /** Default maximum deviation of a spherical edge from the box's parallel in degrees, 0 disables $geometry. */
+    public static final double DEFAULT_SPHERICAL_TOLERANCE = 0d;
+
+    /** Default exploration rate, one in n queries explores a non-optimal strategy. */
+    public static final int DEFAULT_EXPLORATION_RATE = 100;
+
+    /** Cost units of one sub query round trip. */
+    private static final double QUERY_UNITS = 10d;
+
+    /** Cost units of a scan over the whole collection. */
+    private static final double SCAN_UNITS = 1000d;
+
+    /** Runtime samples needed before the measured cost of a strategy is used. */
+    private static final int MIN_SAMPLES = 20;
+
+    /** Weight of a new sample in the moving average. */
+    private static final double EWMA_ALPHA = 0.1d;
+
+    /** Time after which the index information is reloaded. */
+    private static final long INDEX_REFRESH_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    /** Area of the whole world in square degrees. */
+    private static final double WORLD_AREA = (GeoConstants.LONG_MAX - GeoConstants.LONG_MIN)
+            * (GeoConstants.LAT_MAX - GeoConstants.LAT_MIN);
+
+    /** The planned collection. */
+    private final DBCollection dbCol;
+
+    /** Measured nanoseconds per cost unit as double bits, indexed by {@link QueryStrategy#ordinal()}. */
+    private final AtomicLongArray nanosPerUnit = new AtomicLongArray(QueryStrategy.values().length);
+
+    /** Number of runtime samples, indexed by {@link QueryStrategy#ordinal()}. */
+    private final AtomicLongArray samples = new AtomicLongArray(QueryStrategy.values().length);
+
+    /** Number of created plans. */
+    private final AtomicLong planCount = new AtomicLong();
+
+    /** The cached index information. */
+    private volatile Indexes indexes;
+
+    /** Maximum deviation of a spherical edge in degrees. */
+    private volatile double sphericalTolerance = DEFAULT_SPHERICAL_TOLERANCE;
+
+    /** One in n queries explores, 0 disables exploration. */
+    private volatile int explorationRate = DEFAULT_EXPLORATION_RATE;
+
+    /**
+     * Creates an instance.
+     * 
+     * @param dbCol the planned collection
+     */
+    public QueryPlanner(DBCollection dbCol) {
+        this.dbCol = dbCol;
+    }
+
+    /**
+     * Set the maximum deviation of a spherical $geometry edge from the box's parallel. A tolerance greater than 0 opts
+     * in to the approximate $geometry strategy, which may miss or add locations close to the box's edges.
+     * 
+     * @param sphericalTolerance the tolerance in degrees, e.g. 0.001 (about 100m), 0 disables the $geometry strategy
+     */
+    public void setSphericalTolerance(double sphericalTolerance) {
+        this.sphericalTolerance = sphericalTolerance;
+    }
+
+    /**
+     * Set the exploration rate.
+     * 
+     * @param explorationRate one in n queries explores a non-optimal strategy, 0 disables exploration
+     */
+    public void setExplorationRate(int explorationRate) {
+        this.explorationRate = explorationRate;
+    }
+
+    /**
+     * Reload the index information of the collection on the next plan.
+     */
+    public void refreshIndexes() {
+        indexes = null;
+    }
+
+    /**
+     * Create the plan for a bounding box.
+     * 
+     * @param bbox the bounding box
+     * @return the plan
+     */
+    public QueryPlan plan(GeoBoundingBox bbox) {
+        return plan(bbox, null);
+    }
+
+    /**
+     * Create the plan for a bounding box.
+     * 
+     * @param bbox the bounding box
+     * @param listener the listener to notify about the split and the built queries, may be <tt>null</tt>
+     * @return the plan
+     */
+    public QueryPlan plan(GeoBoundingBox bbox, GeoQueryListener listener) {
+        Indexes idx = getIndexes();
+        QueryStrategy[] strategies = QueryStrategy.values();
+
+        // measured costs are only comparable if every viable candidate has them
+        boolean allMeasured = true;
+        for (QueryStrategy strategy : strategies) {
+            if (rejection(strategy, bbox, idx) == null && samples.get(strategy.ordinal()) < MIN_SAMPLES) {
+                allMeasured = false;
+            }
+        }
+
+        List<QueryPlan.Candidate> candidates = new ArrayList<>(strategies.length);
+        QueryPlan.Candidate best = null;
+        QueryPlan.Candidate leastSampled = null;
+        for (QueryStrategy strategy : strategies) {
+            String rejection = rejection(strategy, bbox, idx);
+            QueryPlan.Candidate candidate;
+            if (rejection != null) {
+                candidate = new QueryPlan.Candidate(strategy, Double.POSITIVE_INFINITY, false, rejection);
+            } else {
+                double units = costUnits(strategy, bbox, idx);
+                double cost = allMeasured ? units * Double.longBitsToDouble(nanosPerUnit.get(strategy.ordinal()))
+                        : units;
+                candidate = new QueryPlan.Candidate(strategy, cost, allMeasured, null);
+                if (best == null || cost < best.getCost()) {
+                    best = candidate;
+                }
+            }
+            candidates.add(candidate);
+        }
+
+        QueryStrategy chosen = best.getStrategy();
+        boolean exploration = false;
+        int rate = explorationRate;
+        if (rate > 0 && planCount.incrementAndGet() % rate == 0) {
+            for (QueryPlan.Candidate candidate : candidates) {
+                if (!candidate.isRejected()
+                        && candidate != best
+                        && (leastSampled == null || samples.get(candidate.getStrategy().ordinal()) < samples
+                                .get(leastSampled.getStrategy().ordinal()))) {
+                    leastSampled = candidate;
+                }
+            }
+            if (leastSampled != null) {
+                chosen = leastSampled.getStrategy();
+                exploration = true;
+            }
+        }
+
+        List<GeoBoundingBox> boxes = split(bbox, chosen, listener);
+        List<DBObject> queries = new ArrayList<>(boxes.size());
+        for (GeoBoundingBox box : boxes) {
+            long start = listener == null ? 0L : System.nanoTime();
+            queries.add(buildQuery(box, chosen));
+            if (listener != null) {
+                listener.queryBuilt(box, System.nanoTime() - start);
+            }
+        }
+        return new QueryPlan(bbox, chosen, boxes, queries, candidates, exploration);
+    }
+
+    /**
+     * Feed the runtime statistics of an executed plan. Plans with a filter are ignored.
+     * 
+     * @param plan the executed plan
+     * @param stats the query statistics
+     */
+    public void record(QueryPlan plan, QueryStats stats) {
+        Indexes idx = indexes;
+        long nanos = stats.getTotalNanos();
+        // the cost model knows only the box, filtered queries would distort the measured costs
+        if (idx == null || nanos < 0 || plan.getFilter() != null) {
+            return;
+        }
+        int ordinal = plan.getStrategy().ordinal();
+        double sample = nanos / costUnits(plan.getStrategy(), plan.getBoundingBox(), idx);
+        long count = samples.getAndIncrement(ordinal);
+        while (true) {
+            long currentBits = nanosPerUnit.get(ordinal);
+            double current = Double.longBitsToDouble(currentBits);
+            double updated = count == 0 ? sample : current + EWMA_ALPHA * (sample - current);
+            if (nanosPerUnit.compareAndSet(ordinal, currentBits, Double.doubleToLongBits(updated))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the reason why a strategy is not applicable to a bounding box.
+     * 
+     * @param strategy the strategy
+     * @param bbox the bounding box
+     * @param idx the available indexes
+     * @return the reason or <tt>null</tt> if the strategy is applicable
+     */
+    private String rejection(QueryStrategy strategy, GeoBoundingBox bbox, Indexes idx) {
+        switch (strategy) {
+        case SINGLE_BOX:
+        case POLYGON:
+            return bbox.isOverAntimeridian() ? "overlaps the antimeridian" : null;
+        case ANTIMERIDIAN_SPLIT:
+            return bbox.isOverAntimeridian() ? null : "does not overlap the antimeridian";
+        case GEOMETRY:
+            if (sphericalTolerance <= 0d) {
+                return "approximate strategy not enabled";
+            }
+            if (!idx.sphere) {
+                return "no " + MongoConstants.INDEX_GEO_SPHERE + " index";
+            }
+            if (bbox.getLongitudeSpan() >= (GeoConstants.LONG_MAX - GeoConstants.LONG_MIN) / 2) {
+                return "does not fit into a hemisphere";
+            }
+            double deviation = Math.max(sphericalDeviation(bbox.getLowerLeft().getLatitude(), bbox),
+                    sphericalDeviation(bbox.getUpperRight().getLatitude(), bbox));
+            return deviation > sphericalTolerance ? "spherical edges deviate " + deviation + " degrees" : null;
+        default:
+            return "unknown strategy";
+        }
+    }
+
+    /**
+     * Get the static cost units of a strategy.
+     * 
+     * @param strategy the strategy
+     * @param bbox the bounding box
+     * @param idx the available indexes
+     * @return the cost units
+     */
+    private static double costUnits(QueryStrategy strategy, GeoBoundingBox bbox, Indexes idx) {
+        double areaFraction = bbox.getLongitudeSpan() * bbox.getLatitudeSpan() / WORLD_AREA;
+        switch (strategy) {
+        case SINGLE_BOX:
+            return QUERY_UNITS + scanUnits(idx.planar, areaFraction);
+        case ANTIMERIDIAN_SPLIT:
+            return 2 * QUERY_UNITS + scanUnits(idx.planar, areaFraction);
+        case POLYGON:
+            // point in polygon test is more expensive than the $box range check
+            return QUERY_UNITS + 1.3d * scanUnits(idx.planar, areaFraction);
+        case GEOMETRY:
+            // spherical geometry and the covering of the 2dsphere index
+            return QUERY_UNITS + 1.6d * scanUnits(idx.sphere, areaFraction);
+        default:
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Get the scan units of a query.
+     * 
+     * @param indexed whether a suitable index exists
+     * @param areaFraction the fraction of the world covered by the box
+     * @return the scan units
+     */
+    private static double scanUnits(boolean indexed, double areaFraction) {
+        return indexed ? SCAN_UNITS * areaFraction : SCAN_UNITS;
+    }
+
+    /**
+     * Get the maximum deviation of the great circle between the two corners of a box at the given latitude from the
+     * parallel.
+     * 
+     * @param latitude the latitude of the edge
+     * @param bbox the bounding box
+     * @return the deviation in degrees
+     */
+    static double sphericalDeviation(double latitude, GeoBoundingBox bbox) {
+        double halfSpan = Math.toRadians(bbox.getLongitudeSpan() / 2);
+        double lat = Math.toRadians(latitude);
+        double midLatitude = Math.atan(Math.tan(lat) / Math.cos(halfSpan));
+        return Math.abs(Math.toDegrees(midLatitude - lat));
+    }
+
+    /**
+     * Split the bounding box into the boxes of the sub queries.
+     * 
+     * @param bbox the bounding box
+     * @param strategy the chosen strategy
+     * @param listener the listener to notify, may be <tt>null</tt>
+     * @return the list of boxes
+     */
+    private static List<GeoBoundingBox> split(GeoBoundingBox bbox, QueryStrategy strategy, GeoQueryListener listener) {
+        if (strategy != QueryStrategy.ANTIMERIDIAN_SPLIT) {
+            return Collections.singletonList(bbox);
+        }
+        long start = listener == null ? 0L : System.nanoTime();
+        List<GeoBoundingBox> boxes = bbox.splitByAntimeridian();
+        if (listener != null) {
+            listener.antimeridianSplit(bbox, boxes, System.nanoTime() - start);
+        }
+        return boxes;
+    }
+
+    /**
+     * Build the query of a sub box.
+     * 
+     * @param box the sub box
+     * @param strategy the chosen strategy
+     * @return the query
+     */
+    private static DBObject buildQuery(GeoBoundingBox box, QueryStrategy strategy) {
+        MongoQueryBuilder builder = new MongoQueryBuilder();
+        builder.put(GeoLocation.MONGO_GEOPOINT);
+        switch (strategy) {
+        case POLYGON:
+            builder.geoWithinPolygon(box);
+            break;
+        case GEOMETRY:
+            builder.geoWithinRingPolygon(box);
+            break;
+        default:
+            builder.geoWithinBox(box);
+            break;
+        }
+        return builder.build();
+    }
+
+    /**
+     * Get the cached index information, reload it if outdated.
+     * 
+     * @return the index information
+     */
+    private Indexes getIndexes() {
+        Indexes idx = indexes;
+        if (idx == null || System.nanoTime() - idx.loadedNanos > INDEX_REFRESH_NANOS) {
+            boolean planar = false;
+            boolean sphere = false;
+            for (DBObject index : dbCol.getIndexInfo()) {
+                Object type = ((DBObject) index.get("key")).get(GeoLocation.MONGO_GEOPOINT);
+                planar |= MongoConstants.INDEX_GEO.equals(type);
+                sphere |= MongoConstants.INDEX_GEO_SPHERE.equals(type);
+            }
+            idx = new Indexes(planar, sphere);
+            indexes = idx;
+        }
+        return idx;
+    }
+
+    /**
+     * The geo indexes of the collection.
+     */
+    private static final class Indexes {
+
+        /** A 2d index exists. */
+        private final boolean planar;
+
+        /** A 2dsphere index exists. */
+        private final boolean sphere;
+
+        /** Load time in nanoseconds. */
+        private final long loadedNanos = System.nanoTime();
+
+        /**
+         * Creates an instance.
+         * 
+         * @param planar a 2d index exists
+         * @param sphere a 2dsphere index exists
+         */
+        Indexes(boolean planar, boolean sphere) {
+            this.planar = planar;
+            this.sphere = sphere;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package de.jt.db;
+
+/**
+ * Statistics of a single geo query execution collected by the {@link MongoGeoService}.
+ * 
+ * An instance is confined to the thread executing the query.
+ * 
+ * @author Hendrik Stein
+ */
+public class QueryStats {
+
+    /** Every n-th decoded document is timed, n must be a power of two. */
+    static final int DECODE_SAMPLE_RATE = 16;
+
+    /** The used strategy. */
+    private final QueryStrategy strategy;
+
+    /** Start time in nanoseconds. */
+    private final long startNanos;
+
+    /** Time of the first returned document in nanoseconds, or -1 if none has been returned. */
+    private long firstDocumentNanos = -1L;
+
+    /** End time in nanoseconds. */
+    private long endNanos = -1L;
+
+    /** Number of executed sub queries. */
+    private int subQueries;
+
+    /** Number of returned documents. */
+    private int documents;
+
+    /** Sum of the sampled decode times in nanoseconds. */
+    private long sampledDecodeNanos;
+
+    /** Number of sampled decode times. */
+    private int decodeSamples;
+
+    /**
+     * Creates an instance and starts the timer.
+     * 
+     * @param strategy the used query strategy
+     */
+    public QueryStats(QueryStrategy strategy) {
+        this(strategy, System.nanoTime());
+    }
+
+    /**
+     * Creates an instance with a timer started earlier.
+     * 
+     * @param strategy the used query strategy
+     * @param startNanos the start time in nanoseconds
+     */
+    QueryStats(QueryStrategy strategy, long startNanos) {
+        this.strategy = strategy;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Mark the start of a sub query.
+     */
+    void subQueryStarted() {
+        subQueries++;
+    }
+
+    /**
+     * Mark a document as returned by the cursor.
+     * 
+     * @return <tt>true</tt> if the decoding of this document should be timed
+     */
+    boolean documentReceived() {
+        if (firstDocumentNanos < 0) {
+            firstDocumentNanos = System.nanoTime();
+        }
+        return (documents++ & (DECODE_SAMPLE_RATE - 1)) == 0;
+    }
+
+    /**
+     * Add a sampled decode time.
+     * 
+     * @param nanos the decode time in nanoseconds
+     */
+    void decodeSampled(long nanos) {
+        sampledDecodeNanos += nanos;
+        decodeSamples++;
+    }
+
+    /**
+     * Stop the timer.
+     */
+    void finish() {
+        endNanos = System.nanoTime();
+    }
+
+    /**
+     * Get the used strategy.
+     * 
+     * @return the strategy
+     */
+    public QueryStrategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Get the number of executed sub queries.
+     * 
+     * @return the number of sub queries
+     */
+    public int getSubQueries() {
+        return subQueries;
+    }
+
+    /**
+     * Get the number of returned documents.
+     * 
+     * @return the number of documents
+     */
+    public int getDocuments() {
+        return documents;
+    }
+
+    /**
+     * Get the time until the first document was returned.
+     * 
+     * @return the time in nanoseconds, or -1 if no document was returned
+     */
+    public long getTimeToFirstDocumentNanos() {
+        return firstDocumentNanos < 0 ? -1L : firstDocumentNanos - startNanos;
+    }
+
+    /**
+     * Get the total query time.
+     * 
+     * @return the time in nanoseconds, or -1 if the query is still running
+     */
+    public long getTotalNanos() {
+        return endNanos < 0 ? -1L : endNanos - startNanos;
+    }
+
+    /**
+     * Get the estimated time spent decoding documents. Only every {@value #DECODE_SAMPLE_RATE}th document is timed, the
+     * result is extrapolated to all documents.
+     * 
+     * @return the decode time in nanoseconds
+     */
+    public long getDecodeNanos() {
+        if (decodeSamples == 0) {
+            return 0L;
+        }
+        return sampledDecodeNanos * documents / decodeSamples;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryStats [strategy=" + strategy + ", subQueries=" + subQueries + ", documents=" + documents
+                + ", timeToFirstDocumentNanos=" + getTimeToFirstDocumentNanos() + ", totalNanos=" + getTotalNanos()
+                + ", decodeNanos=" + getDecodeNanos() + "]";
+    }
+}
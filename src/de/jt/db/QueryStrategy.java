@@ -0,0 +1,21 @@
+package de.jt.db;
+
+/**
+ * The strategy used to execute a bounding box query.
+ * 
+ * @author Hendrik Stein
+ */
+public enum QueryStrategy {
+
+    /** One $geoWithin $box query for a box which does not overlap the antimeridian. */
+    SINGLE_BOX,
+
+    /** Two $geoWithin $box queries, one for each side of the antimeridian. */
+    ANTIMERIDIAN_SPLIT,
+
+    /** One $geoWithin $polygon query for a box which does not overlap the antimeridian. */
+    POLYGON,
+
+    /** One spherical $geoWithin $geometry query, which may overlap the antimeridian. */
+    GEOMETRY;
+}
@@ -0,0 +1,19 @@
+package de.jt.db;
+
+/**
+ * The kind of a query issued by the {@link MongoGeoService}, used to configure read preference and batch size per use
+ * case in {@link QueryOptions}.
+ * 
+ * @author Hendrik Stein
+ */
+public enum QueryType {
+
+    /** All locations of a bounding box, as a list or streamed. */
+    LOCATIONS,
+
+    /** The top ranked locations of a bounding box. */
+    RANKED,
+
+    /** The count and sample of an oversized bounding box. */
+    SAMPLED;
+}
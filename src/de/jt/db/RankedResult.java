@@ -0,0 +1,54 @@
+package de.jt.db;
+
+import java.util.Collections;
+import java.util.List;
+
+import de.jt.model.GeoLocation;
+
+/**
+ * The top ranked locations of a bounding box query with a limit.
+ * 
+ * @author Hendrik Stein
+ */
+public class RankedResult {
+
+    /** The locations, best ranked first. */
+    private final List<GeoLocation> locations;
+
+    /** Whether more locations matched than returned. */
+    private final boolean truncated;
+
+    /**
+     * Creates an instance.
+     * 
+     * @param locations the locations, best ranked first
+     * @param truncated whether more locations matched than returned
+     */
+    RankedResult(List<GeoLocation> locations, boolean truncated) {
+        this.locations = Collections.unmodifiableList(locations);
+        this.truncated = truncated;
+    }
+
+    /**
+     * Get the locations, best ranked first.
+     * 
+     * @return the list of locations
+     */
+    public List<GeoLocation> getLocations() {
+        return locations;
+    }
+
+    /**
+     * Whether more locations within the bounding box matched than returned.
+     * 
+     * @return <tt>true</tt> if the result was truncated by the limit
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public String toString() {
+        return "RankedResult [size=" + locations.size() + ", truncated=" + truncated + "]";
+    }
+}
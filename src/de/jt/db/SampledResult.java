@@ -0,0 +1,70 @@
+package de.jt.db;
+
+import java.util.Collections;
+import java.util.List;
+
+import de.jt.model.GeoLocation;
+
+/**
+ * The result of a bounding box query which returns a spatially representative sample if the box holds too many
+ * locations.
+ * 
+ * @author Hendrik Stein
+ */
+public class SampledResult {
+
+    /** The returned locations. */
+    private final List<GeoLocation> locations;
+
+    /** The number of locations within the bounding box. */
+    private final long estimatedCount;
+
+    /** Whether the locations are a sample. */
+    private final boolean sampled;
+
+    /**
+     * Creates an instance.
+     * 
+     * @param locations the returned locations
+     * @param estimatedCount the number of locations within the bounding box
+     * @param sampled whether the locations are a sample
+     */
+    SampledResult(List<GeoLocation> locations, long estimatedCount, boolean sampled) {
+        this.locations = Collections.unmodifiableList(locations);
+        this.estimatedCount = estimatedCount;
+        this.sampled = sampled;
+    }
+
+    /**
+     * Get the returned locations.
+     * 
+     * @return the list of locations
+     */
+    public List<GeoLocation> getLocations() {
+        return locations;
+    }
+
+    /**
+     * Get the number of locations within the bounding box, counted on the geo index when the query started.
+     * 
+     * @return the estimated count
+     */
+    public long getEstimatedCount() {
+        return estimatedCount;
+    }
+
+    /**
+     * Whether the returned locations are a sample of all locations within the bounding box.
+     * 
+     * @return <tt>true</tt> if sampled
+     */
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    @Override
+    public String toString() {
+        return "SampledResult [size=" + locations.size() + ", estimatedCount=" + estimatedCount + ", sampled="
+                + sampled + "]";
+    }
+}
@@ -0,0 +1,459 @@
+package de.jt.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+import de.jt.model.GeoBoundingBox;
+
+/**
+ * Slow query log for the {@link MongoGeoService}.
+ * 
+ * Queries slower than a threshold are aggregated by their shape (strategy, size and latitude band of the bounding box).
+ * For each shape the query plan is captured with {@link com.mongodb.DBCursor#explain()} at most once per explain
+ * interval on a background thread and logged together with the aggregated timings. The request thread never waits
+ * for an explain.
+ * 
+ * @author Hendrik Stein
+ */
+public class SlowQueryLog {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(SlowQueryLog.class.getName());
+
+    /** Default minimum time between two explains of the same shape. */
+    public static final long DEFAULT_EXPLAIN_INTERVAL_MILLIS = 60000L;
+
+    /** Maximum number of pending explains, further explains are dropped until the next slow query of their shape. */
+    private static final int MAX_PENDING_EXPLAINS = 16;
+
+    /** Maximum number of distinct aggregated shapes. */
+    private static final int MAX_SHAPES = 1024;
+
+    /** Latitude band size in degrees used for the shape key. */
+    private static final int LATITUDE_BAND = 30;
+
+    /** The slow query threshold in nanoseconds. */
+    private final long thresholdNanos;
+
+    /** Minimum time between two explains of the same shape in nanoseconds. */
+    private final long explainIntervalNanos;
+
+    /** The aggregated shapes. */
+    private final ConcurrentMap<String, Shape> shapes = new ConcurrentHashMap<>();
+
+    /** The background explain executor. */
+    private final ThreadPoolExecutor explainExecutor;
+
+    /**
+     * Creates an instance with the {@link #DEFAULT_EXPLAIN_INTERVAL_MILLIS}.
+     * 
+     * @param thresholdMillis the slow query threshold in milliseconds
+     */
+    public SlowQueryLog(long thresholdMillis) {
+        this(thresholdMillis, DEFAULT_EXPLAIN_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param thresholdMillis the slow query threshold in milliseconds
+     * @param explainIntervalMillis the minimum time between two explains of the same shape in milliseconds
+     * 
+     * @throws IllegalArgumentException if a parameter is negative
+     */
+    public SlowQueryLog(long thresholdMillis, long explainIntervalMillis) throws IllegalArgumentException {
+        if (thresholdMillis < 0 || explainIntervalMillis < 0) {
+            throw new IllegalArgumentException("SlowQueryLog: negative parameter");
+        }
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.explainIntervalNanos = TimeUnit.MILLISECONDS.toNanos(explainIntervalMillis);
+        this.explainExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING_EXPLAINS), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "geo-slow-query-explain");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Check if a finished query is slow.
+     * 
+     * @param stats the query statistics
+     * @return <tt>true</tt> if the query exceeded the threshold
+     */
+    public boolean isSlow(QueryStats stats) {
+        return stats.getTotalNanos() >= thresholdNanos;
+    }
+
+    /**
+     * Record a slow query. The explain, if due for this shape, is executed in the background.
+     * 
+     * @param dbCol the queried collection
+     * @param bbox the queried bounding box
+     * @param stats the query statistics
+     * @param queries the executed queries
+     */
+    public void record(DBCollection dbCol, GeoBoundingBox bbox, QueryStats stats, List<DBObject> queries) {
+        String key = shapeKey(bbox, stats.getStrategy());
+        Shape shape = shapes.get(key);
+        if (shape == null) {
+            if (shapes.size() >= MAX_SHAPES) {
+                return;
+            }
+            Shape newShape = new Shape(key);
+            shape = shapes.putIfAbsent(key, newShape);
+            if (shape == null) {
+                shape = newShape;
+            }
+        }
+        shape.add(bbox, stats.getTotalNanos());
+
+        if (shape.tryAcquireExplain(explainIntervalNanos)) {
+            try {
+                explainExecutor.execute(new Explain(dbCol, shape, bbox, stats, queries));
+            } catch (RejectedExecutionException e) {
+                // too many pending explains, the next slow query of the shape may explain it
+                shape.releaseExplain();
+            }
+        }
+    }
+
+    /**
+     * Get the aggregated slow query shapes ordered by their accumulated time, the worst first.
+     * 
+     * @param limit the maximum number of shapes
+     * @return the list of shapes
+     */
+    public List<Shape> getWorstShapes(int limit) {
+        List<Shape> result = new ArrayList<>(shapes.values());
+        Collections.sort(result, new Comparator<Shape>() {
+            @Override
+            public int compare(Shape s1, Shape s2) {
+                return Long.compare(s2.getTotalNanos(), s1.getTotalNanos());
+            }
+        });
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    /**
+     * Clear all aggregated shapes.
+     */
+    public void clear() {
+        shapes.clear();
+    }
+
+    /**
+     * Stop the background explain thread. Pending explains are discarded.
+     */
+    public void close() {
+        explainExecutor.shutdownNow();
+    }
+
+    /**
+     * Create the shape key of a query. Boxes of the same strategy, power-of-two size class and latitude band share a
+     * key.
+     * 
+     * @param bbox the bounding box
+     * @param strategy the query strategy
+     * @return the shape key
+     */
+    static String shapeKey(GeoBoundingBox bbox, QueryStrategy strategy) {
+        int lonClass = Math.getExponent(Math.max(bbox.getLongitudeSpan(), Double.MIN_NORMAL));
+        int latClass = Math.getExponent(Math.max(bbox.getLatitudeSpan(), Double.MIN_NORMAL));
+        int band = (int) Math.floor(bbox.getLowerLeft().getLatitude() / LATITUDE_BAND) * LATITUDE_BAND;
+        return strategy + "[lon~2^" + lonClass + ", lat~2^" + latClass + ", band=" + band + "]";
+    }
+
+    /**
+     * Extract a numeric field of an explain result.
+     * 
+     * @param explain the explain result
+     * @param legacyKey the key of MongoDB 2.x explain output
+     * @param statsKey the key below <tt>executionStats</tt> of MongoDB 3.x explain output
+     * @return the value or -1 if not present
+     */
+    static long explainValue(DBObject explain, String legacyKey, String statsKey) {
+        Object value = explain.get(legacyKey);
+        if (value == null && explain.get("executionStats") instanceof DBObject) {
+            value = ((DBObject) explain.get("executionStats")).get(statsKey);
+        }
+        return value instanceof Number ? ((Number) value).longValue() : -1L;
+    }
+
+    /**
+     * Extract the plan description of an explain result.
+     * 
+     * @param explain the explain result
+     * @return the plan description
+     */
+    static String explainPlan(DBObject explain) {
+        Object cursor = explain.get("cursor");
+        if (cursor != null) {
+            return cursor.toString();
+        }
+        Object planner = explain.get("queryPlanner");
+        if (planner instanceof DBObject) {
+            return String.valueOf(((DBObject) planner).get("winningPlan"));
+        }
+        return "unknown";
+    }
+
+    /**
+     * Aggregated statistics of slow queries with the same shape.
+     */
+    public static class Shape {
+
+        /** The shape key. */
+        private final String key;
+
+        /** Number of slow queries. */
+        private final AtomicLong count = new AtomicLong();
+
+        /** Accumulated time in nanoseconds. */
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        /** Maximum time in nanoseconds. */
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        /** Time of the last explain in nanoseconds. */
+        private final AtomicLong lastExplainNanos = new AtomicLong(Long.MIN_VALUE);
+
+        /** The slowest bounding box. */
+        private volatile GeoBoundingBox worstBox;
+
+        /** The plan of the last explain. */
+        private volatile String plan;
+
+        /** Scanned index entries of the last explain. */
+        private volatile long nscanned = -1L;
+
+        /** Scanned documents of the last explain. */
+        private volatile long nscannedObjects = -1L;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param key the shape key
+         */
+        Shape(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Add a slow query.
+         * 
+         * @param bbox the bounding box
+         * @param nanos the query time
+         */
+        void add(GeoBoundingBox bbox, long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long currentMax = maxNanos.get();
+            while (nanos > currentMax) {
+                if (maxNanos.compareAndSet(currentMax, nanos)) {
+                    worstBox = bbox;
+                    break;
+                }
+                currentMax = maxNanos.get();
+            }
+        }
+
+        /**
+         * Try to acquire the right to explain this shape.
+         * 
+         * @param intervalNanos the minimum time between two explains
+         * @return <tt>true</tt> if the caller should run the explain
+         */
+        boolean tryAcquireExplain(long intervalNanos) {
+            long now = System.nanoTime();
+            long last = lastExplainNanos.get();
+            if (last != Long.MIN_VALUE && now - last < intervalNanos) {
+                return false;
+            }
+            return lastExplainNanos.compareAndSet(last, now);
+        }
+
+        /**
+         * Release the right to explain this shape acquired by a dropped explain.
+         */
+        void releaseExplain() {
+            lastExplainNanos.set(Long.MIN_VALUE);
+        }
+
+        /**
+         * Store the result of an explain.
+         * 
+         * @param plan the plan description
+         * @param nscanned the scanned index entries
+         * @param nscannedObjects the scanned documents
+         */
+        void explained(String plan, long nscanned, long nscannedObjects) {
+            this.plan = plan;
+            this.nscanned = nscanned;
+            this.nscannedObjects = nscannedObjects;
+        }
+
+        /**
+         * Get the shape key.
+         * 
+         * @return the key
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Get the number of slow queries.
+         * 
+         * @return the count
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Get the accumulated time.
+         * 
+         * @return the time in nanoseconds
+         */
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        /**
+         * Get the maximum time.
+         * 
+         * @return the time in nanoseconds
+         */
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        /**
+         * Get the slowest bounding box.
+         * 
+         * @return the bounding box
+         */
+        public GeoBoundingBox getWorstBox() {
+            return worstBox;
+        }
+
+        /**
+         * Get the plan of the last explain.
+         * 
+         * @return the plan or <tt>null</tt> if not explained yet
+         */
+        public String getPlan() {
+            return plan;
+        }
+
+        /**
+         * Get the scanned index entries of the last explain, summed over all sub queries.
+         * 
+         * @return nscanned or -1 if unknown
+         */
+        public long getNscanned() {
+            return nscanned;
+        }
+
+        /**
+         * Get the scanned documents of the last explain, summed over all sub queries.
+         * 
+         * @return nscannedObjects or -1 if unknown
+         */
+        public long getNscannedObjects() {
+            return nscannedObjects;
+        }
+
+        @Override
+        public String toString() {
+            return "SlowQueryLog.Shape [key=" + key + ", count=" + getCount() + ", totalMillis="
+                    + TimeUnit.NANOSECONDS.toMillis(getTotalNanos()) + ", maxMillis="
+                    + TimeUnit.NANOSECONDS.toMillis(getMaxNanos()) + ", plan=" + plan + ", nscanned=" + nscanned
+                    + ", nscannedObjects=" + nscannedObjects + ", worstBox=" + worstBox + "]";
+        }
+    }
+
+    /**
+     * Background explain of a slow query.
+     */
+    private static final class Explain implements Runnable {
+
+        /** The queried collection. */
+        private final DBCollection dbCol;
+
+        /** The shape to update. */
+        private final Shape shape;
+
+        /** The queried bounding box. */
+        private final GeoBoundingBox bbox;
+
+        /** The query statistics. */
+        private final QueryStats stats;
+
+        /** The executed queries. */
+        private final List<DBObject> queries;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param dbCol the queried collection
+         * @param shape the shape to update
+         * @param bbox the queried bounding box
+         * @param stats the query statistics
+         * @param queries the executed queries
+         */
+        Explain(DBCollection dbCol, Shape shape, GeoBoundingBox bbox, QueryStats stats, List<DBObject> queries) {
+            this.dbCol = dbCol;
+            this.shape = shape;
+            this.bbox = bbox;
+            this.stats = stats;
+            this.queries = queries;
+        }
+
+        @Override
+        public void run() {
+            try {
+                StringBuilder plans = new StringBuilder();
+                long nscanned = 0L;
+                long nscannedObjects = 0L;
+                for (DBObject query : queries) {
+                    DBObject explain = dbCol.find(query).explain();
+                    if (plans.length() > 0) {
+                        plans.append(", ");
+                    }
+                    plans.append(explainPlan(explain));
+                    nscanned += Math.max(0L, explainValue(explain, "nscanned", "totalKeysExamined"));
+                    nscannedObjects += Math.max(0L, explainValue(explain, "nscannedObjects", "totalDocsExamined"));
+                }
+                shape.explained(plans.toString(), nscanned, nscannedObjects);
+
+                LOG.log(Level.WARNING, "Slow geo query {0}: {1} ms, {2} documents, plan [{3}], nscanned {4}, "
+                        + "nscannedObjects {5}, bbox {6}, shape total {7} queries / {8} ms",
+                        new Object[] { shape.getKey(), TimeUnit.NANOSECONDS.toMillis(stats.getTotalNanos()),
+                                stats.getDocuments(), plans, nscanned, nscannedObjects, bbox, shape.getCount(),
+                                TimeUnit.NANOSECONDS.toMillis(shape.getTotalNanos()) });
+            } catch (RuntimeException e) {
+                LOG.log(Level.FINE, "Explain of slow geo query failed", e);
+            }
+        }
+    }
+}
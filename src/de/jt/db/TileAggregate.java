@@ -0,0 +1,108 @@
+package de.jt.db;
+
+import de.jt.model.GeoPoint;
+
+/**
+ * The pre-aggregated locations of a map tile, see {@link TileAggregator}.
+ * 
+ * @author Hendrik Stein
+ */
+public class TileAggregate {
+
+    /** The zoom level. */
+    private final int zoom;
+
+    /** The tile column. */
+    private final int x;
+
+    /** The tile row. */
+    private final int y;
+
+    /** The number of locations. */
+    private final long count;
+
+    /** The mean position of the locations. */
+    private final GeoPoint centroid;
+
+    /** The id of a location of the tile. */
+    private final Object sampleId;
+
+    /**
+     * Creates an instance.
+     * 
+     * @param zoom the zoom level
+     * @param x the tile column
+     * @param y the tile row
+     * @param count the number of locations
+     * @param centroid the mean position of the locations
+     * @param sampleId the id of a location of the tile
+     */
+    TileAggregate(int zoom, int x, int y, long count, GeoPoint centroid, Object sampleId) {
+        this.zoom = zoom;
+        this.x = x;
+        this.y = y;
+        this.count = count;
+        this.centroid = centroid;
+        this.sampleId = sampleId;
+    }
+
+    /**
+     * Get the zoom level.
+     * 
+     * @return the zoom level
+     */
+    public int getZoom() {
+        return zoom;
+    }
+
+    /**
+     * Get the tile column, 0 at the antimeridian.
+     * 
+     * @return the column
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Get the tile row, 0 in the north.
+     * 
+     * @return the row
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Get the number of locations.
+     * 
+     * @return the number of locations
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the mean position of the locations.
+     * 
+     * @return the centroid
+     */
+    public GeoPoint getCentroid() {
+        return centroid;
+    }
+
+    /**
+     * Get the document id of a location of the tile, initially the first one added. It is cleared when that location
+     * leaves the tile and set again by the next location added.
+     * 
+     * @return the sample id or <tt>null</tt>
+     */
+    public Object getSampleId() {
+        return sampleId;
+    }
+
+    @Override
+    public String toString() {
+        return "TileAggregate [" + zoom + "/" + x + "/" + y + ", count=" + count + ", centroid=" + centroid + "]";
+    }
+}
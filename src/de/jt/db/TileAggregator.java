@@ -0,0 +1,398 @@
+package de.jt.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+
+/**
+ * Materialized per zoom level aggregates of the locations of a collection: count, centroid and a sample id per map
+ * tile.
+ * 
+ * Each zoom level has its own collection with one document per non-empty tile, named after the given prefix and the
+ * zoom level. The aggregates are maintained incrementally by the write path, see
+ * {@link GPXImporter#setTileAggregator(TileAggregator)} and
+ * {@link PartitionedGeoService#setTileAggregator(TileAggregator)}: the changes of a write are summed up per tile and
+ * applied with one unordered bulk of $inc upserts per zoom level. A zoomed out view then reads the few tile documents
+ * of its bounding box instead of scanning its locations.
+ * 
+ * The centroid is kept as the sums of the latitudes and longitudes; a tile does not span the antimeridian, so the mean
+ * longitude is well defined. The sample id is the id of the first location added to a tile. When that location is
+ * removed or moves to another tile, the sample is replaced by a location added in the same change, or cleared until
+ * the next location is added to the tile. The aggregates are not updated atomically with the locations; call
+ * {@link #rebuild(DBCollection)} to recompute them after a failure. An instance is thread-safe.
+ * 
+ * @author Hendrik Stein
+ */
+public class TileAggregator {
+
+    /** Mongo key of the tile column. */
+    public static final String MONGO_X = "x";
+
+    /** Mongo key of the tile row. */
+    public static final String MONGO_Y = "y";
+
+    /** Mongo key of the number of locations. */
+    public static final String MONGO_COUNT = "n";
+
+    /** Mongo key of the sum of the latitudes. */
+    public static final String MONGO_LATITUDE_SUM = "sla";
+
+    /** Mongo key of the sum of the longitudes. */
+    public static final String MONGO_LONGITUDE_SUM = "slo";
+
+    /** Mongo key of the sample id. */
+    public static final String MONGO_SAMPLE = "s";
+
+    /** Highest supported zoom level, the tile key must fit into a long. */
+    public static final int MAX_SUPPORTED_ZOOM = TileCoordinates.MAX_ZOOM;
+
+    /** Number of locations aggregated at once by {@link #rebuild(DBCollection)}. */
+    private static final int REBUILD_BATCH_SIZE = 1000;
+
+    /** Minimum zoom level. */
+    private final int minZoom;
+
+    /** Maximum zoom level. */
+    private final int maxZoom;
+
+    /** The aggregate collections from the minimum to the maximum zoom level. */
+    private final DBCollection[] tileCols;
+
+    /**
+     * Creates an instance.
+     * 
+     * @param db the database of the aggregate collections
+     * @param prefix the prefix of the names of the aggregate collections, followed by the zoom level
+     * @param minZoom the minimum zoom level
+     * @param maxZoom the maximum zoom level
+     * 
+     * @throws IllegalArgumentException if a parameter is out of bounds
+     */
+    public TileAggregator(DB db, String prefix, int minZoom, int maxZoom) throws IllegalArgumentException {
+        if (db == null || prefix == null || minZoom < 0 || minZoom > maxZoom || maxZoom > MAX_SUPPORTED_ZOOM) {
+            throw new IllegalArgumentException("TileAggregator: parameter out of bounds");
+        }
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+        this.tileCols = new DBCollection[maxZoom - minZoom + 1];
+        for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+            tileCols[zoom - minZoom] = db.getCollection(prefix + zoom);
+        }
+    }
+
+    /**
+     * Get the minimum zoom level.
+     * 
+     * @return the zoom level
+     */
+    public int getMinZoom() {
+        return minZoom;
+    }
+
+    /**
+     * Get the maximum zoom level.
+     * 
+     * @return the zoom level
+     */
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    /**
+     * Get the aggregate collection of a zoom level.
+     * 
+     * @param zoom the zoom level
+     * @return the collection
+     * 
+     * @throws IllegalArgumentException if the zoom level is out of bounds
+     */
+    public DBCollection getCollection(int zoom) throws IllegalArgumentException {
+        if (zoom < minZoom || zoom > maxZoom) {
+            throw new IllegalArgumentException("TileAggregator: zoom level out of bounds: " + zoom);
+        }
+        return tileCols[zoom - minZoom];
+    }
+
+    /**
+     * Create the indexes of the tile ranges read by {@link #getTiles(GeoBoundingBox, int)}.
+     */
+    public void createIndexes() {
+        for (DBCollection tileCol : tileCols) {
+            tileCol.createIndex(new BasicDBObject(MONGO_X, 1).append(MONGO_Y, 1));
+        }
+    }
+
+    /**
+     * Add inserted location documents to their tiles.
+     * 
+     * @param documents the inserted documents, with their ids
+     * 
+     * @throws MongoException if a bulk write fails
+     */
+    public void added(List<? extends DBObject> documents) throws MongoException {
+        List<Map<Long, Delta>> deltas = newDeltas();
+        for (DBObject document : documents) {
+            GeoPoint point = new GeoLocation((BasicDBObject) document).getGeoPoint();
+            add(deltas, point, 1, document.get(PositionWriter.MONGO_ID));
+        }
+        write(deltas);
+    }
+
+    /**
+     * Move a location from one tile to another, or within its tile.
+     * 
+     * @param id the document id of the location
+     * @param from the previous position
+     * @param to the new position
+     * 
+     * @throws MongoException if a bulk write fails
+     */
+    public void moved(Object id, GeoPoint from, GeoPoint to) throws MongoException {
+        List<Map<Long, Delta>> deltas = newDeltas();
+        add(deltas, from, -1, id);
+        add(deltas, to, 1, id);
+        write(deltas);
+    }
+
+    /**
+     * Remove deleted location documents from their tiles.
+     * 
+     * @param documents the deleted documents, with their ids
+     * 
+     * @throws MongoException if a bulk write fails
+     */
+    public void removed(List<? extends DBObject> documents) throws MongoException {
+        List<Map<Long, Delta>> deltas = newDeltas();
+        for (DBObject document : documents) {
+            GeoPoint point = new GeoLocation((BasicDBObject) document).getGeoPoint();
+            add(deltas, point, -1, document.get(PositionWriter.MONGO_ID));
+        }
+        write(deltas);
+    }
+
+    /**
+     * Drop the aggregates and recompute them from all locations of a collection.
+     * 
+     * @param source the location collection
+     * @return the number of aggregated locations
+     * 
+     * @throws MongoException if a query or bulk write fails
+     */
+    public long rebuild(DBCollection source) throws MongoException {
+        for (DBCollection tileCol : tileCols) {
+            tileCol.drop();
+        }
+        createIndexes();
+        long aggregated = 0L;
+        List<DBObject> batch = new ArrayList<>(REBUILD_BATCH_SIZE);
+        DBCursor cursor = source.find(new BasicDBObject(GeoLocation.MONGO_GEOPOINT, new BasicDBObject("$exists", true)),
+                new BasicDBObject(GeoLocation.MONGO_GEOPOINT, 1));
+        try {
+            while (cursor.hasNext()) {
+                batch.add(cursor.next());
+                if (batch.size() == REBUILD_BATCH_SIZE) {
+                    added(batch);
+                    aggregated += batch.size();
+                    batch.clear();
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (!batch.isEmpty()) {
+            added(batch);
+            aggregated += batch.size();
+        }
+        return aggregated;
+    }
+
+    /**
+     * Find the non-empty tiles of a zoom level overlapping a bounding box.
+     * 
+     * @param bbox the bounding box
+     * @param zoom the zoom level
+     * @return the list of tiles, unordered
+     * 
+     * @throws IllegalArgumentException if the zoom level is out of bounds
+     */
+    public List<TileAggregate> getTiles(GeoBoundingBox bbox, int zoom) throws IllegalArgumentException {
+        DBCollection tileCol = getCollection(zoom);
+        int west = TileCoordinates.tileX(bbox.getLowerLeft().getLongitude(), zoom);
+        int east = TileCoordinates.tileX(bbox.getUpperRight().getLongitude(), zoom);
+        int north = TileCoordinates.tileY(bbox.getUpperRight().getLatitude(), zoom);
+        int south = TileCoordinates.tileY(bbox.getLowerLeft().getLatitude(), zoom);
+        BasicDBObject query = new BasicDBObject(MONGO_Y, new BasicDBObject("$gte", north).append("$lte", south))
+                .append(MONGO_COUNT, new BasicDBObject("$gt", 0));
+        if (bbox.isOverAntimeridian()) {
+            BasicDBList columns = new BasicDBList();
+            columns.add(new BasicDBObject(MONGO_X, new BasicDBObject("$gte", west)));
+            columns.add(new BasicDBObject(MONGO_X, new BasicDBObject("$lte", east)));
+            query.put("$or", columns);
+        } else {
+            query.put(MONGO_X, new BasicDBObject("$gte", west).append("$lte", east));
+        }
+
+        List<TileAggregate> tiles = new ArrayList<>();
+        DBCursor cursor = tileCol.find(query);
+        try {
+            while (cursor.hasNext()) {
+                DBObject document = cursor.next();
+                long count = ((Number) document.get(MONGO_COUNT)).longValue();
+                double latitude = ((Number) document.get(MONGO_LATITUDE_SUM)).doubleValue() / count;
+                double longitude = ((Number) document.get(MONGO_LONGITUDE_SUM)).doubleValue() / count;
+                tiles.add(new TileAggregate(zoom, ((Number) document.get(MONGO_X)).intValue(),
+                        ((Number) document.get(MONGO_Y)).intValue(), count, new GeoPoint(latitude, longitude),
+                        document.get(MONGO_SAMPLE)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return tiles;
+    }
+
+    /**
+     * Create the empty deltas of all zoom levels.
+     * 
+     * @return the tile deltas by tile key, per zoom level
+     */
+    private List<Map<Long, Delta>> newDeltas() {
+        List<Map<Long, Delta>> deltas = new ArrayList<>(tileCols.length);
+        for (int i = 0; i < tileCols.length; i++) {
+            deltas.add(new LinkedHashMap<Long, Delta>());
+        }
+        return deltas;
+    }
+
+    /**
+     * Add a location to the deltas of its tiles on all zoom levels.
+     * 
+     * @param deltas the tile deltas
+     * @param point the position
+     * @param sign 1 to add the location, -1 to subtract it
+     * @param id the document id of the location or <tt>null</tt>
+     */
+    private void add(List<Map<Long, Delta>> deltas, GeoPoint point, int sign, Object id) {
+        double latitude = point.getLatitude();
+        double longitude = point.getLongitude();
+        for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+            int x = TileCoordinates.tileX(longitude, zoom);
+            int y = TileCoordinates.tileY(latitude, zoom);
+            Long key = ((long) x << zoom) + y;
+            Map<Long, Delta> zoomDeltas = deltas.get(zoom - minZoom);
+            Delta delta = zoomDeltas.get(key);
+            if (delta == null) {
+                delta = new Delta(key, x, y);
+                zoomDeltas.put(key, delta);
+            }
+            delta.count += sign;
+            delta.latitudeSum += sign * latitude;
+            delta.longitudeSum += sign * longitude;
+            if (id == null) {
+                continue;
+            }
+            if (sign < 0) {
+                delta.removedIds.add(id);
+            } else if (delta.sampleId == null) {
+                delta.sampleId = id;
+            }
+        }
+    }
+
+    /**
+     * Apply the deltas with one unordered bulk of upserts per zoom level. The sample updates only match a tile whose
+     * sample was removed or is missing, so they give the same result in any order.
+     * 
+     * @param deltas the tile deltas
+     */
+    private void write(List<Map<Long, Delta>> deltas) {
+        for (int i = 0; i < deltas.size(); i++) {
+            if (deltas.get(i).isEmpty()) {
+                continue;
+            }
+            BulkWriteOperation bulk = tileCols[i].initializeUnorderedBulkOperation();
+            for (Delta delta : deltas.get(i).values()) {
+                BasicDBObject inc = new BasicDBObject(MONGO_COUNT, delta.count).append(MONGO_LATITUDE_SUM,
+                        delta.latitudeSum).append(MONGO_LONGITUDE_SUM, delta.longitudeSum);
+                BasicDBObject onInsert = new BasicDBObject(MONGO_X, delta.x).append(MONGO_Y, delta.y);
+                if (delta.sampleId != null) {
+                    onInsert.append(MONGO_SAMPLE, delta.sampleId);
+                }
+                bulk.find(new BasicDBObject(PositionWriter.MONGO_ID, delta.key)).upsert().updateOne(
+                        new BasicDBObject("$inc", inc).append("$setOnInsert", onInsert));
+                if (!delta.removedIds.isEmpty()) {
+                    // the sampled location left the tile
+                    BasicDBObject sampleRemoved = new BasicDBObject(PositionWriter.MONGO_ID, delta.key).append(
+                            MONGO_SAMPLE, new BasicDBObject("$in", delta.removedIds));
+                    bulk.find(sampleRemoved).updateOne(
+                            delta.sampleId == null ? new BasicDBObject("$unset", new BasicDBObject(MONGO_SAMPLE, ""))
+                                    : new BasicDBObject("$set", new BasicDBObject(MONGO_SAMPLE, delta.sampleId)));
+                }
+                if (delta.sampleId != null) {
+                    // an existing tile whose sample was cleared
+                    BasicDBObject sampleMissing = new BasicDBObject(PositionWriter.MONGO_ID, delta.key).append(
+                            MONGO_SAMPLE, new BasicDBObject("$exists", false));
+                    bulk.find(sampleMissing).updateOne(
+                            new BasicDBObject("$set", new BasicDBObject(MONGO_SAMPLE, delta.sampleId)));
+                }
+            }
+            bulk.execute();
+        }
+    }
+
+    /**
+     * The summed up change of a tile.
+     */
+    private static final class Delta {
+
+        /** The tile key, the document id. */
+        private final long key;
+
+        /** The tile column. */
+        private final int x;
+
+        /** The tile row. */
+        private final int y;
+
+        /** The change of the number of locations. */
+        private int count;
+
+        /** The change of the sum of the latitudes. */
+        private double latitudeSum;
+
+        /** The change of the sum of the longitudes. */
+        private double longitudeSum;
+
+        /** The document id of an added location or <tt>null</tt>. */
+        private Object sampleId;
+
+        /** The document ids of the removed locations. */
+        private final List<Object> removedIds = new ArrayList<>();
+
+        /**
+         * Creates an instance.
+         * 
+         * @param key the tile key
+         * @param x the tile column
+         * @param y the tile row
+         */
+        private Delta(long key, int x, int y) {
+            this.key = key;
+            this.x = x;
+            this.y = y;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package de.jt.db;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoConstants;
+import de.jt.model.GeoPoint;
+
+/**
+ * Web Mercator tile coordinates of the common z/x/y tiling scheme, with tile 0/0 in the north west.
+ * 
+ * @author Hendrik Stein
+ */
+final class TileCoordinates {
+
+    /** Highest zoom level, the number of tiles of a level must fit into an int. */
+    static final int MAX_ZOOM = 30;
+
+    /** Full circle in degrees. */
+    private static final double FULL_CIRCLE = GeoConstants.LONG_MAX - GeoConstants.LONG_MIN;
+
+    /**
+     * Utility class.
+     */
+    private TileCoordinates() {
+        // utility class
+    }
+
+    /**
+     * Get the number of tiles per axis of a zoom level.
+     * 
+     * @param zoom the zoom level
+     * @return 2 to the power of the zoom level
+     */
+    static int tiles(int zoom) {
+        return 1 << zoom;
+    }
+
+    /**
+     * Get the tile column of a longitude. Longitude 180 belongs to the easternmost column.
+     * 
+     * @param longitude the longitude
+     * @param zoom the zoom level
+     * @return the column
+     */
+    static int tileX(double longitude, int zoom) {
+        int tiles = tiles(zoom);
+        int x = (int) Math.floor(projectX(longitude) * tiles);
+        return x < 0 ? 0 : x >= tiles ? tiles - 1 : x;
+    }
+
+    /**
+     * Get the tile row of a latitude. Latitudes beyond the Mercator limit belong to the first or last row.
+     * 
+     * @param latitude the latitude
+     * @param zoom the zoom level
+     * @return the row
+     */
+    static int tileY(double latitude, int zoom) {
+        int tiles = tiles(zoom);
+        int y = (int) Math.floor(projectY(latitude) * tiles);
+        return y >= tiles ? tiles - 1 : y;
+    }
+
+    /**
+     * Project a longitude to Web Mercator.
+     * 
+     * @param longitude the longitude
+     * @return x from 0 at -180 to 1 at 180
+     */
+    static double projectX(double longitude) {
+        return (longitude - GeoConstants.LONG_MIN) / FULL_CIRCLE;
+    }
+
+    /**
+     * Project a latitude to Web Mercator.
+     * 
+     * @param latitude the latitude
+     * @return y from 0 in the north to 1 in the south, clamped beyond the Mercator limit
+     */
+    static double projectY(double latitude) {
+        double sin = Math.sin(Math.toRadians(latitude));
+        double y = 0.5d - Math.log((1d + sin) / (1d - sin)) / (4d * Math.PI);
+        return y < 0d ? 0d : y > 1d ? 1d : y;
+    }
+
+    /**
+     * Get the bounding box of a tile. The first and last row extend to the poles.
+     * 
+     * @param zoom the zoom level
+     * @param x the column
+     * @param y the row
+     * @return the bounding box
+     * 
+     * @throws IllegalArgumentException if the tile does not exist
+     */
+    static GeoBoundingBox bounds(int zoom, int x, int y) throws IllegalArgumentException {
+        if (zoom < 0 || zoom > MAX_ZOOM) {
+            throw new IllegalArgumentException("TileCoordinates: zoom level out of bounds: " + zoom);
+        }
+        int tiles = tiles(zoom);
+        if (x < 0 || x >= tiles || y < 0 || y >= tiles) {
+            throw new IllegalArgumentException("TileCoordinates: no tile " + zoom + "/" + x + "/" + y);
+        }
+        double west = GeoConstants.LONG_MIN + FULL_CIRCLE * x / tiles;
+        double east = GeoConstants.LONG_MIN + FULL_CIRCLE * (x + 1) / tiles;
+        double north = y == 0 ? GeoConstants.LAT_MAX : latitude((double) y / tiles);
+        double south = y == tiles - 1 ? GeoConstants.LAT_MIN : latitude((double) (y + 1) / tiles);
+        return new GeoBoundingBox(new GeoPoint(south, west), new GeoPoint(north, east));
+    }
+
+    /**
+     * Unproject a Web Mercator y.
+     * 
+     * @param y the y from 0 to 1
+     * @return the latitude
+     */
+    private static double latitude(double y) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1d - 2d * y))));
+    }
+}
@@ -0,0 +1,521 @@
+package de.jt.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+
+/**
+ * Parallel query of huge bounding boxes.
+ * 
+ * The bounding box is split by the antimeridian and then recursively into quadrants until a tile holds at most a
+ * configured number of documents, measured with a limited count on the geo index. Dense regions therefore get small
+ * tiles and sparse regions large ones. The tiles are queried in parallel on a bounded thread pool and their documents
+ * are streamed to the caller as they arrive.
+ * 
+ * A tile task fetches one batch and resubmits itself while the buffer of the cursor has room. If the consumer is slow
+ * and the buffer is full, the task parks without holding a thread and is resubmitted once the consumer takes a batch,
+ * so a slow consumer never blocks the pool for other queries.
+ * 
+ * The $box operator includes the edges, so quadrants sharing an edge would both return the points on it. Each tile
+ * owns its east and north edge only if they are edges of the queried box; points on a shared edge are returned by the
+ * tile east or north of it. The tiles are therefore disjoint and without gaps.
+ * 
+ * An instance is thread-safe and is meant to be shared; call {@link #close()} to stop the thread pool.
+ * 
+ * @author Hendrik Stein
+ */
+public class TiledGeoQuery {
+
+    /** Default maximum number of documents per tile. */
+    public static final int DEFAULT_MAX_DOCUMENTS_PER_TILE = 10000;
+
+    /** Default maximum quadrant split depth. */
+    public static final int DEFAULT_MAX_DEPTH = 8;
+
+    /** Minimum tile span in degrees, smaller tiles are not split any further. */
+    private static final double MIN_TILE_SPAN = 0.000001d;
+
+    /** Number of decoded locations passed to the consumer at once. */
+    private static final int BATCH_SIZE = 256;
+
+    /** Maximum number of batches buffered for a slow consumer, exceeded by at most one batch per pool thread. */
+    private static final int MAX_PENDING_BATCHES = 64;
+
+    /** Marker for the end of the stream. */
+    private static final List<GeoLocation> END = Collections.emptyList();
+
+    /** The queried collection. */
+    private final DBCollection dbCol;
+
+    /** The tile thread pool. */
+    private final ExecutorService pool;
+
+    /** Maximum number of documents per tile. */
+    private final int maxDocumentsPerTile;
+
+    /** Maximum quadrant split depth. */
+    private final int maxDepth;
+
+    /**
+     * Creates an instance with {@link #DEFAULT_MAX_DOCUMENTS_PER_TILE} and {@link #DEFAULT_MAX_DEPTH}.
+     * 
+     * @param dbCol the collection to query
+     * @param parallelism the number of tiles queried in parallel
+     */
+    public TiledGeoQuery(DBCollection dbCol, int parallelism) {
+        this(dbCol, parallelism, DEFAULT_MAX_DOCUMENTS_PER_TILE, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param dbCol the collection to query
+     * @param parallelism the number of tiles queried in parallel
+     * @param maxDocumentsPerTile the maximum number of documents per tile
+     * @param maxDepth the maximum quadrant split depth
+     * 
+     * @throws IllegalArgumentException if a parameter is not positive
+     */
+    public TiledGeoQuery(DBCollection dbCol, int parallelism, int maxDocumentsPerTile, int maxDepth)
+            throws IllegalArgumentException {
+        if (parallelism <= 0 || maxDocumentsPerTile <= 0 || maxDepth < 0) {
+            throw new IllegalArgumentException("TiledGeoQuery: parameter out of bounds");
+        }
+        this.dbCol = dbCol;
+        this.maxDocumentsPerTile = maxDocumentsPerTile;
+        this.maxDepth = maxDepth;
+        this.pool = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "geo-tile-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Query a bounding box in parallel tiles with the {@link QueryOptions#DEFAULT default options}.
+     * 
+     * The order of the returned locations is undefined. A failing tile query is rethrown by the cursor.
+     * 
+     * @param bbox the bounding box
+     * @return the cursor streaming the locations
+     */
+    public GeoLocationCursor query(GeoBoundingBox bbox) {
+        return query(bbox, QueryOptions.DEFAULT);
+    }
+
+    /**
+     * Query a bounding box in parallel tiles. The read preference and batch size of {@link QueryType#LOCATIONS} apply
+     * to the count and the query of every tile.
+     * 
+     * The order of the returned locations is undefined. A failing tile query is rethrown by the cursor.
+     * 
+     * @param bbox the bounding box
+     * @param options the query options
+     * @return the cursor streaming the locations
+     */
+    public GeoLocationCursor query(GeoBoundingBox bbox, QueryOptions options) {
+        TileCursor cursor = new TileCursor(options);
+        for (GeoBoundingBox box : bbox.splitByAntimeridian()) {
+            cursor.submit(new Tile(box, 0, true, true));
+        }
+        // release the guard which keeps the cursor open while the tiles are submitted
+        cursor.tileFinished();
+        return cursor;
+    }
+
+    /**
+     * Stop the thread pool. Running queries fail.
+     */
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * A tile of the queried bounding box.
+     */
+    private static final class Tile {
+
+        /** The tile box. */
+        private final GeoBoundingBox box;
+
+        /** The split depth. */
+        private final int depth;
+
+        /** Whether points on the east edge belong to this tile. */
+        private final boolean ownsEast;
+
+        /** Whether points on the north edge belong to this tile. */
+        private final boolean ownsNorth;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param box the tile box
+         * @param depth the split depth
+         * @param ownsEast whether points on the east edge belong to this tile
+         * @param ownsNorth whether points on the north edge belong to this tile
+         */
+        Tile(GeoBoundingBox box, int depth, boolean ownsEast, boolean ownsNorth) {
+            this.box = box;
+            this.depth = depth;
+            this.ownsEast = ownsEast;
+            this.ownsNorth = ownsNorth;
+        }
+
+        /**
+         * Split the tile into quadrants.
+         * 
+         * @return the list of quadrant tiles
+         */
+        List<Tile> split() {
+            List<GeoBoundingBox> quadrants = box.splitIntoQuadrants();
+            List<Tile> tiles = new ArrayList<>(4);
+            tiles.add(new Tile(quadrants.get(0), depth + 1, false, false));
+            tiles.add(new Tile(quadrants.get(1), depth + 1, ownsEast, false));
+            tiles.add(new Tile(quadrants.get(2), depth + 1, false, ownsNorth));
+            tiles.add(new Tile(quadrants.get(3), depth + 1, ownsEast, ownsNorth));
+            return tiles;
+        }
+
+        /**
+         * Check if a point returned by the tile query belongs to this tile.
+         * 
+         * @param point the point
+         * @return <tt>true</tt> if the point belongs to this tile
+         */
+        boolean owns(GeoPoint point) {
+            if (!ownsEast && point.getLongitude() == box.getUpperRight().getLongitude()) {
+                return false;
+            }
+            return ownsNorth || point.getLatitude() != box.getUpperRight().getLatitude();
+        }
+    }
+
+    /**
+     * The cursor of one tiled query. Tile tasks produce batches into a bounded queue, the caller consumes them.
+     */
+    private final class TileCursor implements GeoLocationCursor {
+
+        /** The query options. */
+        private final QueryOptions options;
+
+        /** The produced batches, bounded by {@link TiledGeoQuery#MAX_PENDING_BATCHES} by the producers. */
+        private final BlockingQueue<List<GeoLocation>> batches = new LinkedBlockingQueue<>();
+
+        /** Tile streams waiting for room in the queue. */
+        private final ConcurrentLinkedQueue<TileStream> parked = new ConcurrentLinkedQueue<>();
+
+        /** Number of submitted but not finished tiles, starting with a guard for the initial submission. */
+        private final AtomicInteger pendingTiles = new AtomicInteger(1);
+
+        /** The first failure of a tile. */
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+        /** Set if the consumer closed the cursor. */
+        private volatile boolean closed;
+
+        /** The current batch. */
+        private List<GeoLocation> current = Collections.emptyList();
+
+        /** Position in the current batch. */
+        private int position;
+
+        /** Set if the end marker was consumed. */
+        private boolean finished;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param options the query options
+         */
+        TileCursor(QueryOptions options) {
+            this.options = options;
+        }
+
+        /**
+         * Submit a tile.
+         * 
+         * @param tile the tile
+         */
+        void submit(final Tile tile) {
+            pendingTiles.incrementAndGet();
+            try {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        TileStream stream;
+                        try {
+                            stream = closed || failure.get() != null ? null : process(tile);
+                        } catch (RuntimeException e) {
+                            fail(e);
+                            stream = null;
+                        }
+                        if (stream == null) {
+                            tileFinished();
+                        } else {
+                            stream.run();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                fail(e);
+                tileFinished();
+            }
+        }
+
+        /**
+         * Count a tile and either split it or open the stream of its documents.
+         * 
+         * @param tile the tile
+         * @return the stream of the tile's documents or <tt>null</tt> if the tile is empty or was split
+         */
+        private TileStream process(Tile tile) {
+            DBObject query = buildQuery(tile.box);
+            ReadPreference readPreference = options.getReadPreference(QueryType.LOCATIONS);
+            long count = dbCol.getCount(query, null, maxDocumentsPerTile + 1L, 0L,
+                    readPreference == null ? dbCol.getReadPreference() : readPreference);
+            if (count == 0) {
+                return null;
+            }
+            if (count > maxDocumentsPerTile && tile.depth < maxDepth && tile.box.getLatitudeSpan() > MIN_TILE_SPAN
+                    && tile.box.getLongitudeSpan() > MIN_TILE_SPAN) {
+                for (Tile quadrant : tile.split()) {
+                    submit(quadrant);
+                }
+                return null;
+            }
+            return new TileStream(tile, options.apply(QueryType.LOCATIONS, dbCol.find(query)));
+        }
+
+        /**
+         * Resubmit a tile stream.
+         * 
+         * @param stream the stream
+         */
+        private void resubmit(TileStream stream) {
+            try {
+                pool.execute(stream);
+            } catch (RejectedExecutionException e) {
+                fail(e);
+                stream.finish();
+            }
+        }
+
+        /**
+         * Park a tile stream until the consumer makes room in the queue.
+         * 
+         * @param stream the stream
+         */
+        private void park(TileStream stream) {
+            parked.add(stream);
+            // the consumer may have taken a batch before the stream was parked
+            if (closed || batches.size() < MAX_PENDING_BATCHES) {
+                unpark();
+            }
+        }
+
+        /**
+         * Resubmit parked tile streams while the queue has room, or all of them if the cursor is closed.
+         */
+        private void unpark() {
+            TileStream stream;
+            while ((closed || batches.size() < MAX_PENDING_BATCHES) && (stream = parked.poll()) != null) {
+                resubmit(stream);
+            }
+        }
+
+        /**
+         * Record the failure of a tile.
+         * 
+         * @param e the failure
+         */
+        private void fail(RuntimeException e) {
+            failure.compareAndSet(null, e);
+        }
+
+        /**
+         * Mark a tile as finished and signal the end of the stream after the last tile.
+         */
+        void tileFinished() {
+            if (pendingTiles.decrementAndGet() == 0) {
+                batches.add(END);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (position >= current.size()) {
+                if (finished || closed) {
+                    return false;
+                }
+                try {
+                    current = batches.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("TiledGeoQuery: interrupted", e);
+                }
+                unpark();
+                position = 0;
+                if (current == END) {
+                    finished = true;
+                    RuntimeException e = failure.get();
+                    if (e != null) {
+                        throw e;
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public GeoLocation next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.get(position++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("remove");
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            batches.clear();
+            // the parked streams close their database cursors
+            unpark();
+        }
+
+        /**
+         * The documents of a tile. Each run fetches one batch, so a tile holds a pool thread only while fetching.
+         */
+        private final class TileStream implements Runnable {
+
+            /** The tile. */
+            private final Tile tile;
+
+            /** The database cursor of the tile. */
+            private final DBCursor cursor;
+
+            /** The fetched batch which did not fit into the queue yet. */
+            private List<GeoLocation> pending;
+
+            /** Set once the tile is finished. */
+            private boolean done;
+
+            /**
+             * Creates an instance.
+             * 
+             * @param tile the tile
+             * @param cursor the database cursor of the tile
+             */
+            TileStream(Tile tile, DBCursor cursor) {
+                this.tile = tile;
+                this.cursor = cursor;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    if (closed || failure.get() != null) {
+                        finish();
+                        return;
+                    }
+                    if (pending == null) {
+                        pending = fetch();
+                    }
+                    if (pending.isEmpty()) {
+                        finish();
+                        return;
+                    }
+                    if (batches.size() >= MAX_PENDING_BATCHES) {
+                        park(this);
+                        return;
+                    }
+                    batches.add(pending);
+                    pending = null;
+                    if (cursor.hasNext()) {
+                        resubmit(this);
+                    } else {
+                        finish();
+                    }
+                } catch (RuntimeException e) {
+                    fail(e);
+                    finish();
+                }
+            }
+
+            /**
+             * Fetch the next batch of the tile.
+             * 
+             * @return the batch, empty at the end of the tile
+             */
+            private List<GeoLocation> fetch() {
+                List<GeoLocation> batch = new ArrayList<>(BATCH_SIZE);
+                while (batch.size() < BATCH_SIZE && cursor.hasNext()) {
+                    GeoLocation location = new GeoLocation((BasicDBObject) cursor.next());
+                    if (tile.owns(location.getGeoPoint())) {
+                        batch.add(location);
+                    }
+                }
+                return batch;
+            }
+
+            /**
+             * Close the database cursor and mark the tile as finished, once.
+             */
+            void finish() {
+                if (done) {
+                    return;
+                }
+                done = true;
+                try {
+                    cursor.close();
+                } finally {
+                    tileFinished();
+                }
+            }
+        }
+    }
+
+    /**
+     * Build the $geoWithin $box query of a tile.
+     * 
+     * @param box the tile box
+     * @return the query
+     */
+    private static DBObject buildQuery(GeoBoundingBox box) {
+        MongoQueryBuilder builder = new MongoQueryBuilder();
+        builder.put(GeoLocation.MONGO_GEOPOINT).geoWithinBox(box);
+        return builder.build();
+    }
+}
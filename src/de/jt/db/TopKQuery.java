@@ -0,0 +1,284 @@
+package de.jt.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.bson.types.BasicBSONList;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoConstants;
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+
+/**
+ * Top-K query of a bounding box, ranked by the distance to the box center or by a priority field.
+ * 
+ * Each antimeridian half is queried with a server side sort, a $near on the 2d index or a sort on the priority field,
+ * so every cursor can stop after a few more than K documents. The halves are merged with a bounded heap and only the
+ * documents entering the heap are decoded.
+ * 
+ * Distances are measured in degrees in the flat coordinate system of the 2d index, wrapped at the antimeridian.
+ * 
+ * @author Hendrik Stein
+ */
+final class TopKQuery {
+
+    /** Key of the longitude within the geo point array. */
+    private static final String LONGITUDE_KEY = GeoLocation.MONGO_GEOPOINT + "." + GeoConstants.MONGO_LONG;
+
+    /** Key of the latitude within the geo point array. */
+    private static final String LATITUDE_KEY = GeoLocation.MONGO_GEOPOINT + "." + GeoConstants.MONGO_LAT;
+
+    /** Full circle in degrees. */
+    private static final double FULL_CIRCLE = GeoConstants.LONG_MAX - GeoConstants.LONG_MIN;
+
+    /** Orders candidates with the worst rank first. */
+    private static final Comparator<Candidate> WORST_FIRST = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate c1, Candidate c2) {
+            return Double.compare(c2.rank, c1.rank);
+        }
+    };
+
+    /** The queried collection. */
+    private final DBCollection dbCol;
+
+    /** The query options. */
+    private final QueryOptions options;
+
+    /**
+     * Creates an instance.
+     * 
+     * @param dbCol the queried collection
+     * @param options the query options
+     */
+    TopKQuery(DBCollection dbCol, QueryOptions options) {
+        this.dbCol = dbCol;
+        this.options = options;
+    }
+
+    /**
+     * Find the locations closest to the center of a bounding box.
+     * 
+     * @param bbox the bounding box
+     * @param limit the maximum number of locations
+     * @param stats the statistics of the running query
+     * @return the ranked result, closest first
+     */
+    RankedResult nearest(GeoBoundingBox bbox, int limit, QueryStats stats) {
+        GeoPoint center = bbox.getCenter();
+        List<GeoBoundingBox> boxes = new ArrayList<>(bbox.splitByAntimeridian());
+        if (boxes.size() > 1 && !boxes.get(0).contains(center)) {
+            // the half holding the center fills the heap with the best candidates first
+            Collections.reverse(boxes);
+        }
+
+        PriorityQueue<Candidate> heap = new PriorityQueue<>(limit + 1, WORST_FIRST);
+        boolean truncated = false;
+        for (GeoBoundingBox box : boxes) {
+            // the anchor is the point of the half closest to the center; the distance to the anchor is a lower bound
+            // of the distance to the center, so the cursor can stop once the heap is full of closer candidates
+            GeoPoint anchor = anchor(box, center);
+
+            MongoQueryBuilder builder = new MongoQueryBuilder();
+            builder.put(GeoLocation.MONGO_GEOPOINT).nearInDegrees(anchor, maxDistance(box, anchor));
+            builder.and(LONGITUDE_KEY).greaterThanEquals(box.getLowerLeft().getLongitude())
+                    .lessThanEquals(box.getUpperRight().getLongitude());
+            builder.and(LATITUDE_KEY).greaterThanEquals(box.getLowerLeft().getLatitude())
+                    .lessThanEquals(box.getUpperRight().getLatitude());
+
+            stats.subQueryStarted();
+            // an explicit limit on both halves, $near has a server side default limit otherwise
+            DBCursor cursor = options.apply(QueryType.RANKED, dbCol.find(builder.build())).limit(limit + 1);
+            try {
+                while (cursor.hasNext()) {
+                    DBObject document = cursor.next();
+                    BasicBSONList loc = (BasicBSONList) document.get(GeoLocation.MONGO_GEOPOINT);
+                    double longitude = ((Number) loc.get(GeoConstants.MONGO_LONG)).doubleValue();
+                    double latitude = ((Number) loc.get(GeoConstants.MONGO_LAT)).doubleValue();
+                    if (heap.size() >= limit && distance(anchor, longitude, latitude) >= heap.peek().rank) {
+                        truncated = true;
+                        break;
+                    }
+                    truncated |= offer(heap, limit, document, distance(center, longitude, latitude), stats);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return toResult(heap, truncated);
+    }
+
+    /**
+     * Find the locations with the highest value of a priority field. Documents without the field rank last.
+     * 
+     * @param bbox the bounding box
+     * @param limit the maximum number of locations
+     * @param priorityField the priority field
+     * @param stats the statistics of the running query
+     * @return the ranked result, highest priority first
+     */
+    RankedResult byPriority(GeoBoundingBox bbox, int limit, String priorityField, QueryStats stats) {
+        PriorityQueue<Candidate> heap = new PriorityQueue<>(limit + 1, WORST_FIRST);
+        boolean truncated = false;
+        for (GeoBoundingBox box : bbox.splitByAntimeridian()) {
+            MongoQueryBuilder builder = new MongoQueryBuilder();
+            builder.put(GeoLocation.MONGO_GEOPOINT).geoWithinBox(box);
+
+            stats.subQueryStarted();
+            DBCursor cursor = options.apply(QueryType.RANKED, dbCol.find(builder.build()))
+                    .sort(new BasicDBObject(priorityField, -1)).limit(limit + 1);
+            try {
+                while (cursor.hasNext()) {
+                    DBObject document = cursor.next();
+                    Object priority = document.get(priorityField);
+                    double rank = priority instanceof Number ? -((Number) priority).doubleValue()
+                            : Double.POSITIVE_INFINITY;
+                    if (heap.size() >= limit && rank >= heap.peek().rank) {
+                        truncated = true;
+                        break;
+                    }
+                    truncated |= offer(heap, limit, document, rank, stats);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return toResult(heap, truncated);
+    }
+
+    /**
+     * Offer a document to the bounded heap. The document is only decoded if it enters the heap.
+     * 
+     * @param heap the heap
+     * @param limit the heap size
+     * @param document the document
+     * @param rank the rank of the document, lower is better
+     * @param stats the statistics of the running query
+     * @return <tt>true</tt> if a candidate was dropped
+     */
+    private static boolean offer(PriorityQueue<Candidate> heap, int limit, DBObject document, double rank,
+            QueryStats stats) {
+        boolean sampled = stats.documentReceived();
+        if (heap.size() >= limit && rank >= heap.peek().rank) {
+            return true;
+        }
+        long decodeStart = sampled ? System.nanoTime() : 0L;
+        heap.add(new Candidate(new GeoLocation((BasicDBObject) document), rank));
+        if (sampled) {
+            stats.decodeSampled(System.nanoTime() - decodeStart);
+        }
+        if (heap.size() > limit) {
+            heap.poll();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Convert the heap to a result, best ranked first.
+     * 
+     * @param heap the heap
+     * @param truncated whether candidates were dropped
+     * @return the result
+     */
+    private static RankedResult toResult(PriorityQueue<Candidate> heap, boolean truncated) {
+        GeoLocation[] locations = new GeoLocation[heap.size()];
+        for (int i = locations.length - 1; i >= 0; i--) {
+            locations[i] = heap.poll().location;
+        }
+        List<GeoLocation> list = new ArrayList<>(locations.length);
+        Collections.addAll(list, locations);
+        return new RankedResult(list, truncated);
+    }
+
+    /**
+     * Get the point of a box (not overlapping the antimeridian) closest to a point at a latitude within the box.
+     * 
+     * @param box the box
+     * @param center the point
+     * @return the anchor point
+     */
+    private static GeoPoint anchor(GeoBoundingBox box, GeoPoint center) {
+        if (box.contains(center)) {
+            return center;
+        }
+        double west = box.getLowerLeft().getLongitude();
+        double east = box.getUpperRight().getLongitude();
+        double longitude = lonDistance(center.getLongitude(), west) < lonDistance(center.getLongitude(), east) ? west
+                : east;
+        return new GeoPoint(center.getLatitude(), longitude);
+    }
+
+    /**
+     * Get the distance from a point to the farthest corner of a box.
+     * 
+     * @param box the box
+     * @param point the point
+     * @return the distance in degrees
+     */
+    private static double maxDistance(GeoBoundingBox box, GeoPoint point) {
+        double dx = Math.max(Math.abs(point.getLongitude() - box.getLowerLeft().getLongitude()),
+                Math.abs(point.getLongitude() - box.getUpperRight().getLongitude()));
+        double dy = Math.max(Math.abs(point.getLatitude() - box.getLowerLeft().getLatitude()),
+                Math.abs(point.getLatitude() - box.getUpperRight().getLatitude()));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Get the distance between two points, wrapped at the antimeridian.
+     * 
+     * @param point the first point
+     * @param longitude the longitude of the second point
+     * @param latitude the latitude of the second point
+     * @return the distance in degrees
+     */
+    private static double distance(GeoPoint point, double longitude, double latitude) {
+        double dx = lonDistance(point.getLongitude(), longitude);
+        double dy = point.getLatitude() - latitude;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Get the longitude distance between two longitudes, wrapped at the antimeridian.
+     * 
+     * @param lon1 the first longitude
+     * @param lon2 the second longitude
+     * @return the distance in degrees
+     */
+    private static double lonDistance(double lon1, double lon2) {
+        double dx = Math.abs(lon1 - lon2);
+        return dx > FULL_CIRCLE / 2 ? FULL_CIRCLE - dx : dx;
+    }
+
+    /**
+     * A ranked location in the heap.
+     */
+    private static final class Candidate {
+
+        /** The location. */
+        private final GeoLocation location;
+
+        /** The rank, lower is better. */
+        private final double rank;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param location the location
+         * @param rank the rank
+         */
+        Candidate(GeoLocation location, double rank) {
+            this.location = location;
+            this.rank = rank;
+        }
+    }
+}
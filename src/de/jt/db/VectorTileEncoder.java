@@ -0,0 +1,483 @@
+package de.jt.db;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+
+/**
+ * Encoder of locations into Mapbox Vector Tiles, version 2.
+ * 
+ * A tile holds one layer with a point feature per location. The features carry the description, the timestamp in
+ * milliseconds if present and, for thinned tiles, the number of locations they stand for. A tile with more than a
+ * configured number of locations is thinned: the tile is divided into a grid and only the first location of each
+ * occupied grid cell is encoded, with the number of locations of its cell.
+ * 
+ * The protobuf message is written straight into one growing byte array, the sizes of the nested messages are computed
+ * ahead, so no message is copied. See {@link MongoGeoService#getVectorTile(int, int, int, VectorTileEncoder)} for the
+ * query of a tile. An instance is immutable and thread-safe.
+ * 
+ * @author Hendrik Stein
+ */
+public class VectorTileEncoder {
+
+    /** Default name of the layer. */
+    public static final String DEFAULT_LAYER_NAME = "locations";
+
+    /** Default extent of a tile in its own coordinates. */
+    public static final int DEFAULT_EXTENT = 4096;
+
+    /** Default maximum number of locations of a tile encoded without thinning. */
+    public static final int DEFAULT_MAX_UNTHINNED = 1024;
+
+    /** Default number of thinning grid cells per axis. */
+    public static final int DEFAULT_THINNING_GRID = 256;
+
+    /** Feature property of the description. */
+    public static final String KEY_DESCRIPTION = "description";
+
+    /** Feature property of the timestamp in milliseconds. */
+    public static final String KEY_TIMESTAMP = "timestamp";
+
+    /** Feature property of the number of locations of a thinned feature. */
+    public static final String KEY_COUNT = "count";
+
+    /** Version of the vector tile specification. */
+    private static final int VERSION = 2;
+
+    /** Tile field of the layers. */
+    private static final int TILE_LAYERS = 3;
+
+    /** Layer field of the version. */
+    private static final int LAYER_VERSION = 15;
+
+    /** Layer field of the name. */
+    private static final int LAYER_NAME = 1;
+
+    /** Layer field of the features. */
+    private static final int LAYER_FEATURES = 2;
+
+    /** Layer field of the keys. */
+    private static final int LAYER_KEYS = 3;
+
+    /** Layer field of the values. */
+    private static final int LAYER_VALUES = 4;
+
+    /** Layer field of the extent. */
+    private static final int LAYER_EXTENT = 5;
+
+    /** Feature field of the tags. */
+    private static final int FEATURE_TAGS = 2;
+
+    /** Feature field of the geometry type. */
+    private static final int FEATURE_TYPE = 3;
+
+    /** Feature field of the geometry. */
+    private static final int FEATURE_GEOMETRY = 4;
+
+    /** Value field of a string. */
+    private static final int VALUE_STRING = 1;
+
+    /** Value field of a signed integer. */
+    private static final int VALUE_INT = 4;
+
+    /** Geometry type of points. */
+    private static final int GEOMETRY_POINT = 1;
+
+    /** Geometry command of one MoveTo. */
+    private static final int MOVE_TO_ONCE = (1 << 3) | 1;
+
+    /** Protobuf wire type of varints. */
+    private static final int WIRE_VARINT = 0;
+
+    /** Protobuf wire type of length delimited fields. */
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+
+    /** Maximum size of a varint of 32 bits. */
+    private static final int MAX_VARINT32_SIZE = 5;
+
+    /** Charset of the strings. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The keys of the layer, indexed by the tags. */
+    private static final String[] KEYS = { KEY_DESCRIPTION, KEY_TIMESTAMP, KEY_COUNT };
+
+    /** The name of the layer, UTF-8 encoded. */
+    private final byte[] layerName;
+
+    /** The extent of a tile. */
+    private final int extent;
+
+    /** Maximum number of locations of a tile encoded without thinning. */
+    private final int maxUnthinned;
+
+    /** Number of thinning grid cells per axis. */
+    private final int thinningGrid;
+
+    /**
+     * Creates an instance with {@link #DEFAULT_LAYER_NAME}, {@link #DEFAULT_EXTENT}, {@link #DEFAULT_MAX_UNTHINNED} and
+     * {@link #DEFAULT_THINNING_GRID}.
+     */
+    public VectorTileEncoder() {
+        this(DEFAULT_LAYER_NAME, DEFAULT_EXTENT, DEFAULT_MAX_UNTHINNED, DEFAULT_THINNING_GRID);
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param layerName the name of the layer
+     * @param extent the extent of a tile in its own coordinates
+     * @param maxUnthinned the maximum number of locations of a tile encoded without thinning
+     * @param thinningGrid the number of thinning grid cells per axis
+     * 
+     * @throws IllegalArgumentException if a parameter is out of bounds
+     */
+    public VectorTileEncoder(String layerName, int extent, int maxUnthinned, int thinningGrid)
+            throws IllegalArgumentException {
+        if (layerName == null || extent <= 0 || maxUnthinned < 0 || thinningGrid <= 0 || thinningGrid > extent) {
+            throw new IllegalArgumentException("VectorTileEncoder: parameter out of bounds");
+        }
+        this.layerName = layerName.getBytes(UTF8);
+        this.extent = extent;
+        this.maxUnthinned = maxUnthinned;
+        this.thinningGrid = thinningGrid;
+    }
+
+    /**
+     * Get the bounding box of a tile of the z/x/y tiling scheme with tile 0/0 in the north west. The first and last
+     * row extend to the poles.
+     * 
+     * @param zoom the zoom level
+     * @param x the column
+     * @param y the row
+     * @return the bounding box
+     * 
+     * @throws IllegalArgumentException if the tile does not exist
+     */
+    public static GeoBoundingBox getBoundingBox(int zoom, int x, int y) throws IllegalArgumentException {
+        return TileCoordinates.bounds(zoom, x, y);
+    }
+
+    /**
+     * Encode the locations of a tile.
+     * 
+     * @param locations the locations within the tile
+     * @param zoom the zoom level
+     * @param x the column
+     * @param y the row
+     * @return the encoded tile
+     * 
+     * @throws IllegalArgumentException if the tile does not exist
+     */
+    public ByteBuffer encode(List<GeoLocation> locations, int zoom, int x, int y) throws IllegalArgumentException {
+        TileCoordinates.bounds(zoom, x, y);
+        int n = locations.size();
+        double tiles = TileCoordinates.tiles(zoom);
+        int[] xs = new int[n];
+        int[] ys = new int[n];
+        for (int i = 0; i < n; i++) {
+            GeoPoint point = locations.get(i).getGeoPoint();
+            xs[i] = (int) Math.round((TileCoordinates.projectX(point.getLongitude()) * tiles - x) * extent);
+            ys[i] = (int) Math.round((TileCoordinates.projectY(point.getLatitude()) * tiles - y) * extent);
+        }
+        int[] counts = n > maxUnthinned ? thin(xs, ys) : null;
+
+        ValueTable values = new ValueTable();
+        int[][] tags = new int[n][];
+        for (int i = 0; i < n; i++) {
+            if (counts == null || counts[i] > 0) {
+                tags[i] = tags(locations.get(i), counts == null ? 0 : counts[i], values);
+            }
+        }
+
+        ProtoWriter out = new ProtoWriter(64 + 16 * n + values.size);
+        // room for the layer tag and length, written in front once the layer size is known
+        out.position = 1 + MAX_VARINT32_SIZE;
+        out.writeVarintField(LAYER_VERSION, VERSION);
+        out.writeBytesField(LAYER_NAME, layerName);
+        for (int i = 0; i < n; i++) {
+            if (tags[i] != null) {
+                writeFeature(out, tags[i], xs[i], ys[i]);
+            }
+        }
+        for (String key : KEYS) {
+            out.writeBytesField(LAYER_KEYS, key.getBytes(UTF8));
+        }
+        for (Object value : values.values) {
+            writeValue(out, value);
+        }
+        out.writeVarintField(LAYER_EXTENT, extent);
+
+        int layerSize = out.position - 1 - MAX_VARINT32_SIZE;
+        int start = 1 + MAX_VARINT32_SIZE - 1 - ProtoWriter.varintSize(layerSize);
+        int end = out.position;
+        out.position = start;
+        out.writeTag(TILE_LAYERS, WIRE_LENGTH_DELIMITED);
+        out.writeVarint(layerSize);
+        return ByteBuffer.wrap(out.buffer, start, end - start).slice();
+    }
+
+    /**
+     * Thin dense locations to the first location of each thinning grid cell.
+     * 
+     * @param xs the tile x coordinates
+     * @param ys the tile y coordinates
+     * @return the number of locations of the cell of each kept location, 0 for dropped locations
+     */
+    private int[] thin(int[] xs, int[] ys) {
+        int n = xs.length;
+        int capacity = Integer.highestOneBit(Math.max(2 * n, 2)) << 1;
+        int mask = capacity - 1;
+        // open addressing table of the occupied cells: cell index + 1 and the first location of the cell
+        int[] cells = new int[capacity];
+        int[] firsts = new int[capacity];
+        int[] counts = new int[n];
+        int cellSize = (extent + thinningGrid - 1) / thinningGrid;
+        for (int i = 0; i < n; i++) {
+            int column = Math.max(0, Math.min(thinningGrid - 1, xs[i] / cellSize));
+            int row = Math.max(0, Math.min(thinningGrid - 1, ys[i] / cellSize));
+            int cell = row * thinningGrid + column + 1;
+            int slot = (cell * 0x9E3779B9) >>> 1 & mask;
+            while (cells[slot] != 0 && cells[slot] != cell) {
+                slot = (slot + 1) & mask;
+            }
+            if (cells[slot] == 0) {
+                cells[slot] = cell;
+                firsts[slot] = i;
+            }
+            counts[firsts[slot]]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Get the tags of a feature: pairs of key and value index.
+     * 
+     * @param location the location
+     * @param count the number of locations of a thinned feature, 0 if the tile is not thinned
+     * @param values the value table
+     * @return the tags
+     */
+    private static int[] tags(GeoLocation location, int count, ValueTable values) {
+        int[] tags = new int[6];
+        int size = 0;
+        if (location.getDescription() != null) {
+            tags[size++] = 0;
+            tags[size++] = values.indexOf(location.getDescription());
+        }
+        Date timestamp = location.getTimestamp();
+        if (timestamp != null) {
+            tags[size++] = 1;
+            tags[size++] = values.indexOf(Long.valueOf(timestamp.getTime()));
+        }
+        if (count > 0) {
+            tags[size++] = 2;
+            tags[size++] = values.indexOf(Long.valueOf(count));
+        }
+        return size == tags.length ? tags : Arrays.copyOf(tags, size);
+    }
+
+    /**
+     * Write a point feature.
+     * 
+     * @param out the writer
+     * @param tags the tags
+     * @param x the tile x coordinate
+     * @param y the tile y coordinate
+     */
+    private static void writeFeature(ProtoWriter out, int[] tags, int x, int y) {
+        int tagsSize = 0;
+        for (int tag : tags) {
+            tagsSize += ProtoWriter.varintSize(tag);
+        }
+        long zigzagX = zigzag(x);
+        long zigzagY = zigzag(y);
+        int geometrySize = 1 + ProtoWriter.varintSize(zigzagX) + ProtoWriter.varintSize(zigzagY);
+        // type tag and value, geometry tag, length and content
+        int size = 2 + 1 + ProtoWriter.varintSize(geometrySize) + geometrySize;
+        if (tagsSize > 0) {
+            size += 1 + ProtoWriter.varintSize(tagsSize) + tagsSize;
+        }
+
+        out.writeTag(LAYER_FEATURES, WIRE_LENGTH_DELIMITED);
+        out.writeVarint(size);
+        if (tagsSize > 0) {
+            out.writeTag(FEATURE_TAGS, WIRE_LENGTH_DELIMITED);
+            out.writeVarint(tagsSize);
+            for (int tag : tags) {
+                out.writeVarint(tag);
+            }
+        }
+        out.writeVarintField(FEATURE_TYPE, GEOMETRY_POINT);
+        out.writeTag(FEATURE_GEOMETRY, WIRE_LENGTH_DELIMITED);
+        out.writeVarint(geometrySize);
+        out.writeVarint(MOVE_TO_ONCE);
+        out.writeVarint(zigzagX);
+        out.writeVarint(zigzagY);
+    }
+
+    /**
+     * Write a value of the layer.
+     * 
+     * @param out the writer
+     * @param value a string or a long
+     */
+    private static void writeValue(ProtoWriter out, Object value) {
+        out.writeTag(LAYER_VALUES, WIRE_LENGTH_DELIMITED);
+        if (value instanceof String) {
+            byte[] bytes = ((String) value).getBytes(UTF8);
+            out.writeVarint(1 + ProtoWriter.varintSize(bytes.length) + bytes.length);
+            out.writeBytesField(VALUE_STRING, bytes);
+        } else {
+            long number = (Long) value;
+            out.writeVarint(1 + ProtoWriter.varintSize(number));
+            out.writeVarintField(VALUE_INT, number);
+        }
+    }
+
+    /**
+     * ZigZag encode a coordinate so that small negative numbers have short varints.
+     * 
+     * @param value the value
+     * @return the encoded value
+     */
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * The distinct property values of a layer in the order of their first use.
+     */
+    private static final class ValueTable {
+
+        /** The index of each value. */
+        private final Map<Object, Integer> indexes = new HashMap<>();
+
+        /** The values. */
+        private final List<Object> values = new ArrayList<>();
+
+        /** Estimated encoded size of the values. */
+        private int size;
+
+        /**
+         * Get the index of a value, adding it if it is new.
+         * 
+         * @param value a string or a long
+         * @return the index
+         */
+        private int indexOf(Object value) {
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = values.size();
+                indexes.put(value, index);
+                values.add(value);
+                size += value instanceof String ? 4 + 3 * ((String) value).length() : 13;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Minimal protobuf writer into a growing byte array.
+     */
+    private static final class ProtoWriter {
+
+        /** The buffer. */
+        private byte[] buffer;
+
+        /** The write position. */
+        private int position;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param capacity the initial capacity
+         */
+        private ProtoWriter(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        /**
+         * Get the size of a varint.
+         * 
+         * @param value the value, negative values take ten bytes
+         * @return the number of bytes
+         */
+        private static int varintSize(long value) {
+            int size = 1;
+            while ((value & ~0x7FL) != 0L) {
+                value >>>= 7;
+                size++;
+            }
+            return size;
+        }
+
+        /**
+         * Write a field tag.
+         * 
+         * @param field the field number
+         * @param wireType the wire type
+         */
+        private void writeTag(int field, int wireType) {
+            writeVarint(field << 3 | wireType);
+        }
+
+        /**
+         * Write a varint field.
+         * 
+         * @param field the field number
+         * @param value the value
+         */
+        private void writeVarintField(int field, long value) {
+            writeTag(field, WIRE_VARINT);
+            writeVarint(value);
+        }
+
+        /**
+         * Write a length delimited field.
+         * 
+         * @param field the field number
+         * @param bytes the content
+         */
+        private void writeBytesField(int field, byte[] bytes) {
+            writeTag(field, WIRE_LENGTH_DELIMITED);
+            writeVarint(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        /**
+         * Write a varint.
+         * 
+         * @param value the value
+         */
+        private void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0L) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        /**
+         * Grow the buffer for more bytes.
+         * 
+         * @param bytes the number of bytes to write
+         */
+        private void ensureCapacity(int bytes) {
+            if (position + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+            }
+        }
+    }
+}
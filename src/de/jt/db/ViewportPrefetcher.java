@@ -0,0 +1,520 @@
+package de.jt.db;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoConstants;
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+
+/**
+ * Predictive prefetching of the next viewport of interactive clients.
+ * 
+ * For each client the prefetcher remembers the last viewport. From the movement of the center and the change of the
+ * span between two viewports it predicts the next viewport, continuing the pan direction and the zoom trend, and
+ * queries it in the background. Query results and prefetched boxes are cached per client for a short time; a request
+ * whose box lies within a cached box is answered from memory, and a request for a box which is still being prefetched
+ * waits for the prefetch instead of querying again. Predictions wrap at the antimeridian.
+ * 
+ * Prefetches never delay real queries: they run on a small pool of low priority threads and are dropped instead of
+ * queued when all threads are busy, or when the number of prefetched locations per second exceeds the bandwidth cap.
+ * 
+ * An instance is thread-safe and is meant to be shared by all clients; call {@link #close()} to stop the thread pool.
+ * 
+ * @author Hendrik Stein
+ */
+public class ViewportPrefetcher {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(ViewportPrefetcher.class.getName());
+
+    /** Default number of concurrent prefetches. */
+    public static final int DEFAULT_MAX_CONCURRENT = 2;
+
+    /** Default maximum number of prefetched locations per second. */
+    public static final long DEFAULT_MAX_LOCATIONS_PER_SECOND = 50000L;
+
+    /** Default time a cached box is kept. */
+    public static final long DEFAULT_TTL_MILLIS = 30000L;
+
+    /** Maximum number of cached boxes per client. */
+    private static final int MAX_BOXES_PER_CLIENT = 4;
+
+    /** Maximum factor by which a predicted viewport grows or shrinks. */
+    private static final double MAX_ZOOM_FACTOR = 2d;
+
+    /** Number of requests between two removals of idle clients. */
+    private static final int CLEANUP_INTERVAL = 256;
+
+    /** The queried service. */
+    private final MongoGeoService service;
+
+    /** Maximum number of prefetched locations per second. */
+    private final long maxLocationsPerSecond;
+
+    /** Time a cached box is kept in nanoseconds. */
+    private final long ttlNanos;
+
+    /** The prefetch thread pool. */
+    private final ThreadPoolExecutor pool;
+
+    /** The state per client. */
+    private final ConcurrentMap<String, Client> clients = new ConcurrentHashMap<>();
+
+    /** Remaining location budget of prefetches, refilled continuously. */
+    private double budget;
+
+    /** Last refill of the budget in nanoseconds. */
+    private long budgetRefilled = System.nanoTime();
+
+    /** Number of requests, drives the removal of idle clients. */
+    private final AtomicLong requests = new AtomicLong();
+
+    /** Number of requests answered from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of started prefetches. */
+    private final AtomicLong prefetches = new AtomicLong();
+
+    /** Number of predictions dropped by the concurrency or bandwidth cap. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Creates an instance with {@link #DEFAULT_MAX_CONCURRENT}, {@link #DEFAULT_MAX_LOCATIONS_PER_SECOND} and
+     * {@link #DEFAULT_TTL_MILLIS}.
+     * 
+     * @param service the queried service
+     */
+    public ViewportPrefetcher(MongoGeoService service) {
+        this(service, DEFAULT_MAX_CONCURRENT, DEFAULT_MAX_LOCATIONS_PER_SECOND, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param service the queried service
+     * @param maxConcurrent the number of concurrent prefetches
+     * @param maxLocationsPerSecond the maximum number of prefetched locations per second
+     * @param ttlMillis the time a cached box is kept in milliseconds
+     * 
+     * @throws IllegalArgumentException if a parameter is out of bounds
+     */
+    public ViewportPrefetcher(MongoGeoService service, int maxConcurrent, long maxLocationsPerSecond, long ttlMillis)
+            throws IllegalArgumentException {
+        if (service == null || maxConcurrent <= 0 || maxLocationsPerSecond <= 0L || ttlMillis <= 0L) {
+            throw new IllegalArgumentException("ViewportPrefetcher: parameter out of bounds");
+        }
+        this.service = service;
+        this.maxLocationsPerSecond = maxLocationsPerSecond;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.budget = maxLocationsPerSecond;
+        this.pool = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 0L, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "geo-prefetch-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Get the number of requests.
+     * 
+     * @return the number of requests
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of requests answered from a cached or prefetched box.
+     * 
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of started prefetches.
+     * 
+     * @return the number of prefetches
+     */
+    public long getPrefetches() {
+        return prefetches.get();
+    }
+
+    /**
+     * Get the number of predictions dropped by the concurrency or bandwidth cap.
+     * 
+     * @return the number of dropped prefetches
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Find the geographical locations of the viewport of a client and prefetch its predicted next viewport.
+     * 
+     * @param clientId the id of the client, e.g. the session id
+     * @param bbox the viewport
+     * @return the list of geo locations
+     */
+    public List<GeoLocation> getLocations(String clientId, GeoBoundingBox bbox) {
+        long now = System.nanoTime();
+        if (requests.incrementAndGet() % CLEANUP_INTERVAL == 0) {
+            removeIdleClients(now);
+        }
+        Client client = clients.get(clientId);
+        if (client == null) {
+            Client created = new Client();
+            client = clients.putIfAbsent(clientId, created);
+            if (client == null) {
+                client = created;
+            }
+        }
+
+        CachedBox cached;
+        GeoBoundingBox previous;
+        synchronized (client) {
+            client.lastAccess = now;
+            cached = client.find(bbox, now);
+            previous = client.viewport;
+            client.viewport = bbox;
+        }
+
+        List<GeoLocation> locations = cached == null ? null : cached.locationsWithin(bbox);
+        if (locations != null) {
+            hits.incrementAndGet();
+        } else {
+            locations = service.getLocations(bbox);
+            synchronized (client) {
+                client.add(new CachedBox(bbox, locations, now + ttlNanos));
+            }
+        }
+
+        if (previous != null) {
+            GeoBoundingBox predicted = predict(previous, bbox);
+            if (predicted != null) {
+                prefetch(client, predicted, now);
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Forget the viewports and cached boxes of a client.
+     * 
+     * @param clientId the id of the client
+     */
+    public void forget(String clientId) {
+        clients.remove(clientId);
+    }
+
+    /**
+     * Stop the thread pool. Running prefetches are interrupted, waiting requests query the database.
+     */
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Start the prefetch of a predicted viewport unless it is cached already or a cap is reached.
+     * 
+     * @param client the client
+     * @param predicted the predicted viewport
+     * @param now the current time in nanoseconds
+     */
+    private void prefetch(Client client, final GeoBoundingBox predicted, long now) {
+        synchronized (client) {
+            if (client.find(predicted, now) != null) {
+                return;
+            }
+        }
+        if (!tryAcquireBudget(now)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        FutureTask<List<GeoLocation>> task = new FutureTask<>(new Callable<List<GeoLocation>>() {
+            @Override
+            public List<GeoLocation> call() {
+                List<GeoLocation> locations = service.getLocations(predicted);
+                consumeBudget(locations.size());
+                return locations;
+            }
+        });
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException e) {
+            dropped.incrementAndGet();
+            return;
+        }
+        prefetches.incrementAndGet();
+        synchronized (client) {
+            client.add(new CachedBox(predicted, task, now + ttlNanos));
+        }
+    }
+
+    /**
+     * Check whether the bandwidth budget allows another prefetch.
+     * 
+     * @param now the current time in nanoseconds
+     * @return <tt>true</tt> if the budget is positive
+     */
+    private synchronized boolean tryAcquireBudget(long now) {
+        double refill = (now - budgetRefilled) * maxLocationsPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+        budget = Math.min(maxLocationsPerSecond, budget + refill);
+        budgetRefilled = now;
+        return budget > 0d;
+    }
+
+    /**
+     * Charge prefetched locations to the bandwidth budget, which may become negative.
+     * 
+     * @param locations the number of prefetched locations
+     */
+    private synchronized void consumeBudget(int locations) {
+        budget -= locations;
+    }
+
+    /**
+     * Remove the clients which have not sent a request within the cache TTL.
+     * 
+     * @param now the current time in nanoseconds
+     */
+    private void removeIdleClients(long now) {
+        for (Iterator<Map.Entry<String, Client>> it = clients.entrySet().iterator(); it.hasNext();) {
+            Client client = it.next().getValue();
+            synchronized (client) {
+                if (now - client.lastAccess > ttlNanos) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Predict the next viewport by continuing the movement of the center and the change of the span.
+     * 
+     * @param previous the previous viewport
+     * @param current the current viewport
+     * @return the predicted viewport or <tt>null</tt> if the viewport did not change or the prediction is invalid
+     */
+    static GeoBoundingBox predict(GeoBoundingBox previous, GeoBoundingBox current) {
+        GeoPoint from = previous.getCenter();
+        GeoPoint to = current.getCenter();
+        double moveLon = to.getLongitude() - from.getLongitude();
+        double world = GeoConstants.LONG_MAX - GeoConstants.LONG_MIN;
+        // the shorter way around, a pan over the antimeridian is a small step
+        if (moveLon > world / 2) {
+            moveLon -= world;
+        } else if (moveLon < -world / 2) {
+            moveLon += world;
+        }
+        double moveLat = to.getLatitude() - from.getLatitude();
+        double zoomLon = clampZoom(current.getLongitudeSpan() / previous.getLongitudeSpan());
+        double zoomLat = clampZoom(current.getLatitudeSpan() / previous.getLatitudeSpan());
+        if (moveLon == 0d && moveLat == 0d && zoomLon == 1d && zoomLat == 1d) {
+            return null;
+        }
+
+        double spanLon = current.getLongitudeSpan() * zoomLon;
+        double spanLat = current.getLatitudeSpan() * zoomLat;
+        if (spanLon >= world) {
+            return null;
+        }
+        double centerLat = to.getLatitude() + moveLat;
+        double south = Math.max(GeoConstants.LAT_MIN, centerLat - spanLat / 2);
+        double north = Math.min(GeoConstants.LAT_MAX, centerLat + spanLat / 2);
+        if (south >= north) {
+            return null;
+        }
+        double west = wrap(to.getLongitude() + moveLon - spanLon / 2);
+        double east = wrap(to.getLongitude() + moveLon + spanLon / 2);
+        try {
+            return new GeoBoundingBox(new GeoPoint(south, west), new GeoPoint(north, east));
+        } catch (IllegalArgumentException e) {
+            LOG.log(Level.FINE, "Invalid predicted viewport", e);
+            return null;
+        }
+    }
+
+    /**
+     * Limit a zoom factor.
+     * 
+     * @param factor the zoom factor
+     * @return the factor within the bounds of {@link #MAX_ZOOM_FACTOR}
+     */
+    private static double clampZoom(double factor) {
+        return Math.max(1d / MAX_ZOOM_FACTOR, Math.min(MAX_ZOOM_FACTOR, factor));
+    }
+
+    /**
+     * Wrap a longitude into the valid range.
+     * 
+     * @param longitude the longitude
+     * @return the longitude between -180 and 180
+     */
+    private static double wrap(double longitude) {
+        double world = GeoConstants.LONG_MAX - GeoConstants.LONG_MIN;
+        if (longitude > GeoConstants.LONG_MAX) {
+            return longitude - world;
+        }
+        if (longitude < GeoConstants.LONG_MIN) {
+            return longitude + world;
+        }
+        return longitude;
+    }
+
+    /**
+     * The viewport and the cached boxes of a client, guarded by the instance lock.
+     */
+    private static final class Client {
+
+        /** The last viewport or <tt>null</tt>. */
+        private GeoBoundingBox viewport;
+
+        /** The cached boxes, most recent first. */
+        private final LinkedList<CachedBox> boxes = new LinkedList<>();
+
+        /** The time of the last request in nanoseconds. */
+        private long lastAccess;
+
+        /**
+         * Find a valid cached box containing a viewport and drop the expired ones.
+         * 
+         * @param bbox the viewport
+         * @param now the current time in nanoseconds
+         * @return the cached box or <tt>null</tt>
+         */
+        private CachedBox find(GeoBoundingBox bbox, long now) {
+            for (Iterator<CachedBox> it = boxes.iterator(); it.hasNext();) {
+                CachedBox cached = it.next();
+                if (now - cached.expires > 0L) {
+                    it.remove();
+                } else if (ViewportSession.difference(bbox, cached.bbox).isEmpty()) {
+                    return cached;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Add a cached box, dropping the oldest one if the client has too many.
+         * 
+         * @param cached the cached box
+         */
+        private void add(CachedBox cached) {
+            boxes.addFirst(cached);
+            if (boxes.size() > MAX_BOXES_PER_CLIENT) {
+                boxes.removeLast();
+            }
+        }
+    }
+
+    /**
+     * A queried or prefetched box.
+     */
+    private static final class CachedBox {
+
+        /** The box. */
+        private final GeoBoundingBox bbox;
+
+        /** The locations of the box. */
+        private final Future<List<GeoLocation>> locations;
+
+        /** The expiry time in nanoseconds. */
+        private final long expires;
+
+        /**
+         * Creates an instance of a queried box.
+         * 
+         * @param bbox the box
+         * @param locations the locations of the box
+         * @param expires the expiry time in nanoseconds
+         */
+        private CachedBox(GeoBoundingBox bbox, List<GeoLocation> locations, long expires) {
+            this(bbox, completed(locations), expires);
+        }
+
+        /**
+         * Creates an instance of a prefetched box.
+         * 
+         * @param bbox the box
+         * @param locations the running prefetch
+         * @param expires the expiry time in nanoseconds
+         */
+        private CachedBox(GeoBoundingBox bbox, Future<List<GeoLocation>> locations, long expires) {
+            this.bbox = bbox;
+            this.locations = locations;
+            this.expires = expires;
+        }
+
+        /**
+         * Get the cached locations within a viewport, waiting for a running prefetch.
+         * 
+         * @param viewport the viewport within the box
+         * @return the list of locations or <tt>null</tt> if the prefetch failed
+         */
+        private List<GeoLocation> locationsWithin(GeoBoundingBox viewport) {
+            List<GeoLocation> all;
+            try {
+                all = locations.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                LOG.log(Level.FINE, "Prefetch failed", e.getCause());
+                return null;
+            }
+            List<GeoLocation> within = new ArrayList<>();
+            for (GeoLocation location : all) {
+                if (viewport.contains(location.getGeoPoint())) {
+                    within.add(location);
+                }
+            }
+            return within;
+        }
+
+        /**
+         * Wrap a result into a completed future.
+         * 
+         * @param result the result
+         * @return the future
+         */
+        private static Future<List<GeoLocation>> completed(final List<GeoLocation> result) {
+            FutureTask<List<GeoLocation>> task = new FutureTask<>(new Callable<List<GeoLocation>>() {
+                @Override
+                public List<GeoLocation> call() {
+                    return result;
+                }
+            });
+            task.run();
+            return task;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package de.jt.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoConstants;
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+
+/**
+ * Incremental bounding box queries of one map viewport.
+ * 
+ * The session keeps the locations of the previous viewport. When the viewport moves, only the newly exposed area is
+ * queried: the difference of the new and the previous box, at most four strips per side of the antimeridian. Locations
+ * outside of the new box are dropped from the session. If the exposed area is a large part of the new box, for example
+ * after a jump or a zoom out, the whole box is queried with one plan instead.
+ * 
+ * The kept locations are not refreshed, so locations inserted into or removed from the overlapping area stay unseen
+ * until {@link #reset()}. An instance is meant for one client and is not thread-safe.
+ * 
+ * @author Hendrik Stein
+ */
+public class ViewportSession {
+
+    /** Default fraction of the new box above which the whole box is queried. */
+    public static final double DEFAULT_FULL_QUERY_RATIO = 0.5d;
+
+    /** Index of the west longitude of a rectangle. */
+    private static final int WEST = 0;
+
+    /** Index of the south latitude of a rectangle. */
+    private static final int SOUTH = 1;
+
+    /** Index of the east longitude of a rectangle. */
+    private static final int EAST = 2;
+
+    /** Index of the north latitude of a rectangle. */
+    private static final int NORTH = 3;
+
+    /** The queried service. */
+    private final MongoGeoService service;
+
+    /** Fraction of the new box above which the whole box is queried. */
+    private final double fullQueryRatio;
+
+    /** The previous viewport or <tt>null</tt>. */
+    private GeoBoundingBox viewport;
+
+    /** The locations of the previous viewport. */
+    private List<GeoLocation> locations = new ArrayList<>();
+
+    /**
+     * Creates an instance with {@link #DEFAULT_FULL_QUERY_RATIO}.
+     * 
+     * @param service the queried service
+     */
+    public ViewportSession(MongoGeoService service) {
+        this(service, DEFAULT_FULL_QUERY_RATIO);
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param service the queried service
+     * @param fullQueryRatio the fraction of the new box exposed by a move above which the whole box is queried,
+     *        between 0 and 1
+     * 
+     * @throws IllegalArgumentException if a parameter is out of bounds
+     */
+    public ViewportSession(MongoGeoService service, double fullQueryRatio) throws IllegalArgumentException {
+        if (service == null || fullQueryRatio < 0d || fullQueryRatio > 1d) {
+            throw new IllegalArgumentException("ViewportSession: parameter out of bounds");
+        }
+        this.service = service;
+        this.fullQueryRatio = fullQueryRatio;
+    }
+
+    /**
+     * Get the current viewport.
+     * 
+     * @return the bounding box or <tt>null</tt> before the first move
+     */
+    public GeoBoundingBox getViewport() {
+        return viewport;
+    }
+
+    /**
+     * Move the viewport and query the newly exposed area.
+     * 
+     * @param bbox the new viewport
+     * @return the added, removed and visible locations
+     */
+    public ViewportUpdate moveTo(GeoBoundingBox bbox) {
+        GeoBoundingBox previous = viewport;
+        List<GeoBoundingBox> strips = previous == null ? null : difference(bbox, previous);
+        double exposed = 0d;
+        if (strips != null) {
+            for (GeoBoundingBox strip : strips) {
+                exposed += area(strip);
+            }
+        }
+
+        List<GeoLocation> added = new ArrayList<>();
+        List<GeoLocation> removed = new ArrayList<>();
+        List<GeoLocation> visible;
+        boolean fullQuery = strips == null || exposed > fullQueryRatio * area(bbox);
+        if (fullQuery) {
+            visible = service.getLocations(bbox);
+            for (GeoLocation location : visible) {
+                if (previous == null || !previous.contains(location.getGeoPoint())) {
+                    added.add(location);
+                }
+            }
+        } else {
+            for (GeoBoundingBox strip : strips) {
+                for (GeoLocation location : service.getLocations(strip)) {
+                    // the strips share their edges with the previous box and with each other
+                    GeoPoint point = location.getGeoPoint();
+                    if (!previous.contains(point) && !inEarlierStrip(strips, strip, point)) {
+                        added.add(location);
+                    }
+                }
+            }
+            visible = new ArrayList<>(locations.size() + added.size());
+        }
+        for (GeoLocation location : locations) {
+            if (!bbox.contains(location.getGeoPoint())) {
+                removed.add(location);
+            } else if (!fullQuery) {
+                visible.add(location);
+            }
+        }
+        if (!fullQuery) {
+            visible.addAll(added);
+        }
+        viewport = bbox;
+        locations = visible;
+        return new ViewportUpdate(added, removed, visible, fullQuery);
+    }
+
+    /**
+     * Forget the previous viewport, so the next move queries the whole box.
+     */
+    public void reset() {
+        viewport = null;
+        locations = new ArrayList<>();
+    }
+
+    /**
+     * Check whether a point lies within a strip before the given one, so it has been added already.
+     * 
+     * @param strips the strips
+     * @param strip the current strip
+     * @param point the point
+     * @return <tt>true</tt> if an earlier strip contains the point
+     */
+    private static boolean inEarlierStrip(List<GeoBoundingBox> strips, GeoBoundingBox strip, GeoPoint point) {
+        for (GeoBoundingBox earlier : strips) {
+            if (earlier == strip) {
+                return false;
+            }
+            if (earlier.contains(point)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compute the area of a box which is not covered by another box, taking the antimeridian into account.
+     * 
+     * @param bbox the box
+     * @param covered the covering box
+     * @return the uncovered strips, none of which overlaps the antimeridian
+     */
+    static List<GeoBoundingBox> difference(GeoBoundingBox bbox, GeoBoundingBox covered) {
+        List<double[]> pieces = pieces(bbox);
+        for (double[] cover : pieces(covered)) {
+            List<double[]> remaining = new ArrayList<>();
+            for (double[] piece : pieces) {
+                subtract(piece, cover, remaining);
+            }
+            pieces = remaining;
+        }
+        List<GeoBoundingBox> strips = new ArrayList<>(pieces.size());
+        for (double[] piece : pieces) {
+            strips.add(new GeoBoundingBox(new GeoPoint(piece[SOUTH], piece[WEST]), new GeoPoint(piece[NORTH],
+                    piece[EAST])));
+        }
+        return strips;
+    }
+
+    /**
+     * Split a box into rectangles which do not overlap the antimeridian.
+     * 
+     * @param bbox the box
+     * @return one or two rectangles as west, south, east, north
+     */
+    private static List<double[]> pieces(GeoBoundingBox bbox) {
+        double west = bbox.getLowerLeft().getLongitude();
+        double south = bbox.getLowerLeft().getLatitude();
+        double east = bbox.getUpperRight().getLongitude();
+        double north = bbox.getUpperRight().getLatitude();
+        List<double[]> pieces = new ArrayList<>(2);
+        if (bbox.isOverAntimeridian()) {
+            pieces.add(new double[] { west, south, GeoConstants.LONG_MAX, north });
+            pieces.add(new double[] { GeoConstants.LONG_MIN, south, east, north });
+        } else {
+            pieces.add(new double[] { west, south, east, north });
+        }
+        return pieces;
+    }
+
+    /**
+     * Subtract a rectangle from another one: the strips south and north of the intersection over the whole width, and
+     * west and east of it over the height of the intersection.
+     * 
+     * @param piece the rectangle
+     * @param cover the subtracted rectangle
+     * @param remaining the list receiving the remaining rectangles
+     */
+    private static void subtract(double[] piece, double[] cover, List<double[]> remaining) {
+        double west = Math.max(piece[WEST], cover[WEST]);
+        double south = Math.max(piece[SOUTH], cover[SOUTH]);
+        double east = Math.min(piece[EAST], cover[EAST]);
+        double north = Math.min(piece[NORTH], cover[NORTH]);
+        if (west >= east || south >= north) {
+            remaining.add(piece);
+            return;
+        }
+        if (piece[SOUTH] < south) {
+            remaining.add(new double[] { piece[WEST], piece[SOUTH], piece[EAST], south });
+        }
+        if (piece[NORTH] > north) {
+            remaining.add(new double[] { piece[WEST], north, piece[EAST], piece[NORTH] });
+        }
+        if (piece[WEST] < west) {
+            remaining.add(new double[] { piece[WEST], south, west, north });
+        }
+        if (piece[EAST] > east) {
+            remaining.add(new double[] { east, south, piece[EAST], north });
+        }
+    }
+
+    /**
+     * Get the area of a box in square degrees.
+     * 
+     * @param bbox the box
+     * @return the area
+     */
+    private static double area(GeoBoundingBox bbox) {
+        return bbox.getLongitudeSpan() * bbox.getLatitudeSpan();
+    }
+}
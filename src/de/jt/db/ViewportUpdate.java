@@ -0,0 +1,84 @@
+package de.jt.db;
+
+import java.util.Collections;
+import java.util.List;
+
+import de.jt.model.GeoLocation;
+
+/**
+ * The change of the visible locations after a viewport moved, see {@link ViewportSession}.
+ * 
+ * @author Hendrik Stein
+ */
+public class ViewportUpdate {
+
+    /** The locations which became visible. */
+    private final List<GeoLocation> added;
+
+    /** The locations which are no longer visible. */
+    private final List<GeoLocation> removed;
+
+    /** All visible locations. */
+    private final List<GeoLocation> locations;
+
+    /** Whether the whole viewport was queried. */
+    private final boolean fullQuery;
+
+    /**
+     * Creates an instance.
+     * 
+     * @param added the locations which became visible
+     * @param removed the locations which are no longer visible
+     * @param locations all visible locations
+     * @param fullQuery whether the whole viewport was queried
+     */
+    ViewportUpdate(List<GeoLocation> added, List<GeoLocation> removed, List<GeoLocation> locations,
+            boolean fullQuery) {
+        this.added = Collections.unmodifiableList(added);
+        this.removed = Collections.unmodifiableList(removed);
+        this.locations = Collections.unmodifiableList(locations);
+        this.fullQuery = fullQuery;
+    }
+
+    /**
+     * Get the locations which became visible.
+     * 
+     * @return the list of locations
+     */
+    public List<GeoLocation> getAdded() {
+        return added;
+    }
+
+    /**
+     * Get the locations which are no longer visible.
+     * 
+     * @return the list of locations
+     */
+    public List<GeoLocation> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Get all visible locations.
+     * 
+     * @return the list of locations
+     */
+    public List<GeoLocation> getLocations() {
+        return locations;
+    }
+
+    /**
+     * Whether the whole viewport was queried instead of the newly exposed strips only.
+     * 
+     * @return <tt>true</tt> if the whole viewport was queried
+     */
+    public boolean isFullQuery() {
+        return fullQuery;
+    }
+
+    @Override
+    public String toString() {
+        return "ViewportUpdate [added=" + added.size() + ", removed=" + removed.size() + ", size=" + locations.size()
+                + ", fullQuery=" + fullQuery + "]";
+    }
+}
@@ -109,6 +109,59 @@ public class GeoBoundingBox {
         return false;
     }
 
+    /**
+     * Returns the longitude span of the bounding box in degrees, taking the antimeridian into account.
+     * 
+     * @return the longitude span (0 to 360 degrees)
+     */
+    public double getLongitudeSpan() {
+        double span = upperRight.getLongitude() - lowerLeft.getLongitude();
+        if (isOverAntimeridian()) {
+            span += GeoConstants.LONG_MAX - GeoConstants.LONG_MIN;
+        }
+        return span;
+    }
+
+    /**
+     * Returns the latitude span of the bounding box in degrees.
+     * 
+     * @return the latitude span (0 to 180 degrees)
+     */
+    public double getLatitudeSpan() {
+        return Math.abs(upperRight.getLatitude() - lowerLeft.getLatitude());
+    }
+
+    /**
+     * Returns the center of the bounding box, taking the antimeridian into account.
+     * 
+     * @return the center point
+     */
+    public GeoPoint getCenter() {
+        double longitude = lowerLeft.getLongitude() + getLongitudeSpan() / 2;
+        if (longitude > GeoConstants.LONG_MAX) {
+            longitude -= GeoConstants.LONG_MAX - GeoConstants.LONG_MIN;
+        }
+        return new GeoPoint((lowerLeft.getLatitude() + upperRight.getLatitude()) / 2, longitude);
+    }
+
+    /**
+     * Check if a point lies within the bounding box, edges included, taking the antimeridian into account.
+     * 
+     * @param point the point
+     * @return <tt>true</tt> if the point lies within the bounding box
+     */
+    public boolean contains(GeoPoint point) {
+        double latitude = point.getLatitude();
+        if (latitude < lowerLeft.getLatitude() || latitude > upperRight.getLatitude()) {
+            return false;
+        }
+        double longitude = point.getLongitude();
+        if (isOverAntimeridian()) {
+            return longitude >= lowerLeft.getLongitude() || longitude <= upperRight.getLongitude();
+        }
+        return longitude >= lowerLeft.getLongitude() && longitude <= upperRight.getLongitude();
+    }
+
     /**
      * Create the maximum of two {@link BoundingBox} split by the antimeridian.
      * 
@@ -131,6 +184,32 @@ public class GeoBoundingBox {
         return boxes;
     }
 
+    /**
+     * Split a bounding box which does not overlap the antimeridian into four quadrants. The quadrants share their inner
+     * edges.
+     * 
+     * @return the list of quadrants: lower left, lower right, upper left, upper right
+     * 
+     * @throws IllegalArgumentException if the bounding box overlaps the antimeridian
+     */
+    public List<GeoBoundingBox> splitIntoQuadrants() throws IllegalArgumentException {
+        if (isOverAntimeridian()) {
+            throw new IllegalArgumentException("GeoBoundingBox: split by antimeridian first");
+        }
+        double midLat = (lowerLeft.getLatitude() + upperRight.getLatitude()) / 2;
+        double midLon = (lowerLeft.getLongitude() + upperRight.getLongitude()) / 2;
+        GeoPoint center = new GeoPoint(midLat, midLon);
+
+        List<GeoBoundingBox> quadrants = new ArrayList<>(4);
+        quadrants.add(new GeoBoundingBox(lowerLeft, center));
+        quadrants.add(new GeoBoundingBox(new GeoPoint(lowerLeft.getLatitude(), midLon), new GeoPoint(midLat,
+                upperRight.getLongitude())));
+        quadrants.add(new GeoBoundingBox(new GeoPoint(midLat, lowerLeft.getLongitude()), new GeoPoint(
+                upperRight.getLatitude(), midLon)));
+        quadrants.add(new GeoBoundingBox(center, upperRight));
+        return quadrants;
+    }
+
     /**
      * Returns the polygon representation of the bounding box as a ring.
      * 
@@ -1,5 +1,7 @@
 package de.jt.model;
 
+import java.util.Date;
+
 import org.bson.types.BasicBSONList;
 
 import com.mongodb.BasicDBObject;
@@ -20,12 +22,18 @@ public class GeoLocation {
     /** Mongo key for the description. */
     public static final String MONGO_DESCRIPTION = "d";
 
+    /** Mongo key for the timestamp stored as a BSON date, which allows a TTL index. */
+    public static final String MONGO_TIMESTAMP = "t";
+
     /** Textual description of a given location */
     private String description;
 
     /** The geographical point of this location. */
     private GeoPoint geoPoint;
 
+    /** The time of this location in milliseconds since the epoch, <tt>null</tt> if unknown. */
+    private Long timestamp;
+
     /**
      * Creates an instance.
      * 
@@ -37,6 +45,19 @@ public class GeoLocation {
         this.description = description;
     }
 
+    /**
+     * Creates an instance with a timestamp.
+     * 
+     * @param geoPoint the geographic point
+     * @param description the description
+     * @param timestamp the time of the location or <tt>null</tt> if unknown
+     */
+    public GeoLocation(GeoPoint geoPoint, String description, Date timestamp) {
+        this.geoPoint = geoPoint;
+        this.description = description;
+        this.timestamp = timestamp == null ? null : timestamp.getTime();
+    }
+
     /**
      * Create an instance from a BasicDBObject.
      * 
@@ -64,6 +85,15 @@ public class GeoLocation {
         return geoPoint;
     }
 
+    /**
+     * Get the time of the location.
+     * 
+     * @return the timestamp or <tt>null</tt> if unknown
+     */
+    public Date getTimestamp() {
+        return timestamp == null ? null : new Date(timestamp);
+    }
+
     /**
      * Creates an instance based in the BSON representation read from MongoDB.
      * 
@@ -79,6 +109,9 @@ public class GeoLocation {
         }
 
         this.description = mongoObj.getString(MONGO_DESCRIPTION);
+        // a timestamp of another type, e.g. written by another client, counts as none
+        Object time = mongoObj.get(MONGO_TIMESTAMP);
+        this.timestamp = time instanceof Date ? ((Date) time).getTime() : null;
     }
 
     /**
@@ -92,12 +125,16 @@ public class GeoLocation {
         // location will be persisted as GeoJSON ([LON,LAT]) for geo indexing.
         mongoObj.put(MONGO_GEOPOINT, geoPoint.getGeoJSONPoint());
         mongoObj.put(MONGO_DESCRIPTION, description);
+        if (timestamp != null) {
+            mongoObj.put(MONGO_TIMESTAMP, new Date(timestamp));
+        }
         return mongoObj;
     }
 
     @Override
     public String toString() {
-        return "GeoLocation [description=" + description + ", geoPoint=" + geoPoint + "]";
+        return "GeoLocation [description=" + description + ", geoPoint=" + geoPoint + ", timestamp=" + timestamp
+                + "]";
     }
 
     @Override
@@ -106,6 +143,7 @@ public class GeoLocation {
         int result = 1;
         result = prime * result + ((description == null) ? 0 : description.hashCode());
         result = prime * result + ((geoPoint == null) ? 0 : geoPoint.hashCode());
+        result = prime * result + ((timestamp == null) ? 0 : timestamp.hashCode());
         return result;
     }
 
@@ -128,6 +166,11 @@ public class GeoLocation {
                 return false;
         } else if (!geoPoint.equals(other.geoPoint))
             return false;
+        if (timestamp == null) {
+            if (other.timestamp != null)
+                return false;
+        } else if (!timestamp.equals(other.timestamp))
+            return false;
         return true;
     }
 
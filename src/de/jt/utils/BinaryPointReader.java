@@ -0,0 +1,268 @@
+package de.jt.utils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+
+/**
+ * Streaming decoder of the compact binary point set format written by {@link BinaryPointWriter}.
+ * 
+ * Only the string table of the current block is held in memory, so sets of any size can be read.
+ * 
+ * @author Hendrik Stein
+ */
+public class BinaryPointReader implements Iterator<GeoLocation>, Closeable {
+
+    /** Size of the byte buffer. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The UTF-8 charset. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The underlying stream. */
+    private final InputStream in;
+
+    /** The divisor of the quantized coordinates. */
+    private final double scale;
+
+    /** The byte buffer. */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /** Position of the next byte in the buffer. */
+    private int position;
+
+    /** Number of valid bytes in the buffer. */
+    private int limit;
+
+    /** String table of the current block. */
+    private String[] strings = new String[0];
+
+    /** Number of points left in the current block. */
+    private int remaining;
+
+    /** Quantized latitude of the previous point. */
+    private long previousLat;
+
+    /** Quantized longitude of the previous point. */
+    private long previousLon;
+
+    /** Whether the end marker has been read or the reader is closed. */
+    private boolean finished;
+
+    /**
+     * Creates an instance and reads the header.
+     * 
+     * @param in the input stream
+     * 
+     * @throws IOException if the header cannot be read or is not a supported point set header
+     * @throws IllegalArgumentException if the input stream is <tt>null</tt>
+     */
+    public BinaryPointReader(InputStream in) throws IOException, IllegalArgumentException {
+        if (in == null) {
+            throw new IllegalArgumentException("BinaryPointReader: null input stream");
+        }
+        this.in = in;
+        for (byte magic : BinaryPointWriter.MAGIC) {
+            if (readByte() != magic) {
+                throw new IOException("BinaryPointReader: not a point set");
+            }
+        }
+        int version = readByte();
+        if (version != BinaryPointWriter.VERSION) {
+            throw new IOException("BinaryPointReader: unsupported version " + version);
+        }
+        int precision = readByte();
+        if (precision < 0 || precision > BinaryPointWriter.MAX_PRECISION) {
+            throw new IOException("BinaryPointReader: invalid precision " + precision);
+        }
+        this.scale = BinaryPointWriter.POWERS_OF_TEN[precision];
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalStateException if the stream cannot be read or is corrupt
+     */
+    @Override
+    public boolean hasNext() throws IllegalStateException {
+        if (remaining > 0) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+        try {
+            readBlockHeader();
+        } catch (IOException e) {
+            finished = true;
+            throw new IllegalStateException("BinaryPointReader: " + e.getMessage(), e);
+        }
+        return remaining > 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalStateException if the stream cannot be read or is corrupt
+     */
+    @Override
+    public GeoLocation next() throws IllegalStateException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            previousLon += unzigzag(readVarint());
+            previousLat += unzigzag(readVarint());
+            long stringIndex = readVarint();
+            if (stringIndex > strings.length) {
+                throw new IOException("invalid string index " + stringIndex);
+            }
+            remaining--;
+            return new GeoLocation(new GeoPoint(previousLat / scale, previousLon / scale),
+                    stringIndex == 0 ? null : strings[(int) stringIndex - 1]);
+        } catch (IOException | IllegalArgumentException e) {
+            finished = true;
+            remaining = 0;
+            throw new IllegalStateException("BinaryPointReader: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("BinaryPointReader: read only");
+    }
+
+    /**
+     * Close the reader and the input stream.
+     * 
+     * @throws IOException if closing the input stream fails
+     */
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        remaining = 0;
+        in.close();
+    }
+
+    /**
+     * Read the count and the string table of the next block, skipping empty blocks.
+     * 
+     * @throws IOException if the stream cannot be read or is corrupt
+     */
+    private void readBlockHeader() throws IOException {
+        while (remaining == 0 && !finished) {
+            long count = readVarint();
+            if (count == 0) {
+                finished = true;
+                return;
+            }
+            if (count > BinaryPointWriter.MAX_BLOCK_SIZE) {
+                throw new IOException("invalid block size " + count);
+            }
+            long stringCount = readVarint();
+            if (stringCount > count) {
+                throw new IOException("invalid string table size " + stringCount);
+            }
+            strings = new String[(int) stringCount];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString();
+            }
+            remaining = (int) count;
+            previousLat = 0L;
+            previousLon = 0L;
+        }
+    }
+
+    /**
+     * Read a length prefixed UTF-8 string.
+     * 
+     * @return the string
+     * 
+     * @throws IOException if the stream cannot be read or is corrupt
+     */
+    private String readString() throws IOException {
+        long length = readVarint();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("invalid string length " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (position == limit && !fill()) {
+                throw new EOFException("BinaryPointReader: truncated stream");
+            }
+            int n = Math.min(limit - position, bytes.length - offset);
+            System.arraycopy(buffer, position, bytes, offset, n);
+            position += n;
+            offset += n;
+        }
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Read an unsigned varint.
+     * 
+     * @return the value
+     * 
+     * @throws IOException if the stream cannot be read or is corrupt
+     */
+    private long readVarint() throws IOException {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("invalid varint");
+    }
+
+    /**
+     * Read a byte.
+     * 
+     * @return the byte
+     * 
+     * @throws IOException if the stream cannot be read or has ended
+     */
+    private byte readByte() throws IOException {
+        if (position == limit && !fill()) {
+            throw new EOFException("BinaryPointReader: truncated stream");
+        }
+        return buffer[position++];
+    }
+
+    /**
+     * Refill the buffer.
+     * 
+     * @return <tt>false</tt> at the end of the stream
+     * 
+     * @throws IOException if the stream cannot be read
+     */
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, BUFFER_SIZE);
+        if (n <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    /**
+     * Decode a zigzag encoded value.
+     * 
+     * @param value the zigzag encoded value
+     * @return the signed value
+     */
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
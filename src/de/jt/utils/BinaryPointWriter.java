@@ -0,0 +1,365 @@
+package de.jt.utils;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import de.jt.model.GeoConstants;
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+
+/**
+ * Streaming encoder of the compact binary point set format read by {@link BinaryPointReader}.
+ * 
+ * Coordinates are quantized to a fixed number of decimals. The locations are collected in blocks; each block is sorted
+ * along a Z-order curve, so consecutive points are close to each other, and written as zigzag varint deltas of the
+ * quantized coordinates. Descriptions are replaced by an index into a string table written at the start of each block.
+ * Only one block is held in memory, so sets of any size can be streamed.
+ * 
+ * Layout, all integers as unsigned LEB128 varints unless noted:
+ * 
+ * <pre>
+ * header  := 'G' 'E' 'O' 'P' version:byte precision:byte
+ * block   := count strings:count (length utf8-bytes)* point*
+ * point   := zigzag(lon - previous lon) zigzag(lat - previous lat) (string index + 1, 0 for no description)
+ * stream  := header block* 0
+ * </pre>
+ * 
+ * The previous coordinates of the first point of a block are 0. The order of the locations is not preserved.
+ * 
+ * @author Hendrik Stein
+ */
+public class BinaryPointWriter implements Closeable, Flushable {
+
+    /** Format version. */
+    static final int VERSION = 1;
+
+    /** Magic bytes at the start of a stream. */
+    static final byte[] MAGIC = { 'G', 'E', 'O', 'P' };
+
+    /** Maximum number of decimals, which keeps quantized coordinates within an int. */
+    public static final int MAX_PRECISION = 7;
+
+    /** Default number of decimals, about ten centimeters at the equator. */
+    public static final int DEFAULT_PRECISION = 6;
+
+    /** Default number of locations per block. */
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    /** Maximum number of locations per block, limited by the index bits of the sort key. */
+    public static final int MAX_BLOCK_SIZE = 8192;
+
+    /** Powers of ten up to 10^MAX_PRECISION. */
+    static final int[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000, 100000, 1000000, 10000000 };
+
+    /** Number of bits per axis of the Z-order sort key. */
+    private static final int CURVE_BITS = 25;
+
+    /** Number of bits of the block index below the Z-order key. */
+    private static final int INDEX_BITS = 13;
+
+    /** Mask of the block index of a sort key. */
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    /** Size of the byte buffer. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Maximum length of a varint. */
+    private static final int MAX_VARINT_LENGTH = 10;
+
+    /** The UTF-8 charset. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The underlying stream. */
+    private final OutputStream out;
+
+    /** Number of decimals of a coordinate. */
+    private final int precision;
+
+    /** Quantized latitudes of the block. */
+    private final int[] latitudes;
+
+    /** Quantized longitudes of the block. */
+    private final int[] longitudes;
+
+    /** Descriptions of the block. */
+    private final String[] descriptions;
+
+    /** Sort keys of the block: Z-order key and block index. */
+    private final long[] keys;
+
+    /** String table of the block. */
+    private final Map<String, Integer> strings = new HashMap<>();
+
+    /** The byte buffer. */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /** Number of buffered bytes. */
+    private int position;
+
+    /** Number of locations in the block. */
+    private int size;
+
+    /** Whether the writer has been closed. */
+    private boolean closed;
+
+    /**
+     * Creates an instance with {@link #DEFAULT_PRECISION} and {@link #DEFAULT_BLOCK_SIZE}.
+     * 
+     * @param out the output stream
+     * 
+     * @throws IOException if the header cannot be written
+     */
+    public BinaryPointWriter(OutputStream out) throws IOException {
+        this(out, DEFAULT_PRECISION, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param out the output stream
+     * @param precision the number of decimals of a coordinate, 0 to {@link #MAX_PRECISION}
+     * @param blockSize the number of locations per block, 1 to {@link #MAX_BLOCK_SIZE}; larger blocks compress better
+     * 
+     * @throws IOException if the header cannot be written
+     * @throws IllegalArgumentException if a parameter is out of bounds
+     */
+    public BinaryPointWriter(OutputStream out, int precision, int blockSize) throws IOException,
+            IllegalArgumentException {
+        if (out == null) {
+            throw new IllegalArgumentException("BinaryPointWriter: null output stream");
+        }
+        if (precision < 0 || precision > MAX_PRECISION || blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("BinaryPointWriter: parameter out of bounds");
+        }
+        this.out = out;
+        this.precision = precision;
+        this.latitudes = new int[blockSize];
+        this.longitudes = new int[blockSize];
+        this.descriptions = new String[blockSize];
+        this.keys = new long[blockSize];
+
+        System.arraycopy(MAGIC, 0, buffer, 0, MAGIC.length);
+        position = MAGIC.length;
+        buffer[position++] = (byte) VERSION;
+        buffer[position++] = (byte) precision;
+    }
+
+    /**
+     * Write a location.
+     * 
+     * @param location the location
+     * 
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if the writer is closed
+     */
+    public void write(GeoLocation location) throws IOException, IllegalStateException {
+        if (closed) {
+            throw new IllegalStateException("BinaryPointWriter: closed");
+        }
+        GeoPoint point = location.getGeoPoint();
+        int scale = POWERS_OF_TEN[precision];
+        latitudes[size] = (int) Math.round(point.getLatitude() * scale);
+        longitudes[size] = (int) Math.round(point.getLongitude() * scale);
+        descriptions[size] = location.getDescription();
+        keys[size] = (zOrder(point) << INDEX_BITS) | size;
+        size++;
+        if (size == keys.length) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Write all locations of an iterator.
+     * 
+     * @param locations the locations, for example a {@link de.jt.db.GeoLocationCursor}
+     * @return the number of written locations
+     * 
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if the writer is closed
+     */
+    public long writeAll(Iterator<GeoLocation> locations) throws IOException, IllegalStateException {
+        long count = 0L;
+        while (locations.hasNext()) {
+            write(locations.next());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Write the pending locations as a block and flush the underlying stream. Frequent flushes produce small blocks,
+     * which compress worse.
+     * 
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Write the pending locations and the end marker and close the underlying stream.
+     * 
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            writeBlock();
+            writeVarint(0L);
+            flushBuffer();
+        } finally {
+            closed = true;
+            out.close();
+        }
+    }
+
+    /**
+     * Sort and write the pending locations as a block.
+     * 
+     * @throws IOException if writing fails
+     */
+    private void writeBlock() throws IOException {
+        if (size == 0) {
+            return;
+        }
+        Arrays.sort(keys, 0, size);
+        writeVarint(size);
+
+        // string table in the order of first use
+        strings.clear();
+        for (int i = 0; i < size; i++) {
+            String description = descriptions[(int) (keys[i] & INDEX_MASK)];
+            if (description != null && !strings.containsKey(description)) {
+                strings.put(description, strings.size());
+            }
+        }
+        writeVarint(strings.size());
+        String[] table = new String[strings.size()];
+        for (Map.Entry<String, Integer> entry : strings.entrySet()) {
+            table[entry.getValue()] = entry.getKey();
+        }
+        for (String string : table) {
+            byte[] bytes = string.getBytes(UTF8);
+            writeVarint(bytes.length);
+            writeBytes(bytes);
+        }
+
+        int previousLat = 0;
+        int previousLon = 0;
+        for (int i = 0; i < size; i++) {
+            int index = (int) (keys[i] & INDEX_MASK);
+            writeVarint(zigzag((long) longitudes[index] - previousLon));
+            writeVarint(zigzag((long) latitudes[index] - previousLat));
+            String description = descriptions[index];
+            writeVarint(description == null ? 0 : strings.get(description) + 1);
+            previousLat = latitudes[index];
+            previousLon = longitudes[index];
+            descriptions[index] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Compute the Z-order key of a point by interleaving the bits of its normalized coordinates.
+     * 
+     * @param point the point
+     * @return the key, {@link #CURVE_BITS} bits per axis
+     */
+    private static long zOrder(GeoPoint point) {
+        long max = (1L << CURVE_BITS) - 1;
+        long x = (long) ((point.getLongitude() - GeoConstants.LONG_MIN)
+                / (GeoConstants.LONG_MAX - GeoConstants.LONG_MIN) * max);
+        long y = (long) ((point.getLatitude() - GeoConstants.LAT_MIN)
+                / (GeoConstants.LAT_MAX - GeoConstants.LAT_MIN) * max);
+        return spread(x) | (spread(y) << 1);
+    }
+
+    /**
+     * Spread the bits of a value to the even bit positions.
+     * 
+     * @param value the value with at most 32 bits
+     * @return the spread value
+     */
+    private static long spread(long value) {
+        long v = value & 0xFFFFFFFFL;
+        v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+        v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+        v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | (v << 2)) & 0x3333333333333333L;
+        v = (v | (v << 1)) & 0x5555555555555555L;
+        return v;
+    }
+
+    /**
+     * Map a signed value to an unsigned one with small values for small magnitudes.
+     * 
+     * @param value the signed value
+     * @return the zigzag encoded value
+     */
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Write an unsigned varint.
+     * 
+     * @param value the value
+     * 
+     * @throws IOException if writing fails
+     */
+    private void writeVarint(long value) throws IOException {
+        if (position + MAX_VARINT_LENGTH > BUFFER_SIZE) {
+            flushBuffer();
+        }
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buffer[position++] = (byte) v;
+    }
+
+    /**
+     * Write bytes.
+     * 
+     * @param bytes the bytes
+     * 
+     * @throws IOException if writing fails
+     */
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (position + bytes.length > BUFFER_SIZE) {
+            flushBuffer();
+            if (bytes.length > BUFFER_SIZE) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    /**
+     * Write the buffered bytes to the underlying stream.
+     * 
+     * @throws IOException if writing fails
+     */
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
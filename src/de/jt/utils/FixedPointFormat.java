@@ -0,0 +1,103 @@
+package de.jt.utils;
+
+/**
+ * Allocation free formatting of coordinates with a fixed number of decimals.
+ * 
+ * @author Hendrik Stein
+ */
+final class FixedPointFormat {
+
+    /** Maximum number of decimals. */
+    static final int MAX_DECIMALS = 8;
+
+    /** Space to reserve for a formatted value. */
+    static final int MAX_LENGTH = 32;
+
+    /** Powers of ten up to 10^MAX_DECIMALS. */
+    private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+            100000000L };
+
+    /** Largest absolute value which is formatted without overflow, larger values use {@link Double#toString()}. */
+    private static final double MAX_FIXED = 1e10;
+
+    /**
+     * Format a value, rounded half up, into a character array. Values too large for the fixed format and non finite
+     * values are written by {@link Double#toString()}.
+     * 
+     * @param value the value
+     * @param decimals the number of decimals, 0 to {@link #MAX_DECIMALS}
+     * @param chars the character array, with room for {@link #MAX_LENGTH} characters at the position
+     * @param pos the position to write to
+     * @return the position after the formatted value
+     */
+    static int format(double value, int decimals, char[] chars, int pos) {
+        if (Double.isNaN(value) || Math.abs(value) >= MAX_FIXED) {
+            String text = Double.toString(value);
+            text.getChars(0, text.length(), chars, pos);
+            return pos + text.length();
+        }
+        long scale = POWERS_OF_TEN[decimals];
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0) {
+            chars[pos++] = '-';
+        }
+        long integer = scaled / scale;
+        long fraction = scaled % scale;
+
+        // integer digits, written backwards
+        int start = pos;
+        do {
+            chars[pos++] = (char) ('0' + integer % 10);
+            integer /= 10;
+        } while (integer > 0);
+        for (int i = start, j = pos - 1; i < j; i++, j--) {
+            char c = chars[i];
+            chars[i] = chars[j];
+            chars[j] = c;
+        }
+
+        if (decimals == 0) {
+            return pos;
+        }
+        chars[pos++] = '.';
+        for (int i = pos + decimals - 1; i >= pos; i--) {
+            chars[i] = (char) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        return pos + decimals;
+    }
+
+    /**
+     * Remove trailing zeros of the decimals of a formatted value, and the decimal point if no decimal remains.
+     * 
+     * @param chars the character array
+     * @param start the position of the formatted value
+     * @param end the position after the formatted value
+     * @return the new position after the formatted value
+     */
+    static int trimZeros(char[] chars, int start, int end) {
+        int point = -1;
+        for (int i = start; i < end; i++) {
+            if (chars[i] == '.') {
+                point = i;
+                break;
+            } else if (chars[i] == 'E' || chars[i] == 'N' || chars[i] == 'I') {
+                return end;
+            }
+        }
+        if (point < 0) {
+            return end;
+        }
+        while (end > point + 1 && chars[end - 1] == '0') {
+            end--;
+        }
+        return end == point + 1 ? point : end;
+    }
+
+    /**
+     * Utility class.
+     */
+    private FixedPointFormat() {
+        // utility class.
+    }
+}
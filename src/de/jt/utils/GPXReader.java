@@ -0,0 +1,254 @@
+package de.jt.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+
+/**
+ * Streaming GPX reader based on StAX.
+ * 
+ * Iterates over the waypoints, route points and track points of a GPX document in document order. Only the current
+ * point is held in memory, so documents of any size can be read. The name of a point becomes the description of its
+ * location. Points with a missing or invalid coordinate are passed to a {@link MalformedPointHandler} and skipped.
+ * 
+ * @author Hendrik Stein
+ */
+public class GPXReader implements Iterator<GeoLocation>, Closeable {
+
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(GPXReader.class.getName());
+
+    /** Handler which logs malformed points. */
+    private static final MalformedPointHandler LOGGING_HANDLER = new MalformedPointHandler() {
+        @Override
+        public void malformedPoint(int line, int column, String reason) {
+            LOGGER.log(Level.WARNING, "Skipped malformed GPX point at line {0}, column {1}: {2}", new Object[] { line,
+                    column, reason });
+        }
+    };
+
+    /** The StAX factory, secured against external entities. */
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    /** The input stream. */
+    private final InputStream in;
+
+    /** The StAX reader. */
+    private final XMLStreamReader reader;
+
+    /** The handler of malformed points. */
+    private final MalformedPointHandler handler;
+
+    /** The next location or <tt>null</tt> if it has to be read. */
+    private GeoLocation next;
+
+    /** Whether the end of the document has been reached. */
+    private boolean finished;
+
+    /**
+     * Handler of points which are skipped because of a missing or invalid coordinate.
+     */
+    public interface MalformedPointHandler {
+
+        /**
+         * Called for a skipped point.
+         * 
+         * @param line the line of the point element
+         * @param column the column of the point element
+         * @param reason the reason
+         */
+        void malformedPoint(int line, int column, String reason);
+    }
+
+    /**
+     * Creates an instance which logs malformed points.
+     * 
+     * @param in the GPX document
+     * 
+     * @throws IOException if the document cannot be opened
+     */
+    public GPXReader(InputStream in) throws IOException {
+        this(in, LOGGING_HANDLER);
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param in the GPX document
+     * @param handler the handler of malformed points
+     * 
+     * @throws IOException if the document cannot be opened
+     * @throws IllegalArgumentException if a parameter is <tt>null</tt>
+     */
+    public GPXReader(InputStream in, MalformedPointHandler handler) throws IOException, IllegalArgumentException {
+        if (in == null || handler == null) {
+            throw new IllegalArgumentException("GPXReader: null parameter");
+        }
+        this.in = in;
+        this.handler = handler;
+        try {
+            this.reader = FACTORY.createXMLStreamReader(in);
+        } catch (XMLStreamException e) {
+            throw new IOException("GPXReader: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalStateException if the document is not well-formed XML
+     */
+    @Override
+    public boolean hasNext() throws IllegalStateException {
+        if (next == null && !finished) {
+            try {
+                next = readNext();
+            } catch (XMLStreamException e) {
+                finished = true;
+                throw new IllegalStateException("GPXReader: " + e.getMessage(), e);
+            }
+        }
+        return next != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalStateException if the document is not well-formed XML
+     */
+    @Override
+    public GeoLocation next() throws IllegalStateException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        GeoLocation location = next;
+        next = null;
+        return location;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("GPXReader: read only");
+    }
+
+    /**
+     * Close the reader and the input stream.
+     * 
+     * @throws IOException if closing the input stream fails
+     */
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        next = null;
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            // the input stream is closed anyway
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read the next valid point.
+     * 
+     * @return the location or <tt>null</tt> at the end of the document
+     * @throws XMLStreamException if the document is not well-formed
+     */
+    private GeoLocation readNext() throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT && isPoint(reader.getLocalName())) {
+                GeoLocation location = readPoint();
+                if (location != null) {
+                    return location;
+                }
+            }
+        }
+        finished = true;
+        return null;
+    }
+
+    /**
+     * Read the point element the reader is positioned on, up to its end element.
+     * 
+     * @return the location or <tt>null</tt> if the point is malformed
+     * @throws XMLStreamException if the document is not well-formed
+     */
+    private GeoLocation readPoint() throws XMLStreamException {
+        int line = reader.getLocation().getLineNumber();
+        int column = reader.getLocation().getColumnNumber();
+        String lat = reader.getAttributeValue(null, "lat");
+        String lon = reader.getAttributeValue(null, "lon");
+
+        String name = null;
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (depth == 1 && "name".equals(reader.getLocalName())) {
+                    name = reader.getElementText();
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+
+        String reason;
+        if (lat == null || lon == null) {
+            reason = "missing coordinate";
+        } else {
+            try {
+                double latitude = Double.parseDouble(lat.trim());
+                double longitude = Double.parseDouble(lon.trim());
+                if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+                    reason = "coordinate is not a number";
+                } else {
+                    return new GeoLocation(new GeoPoint(latitude, longitude), name);
+                }
+            } catch (NumberFormatException e) {
+                reason = "invalid coordinate lat=" + lat + ", lon=" + lon;
+            } catch (IllegalArgumentException e) {
+                reason = e.getMessage() + ": lat=" + lat + ", lon=" + lon;
+            }
+        }
+        handler.malformedPoint(line, column, reason);
+        return null;
+    }
+
+    /**
+     * Check if an element is a point element.
+     * 
+     * @param localName the local name of the element
+     * @return <tt>true</tt> for waypoints, route points and track points
+     */
+    private static boolean isPoint(String localName) {
+        return "wpt".equals(localName) || "trkpt".equals(localName) || "rtept".equals(localName);
+    }
+
+    /**
+     * Create the StAX factory.
+     * 
+     * @return the factory
+     */
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        return factory;
+    }
+}
@@ -1,16 +1,15 @@
 package de.jt.utils;
 
-import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.Locale;
 
 import de.jt.model.GeoBoundingBox;
 import de.jt.model.GeoConstants;
 import de.jt.model.GeoPoint;
 
 /**
- * Tool to generate GPX files.
+ * Tool to generate GPX files. Use {@link GPXWriter} to export large point sets.
  * 
  * @author torsten.van.beeck (https://github.com/feueraustreter)
  */
@@ -47,8 +46,15 @@ public final class GPXUtils {
      * @param name the name of the point
      */
     public static void writeWaypoint(PrintWriter w, double lat, double lon, String name) {
-        w.format(Locale.US, "%s%.8f%s%.8f%s%s%s%n", "  <wpt lat=\"", lat, "\" lon=\"", lon, "\"><name>", name,
-                "</name></wpt>");
+        char[] number = GPXWriter.numberBuffer();
+        w.write("  <wpt lat=\"");
+        w.write(number, 0, FixedPointFormat.format(lat, GPXWriter.PRECISION, number, 0));
+        w.write("\" lon=\"");
+        w.write(number, 0, FixedPointFormat.format(lon, GPXWriter.PRECISION, number, 0));
+        w.write("\"><name>");
+        w.print(name);
+        w.write("</name></wpt>");
+        w.println();
     }
 
     /**
@@ -59,10 +65,7 @@ public final class GPXUtils {
      * @param name the name of the point
      */
     public static void writeWaypoint(PrintWriter w, double[] loc, String name) {
-        double lat = loc[GeoConstants.LAT];
-        double lon = loc[GeoConstants.LONG];
-        w.format(Locale.US, "%s%.8f%s%.8f%s%s%s%n", "  <wpt lat=\"", lat, "\" lon=\"", lon, "\"><name>", name,
-                "</name></wpt>");
+        writeWaypoint(w, loc[GeoConstants.LAT], loc[GeoConstants.LONG], name);
     }
 
     /**
@@ -73,8 +76,7 @@ public final class GPXUtils {
      * @param name the name of the point
      */
     public static void writeWaypoint(PrintWriter w, GeoPoint point, String name) {
-        w.format(Locale.US, "%s%.8f%s%.8f%s%s%s%n", "  <wpt lat=\"", point.getLatitude(), "\" lon=\"",
-                point.getLongitude(), "\"><name>", name, "</name></wpt>");
+        writeWaypoint(w, point.getLatitude(), point.getLongitude(), name);
     }
 
     /**
@@ -92,17 +94,18 @@ public final class GPXUtils {
 
         StringWriter strWriter = new StringWriter(4096);
 
-        PrintWriter out = new PrintWriter(new BufferedWriter(strWriter));
-        GPXUtils.writeHeader(out);
-
-        GPXUtils.writeWaypoint(out, lowerLeft, "lowerLeft");
-        GPXUtils.writeWaypoint(out, upperLeft, "upperLeft");
-        GPXUtils.writeWaypoint(out, upperRight, "upperRight");
-        GPXUtils.writeWaypoint(out, lowerRight, "lowerRight");
-        GPXUtils.writeWaypoint(out, lowerLeft, "lowerLeft");
-
-        GPXUtils.writeFooter(out);
-        out.close();
+        GPXWriter out = new GPXWriter(strWriter);
+        try {
+            out.writeWaypoint(lowerLeft.getLatitude(), lowerLeft.getLongitude(), "lowerLeft");
+            out.writeWaypoint(upperLeft.getLatitude(), upperLeft.getLongitude(), "upperLeft");
+            out.writeWaypoint(upperRight.getLatitude(), upperRight.getLongitude(), "upperRight");
+            out.writeWaypoint(lowerRight.getLatitude(), lowerRight.getLongitude(), "lowerRight");
+            out.writeWaypoint(lowerLeft.getLatitude(), lowerLeft.getLongitude(), "lowerLeft");
+            out.close();
+        } catch (IOException e) {
+            // a StringWriter does not throw
+            throw new IllegalStateException("GPXUtils: " + e.getMessage(), e);
+        }
 
         return strWriter.toString();
     }
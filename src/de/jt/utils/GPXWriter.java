@@ -0,0 +1,344 @@
+package de.jt.utils;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+
+/**
+ * Streaming GPX writer for large point sets.
+ * 
+ * Coordinates are formatted with a fixed precision of eight decimals into an internal character buffer, so writing a
+ * point allocates no objects. The header is written with the first element and the footer on {@link #close()}. As
+ * required by the GPX schema all waypoints must be written before the first track.
+ * 
+ * @author Hendrik Stein
+ */
+public class GPXWriter implements Closeable, Flushable {
+
+    /** Number of decimals of a formatted coordinate. */
+    static final int PRECISION = 8;
+
+    /** Size of the character buffer. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The GPX header. */
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\" ?>\n"
+            + "<gpx xmlns=\"http://www.topografix.com/GPX/1/1\" creator=\"gpxutils\" version=\"1.1\"\n"
+            + "     xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n"
+            + "     xsi:schemaLocation=\"http://www.topografix.com/GPX/1/1 "
+            + "http://www.topografix.com/GPX/1/1/gpx.xsd\">\n";
+
+    /** The GPX footer. */
+    private static final String FOOTER = "</gpx>\n";
+
+    /** Per thread buffer of a formatted coordinate, for the static helpers of {@link GPXUtils}. */
+    private static final ThreadLocal<char[]> NUMBER_BUFFER = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[FixedPointFormat.MAX_LENGTH];
+        }
+    };
+
+    /** The underlying writer. */
+    private final Writer out;
+
+    /** The character buffer. */
+    private final char[] buffer = new char[BUFFER_SIZE];
+
+    /** Number of buffered characters. */
+    private int position;
+
+    /** Whether the header has been written. */
+    private boolean started;
+
+    /** Whether a track has been written, which forbids further waypoints. */
+    private boolean tracksStarted;
+
+    /** Whether the writer has been closed. */
+    private boolean closed;
+
+    /**
+     * Creates an instance writing UTF-8 to an output stream.
+     * 
+     * @param out the output stream
+     */
+    public GPXWriter(OutputStream out) {
+        this(new OutputStreamWriter(out, Charset.forName("UTF-8")));
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param out the writer, which should encode UTF-8 as declared in the header
+     * 
+     * @throws IllegalArgumentException if the writer is <tt>null</tt>
+     */
+    public GPXWriter(Writer out) throws IllegalArgumentException {
+        if (out == null) {
+            throw new IllegalArgumentException("GPXWriter: null writer");
+        }
+        this.out = out;
+    }
+
+    /**
+     * Get the buffer of a formatted coordinate of the calling thread, reused by every call.
+     * 
+     * @return the buffer of {@link FixedPointFormat#MAX_LENGTH} characters
+     */
+    static char[] numberBuffer() {
+        return NUMBER_BUFFER.get();
+    }
+
+    /**
+     * Write a waypoint.
+     * 
+     * @param lat the latitude of the point
+     * @param lon the longitude of the point
+     * @param name the name of the point or <tt>null</tt>
+     * 
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if a track has already been written or the writer is closed
+     */
+    public void writeWaypoint(double lat, double lon, String name) throws IOException, IllegalStateException {
+        startWaypoints();
+        writePoint("  <wpt", lat, lon, name, "</wpt>\n");
+    }
+
+    /**
+     * Write a waypoint.
+     * 
+     * @param location the location, its description is the name of the waypoint
+     * 
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if a track has already been written or the writer is closed
+     */
+    public void writeWaypoint(GeoLocation location) throws IOException, IllegalStateException {
+        GeoPoint point = location.getGeoPoint();
+        writeWaypoint(point.getLatitude(), point.getLongitude(), location.getDescription());
+    }
+
+    /**
+     * Write all locations of an iterator as waypoints.
+     * 
+     * @param locations the locations, their descriptions are the names of the waypoints
+     * @return the number of written waypoints
+     * 
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if a track has already been written or the writer is closed
+     */
+    public long writeWaypoints(Iterator<GeoLocation> locations) throws IOException, IllegalStateException {
+        startWaypoints();
+        long count = 0L;
+        while (locations.hasNext()) {
+            GeoLocation location = locations.next();
+            GeoPoint point = location.getGeoPoint();
+            writePoint("  <wpt", point.getLatitude(), point.getLongitude(), location.getDescription(), "</wpt>\n");
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Write all locations of an iterator as a track with one segment.
+     * 
+     * @param name the name of the track or <tt>null</tt>
+     * @param locations the track points in order, their descriptions are the names of the points
+     * @return the number of written track points
+     * 
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if the writer is closed
+     */
+    public long writeTrack(String name, Iterator<GeoLocation> locations) throws IOException, IllegalStateException {
+        start();
+        tracksStarted = true;
+        write("  <trk>\n");
+        if (name != null) {
+            write("    <name>");
+            writeEscaped(name);
+            write("</name>\n");
+        }
+        write("    <trkseg>\n");
+        long count = 0L;
+        while (locations.hasNext()) {
+            GeoLocation location = locations.next();
+            GeoPoint point = location.getGeoPoint();
+            writePoint("      <trkpt", point.getLatitude(), point.getLongitude(), location.getDescription(),
+                    "</trkpt>\n");
+            count++;
+        }
+        write("    </trkseg>\n  </trk>\n");
+        return count;
+    }
+
+    /**
+     * Flush the buffered characters and the underlying writer.
+     * 
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Write the footer and close the underlying writer. A writer without any element produces an empty GPX document.
+     * 
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            start();
+            write(FOOTER);
+            flushBuffer();
+        } finally {
+            closed = true;
+            out.close();
+        }
+    }
+
+    /**
+     * Check that further waypoints may be written and write the header if needed.
+     * 
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if a track has already been written or the writer is closed
+     */
+    private void startWaypoints() throws IOException, IllegalStateException {
+        if (tracksStarted) {
+            throw new IllegalStateException("GPXWriter: waypoints must be written before tracks");
+        }
+        start();
+    }
+
+    /**
+     * Write the header if needed.
+     * 
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if the writer is closed
+     */
+    private void start() throws IOException, IllegalStateException {
+        if (closed) {
+            throw new IllegalStateException("GPXWriter: closed");
+        }
+        if (!started) {
+            started = true;
+            write(HEADER);
+        }
+    }
+
+    /**
+     * Write a point element.
+     * 
+     * @param open the opening tag without the closing bracket
+     * @param lat the latitude
+     * @param lon the longitude
+     * @param name the name or <tt>null</tt>
+     * @param close the closing tag
+     * 
+     * @throws IOException if writing fails
+     */
+    private void writePoint(String open, double lat, double lon, String name, String close) throws IOException {
+        write(open);
+        write(" lat=\"");
+        reserve(FixedPointFormat.MAX_LENGTH);
+        position = FixedPointFormat.format(lat, PRECISION, buffer, position);
+        write("\" lon=\"");
+        reserve(FixedPointFormat.MAX_LENGTH);
+        position = FixedPointFormat.format(lon, PRECISION, buffer, position);
+        write("\">");
+        if (name != null) {
+            write("<name>");
+            writeEscaped(name);
+            write("</name>");
+        }
+        write(close);
+    }
+
+    /**
+     * Write a string as XML character data.
+     * 
+     * @param text the text
+     * 
+     * @throws IOException if writing fails
+     */
+    private void writeEscaped(String text) throws IOException {
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '&':
+                write("&amp;");
+                break;
+            case '<':
+                write("&lt;");
+                break;
+            case '>':
+                write("&gt;");
+                break;
+            case '"':
+                write("&quot;");
+                break;
+            default:
+                if (position == BUFFER_SIZE) {
+                    flushBuffer();
+                }
+                buffer[position++] = c;
+            }
+        }
+    }
+
+    /**
+     * Write a string into the buffer.
+     * 
+     * @param text the text
+     * 
+     * @throws IOException if writing fails
+     */
+    private void write(String text) throws IOException {
+        int length = text.length();
+        if (length > BUFFER_SIZE) {
+            flushBuffer();
+            out.write(text);
+            return;
+        }
+        reserve(length);
+        text.getChars(0, length, buffer, position);
+        position += length;
+    }
+
+    /**
+     * Make room for a number of characters in the buffer.
+     * 
+     * @param length the number of characters
+     * 
+     * @throws IOException if writing fails
+     */
+    private void reserve(int length) throws IOException {
+        if (position + length > BUFFER_SIZE) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Write the buffered characters to the underlying writer.
+     * 
+     * @throws IOException if writing fails
+     */
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
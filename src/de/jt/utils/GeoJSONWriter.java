@@ -0,0 +1,273 @@
+package de.jt.utils;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+
+/**
+ * Streaming GeoJSON writer of a FeatureCollection of points.
+ * 
+ * Each location becomes a Point feature with its description as the <tt>description</tt> property. Coordinates are
+ * rounded to a configurable number of decimals without trailing zeros and formatted into an internal character
+ * buffer, so writing a feature allocates no objects. The underlying stream is flushed after a configurable number of
+ * features, which lets a client render the first features while the query is still running. The collection is
+ * opened with the first feature and closed on {@link #close()}.
+ * 
+ * @author Hendrik Stein
+ */
+public class GeoJSONWriter implements Closeable, Flushable {
+
+    /** Default number of decimals, about one centimeter at the equator. */
+    public static final int DEFAULT_PRECISION = 7;
+
+    /** Default number of features written between two flushes of the underlying stream. */
+    public static final int DEFAULT_FLUSH_INTERVAL = 1000;
+
+    /** Size of the character buffer. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Hexadecimal digits for escaped control characters. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** The underlying writer. */
+    private final Writer out;
+
+    /** Number of decimals of a coordinate. */
+    private final int precision;
+
+    /** Number of features written between two flushes, 0 to flush only when the buffer is full. */
+    private final int flushInterval;
+
+    /** The character buffer. */
+    private final char[] buffer = new char[BUFFER_SIZE];
+
+    /** Number of buffered characters. */
+    private int position;
+
+    /** Number of written features. */
+    private long features;
+
+    /** Whether the collection has been opened. */
+    private boolean started;
+
+    /** Whether the writer has been closed. */
+    private boolean closed;
+
+    /**
+     * Creates an instance writing UTF-8 with {@link #DEFAULT_PRECISION} and {@link #DEFAULT_FLUSH_INTERVAL}.
+     * 
+     * @param out the output stream
+     */
+    public GeoJSONWriter(OutputStream out) {
+        this(out, DEFAULT_PRECISION, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Creates an instance writing UTF-8 to an output stream.
+     * 
+     * @param out the output stream
+     * @param precision the number of decimals of a coordinate, 0 to 8
+     * @param flushInterval the number of features written between two flushes, 0 to flush only when the buffer is
+     *        full
+     * 
+     * @throws IllegalArgumentException if a parameter is out of bounds
+     */
+    public GeoJSONWriter(OutputStream out, int precision, int flushInterval) throws IllegalArgumentException {
+        this(new OutputStreamWriter(out, Charset.forName("UTF-8")), precision, flushInterval);
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param out the writer
+     * @param precision the number of decimals of a coordinate, 0 to 8
+     * @param flushInterval the number of features written between two flushes, 0 to flush only when the buffer is
+     *        full
+     * 
+     * @throws IllegalArgumentException if a parameter is out of bounds
+     */
+    public GeoJSONWriter(Writer out, int precision, int flushInterval) throws IllegalArgumentException {
+        if (out == null) {
+            throw new IllegalArgumentException("GeoJSONWriter: null writer");
+        }
+        if (precision < 0 || precision > FixedPointFormat.MAX_DECIMALS || flushInterval < 0) {
+            throw new IllegalArgumentException("GeoJSONWriter: parameter out of bounds");
+        }
+        this.out = out;
+        this.precision = precision;
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Write a location as a feature.
+     * 
+     * @param location the location
+     * 
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if the writer is closed
+     */
+    public void writeFeature(GeoLocation location) throws IOException, IllegalStateException {
+        if (closed) {
+            throw new IllegalStateException("GeoJSONWriter: closed");
+        }
+        if (!started) {
+            started = true;
+            write("{\"type\":\"FeatureCollection\",\"features\":[\n");
+        } else {
+            write(",\n");
+        }
+        GeoPoint point = location.getGeoPoint();
+        write("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[");
+        writeCoordinate(point.getLongitude());
+        write(",");
+        writeCoordinate(point.getLatitude());
+        write("]},\"properties\":{");
+        String description = location.getDescription();
+        if (description != null) {
+            write("\"description\":\"");
+            writeEscaped(description);
+            write("\"");
+        }
+        write("}}");
+
+        features++;
+        if (flushInterval > 0 && features % flushInterval == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Write all locations of an iterator as features.
+     * 
+     * @param locations the locations, for example a {@link de.jt.db.GeoLocationCursor}
+     * @return the number of written features
+     * 
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if the writer is closed
+     */
+    public long writeFeatures(Iterator<GeoLocation> locations) throws IOException, IllegalStateException {
+        long count = 0L;
+        while (locations.hasNext()) {
+            writeFeature(locations.next());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Flush the buffered characters and the underlying writer.
+     * 
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Close the collection and the underlying writer. A writer without any feature produces an empty collection.
+     * 
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            write(started ? "\n]}\n" : "{\"type\":\"FeatureCollection\",\"features\":[]}\n");
+            flushBuffer();
+        } finally {
+            closed = true;
+            out.close();
+        }
+    }
+
+    /**
+     * Write a coordinate with the configured precision and without trailing zeros.
+     * 
+     * @param value the coordinate
+     * 
+     * @throws IOException if writing fails
+     */
+    private void writeCoordinate(double value) throws IOException {
+        reserve(FixedPointFormat.MAX_LENGTH);
+        int end = FixedPointFormat.format(value, precision, buffer, position);
+        position = FixedPointFormat.trimZeros(buffer, position, end);
+    }
+
+    /**
+     * Write a string as the content of a JSON string.
+     * 
+     * @param text the text
+     * 
+     * @throws IOException if writing fails
+     */
+    private void writeEscaped(String text) throws IOException {
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            reserve(6);
+            if (c == '"' || c == '\\') {
+                buffer[position++] = '\\';
+                buffer[position++] = c;
+            } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                buffer[position++] = '\\';
+                buffer[position++] = 'u';
+                buffer[position++] = HEX_DIGITS[(c >> 12) & 0xf];
+                buffer[position++] = HEX_DIGITS[(c >> 8) & 0xf];
+                buffer[position++] = HEX_DIGITS[(c >> 4) & 0xf];
+                buffer[position++] = HEX_DIGITS[c & 0xf];
+            } else {
+                buffer[position++] = c;
+            }
+        }
+    }
+
+    /**
+     * Write a string into the buffer.
+     * 
+     * @param text the text, shorter than the buffer
+     * 
+     * @throws IOException if writing fails
+     */
+    private void write(String text) throws IOException {
+        int length = text.length();
+        reserve(length);
+        text.getChars(0, length, buffer, position);
+        position += length;
+    }
+
+    /**
+     * Make room for a number of characters in the buffer.
+     * 
+     * @param length the number of characters
+     * 
+     * @throws IOException if writing fails
+     */
+    private void reserve(int length) throws IOException {
+        if (position + length > BUFFER_SIZE) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Write the buffered characters to the underlying writer.
+     * 
+     * @throws IOException if writing fails
+     */
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
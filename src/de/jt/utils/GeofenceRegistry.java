@@ -0,0 +1,535 @@
+package de.jt.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoConstants;
+
+/**
+ * In-memory registry of bounding box geofences matching streams of positions.
+ * 
+ * The fences are indexed in a uniform grid: each cell holds the indexes of the fences overlapping it, so a point is
+ * tested against the fences of its cell only. Fences covering more than {@value #MAX_CELLS_PER_FENCE} cells are kept in
+ * a separate list and tested for every point. Fences over the antimeridian are indexed on both sides. The edges of a
+ * fence belong to it.
+ * 
+ * Reads work on an immutable snapshot of the index and never lock. Every change builds a new snapshot, so register
+ * many fences at once with {@link #registerAll(Map)}. A snapshot allocates the whole grid, a count and a slot per
+ * cell: 64,800 cells at the default cell size, but about 6.5 million cells and some 50MB at {@link #MIN_CELL_SIZE},
+ * so small cells suit fence sets which rarely change. For each tracked entity the registry remembers the fences it is
+ * in and reports enter and exit transitions; an entity within an unregistered fence exits on its next update.
+ * 
+ * An instance is thread-safe. Updates of the same entity must not run concurrently.
+ * 
+ * @author Hendrik Stein
+ */
+public class GeofenceRegistry {
+
+    /** Default grid cell size in degrees. */
+    public static final double DEFAULT_CELL_SIZE = 1d;
+
+    /** Minimum grid cell size in degrees, which bounds the grid to 6.5 million cells. */
+    public static final double MIN_CELL_SIZE = 0.1d;
+
+    /** Maximum number of grid cells of an indexed fence, larger fences are tested for every point. */
+    public static final int MAX_CELLS_PER_FENCE = 256;
+
+    /** Grid cell size in degrees. */
+    private final double cellSize;
+
+    /** The registered fences by id, guarded by the instance lock. */
+    private final Map<String, GeoBoundingBox> fences = new LinkedHashMap<>();
+
+    /** The current index snapshot. */
+    private volatile Index index;
+
+    /** The fences each tracked entity is in. */
+    private final ConcurrentMap<String, Set<String>> memberships = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an instance with {@link #DEFAULT_CELL_SIZE}.
+     */
+    public GeofenceRegistry() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param cellSize the grid cell size in degrees; about the size of a typical fence is a good choice
+     * 
+     * @throws IllegalArgumentException if the cell size is below {@link #MIN_CELL_SIZE} or larger than 90 degrees
+     */
+    public GeofenceRegistry(double cellSize) throws IllegalArgumentException {
+        if (!(cellSize >= MIN_CELL_SIZE && cellSize <= 90d)) {
+            throw new IllegalArgumentException("GeofenceRegistry: cell size out of bounds");
+        }
+        this.cellSize = cellSize;
+        this.index = new Index(cellSize, Collections.<String, GeoBoundingBox> emptyMap());
+    }
+
+    /**
+     * Get the number of registered fences.
+     * 
+     * @return the number of fences
+     */
+    public int size() {
+        return index.ids.length;
+    }
+
+    /**
+     * Register a fence or replace the fence with the same id.
+     * 
+     * @param fenceId the fence id
+     * @param bbox the fence
+     * 
+     * @throws IllegalArgumentException if a parameter is <tt>null</tt>
+     */
+    public void register(String fenceId, GeoBoundingBox bbox) throws IllegalArgumentException {
+        registerAll(Collections.singletonMap(fenceId, bbox));
+    }
+
+    /**
+     * Register fences, replacing fences with the same ids, and build one new index snapshot.
+     * 
+     * @param fencesById the fences by id
+     * 
+     * @throws IllegalArgumentException if an id or fence is <tt>null</tt>
+     */
+    public synchronized void registerAll(Map<String, GeoBoundingBox> fencesById) throws IllegalArgumentException {
+        for (Map.Entry<String, GeoBoundingBox> entry : fencesById.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                throw new IllegalArgumentException("GeofenceRegistry: null fence");
+            }
+        }
+        fences.putAll(fencesById);
+        index = new Index(cellSize, fences);
+    }
+
+    /**
+     * Unregister fences and build one new index snapshot.
+     * 
+     * @param fenceIds the fence ids
+     * @return the number of removed fences
+     */
+    public synchronized int unregister(String... fenceIds) {
+        int removed = 0;
+        for (String fenceId : fenceIds) {
+            if (fences.remove(fenceId) != null) {
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            index = new Index(cellSize, fences);
+        }
+        return removed;
+    }
+
+    /**
+     * Find the fences containing a point.
+     * 
+     * @param latitude the latitude
+     * @param longitude the longitude
+     * @return the list of fence ids
+     */
+    public List<String> match(double latitude, double longitude) {
+        Index idx = index;
+        List<String> matched = new ArrayList<>();
+        idx.match(latitude, longitude, matched);
+        return matched;
+    }
+
+    /**
+     * Find the fences containing each of a batch of points, all matched against the same snapshot.
+     * 
+     * @param latitudes the latitudes
+     * @param longitudes the longitudes, same length as the latitudes
+     * @return the lists of fence ids, one per point
+     * 
+     * @throws IllegalArgumentException if the arrays differ in length
+     */
+    public List<List<String>> match(double[] latitudes, double[] longitudes) throws IllegalArgumentException {
+        if (latitudes.length != longitudes.length) {
+            throw new IllegalArgumentException("GeofenceRegistry: coordinate arrays differ in length");
+        }
+        Index idx = index;
+        List<List<String>> matches = new ArrayList<>(latitudes.length);
+        for (int i = 0; i < latitudes.length; i++) {
+            List<String> matched = new ArrayList<>(2);
+            idx.match(latitudes[i], longitudes[i], matched);
+            matches.add(matched);
+        }
+        return matches;
+    }
+
+    /**
+     * Track the position of an entity and get the fences it entered and exited since its last position.
+     * 
+     * @param entityId the entity id
+     * @param latitude the latitude
+     * @param longitude the longitude
+     * @return the transitions, empty if the entity stayed in the same fences
+     */
+    public List<Transition> update(String entityId, double latitude, double longitude) {
+        List<Transition> transitions = new ArrayList<>(0);
+        track(index, entityId, latitude, longitude, transitions);
+        return transitions;
+    }
+
+    /**
+     * Track the positions of a batch of entities, all matched against the same snapshot.
+     * 
+     * @param entityIds the entity ids
+     * @param latitudes the latitudes
+     * @param longitudes the longitudes
+     * @return the transitions of all entities in the order of the positions
+     * 
+     * @throws IllegalArgumentException if the arrays differ in length
+     */
+    public List<Transition> update(String[] entityIds, double[] latitudes, double[] longitudes)
+            throws IllegalArgumentException {
+        if (entityIds.length != latitudes.length || latitudes.length != longitudes.length) {
+            throw new IllegalArgumentException("GeofenceRegistry: arrays differ in length");
+        }
+        Index idx = index;
+        List<Transition> transitions = new ArrayList<>();
+        for (int i = 0; i < entityIds.length; i++) {
+            track(idx, entityIds[i], latitudes[i], longitudes[i], transitions);
+        }
+        return transitions;
+    }
+
+    /**
+     * Stop tracking an entity without reporting exits.
+     * 
+     * @param entityId the entity id
+     */
+    public void forget(String entityId) {
+        memberships.remove(entityId);
+    }
+
+    /**
+     * Match the position of an entity and compare the fences with its previous ones.
+     * 
+     * @param idx the index snapshot
+     * @param entityId the entity id
+     * @param latitude the latitude
+     * @param longitude the longitude
+     * @param transitions the list receiving the transitions
+     */
+    private void track(Index idx, String entityId, double latitude, double longitude, List<Transition> transitions) {
+        List<String> matched = new ArrayList<>(2);
+        idx.match(latitude, longitude, matched);
+        Set<String> previous = memberships.get(entityId);
+        if (previous == null) {
+            previous = Collections.emptySet();
+        }
+        Set<String> current = matched.isEmpty() ? Collections.<String> emptySet() : new HashSet<>(matched);
+        for (String fenceId : matched) {
+            if (!previous.contains(fenceId)) {
+                transitions.add(new Transition(entityId, fenceId, true));
+            }
+        }
+        for (String fenceId : previous) {
+            if (!current.contains(fenceId)) {
+                transitions.add(new Transition(entityId, fenceId, false));
+            }
+        }
+        if (current.isEmpty()) {
+            memberships.remove(entityId);
+        } else {
+            memberships.put(entityId, current);
+        }
+    }
+
+    /**
+     * Immutable grid index over the fences, edges stored as primitives.
+     */
+    private static final class Index {
+
+        /** Grid cell size in degrees. */
+        private final double cellSize;
+
+        /** Number of grid columns. */
+        private final int columns;
+
+        /** Number of grid rows. */
+        private final int rows;
+
+        /** The fence ids. */
+        private final String[] ids;
+
+        /** The west edges. */
+        private final double[] west;
+
+        /** The south edges. */
+        private final double[] south;
+
+        /** The east edges. */
+        private final double[] east;
+
+        /** The north edges. */
+        private final double[] north;
+
+        /** Whether a fence overlaps the antimeridian. */
+        private final boolean[] wrapped;
+
+        /** The fence indexes per cell, row major, <tt>null</tt> for empty cells. */
+        private final int[][] cells;
+
+        /** The fences tested for every point. */
+        private final int[] large;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param cellSize the grid cell size in degrees
+         * @param fences the fences by id
+         */
+        private Index(double cellSize, Map<String, GeoBoundingBox> fences) {
+            this.cellSize = cellSize;
+            this.columns = (int) Math.ceil((GeoConstants.LONG_MAX - GeoConstants.LONG_MIN) / cellSize);
+            this.rows = (int) Math.ceil((GeoConstants.LAT_MAX - GeoConstants.LAT_MIN) / cellSize);
+            int n = fences.size();
+            this.ids = new String[n];
+            this.west = new double[n];
+            this.south = new double[n];
+            this.east = new double[n];
+            this.north = new double[n];
+            this.wrapped = new boolean[n];
+
+            int[] cellCounts = new int[columns * rows];
+            int[] largeFences = new int[n];
+            int largeCount = 0;
+            int i = 0;
+            for (Map.Entry<String, GeoBoundingBox> entry : fences.entrySet()) {
+                GeoBoundingBox bbox = entry.getValue();
+                ids[i] = entry.getKey();
+                west[i] = bbox.getLowerLeft().getLongitude();
+                south[i] = bbox.getLowerLeft().getLatitude();
+                east[i] = bbox.getUpperRight().getLongitude();
+                north[i] = bbox.getUpperRight().getLatitude();
+                wrapped[i] = bbox.isOverAntimeridian();
+                if (cellCount(i) > MAX_CELLS_PER_FENCE) {
+                    largeFences[largeCount++] = i;
+                } else {
+                    addToCells(i, cellCounts, null);
+                }
+                i++;
+            }
+            this.large = Arrays.copyOf(largeFences, largeCount);
+
+            this.cells = new int[columns * rows][];
+            for (int c = 0; c < cells.length; c++) {
+                if (cellCounts[c] > 0) {
+                    cells[c] = new int[cellCounts[c]];
+                }
+            }
+            // the counts are counted down while filling, backwards to keep the fences of a cell in order
+            int nextLarge = largeCount - 1;
+            for (int f = n - 1; f >= 0; f--) {
+                if (nextLarge >= 0 && large[nextLarge] == f) {
+                    nextLarge--;
+                } else {
+                    addToCells(f, cellCounts, cells);
+                }
+            }
+        }
+
+        /**
+         * Count the grid cells a fence overlaps.
+         * 
+         * @param f the fence index
+         * @return the number of cells
+         */
+        private long cellCount(int f) {
+            long rowCount = row(north[f]) - row(south[f]) + 1;
+            long columnCount;
+            if (wrapped[f]) {
+                // both edges in the same column cover every column
+                columnCount = Math.min(columns, columns - column(west[f]) + column(east[f]) + 1);
+            } else {
+                columnCount = column(east[f]) - column(west[f]) + 1;
+            }
+            return rowCount * columnCount;
+        }
+
+        /**
+         * Count a fence in, or add it to, the cells it overlaps.
+         * 
+         * @param f the fence index
+         * @param counts the number of fences per cell, incremented when counting and decremented when filling
+         * @param target the cells to fill or <tt>null</tt> to count only
+         */
+        private void addToCells(int f, int[] counts, int[][] target) {
+            int firstRow = row(south[f]);
+            int lastRow = row(north[f]);
+            int firstColumn = column(west[f]);
+            int lastColumn = column(east[f]);
+            for (int r = firstRow; r <= lastRow; r++) {
+                if (wrapped[f] && lastColumn >= firstColumn) {
+                    // both edges in the same column, the two ranges would overlap there
+                    addToRow(f, r, 0, columns - 1, counts, target);
+                } else if (wrapped[f]) {
+                    addToRow(f, r, firstColumn, columns - 1, counts, target);
+                    addToRow(f, r, 0, lastColumn, counts, target);
+                } else {
+                    addToRow(f, r, firstColumn, lastColumn, counts, target);
+                }
+            }
+        }
+
+        /**
+         * Count a fence in, or add it to, a range of cells of a row.
+         * 
+         * @param f the fence index
+         * @param r the row
+         * @param from the first column
+         * @param to the last column
+         * @param counts the number of fences per cell, incremented when counting and decremented when filling
+         * @param target the cells to fill or <tt>null</tt> to count only
+         */
+        private void addToRow(int f, int r, int from, int to, int[] counts, int[][] target) {
+            for (int c = from; c <= to; c++) {
+                int cell = r * columns + c;
+                if (target == null) {
+                    counts[cell]++;
+                } else {
+                    target[cell][--counts[cell]] = f;
+                }
+            }
+        }
+
+        /**
+         * Find the fences containing a point.
+         * 
+         * @param latitude the latitude
+         * @param longitude the longitude
+         * @param matched the list receiving the fence ids
+         */
+        private void match(double latitude, double longitude, List<String> matched) {
+            int[] candidates = cells[row(latitude) * columns + column(longitude)];
+            if (candidates != null) {
+                for (int f : candidates) {
+                    if (contains(f, latitude, longitude)) {
+                        matched.add(ids[f]);
+                    }
+                }
+            }
+            for (int f : large) {
+                if (contains(f, latitude, longitude)) {
+                    matched.add(ids[f]);
+                }
+            }
+        }
+
+        /**
+         * Check whether a fence contains a point, edges included.
+         * 
+         * @param f the fence index
+         * @param latitude the latitude
+         * @param longitude the longitude
+         * @return <tt>true</tt> if the fence contains the point
+         */
+        private boolean contains(int f, double latitude, double longitude) {
+            if (latitude < south[f] || latitude > north[f]) {
+                return false;
+            }
+            if (wrapped[f]) {
+                return longitude >= west[f] || longitude <= east[f];
+            }
+            return longitude >= west[f] && longitude <= east[f];
+        }
+
+        /**
+         * Get the grid column of a longitude.
+         * 
+         * @param longitude the longitude
+         * @return the column, 180 degrees falls into the last column
+         */
+        private int column(double longitude) {
+            int column = (int) ((longitude - GeoConstants.LONG_MIN) / cellSize);
+            return Math.max(0, Math.min(columns - 1, column));
+        }
+
+        /**
+         * Get the grid row of a latitude.
+         * 
+         * @param latitude the latitude
+         * @return the row, 90 degrees falls into the last row
+         */
+        private int row(double latitude) {
+            int row = (int) ((latitude - GeoConstants.LAT_MIN) / cellSize);
+            return Math.max(0, Math.min(rows - 1, row));
+        }
+    }
+
+    /**
+     * An entity entering or exiting a fence.
+     */
+    public static final class Transition {
+
+        /** The entity id. */
+        private final String entityId;
+
+        /** The fence id. */
+        private final String fenceId;
+
+        /** Whether the entity entered the fence, otherwise it exited. */
+        private final boolean entered;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param entityId the entity id
+         * @param fenceId the fence id
+         * @param entered whether the entity entered the fence
+         */
+        private Transition(String entityId, String fenceId, boolean entered) {
+            this.entityId = entityId;
+            this.fenceId = fenceId;
+            this.entered = entered;
+        }
+
+        /**
+         * Get the entity id.
+         * 
+         * @return the entity id
+         */
+        public String getEntityId() {
+            return entityId;
+        }
+
+        /**
+         * Get the fence id.
+         * 
+         * @return the fence id
+         */
+        public String getFenceId() {
+            return fenceId;
+        }
+
+        /**
+         * Whether the entity entered the fence.
+         * 
+         * @return <tt>true</tt> for an enter, <tt>false</tt> for an exit
+         */
+        public boolean isEntered() {
+            return entered;
+        }
+
+        @Override
+        public String toString() {
+            return "Transition [entityId=" + entityId + ", fenceId=" + fenceId + ", entered=" + entered + "]";
+        }
+    }
+}
@@ -0,0 +1,666 @@
+package de.jt.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoConstants;
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+
+/**
+ * Hierarchical clustering of map markers for every zoom level.
+ * 
+ * The locations are read once, e.g. from a {@link de.jt.db.GeoLocationCursor} of the whole collection, and projected
+ * to Web Mercator. Starting one level above the maximum zoom, every level is clustered greedily into the next lower
+ * one: a marker absorbs all unvisited markers within the cluster radius and becomes a cluster at their weighted center.
+ * The radius is given in pixels of a tile of the given extent, so it halves with every zoom level. Neighbors are
+ * searched across the antimeridian and the center of a cluster spanning it is computed on the unwrapped coordinates.
+ * 
+ * Each level holds its markers in primitive arrays sorted into a static k-d tree, so a bounding box query of any zoom
+ * level costs a range search over the markers of that level only. Queries over the antimeridian search both sides.
+ * Latitudes beyond the Mercator limit of about 85 degrees are clamped. An instance is immutable and thread-safe.
+ * 
+ * @author Hendrik Stein
+ */
+public class MarkerClusterIndex {
+
+    /** Default minimum zoom level. */
+    public static final int DEFAULT_MIN_ZOOM = 0;
+
+    /** Default maximum zoom level on which markers are clustered. */
+    public static final int DEFAULT_MAX_ZOOM = 16;
+
+    /** Default cluster radius in pixels. */
+    public static final int DEFAULT_RADIUS = 40;
+
+    /** Default tile extent in pixels. */
+    public static final int DEFAULT_EXTENT = 512;
+
+    /** Highest supported zoom level. */
+    public static final int MAX_SUPPORTED_ZOOM = 24;
+
+    /** Full circle in degrees. */
+    private static final double FULL_CIRCLE = GeoConstants.LONG_MAX - GeoConstants.LONG_MIN;
+
+    /** Number of markers in a leaf of the k-d trees. */
+    private static final int NODE_SIZE = 64;
+
+    /** Marks a marker without timestamp. */
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    /** Minimum zoom level. */
+    private final int minZoom;
+
+    /** Maximum zoom level on which markers are clustered. */
+    private final int maxZoom;
+
+    /** The latitudes of the locations. */
+    private final double[] latitudes;
+
+    /** The longitudes of the locations. */
+    private final double[] longitudes;
+
+    /** The descriptions of the locations. */
+    private final String[] descriptions;
+
+    /** The timestamps of the locations in milliseconds or {@link #NO_TIMESTAMP}. */
+    private final long[] timestamps;
+
+    /** The levels from {@link #minZoom} to {@link #maxZoom} + 1. */
+    private final Level[] levels;
+
+    /**
+     * Creates an instance with {@link #DEFAULT_MIN_ZOOM}, {@link #DEFAULT_MAX_ZOOM}, {@link #DEFAULT_RADIUS} and
+     * {@link #DEFAULT_EXTENT}.
+     * 
+     * @param locations the locations to cluster
+     */
+    public MarkerClusterIndex(Iterator<GeoLocation> locations) {
+        this(locations, DEFAULT_MIN_ZOOM, DEFAULT_MAX_ZOOM, DEFAULT_RADIUS, DEFAULT_EXTENT);
+    }
+
+    /**
+     * Creates an instance.
+     * 
+     * @param locations the locations to cluster
+     * @param minZoom the minimum zoom level
+     * @param maxZoom the maximum zoom level on which markers are clustered, above it all markers are single
+     * @param radius the cluster radius in pixels
+     * @param extent the tile extent in pixels
+     * 
+     * @throws IllegalArgumentException if a parameter is out of bounds
+     */
+    public MarkerClusterIndex(Iterator<GeoLocation> locations, int minZoom, int maxZoom, int radius, int extent)
+            throws IllegalArgumentException {
+        if (locations == null || minZoom < 0 || minZoom > maxZoom || maxZoom >= MAX_SUPPORTED_ZOOM || radius <= 0
+                || extent <= 0) {
+            throw new IllegalArgumentException("MarkerClusterIndex: parameter out of bounds");
+        }
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+
+        int capacity = 1024;
+        double[] lats = new double[capacity];
+        double[] lons = new double[capacity];
+        String[] descs = new String[capacity];
+        long[] times = new long[capacity];
+        int n = 0;
+        while (locations.hasNext()) {
+            GeoLocation location = locations.next();
+            if (n == capacity) {
+                capacity *= 2;
+                lats = Arrays.copyOf(lats, capacity);
+                lons = Arrays.copyOf(lons, capacity);
+                descs = Arrays.copyOf(descs, capacity);
+                times = Arrays.copyOf(times, capacity);
+            }
+            GeoPoint point = location.getGeoPoint();
+            lats[n] = point.getLatitude();
+            lons[n] = point.getLongitude();
+            descs[n] = location.getDescription();
+            Date timestamp = location.getTimestamp();
+            times[n] = timestamp == null ? NO_TIMESTAMP : timestamp.getTime();
+            n++;
+        }
+        this.latitudes = Arrays.copyOf(lats, n);
+        this.longitudes = Arrays.copyOf(lons, n);
+        this.descriptions = Arrays.copyOf(descs, n);
+        this.timestamps = Arrays.copyOf(times, n);
+
+        this.levels = new Level[maxZoom - minZoom + 2];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        int[] counts = new int[n];
+        int[] points = new int[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = projectX(longitudes[i]);
+            ys[i] = projectY(latitudes[i]);
+            counts[i] = 1;
+            points[i] = i;
+        }
+        Level level = new Level(xs, ys, counts, points);
+        levels[levels.length - 1] = level;
+        for (int zoom = maxZoom; zoom >= minZoom; zoom--) {
+            level = level.cluster(radius / (extent * Math.pow(2, zoom)));
+            levels[zoom - minZoom] = level;
+        }
+    }
+
+    /**
+     * Get the number of clustered locations.
+     * 
+     * @return the number of locations
+     */
+    public int size() {
+        return latitudes.length;
+    }
+
+    /**
+     * Get the minimum zoom level.
+     * 
+     * @return the zoom level
+     */
+    public int getMinZoom() {
+        return minZoom;
+    }
+
+    /**
+     * Get the maximum zoom level on which markers are clustered.
+     * 
+     * @return the zoom level
+     */
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    /**
+     * Get the clusters and single locations of a zoom level within a bounding box. Zoom levels out of bounds are
+     * clamped.
+     * 
+     * @param bbox the bounding box
+     * @param zoom the zoom level
+     * @return the list of markers
+     */
+    public List<Marker> getMarkers(GeoBoundingBox bbox, int zoom) {
+        Level level = levels[Math.max(0, Math.min(levels.length - 1, zoom - minZoom))];
+        double minY = projectY(bbox.getUpperRight().getLatitude());
+        double maxY = projectY(bbox.getLowerLeft().getLatitude());
+        double minX = projectX(bbox.getLowerLeft().getLongitude());
+        double maxX = projectX(bbox.getUpperRight().getLongitude());
+        IntList found = new IntList();
+        if (bbox.isOverAntimeridian()) {
+            level.tree.range(minX, minY, 1d, maxY, found);
+            level.tree.range(0d, minY, maxX, maxY, found);
+        } else {
+            level.tree.range(minX, minY, maxX, maxY, found);
+        }
+        List<Marker> markers = new ArrayList<>(found.size);
+        for (int i = 0; i < found.size; i++) {
+            markers.add(toMarker(level, found.values[i]));
+        }
+        return markers;
+    }
+
+    /**
+     * Create the marker of a level entry.
+     * 
+     * @param level the level
+     * @param i the index of the entry
+     * @return the marker
+     */
+    private Marker toMarker(Level level, int i) {
+        int point = level.points[i];
+        if (point >= 0) {
+            GeoPoint geoPoint = new GeoPoint(latitudes[point], longitudes[point]);
+            Date timestamp = timestamps[point] == NO_TIMESTAMP ? null : new Date(timestamps[point]);
+            return new Marker(geoPoint, 1, new GeoLocation(geoPoint, descriptions[point], timestamp));
+        }
+        return new Marker(new GeoPoint(unprojectY(level.ys[i]), unprojectX(level.xs[i])), level.counts[i], null);
+    }
+
+    /**
+     * Project a longitude to Web Mercator.
+     * 
+     * @param longitude the longitude
+     * @return x from 0 to 1
+     */
+    private static double projectX(double longitude) {
+        return (longitude - GeoConstants.LONG_MIN) / FULL_CIRCLE;
+    }
+
+    /**
+     * Project a latitude to Web Mercator.
+     * 
+     * @param latitude the latitude
+     * @return y from 0 at the north to 1 at the south, clamped
+     */
+    private static double projectY(double latitude) {
+        double sin = Math.sin(Math.toRadians(latitude));
+        double y = 0.5d - Math.log((1d + sin) / (1d - sin)) / (4d * Math.PI);
+        return y < 0d ? 0d : y > 1d ? 1d : y;
+    }
+
+    /**
+     * Unproject a Web Mercator x.
+     * 
+     * @param x the x from 0 to 1
+     * @return the longitude
+     */
+    private static double unprojectX(double x) {
+        return x * FULL_CIRCLE + GeoConstants.LONG_MIN;
+    }
+
+    /**
+     * Unproject a Web Mercator y.
+     * 
+     * @param y the y from 0 to 1
+     * @return the latitude
+     */
+    private static double unprojectY(double y) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1d - 2d * y))));
+    }
+
+    /**
+     * The markers of one zoom level.
+     */
+    private static final class Level {
+
+        /** The projected x coordinates. */
+        private final double[] xs;
+
+        /** The projected y coordinates. */
+        private final double[] ys;
+
+        /** The number of locations per marker. */
+        private final int[] counts;
+
+        /** The location index of a single marker, -1 for clusters. */
+        private final int[] points;
+
+        /** The spatial index of the markers. */
+        private final KdTree tree;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param xs the projected x coordinates
+         * @param ys the projected y coordinates
+         * @param counts the number of locations per marker
+         * @param points the location index of a single marker, -1 for clusters
+         */
+        private Level(double[] xs, double[] ys, int[] counts, int[] points) {
+            this.xs = xs;
+            this.ys = ys;
+            this.counts = counts;
+            this.points = points;
+            this.tree = new KdTree(xs, ys);
+        }
+
+        /**
+         * Cluster the markers of this level into the next lower level.
+         * 
+         * @param r the cluster radius in projected units
+         * @return the lower level
+         */
+        private Level cluster(double r) {
+            int n = xs.length;
+            double[] clusterXs = new double[n];
+            double[] clusterYs = new double[n];
+            int[] clusterCounts = new int[n];
+            int[] clusterPoints = new int[n];
+            boolean[] visited = new boolean[n];
+            IntList neighbors = new IntList();
+            int size = 0;
+            for (int i = 0; i < n; i++) {
+                if (visited[i]) {
+                    continue;
+                }
+                visited[i] = true;
+                double x = xs[i];
+                double y = ys[i];
+                int count = counts[i];
+                double weightedX = x * count;
+                double weightedY = y * count;
+                int total = count;
+                // near the antimeridian search the other side with a center shifted by a full circle
+                for (int shift = -1; shift <= 1; shift++) {
+                    if (shift == -1 && x - r >= 0d || shift == 1 && x + r <= 1d) {
+                        continue;
+                    }
+                    neighbors.size = 0;
+                    tree.within(x - shift, y, r, neighbors);
+                    for (int k = 0; k < neighbors.size; k++) {
+                        int j = neighbors.values[k];
+                        if (!visited[j]) {
+                            visited[j] = true;
+                            weightedX += (xs[j] + shift) * counts[j];
+                            weightedY += ys[j] * counts[j];
+                            total += counts[j];
+                        }
+                    }
+                }
+                if (total == count) {
+                    clusterXs[size] = x;
+                    clusterYs[size] = y;
+                    clusterCounts[size] = count;
+                    clusterPoints[size] = points[i];
+                } else {
+                    double clusterX = weightedX / total;
+                    clusterXs[size] = clusterX - Math.floor(clusterX);
+                    clusterYs[size] = weightedY / total;
+                    clusterCounts[size] = total;
+                    clusterPoints[size] = -1;
+                }
+                size++;
+            }
+            return new Level(Arrays.copyOf(clusterXs, size), Arrays.copyOf(clusterYs, size), Arrays.copyOf(
+                    clusterCounts, size), Arrays.copyOf(clusterPoints, size));
+        }
+    }
+
+    /**
+     * Static k-d tree over points, sorted in place into alternating x and y medians.
+     */
+    private static final class KdTree {
+
+        /** The point indexes in tree order. */
+        private final int[] ids;
+
+        /** The x coordinates in tree order. */
+        private final double[] xs;
+
+        /** The y coordinates in tree order. */
+        private final double[] ys;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param xs the x coordinates
+         * @param ys the y coordinates
+         */
+        private KdTree(double[] xs, double[] ys) {
+            int n = xs.length;
+            this.ids = new int[n];
+            for (int i = 0; i < n; i++) {
+                ids[i] = i;
+            }
+            this.xs = xs.clone();
+            this.ys = ys.clone();
+            sort(0, n - 1, 0);
+        }
+
+        /**
+         * Find the points within a rectangle, edges included.
+         * 
+         * @param minX the minimum x
+         * @param minY the minimum y
+         * @param maxX the maximum x
+         * @param maxY the maximum y
+         * @param result the list receiving the point indexes
+         */
+        private void range(double minX, double minY, double maxX, double maxY, IntList result) {
+            IntList stack = new IntList();
+            stack.add(0);
+            stack.add(ids.length - 1);
+            stack.add(0);
+            while (stack.size > 0) {
+                int axis = stack.values[--stack.size];
+                int right = stack.values[--stack.size];
+                int left = stack.values[--stack.size];
+                if (right - left <= NODE_SIZE) {
+                    for (int i = left; i <= right; i++) {
+                        if (xs[i] >= minX && xs[i] <= maxX && ys[i] >= minY && ys[i] <= maxY) {
+                            result.add(ids[i]);
+                        }
+                    }
+                    continue;
+                }
+                int m = (left + right) >>> 1;
+                double x = xs[m];
+                double y = ys[m];
+                if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                    result.add(ids[m]);
+                }
+                double value = axis == 0 ? x : y;
+                if (axis == 0 ? minX <= value : minY <= value) {
+                    stack.add(left);
+                    stack.add(m - 1);
+                    stack.add(1 - axis);
+                }
+                if (axis == 0 ? maxX >= value : maxY >= value) {
+                    stack.add(m + 1);
+                    stack.add(right);
+                    stack.add(1 - axis);
+                }
+            }
+        }
+
+        /**
+         * Find the points within a radius.
+         * 
+         * @param qx the x of the center
+         * @param qy the y of the center
+         * @param r the radius
+         * @param result the list receiving the point indexes
+         */
+        private void within(double qx, double qy, double r, IntList result) {
+            IntList stack = new IntList();
+            stack.add(0);
+            stack.add(ids.length - 1);
+            stack.add(0);
+            double r2 = r * r;
+            while (stack.size > 0) {
+                int axis = stack.values[--stack.size];
+                int right = stack.values[--stack.size];
+                int left = stack.values[--stack.size];
+                if (right - left <= NODE_SIZE) {
+                    for (int i = left; i <= right; i++) {
+                        if (distanceSquared(xs[i], ys[i], qx, qy) <= r2) {
+                            result.add(ids[i]);
+                        }
+                    }
+                    continue;
+                }
+                int m = (left + right) >>> 1;
+                double x = xs[m];
+                double y = ys[m];
+                if (distanceSquared(x, y, qx, qy) <= r2) {
+                    result.add(ids[m]);
+                }
+                double value = axis == 0 ? x : y;
+                double q = axis == 0 ? qx : qy;
+                if (q - r <= value) {
+                    stack.add(left);
+                    stack.add(m - 1);
+                    stack.add(1 - axis);
+                }
+                if (q + r >= value) {
+                    stack.add(m + 1);
+                    stack.add(right);
+                    stack.add(1 - axis);
+                }
+            }
+        }
+
+        /**
+         * Sort a range so that its middle is the median on the axis and recurse into both halves.
+         * 
+         * @param left the first index
+         * @param right the last index
+         * @param axis 0 for x, 1 for y
+         */
+        private void sort(int left, int right, int axis) {
+            if (right - left <= NODE_SIZE) {
+                return;
+            }
+            int m = (left + right) >>> 1;
+            select(m, left, right, axis == 0 ? xs : ys);
+            sort(left, m - 1, 1 - axis);
+            sort(m + 1, right, 1 - axis);
+        }
+
+        /**
+         * Partially sort a range so that the k-th element is in place, with Hoare's selection.
+         * 
+         * @param k the index to select
+         * @param left the first index
+         * @param right the last index
+         * @param values the coordinates of the axis
+         */
+        private void select(int k, int left, int right, double[] values) {
+            while (right > left) {
+                double pivot = values[(left + right) >>> 1];
+                int i = left;
+                int j = right;
+                while (i <= j) {
+                    while (values[i] < pivot) {
+                        i++;
+                    }
+                    while (values[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                if (k <= j) {
+                    right = j;
+                } else if (k >= i) {
+                    left = i;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Swap two points.
+         * 
+         * @param i the first index
+         * @param j the second index
+         */
+        private void swap(int i, int j) {
+            int id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+            double x = xs[i];
+            xs[i] = xs[j];
+            xs[j] = x;
+            double y = ys[i];
+            ys[i] = ys[j];
+            ys[j] = y;
+        }
+
+        /**
+         * Get the squared distance of two points.
+         * 
+         * @param ax the x of the first point
+         * @param ay the y of the first point
+         * @param bx the x of the second point
+         * @param by the y of the second point
+         * @return the squared distance
+         */
+        private static double distanceSquared(double ax, double ay, double bx, double by) {
+            double dx = ax - bx;
+            double dy = ay - by;
+            return dx * dx + dy * dy;
+        }
+    }
+
+    /**
+     * Growable list of primitive ints.
+     */
+    private static final class IntList {
+
+        /** The values. */
+        private int[] values = new int[16];
+
+        /** The number of values. */
+        private int size;
+
+        /**
+         * Append a value.
+         * 
+         * @param value the value
+         */
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * A cluster or a single location on a zoom level.
+     */
+    public static final class Marker {
+
+        /** The position, the weighted center of a cluster. */
+        private final GeoPoint geoPoint;
+
+        /** The number of locations. */
+        private final int count;
+
+        /** The location of a single marker or <tt>null</tt>. */
+        private final GeoLocation location;
+
+        /**
+         * Creates an instance.
+         * 
+         * @param geoPoint the position
+         * @param count the number of locations
+         * @param location the location of a single marker or <tt>null</tt>
+         */
+        private Marker(GeoPoint geoPoint, int count, GeoLocation location) {
+            this.geoPoint = geoPoint;
+            this.count = count;
+            this.location = location;
+        }
+
+        /**
+         * Get the position, the weighted center of a cluster.
+         * 
+         * @return the position
+         */
+        public GeoPoint getGeoPoint() {
+            return geoPoint;
+        }
+
+        /**
+         * Get the number of locations.
+         * 
+         * @return the number of locations, 1 for a single location
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Check whether the marker is a cluster.
+         * 
+         * @return <tt>true</tt> if the marker stands for several locations
+         */
+        public boolean isCluster() {
+            return location == null;
+        }
+
+        /**
+         * Get the location of a single marker.
+         * 
+         * @return the location or <tt>null</tt> for a cluster
+         */
+        public GeoLocation getLocation() {
+            return location;
+        }
+
+        @Override
+        public String toString() {
+            return "Marker [geoPoint=" + geoPoint + ", count=" + count + "]";
+        }
+    }
+}
@@ -80,6 +80,24 @@ public abstract class AbstractMongoDBTest extends TestCase {
         return col;
     }
 
+    /**
+     * Get the port of the embedded mongo.
+     * 
+     * @return the port
+     */
+    protected int getPort() {
+        return port;
+    }
+
+    /**
+     * Get the name of the test database.
+     * 
+     * @return the database name
+     */
+    protected String getTestDB() {
+        return testDB;
+    }
+
     /**
      * Get the {@link Mongo} client.
      * 
@@ -0,0 +1,98 @@
+package de.jt.mongo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+import de.jt.utils.BinaryPointReader;
+import de.jt.utils.BinaryPointWriter;
+import de.jt.utils.GeoJSONWriter;
+
+/**
+ * Binary point set format tests.
+ * 
+ * @author Hendrik Stein
+ * 
+ */
+public class BinaryPointTest extends TestCase {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Random random = new Random(7);
+        String[] names = { "cafe", "bar", "Caf\u00e9 \u00dcmlaut", null };
+        List<GeoLocation> locations = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            // quantized to the default precision of six decimals
+            double lat = Math.round((48 + random.nextDouble()) * 1e6) / 1e6;
+            double lon = Math.round((11 + random.nextDouble()) * 1e6) / 1e6;
+            if (i % 100 == 0) {
+                lon = i % 200 == 0 ? 180 : -180;
+            }
+            GeoLocation location = new GeoLocation(new GeoPoint(lat, lon), names[i % names.length]);
+            locations.add(location);
+            expected.add(location.toString());
+        }
+
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        BinaryPointWriter writer = new BinaryPointWriter(binary, BinaryPointWriter.DEFAULT_PRECISION, 3000);
+        Assert.assertEquals(locations.size(), writer.writeAll(locations.iterator()));
+        writer.close();
+
+        List<String> actual = new ArrayList<>();
+        BinaryPointReader reader = new BinaryPointReader(new ByteArrayInputStream(binary.toByteArray()));
+        try {
+            while (reader.hasNext()) {
+                actual.add(reader.next().toString());
+            }
+        } finally {
+            reader.close();
+        }
+        Collections.sort(expected);
+        Collections.sort(actual);
+        Assert.assertEquals(expected, actual);
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        GeoJSONWriter jsonWriter = new GeoJSONWriter(json, 6, 0);
+        jsonWriter.writeFeatures(locations.iterator());
+        jsonWriter.close();
+        Assert.assertTrue(binary.size() * 5 < json.size());
+    }
+
+    @Test
+    public void testCorruptStream() throws Exception {
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        BinaryPointWriter writer = new BinaryPointWriter(binary);
+        writer.write(new GeoLocation(new GeoPoint(1, 2), "a"));
+        writer.close();
+        byte[] bytes = binary.toByteArray();
+
+        byte[] truncated = new byte[bytes.length - 2];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        BinaryPointReader reader = new BinaryPointReader(new ByteArrayInputStream(truncated));
+        try {
+            reader.next();
+            Assert.fail("truncated stream");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        try {
+            new BinaryPointReader(new ByteArrayInputStream(new byte[] { 'G', 'P', 'X', '1', 1, 6 }));
+            Assert.fail("wrong magic");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package de.jt.mongo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+import de.jt.utils.GPXReader;
+import de.jt.utils.GPXWriter;
+
+/**
+ * Streaming GPX reader tests.
+ * 
+ * @author Hendrik Stein
+ * 
+ */
+public class GPXReaderTest extends TestCase {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        List<GeoLocation> waypoints = Arrays.asList(new GeoLocation(new GeoPoint(52.52, 13.405), "Berlin & Mitte"),
+                new GeoLocation(new GeoPoint(-33.86, 151.21), null));
+        List<GeoLocation> track = Arrays.asList(new GeoLocation(new GeoPoint(1, 179.5), "start"), new GeoLocation(
+                new GeoPoint(1.5, -179.5), "end"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GPXWriter writer = new GPXWriter(out);
+        writer.writeWaypoints(waypoints.iterator());
+        writer.writeTrack("track", track.iterator());
+        writer.close();
+
+        List<GeoLocation> expected = new ArrayList<>(waypoints);
+        expected.addAll(track);
+        List<GeoLocation> read = new ArrayList<>();
+        GPXReader reader = new GPXReader(new ByteArrayInputStream(out.toByteArray()));
+        try {
+            while (reader.hasNext()) {
+                read.add(reader.next());
+            }
+        } finally {
+            reader.close();
+        }
+        Assert.assertEquals(expected, read);
+    }
+
+    @Test
+    public void testMalformedPoints() throws Exception {
+        String gpx = "<gpx>\n<wpt lat=\"1\" lon=\"2\"><ele>3</ele><name>ok</name></wpt>\n<wpt lat=\"x\" lon=\"2\"/>\n"
+                + "<wpt lat=\"91\" lon=\"2\"/>\n<trk><trkseg><trkpt lon=\"2\"/><trkpt lat=\"NaN\" lon=\"0\"/>"
+                + "<trkpt lat=\"4\" lon=\"5\"/></trkseg></trk>\n</gpx>";
+        final List<Integer> lines = new ArrayList<>();
+        GPXReader reader = new GPXReader(new ByteArrayInputStream(gpx.getBytes("UTF-8")),
+                new GPXReader.MalformedPointHandler() {
+                    @Override
+                    public void malformedPoint(int line, int column, String reason) {
+                        lines.add(line);
+                    }
+                });
+        List<GeoLocation> read = new ArrayList<>();
+        while (reader.hasNext()) {
+            read.add(reader.next());
+        }
+        reader.close();
+
+        Assert.assertEquals(Arrays.asList(new GeoLocation(new GeoPoint(1, 2), "ok"), new GeoLocation(
+                new GeoPoint(4, 5), null)), read);
+        Assert.assertEquals(Arrays.asList(3, 4, 5, 5), lines);
+    }
+}
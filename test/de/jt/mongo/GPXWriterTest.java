@@ -0,0 +1,73 @@
+package de.jt.mongo;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+import de.jt.utils.GPXWriter;
+
+/**
+ * Streaming GPX writer tests.
+ * 
+ * @author Hendrik Stein
+ * 
+ */
+public class GPXWriterTest extends TestCase {
+
+    @Test
+    public void testCoordinateFormat() throws Exception {
+        Random random = new Random(42);
+        List<GeoLocation> locations = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            double lat = random.nextDouble() * 180 - 90;
+            double lon = random.nextDouble() * 360 - 180;
+            locations.add(new GeoLocation(new GeoPoint(lat, lon), null));
+            expected.append(String.format(Locale.US, "  <wpt lat=\"%.8f\" lon=\"%.8f\"></wpt>\n", lat, lon));
+        }
+
+        StringWriter out = new StringWriter();
+        GPXWriter writer = new GPXWriter(out);
+        Assert.assertEquals(locations.size(), writer.writeWaypoints(locations.iterator()));
+        writer.close();
+
+        String gpx = out.toString();
+        int start = gpx.indexOf("  <wpt");
+        int end = gpx.indexOf("</gpx>");
+        Assert.assertEquals(expected.toString(), gpx.substring(start, end));
+    }
+
+    @Test
+    public void testTrack() throws Exception {
+        StringWriter out = new StringWriter();
+        GPXWriter writer = new GPXWriter(out);
+        writer.writeWaypoint(0.5, -0.000000004, "a & <b>");
+        List<GeoLocation> track = Arrays.asList(new GeoLocation(new GeoPoint(1, 2), "start"), new GeoLocation(
+                new GeoPoint(-1.25, 179.999999999), null));
+        Assert.assertEquals(2, writer.writeTrack("track", track.iterator()));
+        try {
+            writer.writeWaypoint(0, 0, null);
+            Assert.fail("waypoint after track");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        writer.close();
+
+        String gpx = out.toString();
+        Assert.assertTrue(gpx.contains("<wpt lat=\"0.50000000\" lon=\"0.00000000\">"
+                + "<name>a &amp; &lt;b&gt;</name></wpt>"));
+        Assert.assertTrue(gpx.contains("<trkpt lat=\"1.00000000\" lon=\"2.00000000\"><name>start</name></trkpt>"));
+        Assert.assertTrue(gpx.contains("<trkpt lat=\"-1.25000000\" lon=\"180.00000000\"></trkpt>"));
+        Assert.assertTrue(gpx.endsWith("</trkseg>\n  </trk>\n</gpx>\n"));
+    }
+}
@@ -0,0 +1,59 @@
+package de.jt.mongo;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+import de.jt.utils.GeoJSONWriter;
+
+/**
+ * Streaming GeoJSON writer tests.
+ * 
+ * @author Hendrik Stein
+ * 
+ */
+public class GeoJSONWriterTest extends TestCase {
+
+    @Test
+    public void testFeatureCollection() throws Exception {
+        StringWriter out = new StringWriter();
+        GeoJSONWriter writer = new GeoJSONWriter(out, 3, 0);
+        writer.writeFeatures(Arrays.asList(new GeoLocation(new GeoPoint(52.52, 13.4049), "Berlin \"Mitte\"\n"),
+                new GeoLocation(new GeoPoint(-0.0001, 180), null)).iterator());
+        writer.close();
+
+        Assert.assertEquals("{\"type\":\"FeatureCollection\",\"features\":[\n"
+                + "{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[13.405,52.52]},"
+                + "\"properties\":{\"description\":\"Berlin \\\"Mitte\\\"\\u000a\"}},\n"
+                + "{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[180,0]},"
+                + "\"properties\":{}}\n]}\n", out.toString());
+    }
+
+    @Test
+    public void testChunkedFlush() throws Exception {
+        final int[] flushes = new int[1];
+        StringWriter out = new StringWriter() {
+            @Override
+            public void flush() {
+                flushes[0]++;
+            }
+        };
+        GeoJSONWriter writer = new GeoJSONWriter(out, GeoJSONWriter.DEFAULT_PRECISION, 10);
+        for (int i = 0; i < 25; i++) {
+            writer.writeFeature(new GeoLocation(new GeoPoint(i, i), null));
+        }
+        Assert.assertEquals(2, flushes[0]);
+        Assert.assertTrue(out.toString().startsWith("{\"type\":\"FeatureCollection\""));
+        writer.close();
+
+        StringWriter emptyOut = new StringWriter();
+        new GeoJSONWriter(emptyOut, 0, 0).close();
+        Assert.assertEquals("{\"type\":\"FeatureCollection\",\"features\":[]}\n", emptyOut.toString());
+    }
+}
@@ -0,0 +1,111 @@
+package de.jt.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoPoint;
+import de.jt.utils.GeofenceRegistry;
+import de.jt.utils.GeofenceRegistry.Transition;
+
+/**
+ * Geofence registry tests.
+ * 
+ * @author Hendrik Stein
+ * 
+ */
+public class GeofenceRegistryTest extends TestCase {
+
+    @Test
+    public void testMatchAgainstBruteForce() {
+        Random random = new Random(42);
+        Map<String, GeoBoundingBox> fences = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            double south = random.nextDouble() * 170 - 85;
+            double west = random.nextDouble() * 360 - 180;
+            // mostly small fences, some huge ones and some over the antimeridian
+            double width = i % 100 == 0 ? 90 + random.nextDouble() * 200 : random.nextDouble() * 3 + 0.01;
+            double height = Math.min(90 - south, random.nextDouble() * 3 + 0.01);
+            double east = west + width > 180 ? west + width - 360 : west + width;
+            fences.put("fence-" + i, new GeoBoundingBox(new GeoPoint(south, west), new GeoPoint(south + height,
+                    east)));
+        }
+        GeofenceRegistry registry = new GeofenceRegistry();
+        registry.registerAll(fences);
+        Assert.assertEquals(fences.size(), registry.size());
+
+        double[] latitudes = new double[20000];
+        double[] longitudes = new double[latitudes.length];
+        for (int i = 0; i < latitudes.length; i++) {
+            latitudes[i] = random.nextDouble() * 180 - 90;
+            longitudes[i] = i % 10 == 0 ? 180 - random.nextDouble() * 2 : random.nextDouble() * 360 - 180;
+        }
+        List<List<String>> matches = registry.match(latitudes, longitudes);
+        for (int i = 0; i < latitudes.length; i++) {
+            GeoPoint point = new GeoPoint(latitudes[i], longitudes[i]);
+            List<String> expected = new ArrayList<>();
+            for (Map.Entry<String, GeoBoundingBox> fence : fences.entrySet()) {
+                if (fence.getValue().contains(point)) {
+                    expected.add(fence.getKey());
+                }
+            }
+            List<String> actual = new ArrayList<>(matches.get(i));
+            Collections.sort(expected);
+            Collections.sort(actual);
+            Assert.assertEquals(point.toString(), expected, actual);
+        }
+    }
+
+    @Test
+    public void testWrappedFenceWithinOneColumn() {
+        // both edges fall into the same 90 degree column, the fence covers every column
+        GeofenceRegistry registry = new GeofenceRegistry(90);
+        registry.register("world", new GeoBoundingBox(new GeoPoint(-10, 10), new GeoPoint(10, 5)));
+
+        Assert.assertEquals(Collections.singletonList("world"), registry.match(0, 4));
+        Assert.assertEquals(Collections.singletonList("world"), registry.match(0, 12));
+        Assert.assertEquals(Collections.singletonList("world"), registry.match(0, -100));
+        Assert.assertTrue(registry.match(0, 7).isEmpty());
+
+        List<Transition> transitions = registry.update("ship", 0, 12);
+        Assert.assertEquals(1, transitions.size());
+        Assert.assertTrue(transitions.get(0).isEntered());
+    }
+
+    @Test
+    public void testTransitions() {
+        GeofenceRegistry registry = new GeofenceRegistry();
+        registry.register("dateline", new GeoBoundingBox(new GeoPoint(-20, 170), new GeoPoint(-10, -170)));
+        registry.register("fiji", new GeoBoundingBox(new GeoPoint(-19, 177), new GeoPoint(-16, -179)));
+
+        Assert.assertTrue(registry.update("ship", -15, 160).isEmpty());
+        List<Transition> transitions = registry.update("ship", -17, 179);
+        Assert.assertEquals(2, transitions.size());
+        Assert.assertTrue(transitions.get(0).isEntered());
+        Assert.assertTrue(transitions.get(1).isEntered());
+
+        // over the antimeridian, out of fiji but still in the dateline fence
+        transitions = registry.update("ship", -17, -175);
+        Assert.assertEquals(1, transitions.size());
+        Assert.assertEquals("fiji", transitions.get(0).getFenceId());
+        Assert.assertFalse(transitions.get(0).isEntered());
+
+        Assert.assertEquals(1, registry.unregister("dateline", "unknown"));
+        transitions = registry.update(new String[] { "ship", "boat" }, new double[] { -17, -18 }, new double[] {
+                -175, 178 });
+        Assert.assertEquals(2, transitions.size());
+        Assert.assertEquals("dateline", transitions.get(0).getFenceId());
+        Assert.assertFalse(transitions.get(0).isEntered());
+        Assert.assertEquals("boat", transitions.get(1).getEntityId());
+        Assert.assertTrue(transitions.get(1).isEntered());
+    }
+}
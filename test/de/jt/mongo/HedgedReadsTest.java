@@ -0,0 +1,151 @@
+package de.jt.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.config.Storage;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+import de.jt.db.HedgedReads;
+import de.jt.db.MongoConstants;
+import de.jt.db.MongoGeoService;
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+
+/**
+ * Hedged reads tests on an embedded three member replica set.
+ * 
+ * @author Hendrik Stein
+ * 
+ */
+public class HedgedReadsTest extends TestCase {
+
+    /** The starter, shared for artifact store caching. */
+    private static final MongodStarter starter = MongodStarter.getDefaultInstance();
+
+    /** Ports of the replica set members. */
+    private static final int[] ports = { 12350, 12351, 12352 };
+
+    /** Name of the replica set. */
+    private static final String replicaSet = "rs0";
+
+    /** Mongo executables of the members. */
+    private final List<MongodExecutable> executables = new ArrayList<>();
+
+    /** Clients with a direct connection to each member. */
+    private final List<MongoClient> memberClients = new ArrayList<>();
+
+    /** Client of the replica set. */
+    private MongoClient replicaSetClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        List<ServerAddress> seeds = new ArrayList<>();
+        BasicDBList members = new BasicDBList();
+        for (int i = 0; i < ports.length; i++) {
+            MongodExecutable executable = starter.prepare(new MongodConfigBuilder().version(Version.Main.PRODUCTION)
+                    .net(new Net(ports[i], Network.localhostIsIPv6())).replication(new Storage(null, replicaSet, 16))
+                    .build());
+            executables.add(executable);
+            executable.start();
+            seeds.add(new ServerAddress("localhost", ports[i]));
+            members.add(new BasicDBObject("_id", i).append("host", "localhost:" + ports[i]));
+        }
+
+        MongoClient first = new MongoClient(seeds.get(0));
+        CommandResult initiated = first.getDB("admin").command(
+                new BasicDBObject("replSetInitiate", new BasicDBObject("_id", replicaSet).append("members", members)));
+        initiated.throwOnError();
+        first.close();
+
+        replicaSetClient = new MongoClient(seeds);
+        long deadline = System.currentTimeMillis() + 60000L;
+        while (replicaSetClient.getReplicaSetStatus() == null
+                || replicaSetClient.getReplicaSetStatus().getMaster() == null) {
+            Assert.assertTrue("no primary elected", System.currentTimeMillis() < deadline);
+            Thread.sleep(500L);
+        }
+
+        MongoClientOptions options = MongoClientOptions.builder().readPreference(ReadPreference.secondaryPreferred())
+                .build();
+        for (ServerAddress seed : seeds) {
+            memberClients.add(new MongoClient(seed, options));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (MongoClient client : memberClients) {
+            client.close();
+        }
+        if (replicaSetClient != null) {
+            replicaSetClient.close();
+        }
+        for (MongodExecutable executable : executables) {
+            executable.stop();
+        }
+        super.tearDown();
+    }
+
+    @Test
+    public void testHedgedReads() throws Exception {
+        DBCollection primary = replicaSetClient.getDB("testDB").getCollection("geoCol");
+        primary.createIndex(new BasicDBObject(GeoLocation.MONGO_GEOPOINT, MongoConstants.INDEX_GEO));
+        List<GeoLocation> locations = SampleGeoLocations.getSampleForOzeania();
+        for (GeoLocation location : locations) {
+            // replicated to all members, so every member returns the same result
+            primary.insert(location.toMongo(), new WriteConcern(ports.length));
+        }
+
+        List<DBCollection> memberCols = new ArrayList<>();
+        for (MongoClient client : memberClients) {
+            memberCols.add(client.getDB("testDB").getCollection("geoCol"));
+        }
+        HedgedReads hedgedReads = new HedgedReads(memberCols, 0.5d, 0.2d, 0L);
+        MongoGeoService service = new MongoGeoService(primary);
+        GeoBoundingBox bbox = new GeoBoundingBox(new GeoPoint(-54.85448, 56.60156), new GeoPoint(77.73845, -41.75000));
+        int expected = service.getLocations(bbox).size();
+        Assert.assertEquals(locations.size(), expected);
+
+        service.setHedgedReads(hedgedReads);
+        try {
+            int queries = 500;
+            for (int i = 0; i < queries; i++) {
+                Assert.assertEquals(expected, service.getLocations(bbox).size());
+            }
+            Assert.assertEquals(queries, hedgedReads.getQueries());
+            // the delay is the median, so about every second query exceeds it and the budget applies
+            Assert.assertTrue(hedgedReads.getDelayMillis() < Long.MAX_VALUE);
+            Assert.assertTrue(hedgedReads.getHedges() > 0);
+            Assert.assertTrue(hedgedReads.getHedges() <= 0.2d * queries + 10);
+            Assert.assertTrue(hedgedReads.getHedgeWins() <= hedgedReads.getHedges());
+            // only the loser of a hedged query is cancelled
+            Assert.assertTrue(hedgedReads.getCancelledAttempts() <= hedgedReads.getHedges());
+        } finally {
+            hedgedReads.close();
+        }
+        // a closed pool runs the queries without hedging
+        Assert.assertEquals(expected, service.getLocations(bbox).size());
+    }
+}
@@ -0,0 +1,80 @@
+package de.jt.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+import de.jt.utils.MarkerClusterIndex;
+import de.jt.utils.MarkerClusterIndex.Marker;
+
+/**
+ * Marker cluster index tests.
+ * 
+ * @author Hendrik Stein
+ * 
+ */
+public class MarkerClusterIndexTest extends TestCase {
+
+    /** The whole world. */
+    private static final GeoBoundingBox WORLD = new GeoBoundingBox(new GeoPoint(-90, -180), new GeoPoint(90, 180));
+
+    @Test
+    public void testEveryZoomLevelCountsAllLocations() {
+        Random random = new Random(7);
+        List<GeoLocation> locations = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            // dense spots and a uniform background
+            double latitude = i % 2 == 0 ? 48 + random.nextGaussian() : random.nextDouble() * 160 - 80;
+            double longitude = i % 2 == 0 ? 11 + random.nextGaussian() : random.nextDouble() * 360 - 180;
+            locations.add(new GeoLocation(new GeoPoint(latitude, longitude), "location " + i));
+        }
+        MarkerClusterIndex index = new MarkerClusterIndex(locations.iterator());
+        Assert.assertEquals(locations.size(), index.size());
+
+        int previous = 0;
+        for (int zoom = index.getMinZoom(); zoom <= index.getMaxZoom() + 1; zoom++) {
+            List<Marker> markers = index.getMarkers(WORLD, zoom);
+            int total = 0;
+            for (Marker marker : markers) {
+                total += marker.getCount();
+            }
+            Assert.assertEquals(locations.size(), total);
+            Assert.assertTrue(markers.size() >= previous);
+            previous = markers.size();
+        }
+        Assert.assertEquals(locations.size(), previous);
+        Assert.assertFalse(index.getMarkers(WORLD, 99).get(0).isCluster());
+        Assert.assertTrue(index.getMarkers(WORLD, 0).size() < 1000);
+    }
+
+    @Test
+    public void testAntimeridian() {
+        List<GeoLocation> locations = Arrays.asList(new GeoLocation(new GeoPoint(-17, 179.99), "west of it"),
+                new GeoLocation(new GeoPoint(-17, -179.99), "east of it"), new GeoLocation(new GeoPoint(50, 8),
+                        "far away"));
+        MarkerClusterIndex index = new MarkerClusterIndex(locations.iterator());
+        GeoBoundingBox fiji = new GeoBoundingBox(new GeoPoint(-20, 170), new GeoPoint(-10, -170));
+
+        List<Marker> markers = index.getMarkers(fiji, 3);
+        Assert.assertEquals(1, markers.size());
+        Marker cluster = markers.get(0);
+        Assert.assertTrue(cluster.isCluster());
+        Assert.assertEquals(2, cluster.getCount());
+        Assert.assertEquals(180, Math.abs(cluster.getGeoPoint().getLongitude()), 1e-6);
+        Assert.assertEquals(-17, cluster.getGeoPoint().getLatitude(), 1e-6);
+
+        markers = index.getMarkers(fiji, 17);
+        Assert.assertEquals(2, markers.size());
+        Assert.assertFalse(markers.get(0).isCluster());
+        Assert.assertEquals(3, index.getMarkers(WORLD, 17).size());
+    }
+}
@@ -1,17 +1,70 @@
 package de.jt.mongo;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
 import com.mongodb.WriteConcern;
 
+import de.jt.db.BatchingGeoQuery;
+import de.jt.db.GPXImportResult;
+import de.jt.db.GPXImporter;
+import de.jt.db.GeoLocationCursor;
+import de.jt.db.GeoQueryListener;
+import de.jt.db.LiveLocationHub;
+import de.jt.db.LiveLocationListener;
+import de.jt.db.MongoConstants;
 import de.jt.db.MongoGeoService;
+import de.jt.db.MongoGeoServiceFactory;
+import de.jt.db.PartitionedGeoService;
+import de.jt.db.PositionWriter;
+import de.jt.db.QueryOptions;
+import de.jt.db.QueryPlan;
+import de.jt.db.QueryPlanner;
+import de.jt.db.QueryCoalescer;
+import de.jt.db.QueryMetricsSnapshot;
+import de.jt.db.QueryMetricsSnapshot.StrategyMetrics;
+import de.jt.db.TileAggregate;
+import de.jt.db.TileAggregator;
+import de.jt.db.VectorTileEncoder;
+import de.jt.db.QueryStrategy;
+import de.jt.db.QueryType;
+import de.jt.db.RankedResult;
+import de.jt.db.SampledResult;
+import de.jt.db.SlowQueryLog;
+import de.jt.db.TiledGeoQuery;
+import de.jt.db.ViewportPrefetcher;
+import de.jt.db.ViewportSession;
+import de.jt.db.ViewportUpdate;
 import de.jt.model.GeoBoundingBox;
 import de.jt.model.GeoLocation;
 import de.jt.model.GeoPoint;
 import de.jt.utils.GPXUtils;
+import de.jt.utils.GPXWriter;
+import de.jt.utils.GeoJSONWriter;
 
 /**
  * Mongo geo query tests.
@@ -126,4 +179,1106 @@ public class MongoGeoTest extends AbstractMongoDBTest {
         Assert.assertFalse(locationList.containsAll(SampleGeoLocations.getSampleForEurope()));
     }
 
+    @Test
+    public void testQueryMetrics() {
+        insertCertainGeoLocations();
+        MongoGeoService geoService = new MongoGeoService(getGeoLocationCol());
+
+        // Cologne and Frankfurt
+        geoService.getLocations(new GeoBoundingBox(new GeoPoint(49.74733, 6.63575), new GeoPoint(51.53075, 9.07471)));
+        // Aleutian Islands and Hiroshima
+        geoService.getLocations(new GeoBoundingBox(new GeoPoint(16.67304, 121.11328), new GeoPoint(65.08833,
+                -152.40234)));
+
+        QueryMetricsSnapshot snapshot = geoService.getMetrics().getSnapshot();
+        StrategyMetrics singleBox = snapshot.get(QueryStrategy.SINGLE_BOX);
+        Assert.assertEquals(1, singleBox.getQueries());
+        Assert.assertEquals(1, singleBox.getSubQueries());
+        Assert.assertEquals(2, singleBox.getDocuments());
+        Assert.assertEquals(1, singleBox.getTimeToFirstDocument().getCount());
+
+        StrategyMetrics split = snapshot.get(QueryStrategy.ANTIMERIDIAN_SPLIT);
+        Assert.assertEquals(1, split.getQueries());
+        Assert.assertEquals(2, split.getSubQueries());
+        Assert.assertEquals(2, split.getDocuments());
+    }
+
+    @Test
+    public void testSlowQueryLog() throws InterruptedException {
+        insertCertainGeoLocations();
+        MongoGeoService geoService = new MongoGeoService(getGeoLocationCol());
+        SlowQueryLog slowQueryLog = new SlowQueryLog(0L); // every query is slow
+        geoService.setSlowQueryLog(slowQueryLog);
+        try {
+            GeoBoundingBox bbox = new GeoBoundingBox(new GeoPoint(49.74733, 6.63575), new GeoPoint(51.53075, 9.07471));
+            geoService.getLocations(bbox);
+            geoService.getLocations(bbox);
+
+            List<SlowQueryLog.Shape> shapes = slowQueryLog.getWorstShapes(10);
+            Assert.assertEquals(1, shapes.size());
+            SlowQueryLog.Shape shape = shapes.get(0);
+            Assert.assertEquals(2, shape.getCount());
+
+            // explain runs in the background
+            for (int i = 0; i < 50 && shape.getPlan() == null; i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertNotNull(shape.getPlan());
+            Assert.assertTrue(shape.getNscannedObjects() >= 2);
+        } finally {
+            slowQueryLog.close();
+        }
+    }
+
+    @Test
+    public void testQueryListener() {
+        insertCertainGeoLocations();
+        final List<String> events = new ArrayList<>();
+        final AtomicBoolean enabled = new AtomicBoolean(true);
+        MongoGeoService geoService = new MongoGeoService(getGeoLocationCol());
+        geoService.setListener(new GeoQueryListener() {
+            @Override
+            public boolean isEnabled() {
+                return enabled.get();
+            }
+
+            @Override
+            public void queryBuilt(GeoBoundingBox bbox, long nanos) {
+                events.add("built");
+            }
+
+            @Override
+            public void antimeridianSplit(GeoBoundingBox bbox, List<GeoBoundingBox> boxes, long nanos) {
+                events.add("split" + boxes.size());
+            }
+
+            @Override
+            public void batchFetched(GeoBoundingBox bbox, int batch, int documents, long nanos) {
+                events.add("batch" + documents);
+            }
+
+            @Override
+            public void documentsDecoded(GeoBoundingBox bbox, int documents, long nanos) {
+                events.add("decoded" + documents);
+            }
+        });
+
+        // Aleutian Islands and Hiroshima
+        List<GeoLocation> locationList = geoService.getLocations(new GeoBoundingBox(new GeoPoint(16.67304, 121.11328),
+                new GeoPoint(65.08833, -152.40234)));
+        Assert.assertEquals(2, locationList.size());
+        Assert.assertEquals(Arrays.asList("split2", "built", "built", "batch1", "decoded1", "batch1", "decoded1"),
+                events);
+
+        // a disabled listener is not notified
+        events.clear();
+        enabled.set(false);
+        Assert.assertEquals(2, geoService.getLocations(new GeoBoundingBox(new GeoPoint(16.67304, 121.11328),
+                new GeoPoint(65.08833, -152.40234))).size());
+        Assert.assertTrue(events.isEmpty());
+
+        // the batches of the cursor are reported as received
+        insertLocations(SampleGeoLocations.getSampleForEurope());
+        geoService.setQueryOptions(QueryOptions.builder().batchSize(QueryType.LOCATIONS, 50).build());
+        enabled.set(true);
+        int total = geoService.getLocations(new GeoBoundingBox(new GeoPoint(35, -10), new GeoPoint(71, 40))).size();
+        int batches = 0;
+        int documents = 0;
+        for (String event : events) {
+            if (event.startsWith("batch")) {
+                batches++;
+                documents += Integer.parseInt(event.substring("batch".length()));
+            }
+        }
+        Assert.assertEquals(total, documents);
+        Assert.assertTrue(batches > 1);
+    }
+
+    @Test
+    public void testQueryPlanner() {
+        GeoLocation fijiWest = new GeoLocation(new GeoPoint(-17.0, 179.5), "Fiji West");
+        GeoLocation fijiEast = new GeoLocation(new GeoPoint(-17.0, -179.5), "Fiji East");
+        getGeoLocationCol().insert(fijiWest.toMongo(), WriteConcern.SAFE);
+        getGeoLocationCol().insert(fijiEast.toMongo(), WriteConcern.SAFE);
+        GeoBoundingBox bbox = new GeoBoundingBox(new GeoPoint(-18.0, 178.0), new GeoPoint(-16.0, -178.0));
+
+        MongoGeoService geoService = new MongoGeoService(getGeoLocationCol());
+        QueryPlanner planner = geoService.getPlanner();
+        planner.setExplorationRate(0);
+
+        // Only a 2d index: the box has to be split
+        QueryPlan plan = planner.plan(bbox);
+        Assert.assertEquals(QueryStrategy.ANTIMERIDIAN_SPLIT, plan.getStrategy());
+        Assert.assertEquals(2, plan.getQueries().size());
+
+        // With a 2dsphere index a single spherical query is cheaper if the edges are close enough to the parallels
+        getGeoLocationCol().createIndex(new BasicDBObject(GeoLocation.MONGO_GEOPOINT, MongoConstants.INDEX_GEO_SPHERE));
+        planner.refreshIndexes();
+        planner.setSphericalTolerance(0.1);
+        plan = planner.plan(bbox);
+        System.out.println(plan);
+        Assert.assertEquals(QueryStrategy.GEOMETRY, plan.getStrategy());
+        Assert.assertEquals(1, plan.getQueries().size());
+
+        List<GeoLocation> locationList = geoService.getLocations(bbox);
+        Assert.assertEquals(2, locationList.size());
+        Assert.assertTrue(locationList.containsAll(Arrays.asList(fijiWest, fijiEast)));
+
+        // The approximate spherical query is opt-in, the default tolerance rejects it even for small boxes
+        planner.setSphericalTolerance(QueryPlanner.DEFAULT_SPHERICAL_TOLERANCE);
+        Assert.assertEquals(QueryStrategy.ANTIMERIDIAN_SPLIT, planner.plan(bbox).getStrategy());
+        GeoBoundingBox equator = new GeoBoundingBox(new GeoPoint(-1.0, 170.0), new GeoPoint(1.0, 172.0));
+        for (QueryPlan.Candidate candidate : planner.plan(equator).getCandidates()) {
+            Assert.assertEquals(candidate.getStrategy() == QueryStrategy.GEOMETRY, candidate.isRejected());
+        }
+
+        // Once opted in, exploration measures the spherical query like the exact strategies
+        planner.setSphericalTolerance(0.1);
+        planner.setExplorationRate(1);
+        GeoBoundingBox small = new GeoBoundingBox(new GeoPoint(-18.0, 170.0), new GeoPoint(-16.0, 172.0));
+        Set<QueryStrategy> explored = EnumSet.noneOf(QueryStrategy.class);
+        for (int i = 0; i < 5; i++) {
+            plan = planner.plan(small);
+            Assert.assertTrue(plan.isExploration());
+            explored.add(plan.getStrategy());
+            geoService.getLocations(small);
+        }
+        Assert.assertEquals(EnumSet.of(QueryStrategy.POLYGON, QueryStrategy.GEOMETRY), explored);
+    }
+
+    @Test
+    public void testTiledQuery() {
+        insertLocations(SampleGeoLocations.getSampleForEurope());
+        insertLocations(SampleGeoLocations.getSampleForOzeania());
+        insertLocations(SampleGeoLocations.getSampleForNorthAmerica());
+
+        MongoGeoService geoService = new MongoGeoService(getGeoLocationCol());
+        TiledGeoQuery tiledQuery = new TiledGeoQuery(getGeoLocationCol(), 4, 100, 8);
+        geoService.setTiledQuery(tiledQuery);
+        try {
+            // Europe and the box over the antimeridian of testBigBoundingBoxOverAntimeridian
+            List<GeoBoundingBox> boxes = Arrays.asList(
+                    new GeoBoundingBox(new GeoPoint(37.0, -8.0), new GeoPoint(69.0, 33.0)),
+                    new GeoBoundingBox(new GeoPoint(-54.85448, 56.60156), new GeoPoint(77.73845, -41.75000)));
+            for (GeoBoundingBox bbox : boxes) {
+                List<GeoLocation> expected = geoService.getLocations(bbox);
+                List<GeoLocation> tiled = new ArrayList<>();
+                GeoLocationCursor cursor = geoService.getLocationsTiled(bbox);
+                while (cursor.hasNext()) {
+                    tiled.add(cursor.next());
+                }
+                cursor.close();
+
+                // no gaps and no duplicates between the tiles
+                Assert.assertEquals(expected.size(), tiled.size());
+                Assert.assertEquals(new HashSet<>(expected), new HashSet<>(tiled));
+            }
+        } finally {
+            tiledQuery.close();
+        }
+    }
+
+    @Test
+    public void testTiledQuerySlowConsumer() {
+        insertLocations(SampleGeoLocations.getSampleForEurope());
+        GeoBoundingBox europe = new GeoBoundingBox(new GeoPoint(37.0, -8.0), new GeoPoint(69.0, 33.0));
+        int expected = getGeoLocationCol().find().count();
+
+        // a single thread and tiny tiles: the unread first query fills its buffer with a batch per tile
+        MongoGeoService geoService = new MongoGeoService(getGeoLocationCol());
+        geoService.setQueryOptions(QueryOptions.builder().batchSize(QueryType.LOCATIONS, 10).build());
+        TiledGeoQuery tiledQuery = new TiledGeoQuery(getGeoLocationCol(), 1, 5, 8);
+        geoService.setTiledQuery(tiledQuery);
+        try {
+            GeoLocationCursor slow = geoService.getLocationsTiled(europe);
+
+            // the parked tiles of the slow query do not hold the thread of the second query
+            int count = 0;
+            GeoLocationCursor cursor = geoService.getLocationsTiled(europe);
+            while (cursor.hasNext()) {
+                cursor.next();
+                count++;
+            }
+            cursor.close();
+            Assert.assertEquals(expected, count);
+
+            count = 0;
+            while (slow.hasNext()) {
+                slow.next();
+                count++;
+            }
+            slow.close();
+            Assert.assertEquals(expected, count);
+        } finally {
+            tiledQuery.close();
+        }
+    }
+
+    @Test
+    public void testTopK() {
+        insertLocations(SampleGeoLocations.getSampleForOzeania());
+        insertLocations(SampleGeoLocations.getSampleForNorthAmerica());
+        GeoBoundingBox bbox = new GeoBoundingBox(new GeoPoint(-54.85448, 56.60156), new GeoPoint(77.73845, -41.75000));
+        MongoGeoService geoService = new MongoGeoService(getGeoLocationCol());
+
+        // Expected: all locations sorted by the distance to the box center, wrapped at the antimeridian
+        final GeoPoint center = bbox.getCenter();
+        List<GeoLocation> expected = geoService.getLocations(bbox);
+        Collections.sort(expected, new Comparator<GeoLocation>() {
+            @Override
+            public int compare(GeoLocation l1, GeoLocation l2) {
+                return Double.compare(distance(center, l1.getGeoPoint()), distance(center, l2.getGeoPoint()));
+            }
+        });
+
+        RankedResult result = geoService.getLocations(bbox, 50);
+        Assert.assertTrue(result.isTruncated());
+        Assert.assertEquals(50, result.getLocations().size());
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals(distance(center, expected.get(i).getGeoPoint()),
+                    distance(center, result.getLocations().get(i).getGeoPoint()), 1e-9);
+        }
+
+        RankedResult all = geoService.getLocations(bbox, expected.size());
+        Assert.assertFalse(all.isTruncated());
+        Assert.assertEquals(expected.size(), all.getLocations().size());
+    }
+
+    @Test
+    public void testSampledQuery() {
+        insertLocations(SampleGeoLocations.getSampleForOzeania());
+        insertLocations(SampleGeoLocations.getSampleForNorthAmerica());
+        GeoBoundingBox bbox = new GeoBoundingBox(new GeoPoint(-54.85448, 56.60156), new GeoPoint(77.73845, -41.75000));
+        MongoGeoService geoService = new MongoGeoService(getGeoLocationCol());
+        List<GeoLocation> all = geoService.getLocations(bbox);
+
+        SampledResult sampled = geoService.getLocationsSampled(bbox, 64);
+        Assert.assertTrue(sampled.isSampled());
+        Assert.assertEquals(all.size(), sampled.getEstimatedCount());
+        // the share of sparse cells is redistributed, so the sample is filled
+        Assert.assertEquals(64, sampled.getLocations().size());
+        Assert.assertEquals(64, new HashSet<>(sampled.getLocations()).size());
+        for (GeoLocation location : sampled.getLocations()) {
+            Assert.assertTrue(bbox.contains(location.getGeoPoint()));
+        }
+
+        // every sample is drawn anew
+        Assert.assertNotEquals(new HashSet<>(sampled.getLocations()), new HashSet<>(geoService.getLocationsSampled(bbox,
+                64).getLocations()));
+
+        // the query of all locations is recorded once
+        long queries = geoService.getMetrics().getSnapshot().get(QueryStrategy.ANTIMERIDIAN_SPLIT).getQueries();
+        SampledResult full = geoService.getLocationsSampled(bbox, all.size());
+        Assert.assertFalse(full.isSampled());
+        Assert.assertEquals(all.size(), full.getLocations().size());
+        Assert.assertEquals(queries + 1, geoService.getMetrics().getSnapshot().get(QueryStrategy.ANTIMERIDIAN_SPLIT)
+                .getQueries());
+    }
+
+    @Test
+    public void testGPXImport() throws Exception {
+        List<GeoLocation> locations = SampleGeoLocations.getSampleForOzeania();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GPXWriter writer = new GPXWriter(out);
+        writer.writeWaypoint(0, 0, null);
+        writer.writeTrack("ozeania", locations.iterator());
+        writer.close();
+        // a malformed point between the valid ones
+        String gpx = out.toString("UTF-8").replace("<wpt lat=\"0.00000000\"", "<wpt lat=\"north\"");
+
+        GPXImporter importer = new GPXImporter(getGeoLocationCol(), 7);
+        GPXImportResult result = importer.importGPX(new ByteArrayInputStream(gpx.getBytes("UTF-8")));
+        Assert.assertEquals(locations.size(), result.getImported());
+        Assert.assertEquals(1, result.getMalformed());
+        Assert.assertEquals(1, result.getMalformedPoints().size());
+        Assert.assertEquals(locations.size(), getGeoLocationCol().count());
+    }
+
+    @Test
+    public void testStreamGeoJSON() throws Exception {
+        insertLocations(SampleGeoLocations.getSampleForOzeania());
+        GeoBoundingBox bbox = new GeoBoundingBox(new GeoPoint(-54.85448, 56.60156), new GeoPoint(77.73845, -41.75000));
+        MongoGeoService geoService = new MongoGeoService(getGeoLocationCol());
+        int expected = geoService.getLocations(bbox).size();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GeoJSONWriter writer = new GeoJSONWriter(out, 5, 10);
+        GeoLocationCursor cursor = geoService.streamLocations(bbox);
+        try {
+            Assert.assertEquals(expected, writer.writeFeatures(cursor));
+        } finally {
+            cursor.close();
+            writer.close();
+        }
+        Assert.assertTrue(out.toString("UTF-8").startsWith("{\"type\":\"FeatureCollection\""));
+        Assert.assertEquals(2, geoService.getMetrics().getSnapshot().get(QueryStrategy.ANTIMERIDIAN_SPLIT)
+                .getQueries());
+    }
+
+    @Test
+    public void testSharedServiceUnderLoad() throws Exception {
+        insertLocations(SampleGeoLocations.getSampleForOzeania());
+        insertLocations(SampleGeoLocations.getSampleForNorthAmerica());
+        final DBCollection col = getGeoLocationCol();
+        final GeoBoundingBox split = new GeoBoundingBox(new GeoPoint(-54.85448, 56.60156), new GeoPoint(77.73845,
+                -41.75000));
+        final GeoBoundingBox single = new GeoBoundingBox(new GeoPoint(10, -170), new GeoPoint(75, -50));
+        final int splitCount = new MongoGeoService(col).getLocations(split).size();
+        final int singleCount = new MongoGeoService(col).getLocations(single).size();
+
+        // fewer connections than threads, so threads have to wait for the pool
+        final MongoGeoServiceFactory factory = MongoGeoServiceFactory.builder().server("localhost", getPort())
+                .connectionsPerHost(4).threadsAllowedToBlockForConnectionMultiplier(10).maxWaitTime(10000)
+                .socketTimeout(10000).readPreference(QueryType.SAMPLED, ReadPreference.primaryPreferred())
+                .batchSize(QueryType.LOCATIONS, 50).build();
+        final int threads = 16;
+        final int iterations = 25;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                final int seed = t;
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int i = 0; i < iterations; i++) {
+                                MongoGeoService service = factory.getService(getTestDB(), col.getName());
+                                switch ((seed + i) % 4) {
+                                case 0:
+                                    Assert.assertEquals(splitCount, service.getLocations(split).size());
+                                    break;
+                                case 1:
+                                    Assert.assertEquals(singleCount, service.getLocations(single).size());
+                                    break;
+                                case 2:
+                                    Assert.assertEquals(Math.min(10, splitCount), service.getLocations(split, 10)
+                                            .getLocations().size());
+                                    break;
+                                default:
+                                    Assert.assertEquals(splitCount, service.getLocationsSampled(split, 20)
+                                            .getEstimatedCount());
+                                }
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                });
+                worker.start();
+                workers.add(worker);
+            }
+            start.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            Assert.assertSame(factory.getService(getTestDB(), col.getName()), factory.getService(getTestDB(),
+                    col.getName()));
+            long queries = 0L;
+            for (StrategyMetrics metrics : factory.getMetrics().getSnapshot().getStrategies()) {
+                queries += metrics.getQueries();
+            }
+            Assert.assertEquals(threads * iterations, queries);
+        } finally {
+            factory.close();
+        }
+    }
+
+    @Test
+    public void testTimeRangeQuery() {
+        // no expiry, so the server cannot delete locations between the counting queries
+        MongoGeoService geoService = new MongoGeoService(getGeoLocationCol());
+        geoService.createTimeIndexes(0, TimeUnit.HOURS);
+        long now = System.currentTimeMillis();
+        List<GeoLocation> locations = SampleGeoLocations.getSampleForOzeania();
+        for (int i = 0; i < locations.size(); i++) {
+            GeoLocation location = locations.get(i);
+            // one location per minute going back in time
+            getGeoLocationCol().insert(new GeoLocation(location.getGeoPoint(), location.getDescription(),
+                    new Date(now - TimeUnit.MINUTES.toMillis(i))).toMongo(), WriteConcern.SAFE);
+        }
+        getGeoLocationCol().insert(SampleGeoLocations.locationHiroshima.toMongo(), WriteConcern.SAFE);
+        GeoBoundingBox bbox = new GeoBoundingBox(new GeoPoint(-54.85448, 56.60156), new GeoPoint(77.73845, -41.75000));
+        int all = geoService.getLocations(bbox).size();
+
+        Date from = new Date(now - TimeUnit.MINUTES.toMillis(10) + 1);
+        List<GeoLocation> recent = geoService.getLocations(bbox, from, null);
+        Assert.assertEquals(10, recent.size());
+        for (GeoLocation location : recent) {
+            Assert.assertFalse(location.getTimestamp().before(from));
+        }
+        // locations without timestamp never match
+        Assert.assertEquals(all - 1, geoService.getLocations(bbox, null, null).size());
+        for (DBObject index : getGeoLocationCol().getIndexInfo()) {
+            Assert.assertFalse(index.containsField(MongoConstants.EXPIRE_AFTER_SECONDS));
+        }
+
+        // the TTL index on a collection of its own
+        DBCollection expiring = getPartitionCol("expiring");
+        new MongoGeoService(expiring).createTimeIndexes(1, TimeUnit.HOURS);
+        Object expireAfter = null;
+        for (DBObject index : expiring.getIndexInfo()) {
+            if (index.containsField(MongoConstants.EXPIRE_AFTER_SECONDS)) {
+                expireAfter = index.get(MongoConstants.EXPIRE_AFTER_SECONDS);
+            }
+        }
+        Assert.assertNotNull(expireAfter);
+        Assert.assertEquals(TimeUnit.HOURS.toSeconds(1), ((Number) expireAfter).longValue());
+
+        // a timestamp written by another client as a number is ignored
+        BasicDBObject foreign = SampleGeoLocations.locationBerlin.toMongo();
+        foreign.put(GeoLocation.MONGO_TIMESTAMP, now);
+        Assert.assertNull(new GeoLocation(foreign).getTimestamp());
+    }
+
+    @Test
+    public void testViewportSession() {
+        insertLocations(SampleGeoLocations.getSampleForOzeania());
+        insertLocations(SampleGeoLocations.getSampleForNorthAmerica());
+        MongoGeoService geoService = new MongoGeoService(getGeoLocationCol());
+        ViewportSession session = new ViewportSession(geoService);
+
+        // pan eastwards over the antimeridian and back north west
+        double[][] viewports = { { -50, 150 }, { -48, 155 }, { -46, 160 }, { -45, 170 }, { -40, 178 }, { -38, -175 },
+                { -36, -178 } };
+        for (int i = 0; i < viewports.length; i++) {
+            double south = viewports[i][0];
+            double west = viewports[i][1];
+            double east = west + 30 > 180 ? west + 30 - 360 : west + 30;
+            GeoBoundingBox bbox = new GeoBoundingBox(new GeoPoint(south, west), new GeoPoint(south + 40, east));
+            ViewportUpdate update = session.moveTo(bbox);
+            Assert.assertEquals(i == 0, update.isFullQuery());
+            Assert.assertEquals(geoService.getLocations(bbox).size(), update.getLocations().size());
+            for (GeoLocation location : update.getRemoved()) {
+                Assert.assertFalse(bbox.contains(location.getGeoPoint()));
+            }
+        }
+    }
+
+    @Test
+    public void testViewportPrefetcher() {
+        insertLocations(SampleGeoLocations.getSampleForOzeania());
+        MongoGeoService geoService = new MongoGeoService(getGeoLocationCol());
+        ViewportPrefetcher prefetcher = new ViewportPrefetcher(geoService);
+        try {
+            // constant pan eastwards over the antimeridian, each viewport is predicted by the two before
+            for (int i = 0; i < 5; i++) {
+                double west = 160 + i * 5 > 180 ? 160 + i * 5 - 360 : 160 + i * 5;
+                double east = west + 30 > 180 ? west + 30 - 360 : west + 30;
+                GeoBoundingBox bbox = new GeoBoundingBox(new GeoPoint(-50, west), new GeoPoint(-10, east));
+                Assert.assertEquals(geoService.getLocations(bbox).size(), prefetcher.getLocations("client", bbox)
+                        .size());
+            }
+            Assert.assertEquals(5, prefetcher.getRequests());
+            Assert.assertEquals(3, prefetcher.getHits() + prefetcher.getDropped());
+            Assert.assertTrue(prefetcher.getHits() > 0);
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+    @Test
+    public void testCoalescedQueries() throws Exception {
+        insertLocations(SampleGeoLocations.getSampleForOzeania());
+        insertLocations(SampleGeoLocations.getSampleForNorthAmerica());
+        final GeoBoundingBox bbox = new GeoBoundingBox(new GeoPoint(-54.85448, 56.60156), new GeoPoint(77.73845,
+                -41.75000));
+        final MongoGeoService geoService = new MongoGeoService(getGeoLocationCol());
+        final int expected = geoService.getLocations(bbox).size();
+        final int threads = 16;
+
+        // the executing query is held until all others wait for it
+        QueryCoalescer coalescer = new QueryCoalescer();
+        geoService.setQueryCoalescer(coalescer);
+        HoldingListener holding = new HoldingListener();
+        geoService.setListener(holding);
+        List<Throwable> failures = runCoalesced(geoService, bbox, threads, holding, false);
+        for (Throwable failure : failures) {
+            Assert.assertNull(failure);
+        }
+        Assert.assertEquals(1, coalescer.getExecutions());
+        Assert.assertEquals(threads - 1, coalescer.getCoalesced());
+        Assert.assertEquals(0, coalescer.getInFlight());
+        Assert.assertEquals(expected, geoService.getLocations(bbox).size());
+
+        // a failure of the executing query reaches the waiting ones
+        coalescer = new QueryCoalescer();
+        geoService.setQueryCoalescer(coalescer);
+        holding = new HoldingListener();
+        holding.failure = new IllegalStateException("failed on purpose");
+        geoService.setListener(holding);
+        failures = runCoalesced(geoService, bbox, threads, holding, false);
+        int shared = 0;
+        for (Throwable failure : failures) {
+            if (failure instanceof MongoException) {
+                Assert.assertSame(holding.failure, failure.getCause());
+                shared++;
+            } else {
+                Assert.assertSame(holding.failure, failure);
+            }
+        }
+        Assert.assertEquals(threads - 1, shared);
+        Assert.assertEquals(1, coalescer.getExecutions());
+        Assert.assertEquals(0, coalescer.getCoalesced());
+
+        // the waiting queries give up, the executing one completes
+        coalescer = new QueryCoalescer(50L);
+        geoService.setQueryCoalescer(coalescer);
+        holding = new HoldingListener();
+        geoService.setListener(holding);
+        failures = runCoalesced(geoService, bbox, threads, holding, true);
+        int timedOut = 0;
+        for (Throwable failure : failures) {
+            if (failure != null) {
+                Assert.assertTrue(failure instanceof MongoException);
+                timedOut++;
+            }
+        }
+        Assert.assertEquals(threads - 1, timedOut);
+        Assert.assertEquals(threads - 1, coalescer.getTimeouts());
+        Assert.assertEquals(1, coalescer.getExecutions());
+        Assert.assertEquals(0, coalescer.getInFlight());
+    }
+
+    /**
+     * Run the same query on several threads while the executing one is held by a listener.
+     * 
+     * @param geoService the service with a coalescer and the listener
+     * @param bbox the bounding box
+     * @param threads the number of threads
+     * @param holding the listener holding the executing query
+     * @param timeout whether the waiting queries time out before the executing one is released
+     * @return the failure per thread, <tt>null</tt> for a successful query
+     * @throws Exception if waiting fails
+     */
+    private static List<Throwable> runCoalesced(final MongoGeoService geoService, final GeoBoundingBox bbox,
+            int threads, HoldingListener holding, boolean timeout) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        geoService.getLocations(bbox);
+                        failures.add(null);
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        Assert.assertTrue(holding.held.await(10, TimeUnit.SECONDS));
+        if (timeout) {
+            // all but the executing query give up
+            Assert.assertTrue(awaitCount(done, 1));
+        } else {
+            // the waiting queries park with a timeout, the held one without
+            long deadline = System.currentTimeMillis() + 10000L;
+            while (waitingThreads() < threads - 1) {
+                Assert.assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10L);
+            }
+        }
+        holding.release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        return failures;
+    }
+
+    /**
+     * Wait until a latch has counted down to a given count.
+     * 
+     * @param latch the latch
+     * @param count the count
+     * @return <tt>true</tt> if the count was reached within 10 seconds
+     * @throws InterruptedException if interrupted
+     */
+    private static boolean awaitCount(CountDownLatch latch, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (latch.getCount() > count) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10L);
+        }
+        return true;
+    }
+
+    /**
+     * Count the threads waiting for a shared query, parked in a timed wait within the {@link QueryCoalescer}.
+     * 
+     * @return the number of waiting threads
+     */
+    private static int waitingThreads() {
+        int waiting = 0;
+        for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+            if (entry.getKey().getState() != Thread.State.TIMED_WAITING) {
+                continue;
+            }
+            for (StackTraceElement element : entry.getValue()) {
+                if (element.getClassName().equals(QueryCoalescer.class.getName())) {
+                    waiting++;
+                    break;
+                }
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * Listener holding the first query which decodes its documents until released.
+     */
+    private static final class HoldingListener implements GeoQueryListener {
+
+        /** Counted down when a query is held. */
+        private final CountDownLatch held = new CountDownLatch(1);
+
+        /** Releases the held query. */
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        /** The failure thrown by the held query or <tt>null</tt>. */
+        private volatile RuntimeException failure;
+
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public void queryBuilt(GeoBoundingBox bbox, long nanos) {
+        }
+
+        @Override
+        public void antimeridianSplit(GeoBoundingBox bbox, List<GeoBoundingBox> boxes, long nanos) {
+        }
+
+        @Override
+        public void batchFetched(GeoBoundingBox bbox, int batch, int documents, long nanos) {
+        }
+
+        @Override
+        public void documentsDecoded(GeoBoundingBox bbox, int documents, long nanos) {
+            if (held.getCount() == 0) {
+                return;
+            }
+            held.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    @Test
+    public void testBatchedQueries() throws Exception {
+        insertLocations(SampleGeoLocations.getSampleForOzeania());
+        insertLocations(SampleGeoLocations.getSampleForNorthAmerica());
+        final MongoGeoService geoService = new MongoGeoService(getGeoLocationCol());
+        BatchingGeoQuery batching = new BatchingGeoQuery(getGeoLocationCol(), 5000, 8, 1, QueryOptions.DEFAULT);
+        geoService.setBatchingQuery(batching);
+        // distinct boxes, one of them over the antimeridian
+        final List<GeoBoundingBox> boxes = Arrays.asList(new GeoBoundingBox(new GeoPoint(-54.85448, 56.60156),
+                new GeoPoint(77.73845, -41.75000)), new GeoBoundingBox(new GeoPoint(10, -170), new GeoPoint(75, -50)),
+                new GeoBoundingBox(new GeoPoint(-50, 110), new GeoPoint(-10, 160)), new GeoBoundingBox(new GeoPoint(
+                        30, -125), new GeoPoint(50, -70)));
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        try {
+            for (final GeoBoundingBox bbox : boxes) {
+                final int expected = geoService.getLocations(bbox).size();
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            Assert.assertEquals(expected, geoService.getLocationsBatched(bbox).size());
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                });
+                worker.start();
+                workers.add(worker);
+            }
+            start.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            Assert.assertEquals(boxes.size(), batching.getRequests());
+            Assert.assertTrue(batching.getBatches() < boxes.size());
+        } finally {
+            batching.close();
+        }
+    }
+
+    @Test
+    public void testPositionWriter() {
+        DBCollection col = getGeoLocationCol();
+        PositionWriter writer = new PositionWriter(col, 60000, 2);
+        try {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < 10; i++) {
+                for (int vehicle = 0; vehicle < 5; vehicle++) {
+                    writer.update("vehicle-" + vehicle, new GeoLocation(new GeoPoint(50 + i * 0.001, 8 + vehicle),
+                            "vehicle " + vehicle, new Date(now + i)));
+                }
+            }
+            // a late report is older than the buffered one
+            writer.update("vehicle-0", new GeoLocation(new GeoPoint(0, 0), "late", new Date(now)));
+            Assert.assertEquals(5, writer.getPending());
+            writer.flush();
+            Assert.assertEquals(5, writer.getWrites());
+            Assert.assertEquals(5, col.count());
+
+            // a late report after the flush is older than the stored one
+            writer.update("vehicle-0", new GeoLocation(new GeoPoint(0, 0), "late", new Date(now + 5)));
+            writer.flush();
+            Assert.assertEquals(1, writer.getStale());
+            Assert.assertEquals(5, writer.getWrites());
+            Assert.assertEquals(0, writer.getFailures());
+
+            writer.update("vehicle-0", new GeoLocation(new GeoPoint(51, 8), "vehicle 0", new Date(now + 10)));
+        } finally {
+            writer.close();
+        }
+        Assert.assertEquals(6, writer.getWrites());
+        Assert.assertEquals(5, col.count());
+        GeoLocation vehicle = new GeoLocation((BasicDBObject) col.findOne(new BasicDBObject(PositionWriter.MONGO_ID,
+                "vehicle-0")));
+        Assert.assertEquals(51, vehicle.getGeoPoint().getLatitude(), 0d);
+    }
+
+    @Test
+    public void testLiveLocations() {
+        DBCollection col = getGeoLocationCol();
+        PositionWriter writer = new PositionWriter(col, 60000, 100);
+        try {
+            writer.update("inside", new GeoLocation(new GeoPoint(-17, 179), "inside"));
+            writer.update("outside", new GeoLocation(new GeoPoint(-17, 160), "outside"));
+            writer.flush();
+
+            LiveLocationHub hub = new LiveLocationHub(col);
+            writer.setLiveLocationHub(hub);
+            final List<String> events = new ArrayList<>();
+            LiveLocationHub.Subscription subscription = hub.subscribe(new GeoBoundingBox(new GeoPoint(-20, 170),
+                    new GeoPoint(-10, -170)), new LiveLocationListener() {
+                @Override
+                public void snapshot(Map<String, GeoLocation> locations) {
+                    events.add("snapshot " + locations.keySet());
+                }
+
+                @Override
+                public void added(String entityId, GeoLocation location) {
+                    events.add("added " + entityId);
+                }
+
+                @Override
+                public void moved(String entityId, GeoLocation location) {
+                    events.add("moved " + entityId);
+                }
+
+                @Override
+                public void removed(String entityId) {
+                    events.add("removed " + entityId);
+                }
+            });
+            // over the antimeridian and still inside, into the box, out of the box
+            writer.update("inside", new GeoLocation(new GeoPoint(-17, -179), "inside"));
+            writer.update("outside", new GeoLocation(new GeoPoint(-17, 175), "outside"));
+            writer.update("inside", new GeoLocation(new GeoPoint(0, 0), "inside"));
+            hub.remove("outside");
+            Assert.assertEquals(Arrays.asList("snapshot [inside]", "moved inside", "added outside", "removed inside",
+                    "removed outside"), events);
+            Assert.assertEquals(4, hub.getEvents());
+
+            subscription.cancel();
+            Assert.assertEquals(0, hub.getSubscriptions());
+            writer.update("inside", new GeoLocation(new GeoPoint(-17, 179), "inside"));
+            Assert.assertEquals(5, events.size());
+
+            // the snapshot shows the buffered positions, not the written ones
+            writer.update("inside", new GeoLocation(new GeoPoint(0, 0), "inside"));
+            writer.update("buffered", new GeoLocation(new GeoPoint(-15, 175), "buffered"));
+            final List<String> snapshots = new ArrayList<>();
+            subscription = hub.subscribe(new GeoBoundingBox(new GeoPoint(-20, 170), new GeoPoint(-10, -170)),
+                    new LiveLocationListener() {
+                        @Override
+                        public void snapshot(Map<String, GeoLocation> locations) {
+                            snapshots.add(locations.keySet().toString());
+                        }
+
+                        @Override
+                        public void added(String entityId, GeoLocation location) {
+                        }
+
+                        @Override
+                        public void moved(String entityId, GeoLocation location) {
+                        }
+
+                        @Override
+                        public void removed(String entityId) {
+                        }
+                    });
+            Assert.assertEquals(Arrays.asList("[buffered]"), snapshots);
+
+            // written positions are forgotten unless a subscription contains them
+            Assert.assertEquals(2, hub.getPositions());
+            writer.flush();
+            Assert.assertEquals(1, hub.getPositions());
+            subscription.cancel();
+            Assert.assertEquals(0, hub.getPositions());
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testTileAggregates() {
+        List<GeoLocation> oceania = SampleGeoLocations.getSampleForOzeania();
+        List<GeoLocation> europe = SampleGeoLocations.getSampleForEurope();
+        List<GeoLocation> locations = new ArrayList<>(oceania);
+        locations.addAll(europe);
+        TileAggregator aggregator = new TileAggregator(getGeoLocationCol().getDB(), "geoTiles-", 0, 6);
+        aggregator.createIndexes();
+        PartitionedGeoService service = new PartitionedGeoService(Arrays.asList(getPartitionCol("west"),
+                getPartitionCol("east")), 2);
+        try {
+            service.setTileAggregator(aggregator);
+            service.insert(locations);
+        } finally {
+            service.close();
+        }
+        GeoBoundingBox world = new GeoBoundingBox(new GeoPoint(-90, -180), new GeoPoint(90, 180));
+        for (int zoom = 0; zoom <= 6; zoom++) {
+            long total = 0L;
+            for (TileAggregate tile : aggregator.getTiles(world, zoom)) {
+                total += tile.getCount();
+                Assert.assertNotNull(tile.getSampleId());
+            }
+            Assert.assertEquals(locations.size(), total);
+        }
+        Assert.assertEquals(1, aggregator.getTiles(world, 0).size());
+
+        // Oceania over the antimeridian on a zoomed in level
+        GeoBoundingBox pacific = new GeoBoundingBox(new GeoPoint(-60, 100), new GeoPoint(10, -120));
+        long total = 0L;
+        for (TileAggregate tile : aggregator.getTiles(pacific, 6)) {
+            total += tile.getCount();
+            Assert.assertTrue(pacific.contains(tile.getCentroid()));
+        }
+        Assert.assertEquals(oceania.size(), total);
+
+        // a location moves from Europe to the Pacific
+        aggregator.moved("moved", europe.get(0).getGeoPoint(), new GeoPoint(-17, 179));
+        total = 0L;
+        for (TileAggregate tile : aggregator.getTiles(pacific, 6)) {
+            total += tile.getCount();
+        }
+        Assert.assertEquals(oceania.size() + 1, total);
+        Assert.assertEquals(locations.size(), aggregator.getTiles(world, 0).get(0).getCount());
+
+        // the sample follows the locations of an arctic tile
+        GeoBoundingBox arctic = new GeoBoundingBox(new GeoPoint(79, -1), new GeoPoint(81, 1));
+        aggregator.added(Arrays.asList(arcticDocument("first", 80, 0), arcticDocument("second", 80, 0.5)));
+        Assert.assertEquals("first", aggregator.getTiles(arctic, 6).get(0).getSampleId());
+        aggregator.removed(Arrays.asList(arcticDocument("first", 80, 0)));
+        Assert.assertNull(aggregator.getTiles(arctic, 6).get(0).getSampleId());
+        aggregator.added(Arrays.asList(arcticDocument("third", 80, 0.2)));
+        Assert.assertEquals("third", aggregator.getTiles(arctic, 6).get(0).getSampleId());
+        aggregator.moved("third", new GeoPoint(80, 0.2), new GeoPoint(80, 0.3));
+        Assert.assertEquals("third", aggregator.getTiles(arctic, 6).get(0).getSampleId());
+        aggregator.removed(Arrays.asList(arcticDocument("second", 80, 0.5), arcticDocument("third", 80, 0.3)));
+        Assert.assertTrue(aggregator.getTiles(arctic, 6).isEmpty());
+
+        getGeoLocationCol().insert(new ArrayList<DBObject>(Arrays.asList(locations.get(0).toMongo())));
+        Assert.assertEquals(1, aggregator.rebuild(getGeoLocationCol()));
+        Assert.assertEquals(1, aggregator.getTiles(world, 3).get(0).getCount());
+    }
+
+    @Test
+    public void testVectorTile() {
+        insertLocations(SampleGeoLocations.getSampleForOzeania());
+        VectorTileEncoder encoder = new VectorTileEncoder();
+        // the south east quarter of the world at zoom 1
+        ByteBuffer tile = new MongoGeoService(getGeoLocationCol()).getVectorTile(1, 1, 1, encoder);
+        ByteBuffer expected = encoder.encode(SampleGeoLocations.getSampleForOzeania(), 1, 1, 1);
+        Assert.assertEquals(expected.remaining(), tile.remaining());
+        // an empty tile holds the layer without features
+        Assert.assertEquals(encoder.encode(Collections.<GeoLocation> emptyList(), 1, 0, 0).remaining(),
+                new MongoGeoService(getGeoLocationCol()).getVectorTile(1, 0, 0, encoder).remaining());
+    }
+
+    @Test
+    public void testPartitionedService() {
+        List<GeoLocation> locations = new ArrayList<>(SampleGeoLocations.getSampleForOzeania());
+        locations.addAll(SampleGeoLocations.getSampleForNorthAmerica());
+        GeoBoundingBox bbox = new GeoBoundingBox(new GeoPoint(-54.85448, 56.60156), new GeoPoint(77.73845, -41.75000));
+        insertLocations(locations);
+        int expected = new MongoGeoService(getGeoLocationCol()).getLocations(bbox).size();
+
+        PartitionedGeoService service = new PartitionedGeoService(Arrays.asList(getPartitionCol("west"),
+                getPartitionCol("east")), 2);
+        try {
+            service.insert(locations);
+            Assert.assertEquals(expected, service.getLocations(bbox).size());
+
+            // split the eastern band through eastern Australia
+            service.split(150d, getPartitionCol("far-east"));
+            List<PartitionedGeoService.Partition> partitions = service.getPartitions();
+            Assert.assertEquals(3, partitions.size());
+            Assert.assertEquals(150d, partitions.get(2).getWest(), 0d);
+            long total = 0L;
+            for (PartitionedGeoService.Partition partition : partitions) {
+                total += partition.getCollection().count();
+            }
+            Assert.assertEquals(locations.size(), total);
+            Assert.assertEquals(expected, service.getLocations(bbox).size());
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void testPartitionedServiceSplitWhileQuerying() throws Exception {
+        List<GeoLocation> locations = new ArrayList<>(SampleGeoLocations.getSampleForOzeania());
+        locations.addAll(SampleGeoLocations.getSampleForNorthAmerica());
+        final GeoBoundingBox bbox = new GeoBoundingBox(new GeoPoint(-54.85448, 56.60156), new GeoPoint(77.73845,
+                -41.75000));
+        insertLocations(locations);
+        final int expected = new MongoGeoService(getGeoLocationCol()).getLocations(bbox).size();
+
+        final PartitionedGeoService service = new PartitionedGeoService(Arrays.asList(getPartitionCol("west"),
+                getPartitionCol("east")), 2);
+        try {
+            service.insert(locations);
+            final AtomicBoolean splitting = new AtomicBoolean(true);
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final AtomicInteger queries = new AtomicInteger();
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (splitting.get()) {
+                                Assert.assertEquals(expected, service.getLocations(bbox).size());
+                                queries.incrementAndGet();
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                });
+                worker.start();
+                workers.add(worker);
+            }
+            // split the eastern band again and again through Australia and the Pacific
+            double[] longitudes = { 150d, 120d, 170d, 100d, 135d, 160d };
+            for (int i = 0; i < longitudes.length; i++) {
+                service.split(longitudes[i], getPartitionCol("split-" + i));
+            }
+            splitting.set(false);
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            Assert.assertTrue(queries.get() > 0);
+            Assert.assertEquals(expected, service.getLocations(bbox).size());
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void testPartitionedServiceOverAntimeridian() {
+        List<GeoLocation> locations = new ArrayList<>();
+        for (int longitude = -179; longitude < 180; longitude += 7) {
+            locations.add(new GeoLocation(new GeoPoint(10, longitude), "longitude " + longitude));
+        }
+        // wraps almost around the world, both edges lie in the western band
+        GeoBoundingBox bbox = new GeoBoundingBox(new GeoPoint(0, -10), new GeoPoint(20, -20));
+        int expected = 0;
+        for (GeoLocation location : locations) {
+            if (bbox.contains(location.getGeoPoint())) {
+                expected++;
+            }
+        }
+
+        List<List<DBCollection>> layouts = new ArrayList<>();
+        layouts.add(Arrays.asList(getPartitionCol("single")));
+        layouts.add(Arrays.asList(getPartitionCol("west"), getPartitionCol("east")));
+        for (List<DBCollection> collections : layouts) {
+            PartitionedGeoService service = new PartitionedGeoService(collections, 2);
+            try {
+                service.insert(locations);
+                List<GeoLocation> found = service.getLocations(bbox);
+                Assert.assertEquals(expected, found.size());
+                Assert.assertEquals(found.size(), new HashSet<>(found).size());
+            } finally {
+                service.close();
+            }
+        }
+    }
+
+    /**
+     * Create a location document of an arctic tile.
+     * 
+     * @param id the document id
+     * @param latitude the latitude
+     * @param longitude the longitude
+     * @return the document
+     */
+    private static BasicDBObject arcticDocument(String id, double latitude, double longitude) {
+        BasicDBObject document = new GeoLocation(new GeoPoint(latitude, longitude), id).toMongo();
+        document.put(PositionWriter.MONGO_ID, id);
+        return document;
+    }
+
+    /**
+     * Get a 2d indexed collection of a partition.
+     * 
+     * @param name the collection suffix
+     * @return the collection
+     */
+    private DBCollection getPartitionCol(String name) {
+        DBCollection col = getGeoLocationCol().getDB().getCollection("geoCol-" + name);
+        col.createIndex(new BasicDBObject(GeoLocation.MONGO_GEOPOINT, MongoConstants.INDEX_GEO));
+        return col;
+    }
+
+    /**
+     * Flat distance between two points wrapped at the antimeridian.
+     * 
+     * @param p1 the first point
+     * @param p2 the second point
+     * @return the distance in degrees
+     */
+    private static double distance(GeoPoint p1, GeoPoint p2) {
+        double dx = Math.abs(p1.getLongitude() - p2.getLongitude());
+        dx = Math.min(dx, 360 - dx);
+        double dy = p1.getLatitude() - p2.getLatitude();
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
 }
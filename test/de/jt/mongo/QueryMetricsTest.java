@@ -0,0 +1,57 @@
+package de.jt.mongo;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.jt.db.LatencyHistogram;
+import de.jt.db.QueryMetrics;
+import de.jt.db.QueryStrategy;
+
+/**
+ * Query metrics tests.
+ * 
+ * @author Hendrik Stein
+ * 
+ */
+public class QueryMetricsTest extends TestCase {
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L); // 1..1000 microseconds
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(1000, snapshot.getMaxMicros());
+        // buckets have a relative error of at most 12.5%
+        Assert.assertEquals(500, snapshot.getP50Micros(), 500 * 0.125);
+        Assert.assertEquals(990, snapshot.getP99Micros(), 990 * 0.125);
+        Assert.assertEquals(500, snapshot.getMeanMicros(), 1);
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void testJMXRegistration() throws Exception {
+        QueryMetrics metrics = new QueryMetrics();
+        ObjectName name = metrics.registerMBean("testCol");
+        try {
+            CompositeData snapshot = (CompositeData) ManagementFactory.getPlatformMBeanServer().getAttribute(name,
+                    "Snapshot");
+            CompositeData[] strategies = (CompositeData[]) snapshot.get("strategies");
+            Assert.assertEquals(QueryStrategy.values().length, strategies.length);
+        } finally {
+            QueryMetrics.unregisterMBean(name);
+        }
+    }
+}
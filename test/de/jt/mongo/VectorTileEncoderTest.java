@@ -0,0 +1,255 @@
+package de.jt.mongo;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.jt.db.VectorTileEncoder;
+import de.jt.model.GeoBoundingBox;
+import de.jt.model.GeoLocation;
+import de.jt.model.GeoPoint;
+
+/**
+ * Vector tile encoder tests, decoding the tiles with a minimal protobuf reader.
+ * 
+ * @author Hendrik Stein
+ * 
+ */
+public class VectorTileEncoderTest extends TestCase {
+
+    @Test
+    public void testTileBounds() {
+        GeoBoundingBox world = VectorTileEncoder.getBoundingBox(0, 0, 0);
+        Assert.assertEquals(-90, world.getLowerLeft().getLatitude(), 0d);
+        Assert.assertEquals(180, world.getUpperRight().getLongitude(), 0d);
+
+        GeoBoundingBox tile = VectorTileEncoder.getBoundingBox(2, 3, 1);
+        Assert.assertEquals(90, tile.getLowerLeft().getLongitude(), 1e-9);
+        Assert.assertEquals(0, tile.getLowerLeft().getLatitude(), 1e-9);
+        Assert.assertEquals(66.51326, tile.getUpperRight().getLatitude(), 1e-5);
+        try {
+            VectorTileEncoder.getBoundingBox(2, 4, 0);
+            Assert.fail("tile out of bounds");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEncode() {
+        List<GeoLocation> locations = Arrays.asList(new GeoLocation(new GeoPoint(0, 90), "equator"), new GeoLocation(
+                new GeoPoint(45, 135), "north", new Date(1000L)), new GeoLocation(new GeoPoint(45, 135), "north"));
+        Layer layer = decode(new VectorTileEncoder().encode(locations, 1, 1, 0));
+
+        Assert.assertEquals(2, layer.version);
+        Assert.assertEquals(VectorTileEncoder.DEFAULT_LAYER_NAME, layer.name);
+        Assert.assertEquals(4096, layer.extent);
+        Assert.assertEquals(3, layer.features.size());
+        Assert.assertEquals(Arrays.asList(VectorTileEncoder.KEY_DESCRIPTION, VectorTileEncoder.KEY_TIMESTAMP,
+                VectorTileEncoder.KEY_COUNT), layer.keys);
+        // equal descriptions share a value
+        Assert.assertEquals(Arrays.<Object> asList("equator", "north", 1000L), layer.values);
+
+        Feature equator = layer.features.get(0);
+        Assert.assertEquals(1, equator.type);
+        Assert.assertArrayEquals(new long[] { 9, 2048 << 1, 4096 << 1 }, equator.geometry);
+        Assert.assertArrayEquals(new long[] { 0, 0 }, equator.tags);
+        Assert.assertArrayEquals(new long[] { 0, 1, 1, 2 }, layer.features.get(1).tags);
+        Assert.assertEquals(3072 << 1, layer.features.get(1).geometry[1]);
+    }
+
+    @Test
+    public void testThinning() {
+        List<GeoLocation> locations = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            locations.add(new GeoLocation(new GeoPoint(10 + (i % 50) * 0.001, 10 + (i / 50) * 0.001), "dense"));
+        }
+        Layer layer = decode(new VectorTileEncoder().encode(locations, 0, 0, 0));
+        Assert.assertTrue(layer.features.size() < 10);
+        long total = 0L;
+        for (Feature feature : layer.features) {
+            Assert.assertEquals(2, feature.tags[2]);
+            total += (Long) layer.values.get((int) feature.tags[3]);
+        }
+        Assert.assertEquals(locations.size(), total);
+
+        layer = decode(new VectorTileEncoder("dense", 4096, 5000, 256).encode(locations, 0, 0, 0));
+        Assert.assertEquals(locations.size(), layer.features.size());
+    }
+
+    /**
+     * Decode the single layer of a tile.
+     * 
+     * @param tile the tile
+     * @return the layer
+     */
+    private static Layer decode(ByteBuffer tile) {
+        Assert.assertEquals((3 << 3) | 2, readVarint(tile));
+        ByteBuffer buffer = slice(tile);
+        Assert.assertFalse(tile.hasRemaining());
+        Layer layer = new Layer();
+        while (buffer.hasRemaining()) {
+            long tag = readVarint(buffer);
+            switch ((int) (tag >>> 3)) {
+            case 15:
+                layer.version = readVarint(buffer);
+                break;
+            case 1:
+                layer.name = string(slice(buffer));
+                break;
+            case 2:
+                layer.features.add(feature(slice(buffer)));
+                break;
+            case 3:
+                layer.keys.add(string(slice(buffer)));
+                break;
+            case 4:
+                ByteBuffer value = slice(buffer);
+                long valueTag = readVarint(value);
+                layer.values.add(valueTag >>> 3 == 1 ? string(slice(value)) : (Object) readVarint(value));
+                break;
+            case 5:
+                layer.extent = readVarint(buffer);
+                break;
+            default:
+                Assert.fail("unexpected layer field " + tag);
+            }
+        }
+        return layer;
+    }
+
+    /**
+     * Decode a feature.
+     * 
+     * @param buffer the feature message
+     * @return the feature
+     */
+    private static Feature feature(ByteBuffer buffer) {
+        Feature feature = new Feature();
+        while (buffer.hasRemaining()) {
+            long tag = readVarint(buffer);
+            switch ((int) (tag >>> 3)) {
+            case 2:
+                feature.tags = packed(slice(buffer));
+                break;
+            case 3:
+                feature.type = readVarint(buffer);
+                break;
+            case 4:
+                feature.geometry = packed(slice(buffer));
+                break;
+            default:
+                Assert.fail("unexpected feature field " + tag);
+            }
+        }
+        return feature;
+    }
+
+    /**
+     * Decode packed varints.
+     * 
+     * @param buffer the field content
+     * @return the values
+     */
+    private static long[] packed(ByteBuffer buffer) {
+        List<Long> values = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            values.add(readVarint(buffer));
+        }
+        long[] result = new long[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Read a length delimited field and advance the buffer behind it.
+     * 
+     * @param buffer the buffer
+     * @return the field content
+     */
+    private static ByteBuffer slice(ByteBuffer buffer) {
+        int length = (int) readVarint(buffer);
+        ByteBuffer content = buffer.slice();
+        content.limit(length);
+        buffer.position(buffer.position() + length);
+        return content;
+    }
+
+    /**
+     * Decode a UTF-8 string.
+     * 
+     * @param buffer the field content
+     * @return the string
+     */
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Read a varint.
+     * 
+     * @param buffer the buffer
+     * @return the value
+     */
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0L;
+        for (int shift = 0;; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * A decoded layer.
+     */
+    private static final class Layer {
+
+        /** The version. */
+        private long version;
+
+        /** The name. */
+        private String name;
+
+        /** The extent. */
+        private long extent;
+
+        /** The features. */
+        private final List<Feature> features = new ArrayList<>();
+
+        /** The keys. */
+        private final List<String> keys = new ArrayList<>();
+
+        /** The values. */
+        private final List<Object> values = new ArrayList<>();
+    }
+
+    /**
+     * A decoded feature.
+     */
+    private static final class Feature {
+
+        /** The tags. */
+        private long[] tags = new long[0];
+
+        /** The geometry type. */
+        private long type;
+
+        /** The geometry commands. */
+        private long[] geometry;
+    }
+}